@@ -0,0 +1,55 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The hash an atom is signed with, through the library's Atom and DSON serializer or AtomDson
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AtomHashBenchmarks {
+	@Param({ "2", "10", "100" })
+	public int particles;
+
+	private List<SpunParticle<TransferrableTokensParticle>> spunParticles;
+	private final String btcTxId = "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b";
+	private final long timestamp = 1_500_000_000_000L;
+
+	@Setup
+	public void setup() throws Exception {
+		KeyHandler keyHandler = new BouncyCastleKeyHandler();
+		Random random = new Random(42);
+
+		byte[][] privateKeys = BenchmarkData.privateKeys(particles, random);
+		spunParticles = new ArrayList<>();
+		for (int i = 0; i < particles; i++) {
+			ECKeyPair owner = BenchmarkData.keyPair(keyHandler, privateKeys[i]);
+			TransferrableTokensParticle particle = BenchmarkData.particle(owner, random);
+			spunParticles.add(i < particles / 2 ? SpunParticle.down(particle) : SpunParticle.up(particle));
+		}
+	}
+
+	@Benchmark
+	public byte[] library() {
+		return AtomDson.atom(spunParticles, btcTxId, timestamp).getHash().toByteArray();
+	}
+
+	@Benchmark
+	public byte[] direct() {
+		return AtomDson.hash(spunParticles, btcTxId, timestamp);
+	}
+}
@@ -0,0 +1,75 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import org.bitcoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.radix.common.ID.EUID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Encoding an atom record the way the atom file writer does, from its signed form
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AtomRecordBenchmarks {
+	@Param({ "1", "10", "100", "1000" })
+	public int particles;
+
+	private AtomFileWriter.AtomFileRecord record;
+
+	@Setup
+	public void setup() throws Exception {
+		KeyHandler keyHandler = new BouncyCastleKeyHandler();
+		Random random = new Random(42);
+
+		// Half the particles spend inputs, each owner signs once
+		int signers = Math.max(1, Math.min(16, particles / 2));
+		byte[][] privateKeys = BenchmarkData.privateKeys(signers, random);
+		ECKeyPair[] owners = new ECKeyPair[signers];
+		EUID[] signerUids = new EUID[signers];
+		for (int i = 0; i < signers; i++) {
+			owners[i] = BenchmarkData.keyPair(keyHandler, privateKeys[i]);
+			signerUids[i] = owners[i].getUID();
+		}
+
+		Set<Long> shards = new HashSet<>();
+		List<SpunParticle<TransferrableTokensParticle>> spunParticles = new ArrayList<>();
+		for (int i = 0; i < particles; i++) {
+			TransferrableTokensParticle particle = BenchmarkData.particle(owners[i % signers], random);
+			spunParticles.add(i < particles / 2 ? SpunParticle.down(particle) : SpunParticle.up(particle));
+			shards.add(particle.getAddress().getUID().getShard());
+		}
+
+		byte[] atomHash = new byte[32];
+		random.nextBytes(atomHash);
+		byte[][] hashes = new byte[signers][];
+		for (int i = 0; i < signers; i++)
+			hashes[i] = atomHash;
+		byte[] signatures = new byte[signers * CompactSignatures.LENGTH];
+		keyHandler.signAll(hashes, privateKeys, signers, signatures);
+
+		byte[] txId = new byte[32];
+		random.nextBytes(txId);
+		record = new AtomFileWriter.AtomFileRecord(Sha256Hash.wrap(txId), shards, spunParticles, signerUids, signatures, signers, 1_500_000_000_000L);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return record.toByteArray();
+	}
+}
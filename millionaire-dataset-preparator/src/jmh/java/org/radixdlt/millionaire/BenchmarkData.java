@@ -0,0 +1,94 @@
+package org.radixdlt.millionaire;
+
+import com.google.common.collect.ImmutableMap;
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
+import com.radixdlt.client.atommodel.tokens.TokenPermission;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.Bootstrap;
+import com.radixdlt.client.core.RadixUniverse;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.radix.utils.UInt256;
+
+import java.util.Random;
+
+// Inputs shared by the benchmarks, built the way the parser builds them
+final class BenchmarkData {
+	static final NetworkParameters NETWORK = MainNetParams.get();
+
+	private static RadixUniverse universe;
+
+	private BenchmarkData() {
+	}
+
+	static synchronized RadixUniverse universe() {
+		if (universe == null)
+			universe = RadixUniverse.create(Bootstrap.LOCALHOST);
+		return universe;
+	}
+
+	// Private keys derived like addressToKeyPair does, as the SHA-256 of an address hash
+	static byte[][] privateKeys(int count, Random random) {
+		byte[][] privateKeys = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			byte[] addressHash = new byte[20];
+			random.nextBytes(addressHash);
+			privateKeys[i] = Sha256Hash.hash(addressHash);
+		}
+		return privateKeys;
+	}
+
+	static byte[][] hashes(int count, Random random) {
+		byte[][] hashes = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = new byte[32];
+			random.nextBytes(hashes[i]);
+		}
+		return hashes;
+	}
+
+	static ECKeyPair keyPair(KeyHandler keyHandler, byte[] privateKey) throws CryptoException {
+		return new ECKeyPair(keyHandler.computePublicKey(privateKey), privateKey);
+	}
+
+	static TransferrableTokensParticle particle(ECKeyPair owner, Random random) {
+		return new TransferrableTokensParticle(
+			UInt256.from(random.nextLong() & Long.MAX_VALUE).multiply(UInt256.from(10_000_000_000L)),
+			UInt256.ONE,
+			new RadixAddress(universe().getConfig(), owner.getPublicKey()),
+			random.nextLong(),
+			universe().getNativeToken(),
+			random.nextLong(),
+			ImmutableMap.of(
+				TokenDefinitionParticle.TokenTransition.MINT, TokenPermission.ALL,
+				TokenDefinitionParticle.TokenTransition.BURN, TokenPermission.ALL
+			)
+		);
+	}
+
+	// A P2PKH transaction spending random outpoints
+	static Transaction transaction(Random random, int inputs, int outputs) {
+		Transaction transaction = new Transaction(NETWORK);
+		for (int i = 0; i < inputs; i++) {
+			byte[] txId = new byte[32];
+			random.nextBytes(txId);
+			byte[] scriptSig = new byte[107];
+			random.nextBytes(scriptSig);
+			transaction.addInput(new TransactionInput(NETWORK, transaction, scriptSig, new TransactionOutPoint(NETWORK, random.nextInt(4), Sha256Hash.wrap(txId))));
+		}
+		for (int i = 0; i < outputs; i++) {
+			byte[] pubKeyHash = new byte[20];
+			random.nextBytes(pubKeyHash);
+			transaction.addOutput(Coin.valueOf(1 + random.nextInt(100_000_000)), ScriptBuilder.createP2PKHOutputScript(pubKeyHash));
+		}
+		return transaction;
+	}
+}
@@ -0,0 +1,72 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// What the parse loop reads of a block, the outpoints, values, address hashes and txids: from a
+// bitcoinj Block against the RawBlock view of the same bytes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlockDecodeBenchmarks {
+	@Param({ "100", "2000" })
+	public int transactions;
+
+	private byte[] serialized;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		List<Transaction> txs = new ArrayList<>();
+		for (int i = 0; i < transactions; i++)
+			txs.add(BenchmarkData.transaction(random, 1 + random.nextInt(3), 1 + random.nextInt(3)));
+
+		byte[] prev = new byte[32];
+		random.nextBytes(prev);
+		serialized = new Block(BenchmarkData.NETWORK, Block.BLOCK_VERSION_GENESIS, Sha256Hash.wrap(prev), Sha256Hash.ZERO_HASH, 1231006505L, 0x1d00ffffL, random.nextInt(), txs).bitcoinSerialize();
+	}
+
+	@Benchmark
+	public void bitcoinj(Blackhole blackhole) {
+		for (Transaction transaction : new Block(BenchmarkData.NETWORK, serialized).getTransactions()) {
+			for (TransactionInput input : transaction.getInputs())
+				blackhole.consume(Outpoint.key(input));
+			for (TransactionOutput output : transaction.getOutputs()) {
+				blackhole.consume(output.getValue().getValue());
+				blackhole.consume(output.getScriptPubKey().getToAddress(BenchmarkData.NETWORK, true).getHash());
+				blackhole.consume(Outpoint.key(output));
+			}
+		}
+	}
+
+	@Benchmark
+	public void raw(Blackhole blackhole) {
+		RawBlock block = RawBlock.of(serialized);
+		for (int t = 0; t < block.transactions(); t++) {
+			for (int input = block.firstInput(t), end = input + block.inputs(t); input < end; input++)
+				blackhole.consume(block.spentOutpoint(input));
+			for (int output = block.firstOutput(t), end = output + block.outputs(t); output < end; output++) {
+				blackhole.consume(block.value(output));
+				blackhole.consume(block.addressHash(output));
+				blackhole.consume(block.outpoint(output));
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlockSerializerBenchmarks {
+	@Param({ "1", "100", "2000" })
+	public int transactions;
+
+	private Block block;
+	private byte[] serialized;
+
+	@Setup
+	public void setup() throws IOException {
+		BlockSerializer.initStatic(BenchmarkData.NETWORK);
+
+		Random random = new Random(42);
+		List<Transaction> txs = new ArrayList<>();
+		for (int i = 0; i < transactions; i++)
+			txs.add(BenchmarkData.transaction(random, 1 + random.nextInt(3), 1 + random.nextInt(3)));
+
+		byte[] prev = new byte[32];
+		random.nextBytes(prev);
+		block = new Block(BenchmarkData.NETWORK, Block.BLOCK_VERSION_GENESIS, Sha256Hash.wrap(prev), Sha256Hash.ZERO_HASH, 1231006505L, 0x1d00ffffL, random.nextInt(), txs);
+		serialized = BlockSerializer.toByteArray(block);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return BlockSerializer.toByteArray(block);
+	}
+
+	@Benchmark
+	public Block deserialize() throws IOException {
+		return BlockSerializer.fromByteArray(serialized);
+	}
+}
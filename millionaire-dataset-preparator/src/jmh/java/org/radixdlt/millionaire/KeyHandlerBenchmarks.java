@@ -0,0 +1,71 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoin.Secp256k1Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeyHandlerBenchmarks {
+	private static final int KEYS = 1024;
+	private static final int BATCH = 4;
+
+	@Param({ "libsecp256k1", "bouncycastle" })
+	public String handler;
+
+	private KeyHandler keyHandler;
+	private byte[][] privateKeys, hashes;
+	private byte[][] batchKeys = new byte[BATCH][], batchHashes = new byte[BATCH][];
+	private byte[] signatures = new byte[BATCH * CompactSignatures.LENGTH];
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		if (handler.equals("libsecp256k1")) {
+			if (!Secp256k1Context.isEnabled())
+				throw new IllegalStateException("libsecp256k1 is not available");
+			keyHandler = new Libsecp256k1KeyHandler(new Random());
+		} else {
+			keyHandler = new BouncyCastleKeyHandler();
+		}
+
+		Random random = new Random(42);
+		privateKeys = BenchmarkData.privateKeys(KEYS, random);
+		hashes = BenchmarkData.hashes(KEYS, random);
+	}
+
+	@Benchmark
+	public byte[] computePublicKey() throws CryptoException {
+		return keyHandler.computePublicKey(privateKeys[next++ & (KEYS - 1)]);
+	}
+
+	@Benchmark
+	public ECSignature sign() throws CryptoException {
+		int i = next++ & (KEYS - 1);
+		return keyHandler.sign(hashes[i], privateKeys[i]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public byte[] signAll() throws CryptoException {
+		for (int b = 0; b < BATCH; b++) {
+			int i = next++ & (KEYS - 1);
+			batchKeys[b] = privateKeys[i];
+			batchHashes[b] = hashes[i];
+		}
+		keyHandler.signAll(batchHashes, batchKeys, BATCH, signatures);
+		return signatures;
+	}
+}
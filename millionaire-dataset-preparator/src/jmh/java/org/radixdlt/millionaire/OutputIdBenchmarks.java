@@ -0,0 +1,66 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Keys of spent and created outputs: the textual ids of the banned/ignored databases against
+// the binary Outpoint keys
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OutputIdBenchmarks {
+	private static final int COUNT = 1024;
+
+	private TransactionOutput[] outputs = new TransactionOutput[COUNT];
+	private TransactionInput[] inputs = new TransactionInput[COUNT];
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		List<TransactionOutput> allOutputs = new ArrayList<>();
+		List<TransactionInput> allInputs = new ArrayList<>();
+		while (allOutputs.size() < COUNT || allInputs.size() < COUNT) {
+			Transaction transaction = BenchmarkData.transaction(random, 2, 2);
+			allOutputs.addAll(transaction.getOutputs());
+			allInputs.addAll(transaction.getInputs());
+		}
+		outputs = allOutputs.subList(0, COUNT).toArray(outputs);
+		inputs = allInputs.subList(0, COUNT).toArray(inputs);
+	}
+
+	@Benchmark
+	public String outputUniqueId() {
+		TransactionOutput output = outputs[next++ & (COUNT - 1)];
+		return output.getParentTransaction().getTxId().toString() + output.getIndex();
+	}
+
+	@Benchmark
+	public String inputUniqueId() {
+		TransactionInput input = inputs[next++ & (COUNT - 1)];
+		return input.getOutpoint().getHash().toString() + input.getOutpoint().getIndex();
+	}
+
+	@Benchmark
+	public byte[] outputOutpointKey() {
+		return Outpoint.key(outputs[next++ & (COUNT - 1)]);
+	}
+
+	@Benchmark
+	public byte[] inputOutpointKey() {
+		return Outpoint.key(inputs[next++ & (COUNT - 1)]);
+	}
+}
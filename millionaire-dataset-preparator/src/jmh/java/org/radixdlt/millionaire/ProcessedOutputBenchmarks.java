@@ -0,0 +1,47 @@
+package org.radixdlt.millionaire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProcessedOutputBenchmarks {
+	private static final int OUTPUTS = 256;
+
+	private ProcessedOutput[] outputs = new ProcessedOutput[OUTPUTS];
+	private byte[][] serialized = new byte[OUTPUTS][];
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		ProcessedOutputSerializer.initStatic(BenchmarkData.universe().getConfig(), BenchmarkData.universe().getNativeToken());
+
+		KeyHandler keyHandler = new BouncyCastleKeyHandler();
+		Random random = new Random(42);
+		byte[][] privateKeys = BenchmarkData.privateKeys(OUTPUTS, random);
+		for (int i = 0; i < OUTPUTS; i++) {
+			outputs[i] = new ProcessedOutput(BenchmarkData.keyPair(keyHandler, privateKeys[i]), BenchmarkData.particle(BenchmarkData.keyPair(keyHandler, privateKeys[i]), random));
+			serialized[i] = ProcessedOutputSerializer.toByteArray(outputs[i]);
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return ProcessedOutputSerializer.toByteArray(outputs[next++ & (OUTPUTS - 1)]);
+	}
+
+	@Benchmark
+	public ProcessedOutput deserialize() throws IOException {
+		return ProcessedOutputSerializer.fromByteArray(serialized[next++ & (OUTPUTS - 1)]);
+	}
+}
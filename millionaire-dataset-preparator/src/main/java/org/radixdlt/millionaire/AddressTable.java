@@ -0,0 +1,136 @@
+package org.radixdlt.millionaire;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+import java.io.IOException;
+
+// Owner keys of the UTXO set, stored once per address instead of in every unspent output.
+//
+// Addresses are identified by the owner's compressed public key, which is derived from the address
+// hash (or random for outputs without an address) so there is exactly one per address. Each gets
+// a dense int id in order of first appearance: unique_addresses maps public keys to ids,
+// address_keys ids to [32 private key][33 public key]. Ids are assigned inside the block's JE
+// transaction and the next id is stored in app_progress by commit(), so the number of unique
+// addresses is simply the next id. Both directions are cached in memory.
+class AddressTable {
+	private static final byte[] SIZE_KEY = "addressTableSize".getBytes();
+	private static final int PRIVATE_KEY_LENGTH = 32;
+
+	private final Database idsDatabase;
+	private final Database keysDatabase;
+	private final Database appProgressDatabase;
+	private final KeyCache<Integer> ids;
+	private final KeyCache<ECKeyPair> keys;
+
+	private volatile int size;
+
+	private AddressTable(Database idsDatabase, Database keysDatabase, Database appProgressDatabase, long cacheBytes, int size) {
+		this.idsDatabase = idsDatabase;
+		this.keysDatabase = keysDatabase;
+		this.appProgressDatabase = appProgressDatabase;
+		this.ids = new KeyCache<>(cacheBytes / 2);
+		this.keys = new KeyCache<>(cacheBytes / 2);
+		this.size = size;
+	}
+
+	static AddressTable open(Environment environment, Database appProgressDatabase, long cacheBytes) {
+		DatabaseConfig databaseConfig = new DatabaseConfig();
+		databaseConfig.setAllowCreate(true);
+		databaseConfig.setTransactional(true);
+		Database idsDatabase = environment.openDatabase(null, "unique_addresses", databaseConfig);
+		Database keysDatabase = environment.openDatabase(null, "address_keys", databaseConfig);
+
+		DatabaseEntry size = new DatabaseEntry();
+		boolean stored = OperationStatus.SUCCESS == appProgressDatabase.get(null, new DatabaseEntry(SIZE_KEY), size, LockMode.DEFAULT);
+		return new AddressTable(idsDatabase, keysDatabase, appProgressDatabase, cacheBytes, stored ? (int) Longs.fromByteArray(size.getData()) : 0);
+	}
+
+	// Id of the owner's address, assigned on first sight
+	int id(Transaction dbtx, ECKeyPair owner) throws IOException {
+		byte[] publicKey = owner.getPublicKey().getPublicKey();
+		Integer id = ids.get(publicKey);
+		if (id != null)
+			return id;
+
+		id = stored(dbtx, publicKey);
+		if (id == null) {
+			// Transactions of a block are resolved in parallel, ids are assigned one at a time
+			synchronized (this) {
+				id = assign(dbtx, owner, publicKey);
+			}
+		}
+
+		ids.put(publicKey, id);
+		return id;
+	}
+
+	private Integer stored(Transaction dbtx, byte[] publicKey) {
+		DatabaseEntry idData = new DatabaseEntry();
+		if (OperationStatus.SUCCESS == idsDatabase.get(dbtx, new DatabaseEntry(publicKey), idData, LockMode.DEFAULT))
+			return Ints.fromByteArray(idData.getData());
+		return null;
+	}
+
+	private int assign(Transaction dbtx, ECKeyPair owner, byte[] publicKey) throws IOException {
+		// Another thread may have just assigned it
+		Integer id = stored(dbtx, publicKey);
+		if (id == null) {
+			byte[] privateKey = owner.getPrivateKey();
+			if (privateKey.length != PRIVATE_KEY_LENGTH)
+				throw new IOException("Unexpected private key length " + privateKey.length);
+
+			id = size;
+			byte[] keysData = new byte[PRIVATE_KEY_LENGTH + publicKey.length];
+			System.arraycopy(privateKey, 0, keysData, 0, PRIVATE_KEY_LENGTH);
+			System.arraycopy(publicKey, 0, keysData, PRIVATE_KEY_LENGTH, publicKey.length);
+			idsDatabase.put(dbtx, new DatabaseEntry(publicKey), new DatabaseEntry(Ints.toByteArray(id)));
+			keysDatabase.put(dbtx, new DatabaseEntry(Ints.toByteArray(id)), new DatabaseEntry(keysData));
+			size = id + 1;
+			keys.put(Ints.toByteArray(id), owner);
+		}
+		return id;
+	}
+
+	ECKeyPair keys(Transaction dbtx, int id) throws IOException {
+		byte[] key = Ints.toByteArray(id);
+		ECKeyPair owner = keys.get(key);
+		if (owner != null)
+			return owner;
+
+		DatabaseEntry keysData = new DatabaseEntry();
+		if (OperationStatus.SUCCESS != keysDatabase.get(dbtx, new DatabaseEntry(key), keysData, LockMode.DEFAULT))
+			throw new IOException("No keys for address " + id);
+
+		byte[] data = keysData.getData();
+		byte[] privateKey = new byte[PRIVATE_KEY_LENGTH];
+		byte[] publicKey = new byte[data.length - PRIVATE_KEY_LENGTH];
+		System.arraycopy(data, 0, privateKey, 0, PRIVATE_KEY_LENGTH);
+		System.arraycopy(data, PRIVATE_KEY_LENGTH, publicKey, 0, publicKey.length);
+		owner = new ECKeyPair(publicKey, privateKey);
+		keys.put(key, owner);
+		return owner;
+	}
+
+	// Unique addresses seen so far
+	int size() {
+		return size;
+	}
+
+	void commit(Transaction dbtx) {
+		appProgressDatabase.put(dbtx, new DatabaseEntry(SIZE_KEY), new DatabaseEntry(Longs.toByteArray(size)));
+	}
+
+	void close() {
+		idsDatabase.close();
+		keysDatabase.close();
+	}
+}
@@ -0,0 +1,157 @@
+package org.radixdlt.millionaire;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Compares the compressed atoms file mode against the plain one on records from an existing
+// plain atoms file: compression ratio, write throughput and read throughput for every codec and
+// frame size. Throughputs are in MB of uncompressed records per second.
+//
+// gradle compressionBenchmark -Patoms=<atoms file> [-PlimitMB=256]
+public class AtomCompressionBenchmark {
+	private static final String[] CODECS = { "lz4", "deflate" };
+	private static final int[] FRAME_SIZES = { 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: AtomCompressionBenchmark <atoms file> [limit MB]");
+			return;
+		}
+
+		long limit = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024 * 1024;
+		List<byte[]> records = load(new File(args[0]), limit);
+		long bytes = 0;
+		for (byte[] record : records)
+			bytes += record.length;
+		System.out.println(String.format(Locale.US, "Loaded %d records, %.1f MB", records.size(), bytes / 1e6));
+
+		File dir = Files.createTempDirectory("atoms-bench").toFile();
+		try {
+			File plain = new File(dir, "atoms");
+			double plainWrite = best(() -> {
+				plain.delete();
+				long start = System.nanoTime();
+				try (AtomOutput output = new PlainAtomOutput(plain)) {
+					write(output, records);
+				}
+				return System.nanoTime() - start;
+			});
+			double plainRead = best(() -> {
+				long start = System.nanoTime();
+				readPlain(plain);
+				return System.nanoTime() - start;
+			});
+			System.out.println(String.format(Locale.US, "%-8s %8s %7s %10s %10s", "codec", "frame", "ratio", "write MB/s", "read MB/s"));
+			System.out.println(String.format(Locale.US, "%-8s %8s %7.2f %10.1f %10.1f", "plain", "-", 1.0, bytes / plainWrite, bytes / plainRead));
+
+			for (String codec : CODECS) {
+				for (int frameSize : FRAME_SIZES) {
+					File frames = new File(dir, "atoms.frames");
+					double write = best(() -> {
+						frames.delete();
+						long start = System.nanoTime();
+						try (AtomOutput output = new CompressedAtomOutput(frames, AtomFrameCodec.forName(codec), frameSize, 1024 * 1024)) {
+							write(output, records);
+						}
+						return System.nanoTime() - start;
+					});
+					double read = best(() -> {
+						long start = System.nanoTime();
+						readFrames(frames, records.size());
+						return System.nanoTime() - start;
+					});
+					double ratio = (double) bytes / (frames.length() - AtomFrames.HEADER_LENGTH);
+					System.out.println(String.format(Locale.US, "%-8s %7dK %7.2f %10.1f %10.1f", codec, frameSize / 1024, ratio, bytes / write, bytes / read));
+				}
+			}
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private interface Timed {
+		long run() throws IOException;
+	}
+
+	// Best of a few rounds, in bytes per microsecond (MB/s)
+	private static double best(Timed timed) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++)
+			best = Math.min(best, timed.run());
+		return best / 1000.0;
+	}
+
+	private static List<byte[]> load(File atomsFile, long limit) throws IOException {
+		byte[] data;
+		try (FileInputStream in = new FileInputStream(atomsFile)) {
+			data = new byte[(int) Math.min(Math.min(in.getChannel().size(), limit + 64 * 1024 * 1024), Integer.MAX_VALUE - 8)];
+			int read = 0;
+			while (read < data.length) {
+				int n = in.read(data, read, data.length - read);
+				if (n < 0)
+					break;
+				read += n;
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		List<byte[]> records = new ArrayList<>();
+		int offset = 0;
+		long total = 0;
+		while (total < limit && offset < data.length) {
+			int length;
+			try {
+				length = AtomFrames.recordLength(buffer, offset);
+			} catch (IndexOutOfBoundsException e) {
+				break;
+			}
+			if (offset + length > data.length)
+				break;
+
+			byte[] record = new byte[length];
+			System.arraycopy(data, offset, record, 0, length);
+			records.add(record);
+			offset += length;
+			total += length;
+		}
+		return records;
+	}
+
+	private static void write(AtomOutput output, List<byte[]> records) throws IOException {
+		// A block every 100 records or so, only the frame headers look at it
+		for (int i = 0; i < records.size(); i++)
+			output.write(records.get(i), Collections.emptySet(), i / 100);
+	}
+
+	private static void readPlain(File file) throws IOException {
+		byte[] buffer = new byte[1024 * 1024];
+		long read = 0;
+		try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 10 * 1024 * 1024)) {
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				read += n;
+		}
+		if (read != file.length())
+			throw new IOException("Short read of " + file);
+	}
+
+	private static void readFrames(File file, int expected) throws IOException {
+		long[] records = new long[1];
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			reader.read(0, reader.frameCount(), record -> records[0]++);
+		}
+		if (records[0] != expected)
+			throw new IOException("Read " + records[0] + " records from " + file + ", expected " + expected);
+	}
+}
@@ -0,0 +1,309 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
+import com.radixdlt.client.atommodel.tokens.TokenPermission;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.address.RadixUniverseConfig;
+import com.radixdlt.client.core.atoms.Atom;
+import com.radixdlt.client.core.atoms.ParticleGroup;
+import com.radixdlt.client.core.atoms.RadixHash;
+import com.radixdlt.client.core.atoms.particles.RRI;
+import com.radixdlt.client.core.atoms.particles.Spin;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import com.radixdlt.client.core.crypto.ECKeyPairGenerator;
+import org.radix.serialization2.DsonOutput;
+import org.radix.serialization2.client.Serialize;
+import org.radix.utils.UInt256;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The hash DSON of our atoms, written directly instead of through Atom and the reflective
+// serializer. Atoms are always one particle group of token transfers with btcTxId and timestamp
+// metadata, so the layout is fixed:
+//
+//   atom      {metaData: {btcTxId, timestamp}, particleGroups: [group], serializer, version}
+//   group     {particles: [spun...], serializer, version}
+//   spun      {particle, serializer, spin, version}
+//   particle  {address, amount, destinations: [address uid], granularity, nonce, permissions,
+//              planck, serializer, tokenDefinitionReference, version}
+//
+// DSON is CBOR as written by Jackson: objects and maps are indefinite length with their keys
+// sorted, arrays have a length, ints are minimal unless a long is outside the int range, and
+// typed values are byte strings with a type prefix. selfCheck() compares the encoding with the
+// library's for a sample atom, atoms are only hashed directly when they match.
+final class AtomDson {
+	private static final int VERSION = 100;
+
+	private static final byte ADDRESS_PREFIX = 0x04;
+	private static final byte EUID_PREFIX = 0x02;
+	private static final byte UINT256_PREFIX = 0x05;
+	private static final byte RRI_PREFIX = 0x06;
+
+	private static final int MAJOR_UNSIGNED = 0x00;
+	private static final int MAJOR_NEGATIVE = 0x20;
+	private static final int MAJOR_BYTES = 0x40;
+	private static final int MAJOR_TEXT = 0x60;
+	private static final int MAJOR_ARRAY = 0x80;
+	private static final int MAP_START = 0xbf;
+	private static final int BREAK = 0xff;
+
+	private static final String ATOM_SERIALIZER = "radix.atom";
+	private static final String GROUP_SERIALIZER = "radix.particle_group";
+	private static final String SPUN_SERIALIZER = "radix.spun_particle";
+	private static final String TRANSFER_SERIALIZER = "radix.particles.transferrable_tokens";
+
+	// Set by selfCheck()
+	static volatile boolean enabled = false;
+
+	// Per thread, atoms are built concurrently
+	private static final ThreadLocal<AtomDson> encoders = ThreadLocal.withInitial(AtomDson::new);
+
+	private byte[] buffer = new byte[8192];
+	private int length;
+
+	// Particles share their token and permissions, their encodings are kept by identity
+	private RRI lastToken;
+	private byte[] lastTokenBytes;
+	private Map<TokenDefinitionParticle.TokenTransition, TokenPermission> lastPermissions;
+	private byte[] lastPermissionsBytes;
+
+	private AtomDson() {
+	}
+
+	// Hash of the atom, what Atom.getHash() returns for it
+	static byte[] hash(List<SpunParticle<TransferrableTokensParticle>> particles, String btcTxId, long timestamp) {
+		AtomDson encoder = encoders.get();
+		encoder.encodeAtom(particles, btcTxId, timestamp);
+		return RadixHash.of(Arrays.copyOf(encoder.buffer, encoder.length)).toByteArray();
+	}
+
+	static byte[] encode(List<SpunParticle<TransferrableTokensParticle>> particles, String btcTxId, long timestamp) {
+		AtomDson encoder = encoders.get();
+		encoder.encodeAtom(particles, btcTxId, timestamp);
+		return Arrays.copyOf(encoder.buffer, encoder.length);
+	}
+
+	// The atom AtomFileItem would otherwise build and hash
+	static Atom atom(List<SpunParticle<TransferrableTokensParticle>> particles, String btcTxId, long timestamp) {
+		Map<String, String> metaData = new HashMap<>();
+		metaData.put("btcTxId", btcTxId);
+		metaData.put(Atom.METADATA_TIMESTAMP_KEY, String.valueOf(timestamp));
+
+		List<ParticleGroup> pgs = new ArrayList<>();
+		pgs.add(ParticleGroup.of(particles.toArray(new SpunParticle[0])));
+		return new Atom(pgs, metaData);
+	}
+
+	// Encodes a sample atom both ways and enables direct hashing if they agree
+	static boolean selfCheck(RadixUniverseConfig config, RRI token) {
+		try {
+			ECKeyPairGenerator generator = ECKeyPairGenerator.newInstance();
+			List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>();
+			long[] nonces = { System.nanoTime(), -1, Integer.MAX_VALUE + 1L };
+			for (int i = 0; i < nonces.length; i++) {
+				ECKeyPair key = generator.generateKeyPair();
+				TransferrableTokensParticle particle = new TransferrableTokensParticle(UInt256.from(1_000_000_000L * (i + 1)), UInt256.ONE,
+					new RadixAddress(config, key.getPublicKey()), nonces[i], token, System.currentTimeMillis() / 60000L + 60000L, ProcessedOutput.TOKEN_PERMISSIONS);
+				particles.add(i == 0 ? SpunParticle.down(particle) : SpunParticle.up(particle));
+			}
+
+			String btcTxId = "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b";
+			long timestamp = 1231006505000L;
+			Atom atom = atom(particles, btcTxId, timestamp);
+
+			enabled = Arrays.equals(Serialize.getInstance().toDson(atom, DsonOutput.Output.HASH), encode(particles, btcTxId, timestamp))
+				&& Arrays.equals(atom.getHash().toByteArray(), hash(particles, btcTxId, timestamp));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			enabled = false;
+		}
+		return enabled;
+	}
+
+	private void encodeAtom(List<SpunParticle<TransferrableTokensParticle>> particles, String btcTxId, long timestamp) {
+		length = 0;
+
+		writeByte(MAP_START);
+		writeText("metaData");
+		writeByte(MAP_START);
+		// Sorted keys
+		writeText("btcTxId");
+		writeText(btcTxId);
+		writeText(Atom.METADATA_TIMESTAMP_KEY);
+		writeText(String.valueOf(timestamp));
+		writeByte(BREAK);
+
+		writeText("particleGroups");
+		writeHeader(MAJOR_ARRAY, 1);
+		writeByte(MAP_START);
+		writeText("particles");
+		writeHeader(MAJOR_ARRAY, particles.size());
+		for (SpunParticle<TransferrableTokensParticle> particle : particles)
+			encodeSpunParticle(particle);
+		writeSerializerAndVersion(GROUP_SERIALIZER);
+		writeByte(BREAK);
+
+		writeSerializerAndVersion(ATOM_SERIALIZER);
+		writeByte(BREAK);
+	}
+
+	private void encodeSpunParticle(SpunParticle<TransferrableTokensParticle> spunParticle) {
+		writeByte(MAP_START);
+		writeText("particle");
+		encodeParticle(spunParticle.getParticle());
+		writeText("serializer");
+		writeText(SPUN_SERIALIZER);
+		writeText("spin");
+		writeLong(spunParticle.getSpin() == Spin.UP ? 1 : spunParticle.getSpin() == Spin.DOWN ? -1 : 0);
+		writeText("version");
+		writeLong(VERSION);
+		writeByte(BREAK);
+	}
+
+	private void encodeParticle(TransferrableTokensParticle particle) {
+		RadixAddress address = particle.getAddress();
+
+		writeByte(MAP_START);
+		writeText("address");
+		writeTyped(ADDRESS_PREFIX, address.toByteArray());
+		writeText("amount");
+		writeTyped(UINT256_PREFIX, particle.getAmount().toByteArray());
+		writeText("destinations");
+		writeHeader(MAJOR_ARRAY, 1);
+		writeTyped(EUID_PREFIX, address.getUID().toByteArray());
+		writeText("granularity");
+		writeTyped(UINT256_PREFIX, particle.getGranularity().toByteArray());
+		writeText("nonce");
+		writeLong(particle.getNonce());
+		writeText("permissions");
+		writeBytes(permissions(particle.getTokenPermissions()));
+		writeText("planck");
+		writeLong(particle.getPlanck());
+		writeText("serializer");
+		writeText(TRANSFER_SERIALIZER);
+		writeText("tokenDefinitionReference");
+		writeBytes(token(particle.getTokenDefinitionReference()));
+		writeText("version");
+		writeLong(VERSION);
+		writeByte(BREAK);
+	}
+
+	private void writeSerializerAndVersion(String serializer) {
+		writeText("serializer");
+		writeText(serializer);
+		writeText("version");
+		writeLong(VERSION);
+	}
+
+	// {transition: permission}, lower case names sorted by transition
+	private byte[] permissions(Map<TokenDefinitionParticle.TokenTransition, TokenPermission> permissions) {
+		if (permissions != lastPermissions) {
+			Map<String, String> sorted = new TreeMap<>();
+			for (Map.Entry<TokenDefinitionParticle.TokenTransition, TokenPermission> permission : permissions.entrySet())
+				sorted.put(permission.getKey().name().toLowerCase(), permission.getValue().name().toLowerCase());
+
+			AtomDson map = new AtomDson();
+			map.writeByte(MAP_START);
+			for (Map.Entry<String, String> permission : sorted.entrySet()) {
+				map.writeText(permission.getKey());
+				map.writeText(permission.getValue());
+			}
+			map.writeByte(BREAK);
+
+			lastPermissionsBytes = Arrays.copyOf(map.buffer, map.length);
+			lastPermissions = permissions;
+		}
+		return lastPermissionsBytes;
+	}
+
+	private byte[] token(RRI token) {
+		if (token != lastToken) {
+			AtomDson rri = new AtomDson();
+			rri.writeTyped(RRI_PREFIX, token.toString().getBytes(StandardCharsets.UTF_8));
+			lastTokenBytes = Arrays.copyOf(rri.buffer, rri.length);
+			lastToken = token;
+		}
+		return lastTokenBytes;
+	}
+
+	private void writeTyped(byte prefix, byte[] value) {
+		writeHeader(MAJOR_BYTES, 1 + value.length);
+		writeByte(prefix);
+		writeBytes(value);
+	}
+
+	// Keys and our values are ASCII, one byte per char
+	private void writeText(String text) {
+		int textLength = text.length();
+		writeHeader(MAJOR_TEXT, textLength);
+		ensure(textLength);
+		for (int i = 0; i < textLength; i++)
+			buffer[length++] = (byte) text.charAt(i);
+	}
+
+	// Jackson only uses 1 to 4 byte ints for values in the int range, other longs take 8 bytes
+	private void writeLong(long value) {
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+			int i = (int) value;
+			if (i < 0)
+				writeHeader(MAJOR_NEGATIVE, -(long) i - 1);
+			else
+				writeHeader(MAJOR_UNSIGNED, i);
+			return;
+		}
+
+		ensure(9);
+		if (value < 0) {
+			buffer[length++] = (byte) (MAJOR_NEGATIVE | 27);
+			value = -(value + 1);
+		} else
+			buffer[length++] = (byte) (MAJOR_UNSIGNED | 27);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			buffer[length++] = (byte) (value >>> shift);
+	}
+
+	// Major type with the shortest argument, value is at most 32 bits
+	private void writeHeader(int major, long value) {
+		ensure(5);
+		if (value < 24) {
+			buffer[length++] = (byte) (major | value);
+		} else if (value <= 0xff) {
+			buffer[length++] = (byte) (major | 24);
+			buffer[length++] = (byte) value;
+		} else if (value <= 0xffff) {
+			buffer[length++] = (byte) (major | 25);
+			buffer[length++] = (byte) (value >>> 8);
+			buffer[length++] = (byte) value;
+		} else {
+			buffer[length++] = (byte) (major | 26);
+			buffer[length++] = (byte) (value >>> 24);
+			buffer[length++] = (byte) (value >>> 16);
+			buffer[length++] = (byte) (value >>> 8);
+			buffer[length++] = (byte) value;
+		}
+	}
+
+	private void writeByte(int value) {
+		ensure(1);
+		buffer[length++] = (byte) value;
+	}
+
+	private void writeBytes(byte[] value) {
+		ensure(value.length);
+		System.arraycopy(value, 0, buffer, length, value.length);
+		length += value.length;
+	}
+
+	private void ensure(int bytes) {
+		if (length + bytes > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+	}
+}
@@ -0,0 +1,447 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.address.RadixUniverseConfig;
+import com.radixdlt.client.core.atoms.particles.RRI;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECPublicKey;
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoinj.core.Sha256Hash;
+import org.radix.common.ID.EUID;
+import org.radix.utils.UInt128;
+import org.radix.utils.UInt256;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Reads plain atoms files as written by AtomFileRecord.serializeToStream:
+//
+//   [int txId length][txId][long time][int shard count][long shard]...
+//   [int body length] body: [int particle count] particles [int signature count] signatures
+//   particle   [boolean up][33 byte public key][long amount]x4 high to low[long nonce][long planck]
+//   signature  [16 byte signer EUID][int r length][r][int s length][s], r and s as BigInteger bytes
+//
+// The file is memory-mapped in windows that end on record boundaries. Opening it hops over the
+// record headers once to find the windows and a checkpoint every few thousand records, which is
+// what spliterator() splits on. A torn record at the end of the file (a crashed run) is ignored.
+public class AtomFileReader implements Closeable {
+	static final int PUBLIC_KEY_LENGTH = 33;
+	static final int PARTICLE_LENGTH = 1 + PUBLIC_KEY_LENGTH + 32 + 8 + 8;
+	static final int EUID_LENGTH = 16;
+
+	private static final long WINDOW_SIZE = 1L << 30;
+	private static final int CHECKPOINT_RECORDS = 4096;
+
+	private final RandomAccessFile file;
+	private final ByteBuffer[] windows;
+	// Position of every CHECKPOINT_RECORDS-th record and of the end, as (window << 32) | offset
+	private final long[] checkpoints;
+	private final int checkpointRecords;
+	private final long records;
+
+	private AtomFileReader(RandomAccessFile file, ByteBuffer[] windows, long[] checkpoints, int checkpointRecords, long records) {
+		this.file = file;
+		this.windows = windows;
+		this.checkpoints = checkpoints;
+		this.checkpointRecords = checkpointRecords;
+		this.records = records;
+	}
+
+	public static AtomFileReader open(File atomsFile) throws IOException {
+		return open(atomsFile, WINDOW_SIZE, CHECKPOINT_RECORDS);
+	}
+
+	static AtomFileReader open(File atomsFile, long windowSize, int checkpointRecords) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(atomsFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			List<ByteBuffer> windows = new ArrayList<>();
+			long[] checkpoints = new long[16];
+			int checkpointCount = 0;
+			long records = 0;
+
+			long windowStart = 0;
+			while (windowStart < size) {
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+				int offset = 0;
+				int length;
+				while ((length = wholeRecordLength(window, offset)) > 0) {
+					if (records % checkpointRecords == 0) {
+						if (checkpointCount == checkpoints.length)
+							checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+						checkpoints[checkpointCount++] = position(windows.size(), offset);
+					}
+					offset += length;
+					records++;
+				}
+
+				if (offset == 0 && windowStart + window.limit() < size)
+					throw new IOException("Atom record at " + windowStart + " in " + atomsFile + " is larger than a window");
+
+				window.limit(offset);
+				windows.add(window);
+				if (windowStart + windowSize >= size)
+					break;
+				windowStart += offset;
+			}
+
+			if (checkpointCount == checkpoints.length)
+				checkpoints = Arrays.copyOf(checkpoints, checkpointCount + 1);
+			checkpoints[checkpointCount++] = windows.isEmpty() ? 0 : position(windows.size() - 1, windows.get(windows.size() - 1).limit());
+
+			return new AtomFileReader(file, windows.toArray(new ByteBuffer[0]), Arrays.copyOf(checkpoints, checkpointCount), checkpointRecords, records);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	// Length of the record at offset if all of it is within the buffer's limit, else 0
+	static int wholeRecordLength(ByteBuffer buffer, int offset) {
+		int limit = buffer.limit();
+		if (limit - offset < 4)
+			return 0;
+		long shardsOffset = (long) offset + 4 + buffer.getInt(offset) + 8;
+		if (shardsOffset + 4 > limit || buffer.getInt(offset) < 0)
+			return 0;
+		long bodyOffset = shardsOffset + 4 + 8L * buffer.getInt((int) shardsOffset);
+		if (bodyOffset + 4 > limit || bodyOffset < shardsOffset + 4)
+			return 0;
+		long end = bodyOffset + 4 + buffer.getInt((int) bodyOffset);
+		if (end > limit || end < bodyOffset + 4)
+			return 0;
+		return (int) (end - offset);
+	}
+
+	private static long position(int window, int offset) {
+		return ((long) window << 32) | offset;
+	}
+
+	public long records() {
+		return records;
+	}
+
+	// Cursor over all records
+	public Cursor cursor() {
+		return new Cursor(this, 0, checkpoints[checkpoints.length - 1]);
+	}
+
+	// Record slices in file order. Splits on checkpoints, so parallel streams get ranges of whole
+	// records; use Cursor.of() to decode a slice without copying it.
+	public Spliterator<ByteBuffer> spliterator() {
+		return new RecordSpliterator(0, checkpoints.length - 1);
+	}
+
+	public Stream<ByteBuffer> stream(boolean parallel) {
+		return StreamSupport.stream(spliterator(), parallel);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private class RecordSpliterator implements Spliterator<ByteBuffer> {
+		private long position;
+		// Checkpoint at which this range ends
+		private final int to;
+
+		RecordSpliterator(long position, int to) {
+			this.position = position;
+			this.to = to;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+			while (position < checkpoints[to]) {
+				int window = (int) (position >>> 32);
+				int offset = (int) position;
+				ByteBuffer buffer = windows[window];
+				if (offset >= buffer.limit()) {
+					position = position(window + 1, 0);
+					continue;
+				}
+
+				int length = wholeRecordLength(buffer, offset);
+				ByteBuffer record = buffer.duplicate();
+				record.limit(offset + length).position(offset);
+				position += length;
+				action.accept(record.slice());
+				return true;
+			}
+			return false;
+		}
+
+		// First checkpoint at or after the current position
+		private int nextCheckpoint() {
+			int index = Arrays.binarySearch(checkpoints, 0, to + 1, position);
+			return index >= 0 ? index : -index - 1;
+		}
+
+		@Override
+		public Spliterator<ByteBuffer> trySplit() {
+			int from = nextCheckpoint();
+			if (to - from < 2)
+				return null;
+
+			int middle = (from + to) >>> 1;
+			RecordSpliterator prefix = new RecordSpliterator(position, middle);
+			position = checkpoints[middle];
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return (long) (to - nextCheckpoint() + 1) * checkpointRecords;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+	}
+
+	// Walks records in a buffer, decoding fields in place. Nothing is allocated per record unless
+	// asked for through the materializing accessors (txId(), amount(), particle(), ...).
+	public static final class Cursor {
+		private final AtomFileReader reader;
+		private ByteBuffer buffer;
+		private long next;
+		private final long end;
+
+		private int start, length;
+		private int txIdLength, shardsOffset, shardCount, particlesOffset, particleCount, signaturesOffset, signatureCount;
+		// Offsets of the signatures of the current record, found on first use
+		private int[] signatureOffsets = new int[4];
+		private boolean signaturesIndexed;
+
+		private Cursor(AtomFileReader reader, long next, long end) {
+			this.reader = reader;
+			this.next = next;
+			this.end = end;
+			this.buffer = reader == null ? null : reader.windows.length > 0 ? reader.windows[0] : ByteBuffer.allocate(0);
+		}
+
+		// Cursor over the records between the buffer's position and limit
+		public static Cursor of(ByteBuffer records) {
+			Cursor cursor = new Cursor(null, records.position(), records.limit());
+			cursor.buffer = records;
+			return cursor;
+		}
+
+		// Moves to the next record, false at the end
+		public boolean next() {
+			if (reader != null) {
+				while (next < end && (int) next >= reader.windows[(int) (next >>> 32)].limit())
+					next = position((int) (next >>> 32) + 1, 0);
+				if (next >= end)
+					return false;
+				buffer = reader.windows[(int) (next >>> 32)];
+			} else if (next >= end) {
+				return false;
+			}
+
+			start = (int) next;
+			length = wholeRecordLength(buffer, start);
+			if (length == 0)
+				throw new IllegalStateException("Truncated atom record at " + start);
+
+			txIdLength = buffer.getInt(start);
+			shardsOffset = start + 4 + txIdLength + 8;
+			shardCount = buffer.getInt(shardsOffset);
+			particlesOffset = shardsOffset + 4 + shardCount * 8 + 4;
+			particleCount = buffer.getInt(particlesOffset);
+			signaturesOffset = particlesOffset + 4 + particleCount * PARTICLE_LENGTH;
+			signatureCount = buffer.getInt(signaturesOffset);
+			signaturesIndexed = false;
+
+			next += length;
+			return true;
+		}
+
+		// The whole current record
+		public ByteBuffer record() {
+			ByteBuffer record = buffer.duplicate();
+			record.limit(start + length).position(start);
+			return record.slice();
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public long txIdPrefix() {
+			return buffer.getLong(start + 4);
+		}
+
+		public void txId(byte[] dst) {
+			for (int i = 0; i < txIdLength; i++)
+				dst[i] = buffer.get(start + 4 + i);
+		}
+
+		public Sha256Hash txId() {
+			byte[] txId = new byte[txIdLength];
+			txId(txId);
+			return Sha256Hash.wrap(txId);
+		}
+
+		public long time() {
+			return buffer.getLong(start + 4 + txIdLength);
+		}
+
+		public int shardCount() {
+			return shardCount;
+		}
+
+		public long shard(int i) {
+			return buffer.getLong(shardsOffset + 4 + i * 8);
+		}
+
+		// In file order
+		public Set<Long> shards() {
+			Set<Long> shards = new LinkedHashSet<>();
+			for (int i = 0; i < shardCount; i++)
+				shards.add(shard(i));
+			return shards;
+		}
+
+		public int particleCount() {
+			return particleCount;
+		}
+
+		private int particleOffset(int i) {
+			return particlesOffset + 4 + i * PARTICLE_LENGTH;
+		}
+
+		public boolean up(int particle) {
+			return buffer.get(particleOffset(particle)) != 0;
+		}
+
+		public void publicKey(int particle, byte[] dst) {
+			int offset = particleOffset(particle) + 1;
+			for (int i = 0; i < PUBLIC_KEY_LENGTH; i++)
+				dst[i] = buffer.get(offset + i);
+		}
+
+		// One of the four longs of the amount, 0 being the most significant
+		public long amountWord(int particle, int word) {
+			return buffer.getLong(particleOffset(particle) + 1 + PUBLIC_KEY_LENGTH + word * 8);
+		}
+
+		public long nonce(int particle) {
+			return buffer.getLong(particleOffset(particle) + 1 + PUBLIC_KEY_LENGTH + 32);
+		}
+
+		public long planck(int particle) {
+			return buffer.getLong(particleOffset(particle) + 1 + PUBLIC_KEY_LENGTH + 40);
+		}
+
+		public UInt256 amount(int particle) {
+			return UInt256.from(UInt128.from(amountWord(particle, 0), amountWord(particle, 1)), UInt128.from(amountWord(particle, 2), amountWord(particle, 3)));
+		}
+
+		public ECPublicKey publicKey(int particle) {
+			byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+			publicKey(particle, publicKey);
+			return new ECPublicKey(publicKey);
+		}
+
+		// The particle as the parser built it, in the given universe and token
+		public SpunParticle<TransferrableTokensParticle> particle(int particle, RadixUniverseConfig universe, RRI token) {
+			TransferrableTokensParticle transfer = new TransferrableTokensParticle(
+				amount(particle),
+				UInt256.ONE,
+				new RadixAddress(universe, publicKey(particle)),
+				nonce(particle),
+				token,
+				planck(particle),
+				ProcessedOutput.TOKEN_PERMISSIONS
+			);
+			return up(particle) ? SpunParticle.up(transfer) : SpunParticle.down(transfer);
+		}
+
+		public List<SpunParticle<TransferrableTokensParticle>> particles(RadixUniverseConfig universe, RRI token) {
+			List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>(particleCount);
+			for (int i = 0; i < particleCount; i++)
+				particles.add(particle(i, universe, token));
+			return particles;
+		}
+
+		public int signatureCount() {
+			return signatureCount;
+		}
+
+		private int signatureOffset(int i) {
+			if (!signaturesIndexed) {
+				if (signatureOffsets.length < signatureCount)
+					signatureOffsets = new int[signatureCount];
+				int offset = signaturesOffset + 4;
+				for (int s = 0; s < signatureCount; s++) {
+					signatureOffsets[s] = offset;
+					offset += EUID_LENGTH;
+					offset += 4 + buffer.getInt(offset);
+					offset += 4 + buffer.getInt(offset);
+				}
+				signaturesIndexed = true;
+			}
+			return signatureOffsets[i];
+		}
+
+		public void signer(int signature, byte[] dst) {
+			int offset = signatureOffset(signature);
+			for (int i = 0; i < EUID_LENGTH; i++)
+				dst[i] = buffer.get(offset + i);
+		}
+
+		public EUID signer(int signature) {
+			byte[] euid = new byte[EUID_LENGTH];
+			signer(signature, euid);
+			return new EUID(euid);
+		}
+
+		private BigInteger bigInteger(int offset) {
+			byte[] value = new byte[buffer.getInt(offset)];
+			for (int i = 0; i < value.length; i++)
+				value[i] = buffer.get(offset + 4 + i);
+			return new BigInteger(value);
+		}
+
+		public ECSignature signature(int signature) {
+			int r = signatureOffset(signature) + EUID_LENGTH;
+			int s = r + 4 + buffer.getInt(r);
+			return new ECSignature(bigInteger(r), bigInteger(s));
+		}
+
+		// In file order
+		public Map<EUID, ECSignature> signatures() {
+			Map<EUID, ECSignature> signatures = new LinkedHashMap<>();
+			for (int i = 0; i < signatureCount; i++)
+				signatures.put(signer(i), signature(i));
+			return signatures;
+		}
+
+		// The record as the writer had it, serializing it again gives the same bytes
+		public AtomFileWriter.AtomFileRecord toAtomFileRecord(RadixUniverseConfig universe, RRI token) {
+			return new AtomFileWriter.AtomFileRecord(txId(), shards(), particles(universe, token), signatures(), time());
+		}
+	}
+}
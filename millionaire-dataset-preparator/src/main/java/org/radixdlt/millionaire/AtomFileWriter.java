@@ -3,104 +3,259 @@ package org.radixdlt.millionaire;
 import com.radixdlt.client.atommodel.accounts.RadixAddress;
 import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
 import com.radixdlt.client.core.RadixUniverse;
-import com.radixdlt.client.core.atoms.Atom;
-import com.radixdlt.client.core.atoms.ParticleGroup;
-import com.radixdlt.client.core.atoms.particles.Particle;
 import com.radixdlt.client.core.atoms.particles.Spin;
 import com.radixdlt.client.core.atoms.particles.SpunParticle;
 import com.radixdlt.client.core.crypto.ECKeyPair;
 import com.radixdlt.client.core.crypto.ECSignature;
 import org.bitcoinj.core.Sha256Hash;
-import org.bitcoinj.core.Transaction;
 import org.radix.common.ID.EUID;
 import org.radix.utils.UInt256;
 
-import java.io.BufferedOutputStream;
+
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AtomFileWriter {
-    Queue<AtomFileItem> writeQueue;
-    Thread writerThread = null;
-    boolean completed = false;
+    // Group flush once this many bytes are buffered or the oldest unflushed record is this old
+    private static final int FLUSH_BYTES = 1 << 20;
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int DRAIN_BATCH = 1024;
+
+    // An encoded record. A checkpoint
+    // request is completed once every record before its sequence number is written.
+    private static class QueuedRecord {
+        final long sequence;
+        final byte[] bytes;
+        final Set<Long> shards;
+        final long[] particleShards;
+        final long block;
+        final long enqueued;
+        final CompletableFuture<byte[]> checkpoint;
+
+        QueuedRecord(long sequence, byte[] bytes, Set<Long> shards, long[] particleShards, long block) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+            this.shards = shards;
+            this.particleShards = particleShards;
+            this.block = block;
+            this.enqueued = System.nanoTime();
+            this.checkpoint = null;
+        }
+
+        QueuedRecord(long sequence, CompletableFuture<byte[]> checkpoint) {
+            this.sequence = sequence;
+            this.bytes = null;
+            this.shards = null;
+            this.particleShards = null;
+            this.block = 0;
+            this.enqueued = System.nanoTime();
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    private static final QueuedRecord END = new QueuedRecord(-1, null, null, null, 0);
+
+    final BlockingQueue<QueuedRecord> writeQueue;
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    // First atom that failed to build, the writer never gets past it
+    private volatile Throwable buildFailure = null;
 
-    File file;
+    // Stats since the last call to stats()
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong latencyNanos = new AtomicLong(0);
+    private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+    private final AtomicLong flushes = new AtomicLong(0);
 
+    // Records that arrived ahead of their turn, only touched by the writer thread
+    private final Map<Long, QueuedRecord> reorderBuffer = new HashMap<>();
+    private volatile int reordering = 0;
 
-    AtomFileWriter(File file) {
-        this.file = file;
-        this.writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomOutput output;
+
+    // Counts the atoms written, only by the writer thread. Serialized along with every checkpoint,
+    // so the counts committed with a checkpoint cover exactly the atoms it does
+    private final ShardHistogram shardHistogram;
+    private volatile byte[] checkpointShardHistogram;
+
+
+    AtomFileWriter(AtomOutput output, int capacity, ShardHistogram shardHistogram) {
+        this.output = output;
+        this.shardHistogram = shardHistogram;
+        this.writeQueue = new ArrayBlockingQueue<>(capacity);
+        this.writerThread = new Thread(new WriterRunnable(), "atom-file-writer");
+        this.writerThread.start();
     }
 
-    public void push(AtomFileItem item) {
-        this.writeQueue.add(item);
-        startIfRequired();
+    // Encodes the record on the calling thread. Records are written in sequence order whatever
+    // order they are pushed in; blocks while the queue is full so producers can't run ahead of the disk
+    public void push(AtomFileItem item) throws InterruptedException, IOException {
+        AtomFileRecord record = item.getAtomFileRecord();
+        QueuedRecord queued = new QueuedRecord(item.sequence, record.toByteArray(), record.shards, item.particleShards, item.block);
+        // Nothing but the encoded bytes is needed from here on
+        item.release();
+        enqueue(queued);
     }
 
-    public void completed() {
-        completed = true; //will not stop accepting new requests, only helps with timeout.
+    // Records an item that failed to build. Nothing after it is written, so a checkpoint waiting
+    // for it, or any later one, fails instead of waiting forever
+    public void fail(long sequence, Throwable cause) {
+        if (buildFailure == null)
+            buildFailure = new IOException("Building atom " + sequence + " failed", cause);
     }
 
-    private void startIfRequired() {
-        if(!writeQueue.isEmpty() && (writerThread == null || !writerThread.isAlive())) {
-            synchronized(this) {
-                if(!writeQueue.isEmpty() && (writerThread == null || !writerThread.isAlive())) {
-                    writerThread = new Thread(new WriterRunnable(file));
-                    writerThread.start();
-                }
+    // Waits until every atom before sequence is written, then returns the output's checkpoint, see
+    // AtomOutput.checkpoint. Atoms pushed meanwhile with later sequence numbers may be written too.
+    public byte[] checkpoint(long sequence) throws InterruptedException, IOException {
+        QueuedRecord request = new QueuedRecord(sequence, new CompletableFuture<>());
+        enqueue(request);
+
+        while (true) {
+            try {
+                return request.checkpoint.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (failure != null)
+                    throw new IOException("Atom file writer failed", failure);
+                if (buildFailure != null)
+                    throw new IOException("Atom file checkpoint failed", buildFailure);
+            } catch (ExecutionException e) {
+                throw new IOException("Atom file checkpoint failed", e.getCause());
             }
         }
     }
 
-    public void waitToFinish(long timeout) throws InterruptedException {
-        long start = System.currentTimeMillis();
-        while(!writeQueue.isEmpty() && System.currentTimeMillis() - start < timeout) {
-            startIfRequired();
-            Thread.sleep(1L);
+    private void enqueue(QueuedRecord queued) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("Atom file writer is closed");
+
+        while (!writeQueue.offer(queued, 100, TimeUnit.MILLISECONDS)) {
+            if (failure != null)
+                throw new IllegalStateException("Atom file writer failed", failure);
         }
     }
 
+    // The shard histogram as of the checkpoint last returned
+    byte[] shardHistogramCheckpoint() {
+        return checkpointShardHistogram;
+    }
+
+    public int queued() {
+        return writeQueue.size();
+    }
+
+    public String stats() {
+        long count = written.getAndSet(0);
+        long latency = latencyNanos.getAndSet(0);
+        long maxLatency = maxLatencyNanos.getAndSet(0);
+        return String.format("Atom writer: %d queued, %d waiting for order, %d written, %.2f ms avg latency, %.2f ms max latency, %d flushes",
+            writeQueue.size(), reordering, count, count == 0 ? 0.0 : latency / (count * 1_000_000.0), maxLatency / 1_000_000.0, flushes.getAndSet(0));
+    }
+
+    // Writes everything queued so far, then closes the file
+    public void close() throws InterruptedException, IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        while (writerThread.isAlive() && !writeQueue.offer(END, 100, TimeUnit.MILLISECONDS));
+        writerThread.join();
+
+        if (failure != null)
+            throw new IOException("Atom file writer failed", failure);
+    }
+
     class WriterRunnable implements Runnable{
-        File f;
-        long timeout = 1000L; //don't need to wait too long
-        public WriterRunnable(File f) {
-            this.f = f;
-        }
         public void run(){
             try {
-                DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true),10*1024*1024));
-
-                long start = System.currentTimeMillis();
-                while(true) {
-                    if(!writeQueue.isEmpty()) {
-                        AtomFileItem item = writeQueue.poll();
+                List<QueuedRecord> batch = new ArrayList<>(DRAIN_BATCH);
+                long nextSequence = 0;
+                boolean dirty = false;
+                long oldestUnflushed = 0;
+                boolean end = false;
+                QueuedRecord pendingCheckpoint = null;
+
+                while (!end) {
+                    QueuedRecord first = dirty
+                        ? writeQueue.poll(Math.max(0, FLUSH_NANOS - (System.nanoTime() - oldestUnflushed)), TimeUnit.NANOSECONDS)
+                        : writeQueue.take();
+                    if (first != null) {
+                        batch.add(first);
+                        writeQueue.drainTo(batch, DRAIN_BATCH - 1);
+                    }
 
-                        item.getAtomFileRecord().serializeToStream(writer);
+                    for (QueuedRecord queued : batch) {
+                        if (queued == END) {
+                            end = true;
+                            break;
+                        }
+                        if (queued.checkpoint != null) {
+                            // The parser waits for it, there is only ever one
+                            pendingCheckpoint = queued;
+                            continue;
+                        }
+                        reorderBuffer.put(queued.sequence, queued);
+                    }
+                    batch.clear();
+
+                    QueuedRecord queued;
+                    while ((queued = reorderBuffer.remove(nextSequence)) != null) {
+                        nextSequence++;
+                        output.write(queued.bytes, queued.shards, queued.block);
+                        shardHistogram.record(queued.shards, queued.particleShards);
+
+                        long latency = System.nanoTime() - queued.enqueued;
+                        written.incrementAndGet();
+                        latencyNanos.addAndGet(latency);
+                        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+
+                        if (!dirty) {
+                            dirty = true;
+                            oldestUnflushed = queued.enqueued;
+                        }
+                    }
+                    reordering = reorderBuffer.size();
+
+                    if (pendingCheckpoint != null && nextSequence >= pendingCheckpoint.sequence) {
+                        checkpointShardHistogram = shardHistogram.toByteArray();
+                        pendingCheckpoint.checkpoint.complete(output.checkpoint());
+                        pendingCheckpoint = null;
+                        if (dirty) {
+                            dirty = false;
+                            flushes.incrementAndGet();
+                        }
+                    }
 
-                        writer.flush();
-                    }else if(!completed && System.currentTimeMillis() - start < timeout){
-                        Thread.sleep(1L);
-                    }else {
-                        break;
+                    if (dirty && (end || output.unflushed() >= FLUSH_BYTES || System.nanoTime() - oldestUnflushed >= FLUSH_NANOS)) {
+                        output.flush();
+                        dirty = false;
+                        flushes.incrementAndGet();
                     }
                 }
-                writer.flush();
-                writer.close();
-            } catch (Exception e) {
-                Thread t = Thread.currentThread();
-                t.getUncaughtExceptionHandler().uncaughtException(t, e);
+
+                output.close();
+
+                if (!reorderBuffer.isEmpty())
+                    throw new IOException("Atom " + nextSequence + " was never pushed, " + reorderBuffer.size() + " later atoms not written");
+            } catch (Throwable t) {
+                failure = t;
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
             }
         }
     }
@@ -109,16 +264,23 @@ public class AtomFileWriter {
     public static class AtomFileItem {
         List<SpunParticle<TransferrableTokensParticle>> particles;
         Set<ECKeyPair> signers;
-        Transaction btcTransaction;
+        Sha256Hash btcTxId;
         RadixUniverse universe;
         private KeyHandler keyHandler;
         private final long blockTime;
         private AtomFileRecord atomFileRecord;
-
-        AtomFileItem(List<SpunParticle<TransferrableTokensParticle>> particles, Set<ECKeyPair> signers, Transaction btcTransaction, RadixUniverse universe, KeyHandler keyHandler, long blockTime) {
+        // Shard of every particle's address, for the shard histogram
+        private long[] particleShards;
+        // Position in the atoms file, assigned in block/transaction order
+        final long sequence;
+        final long block;
+
+        AtomFileItem(long sequence, long block, List<SpunParticle<TransferrableTokensParticle>> particles, Set<ECKeyPair> signers, Sha256Hash btcTxId, RadixUniverse universe, KeyHandler keyHandler, long blockTime) {
+            this.sequence = sequence;
+            this.block = block;
             this.particles = particles;
             this.signers = signers;
-            this.btcTransaction = btcTransaction;
+            this.btcTxId = btcTxId;
             this.universe = universe;
             this.keyHandler = keyHandler;
             this.blockTime = blockTime;
@@ -129,46 +291,73 @@ public class AtomFileWriter {
         	if (this.atomFileRecord != null)
         		return;
         	
-            String btcTxId = btcTransaction.getTxId().toString();
-
             final long blockTimeMillis = blockTime;
-            Map<String, String> metaData = new HashMap<>();
-            metaData.put("btcTxId", btcTxId);
-            metaData.put(Atom.METADATA_TIMESTAMP_KEY, String.valueOf(blockTimeMillis));
 
-            // Create atom
-            List<ParticleGroup> pgs = new ArrayList<>();
-            pgs.add(ParticleGroup.of(particles.toArray(new SpunParticle[0])));
-            Atom atom = new Atom(pgs, metaData);
-
-            // Sign atom by all signers
-            Map<String, ECSignature> signatures = atom.getSignatures();
-            Map<EUID, ECSignature> signaturesByUid = new HashMap<>();
-            byte[] atomHash = atom.getHash().toByteArray();
+            // Hash the atom's DSON directly, or build the atom when that failed its self check
+            byte[] atomHash = AtomDson.enabled
+                ? AtomDson.hash(particles, btcTxId.toString(), blockTimeMillis)
+                : AtomDson.atom(particles, btcTxId.toString(), blockTimeMillis).getHash().toByteArray();
 
+            // Sign atom by all signers, in one batch. Signers are ordered and de-duplicated by
+            // a HashMap on their UID as the records have always been.
+            Map<EUID, ECKeyPair> signersByUid = new HashMap<>();
             for(ECKeyPair signer: signers) {
-                try {
-                    ECSignature signature = keyHandler.sign(atomHash, signer.getPrivateKey());
-                    String id = signer.getUID().toString();
-                    signatures.put(id, signature);
-                    signaturesByUid.put(signer.getUID(), signature);
-                } catch (CryptoException e) {
-                    e.printStackTrace();
+                signersByUid.put(signer.getUID(), signer);
+            }
+
+            int signerCount = signersByUid.size();
+            EUID[] signerUids = new EUID[signerCount];
+            byte[][] hashes = new byte[signerCount][];
+            byte[][] privateKeys = new byte[signerCount][];
+            int s = 0;
+            for (Map.Entry<EUID, ECKeyPair> signer : signersByUid.entrySet()) {
+                signerUids[s] = signer.getKey();
+                hashes[s] = atomHash;
+                privateKeys[s++] = signer.getValue().getPrivateKey();
+            }
+
+            byte[] signatures = new byte[signerCount * CompactSignatures.LENGTH];
+            try {
+                keyHandler.signAll(hashes, privateKeys, signerCount, signatures);
+            } catch (CryptoException e) {
+                // Sign one by one, leaving out the signers that fail
+                int signed = 0;
+                byte[] signature = new byte[CompactSignatures.LENGTH];
+                for (s = 0; s < signerCount; s++) {
+                    try {
+                        keyHandler.signAll(new byte[][] { atomHash }, new byte[][] { privateKeys[s] }, 1, signature);
+                        System.arraycopy(signature, 0, signatures, signed * CompactSignatures.LENGTH, CompactSignatures.LENGTH);
+                        signerUids[signed++] = signerUids[s];
+                    } catch (CryptoException e1) {
+                        e1.printStackTrace();
+                    }
                 }
+                signerCount = signed;
             }
 
             // Store to disk
-            Set<Long> shards = atom.spunParticles()
-                .map(SpunParticle<Particle>::getParticle)
-                .map(Particle::getShardables)
-                .flatMap(Set::stream)
-                .map(RadixAddress::getUID)
-                .map(EUID::getShard)
-                .collect(Collectors.toSet());
+            Set<Long> shards = new HashSet<>();
+            this.particleShards = new long[particles.size()];
+            int p = 0;
+            for (SpunParticle<TransferrableTokensParticle> particle : particles) {
+                for (RadixAddress shardable : particle.getParticle().getShardables())
+                    shards.add(shardable.getUID().getShard());
+                this.particleShards[p++] = particle.getParticle().getAddress().getUID().getShard();
+            }
 
-            this.atomFileRecord = new AtomFileRecord(btcTransaction.getTxId(), shards, particles, signaturesByUid, blockTimeMillis);
+            this.atomFileRecord = new AtomFileRecord(btcTxId, shards, particles, signerUids, signatures, signerCount, blockTimeMillis);
         }
         
+        void release()
+        {
+            this.particles = null;
+            this.signers = null;
+            this.btcTxId = null;
+            this.keyHandler = null;
+            this.atomFileRecord = null;
+            this.particleShards = null;
+        }
+
         public AtomFileRecord getAtomFileRecord()
         {
         	if (this.atomFileRecord == null)
@@ -183,22 +372,58 @@ public class AtomFileWriter {
         private final Sha256Hash txId;
         private final Set<Long> shards;
         private final List<SpunParticle<TransferrableTokensParticle>> particles;
-        private final Map<EUID, ECSignature> signatures;
+        // Signer i signed with the compact signature i, see CompactSignatures
+        private final EUID[] signers;
+        private final byte[] signatures;
+        private final int signatureCount;
         private final long blockTimeMillis;
 
         public AtomFileRecord(Sha256Hash txId, Set<Long> shards, List<SpunParticle<TransferrableTokensParticle>> particles, Map<EUID, ECSignature> signatures, long blockTimeMillis) {
+            this(txId, shards, particles, signatures.keySet().toArray(new EUID[0]), compact(signatures.values()), signatures.size(), blockTimeMillis);
+        }
+
+        AtomFileRecord(Sha256Hash txId, Set<Long> shards, List<SpunParticle<TransferrableTokensParticle>> particles, EUID[] signers, byte[] signatures, int signatureCount, long blockTimeMillis) {
 
             this.txId = txId;
             this.shards = shards;
             this.particles = particles;
+            this.signers = signers;
             this.signatures = signatures;
+            this.signatureCount = signatureCount;
             this.blockTimeMillis = blockTimeMillis;
         }
 
-        private static ByteArrayOutputStream bufferOut = new ByteArrayOutputStream(65536);
-		private static DataOutputStream dataBufferOut = new DataOutputStream(bufferOut);
+        private static byte[] compact(Collection<ECSignature> signatures) {
+            byte[] compact = new byte[signatures.size() * CompactSignatures.LENGTH];
+            int i = 0;
+            for (ECSignature signature : signatures) {
+                CompactSignatures.put(signature, compact, i++);
+            }
+            return compact;
+        }
+
+        // Per thread scratch buffers, records are encoded concurrently by the atom builders
+        private static class Encoder {
+            final ByteArrayOutputStream particlesOut = new ByteArrayOutputStream(65536);
+            final DataOutputStream dataParticlesOut = new DataOutputStream(particlesOut);
+            final ByteArrayOutputStream recordOut = new ByteArrayOutputStream(65536);
+            final DataOutputStream dataRecordOut = new DataOutputStream(recordOut);
+        }
+
+        private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+        public byte[] toByteArray() throws IOException {
+            Encoder encoder = encoders.get();
+            encoder.recordOut.reset();
+            serializeToStream(encoder.dataRecordOut);
+            return encoder.recordOut.toByteArray();
+        }
 
 	    public void serializeToStream(DataOutputStream out) throws IOException {
+            Encoder encoder = encoders.get();
+            ByteArrayOutputStream bufferOut = encoder.particlesOut;
+            DataOutputStream dataBufferOut = encoder.dataParticlesOut;
+
             // tx id - needs to be put back into metadata after deserialisation!
             byte[] txIdBytes =  this.txId.getBytes();
             out.writeInt(txIdBytes.length);
@@ -225,16 +450,12 @@ public class AtomFileWriter {
 	            dataBufferOut.writeLong(transfer.getPlanck()); // planck as long
             }
 
-            // signatures
-		    dataBufferOut.writeInt(signatures.size());
-            for (Map.Entry<EUID, ECSignature> signatureEntry : signatures.entrySet()) {
-                writeEUID(signatureEntry.getKey(), dataBufferOut);
-                final byte[] rBytes = signatureEntry.getValue().getR().toByteArray();
-	            dataBufferOut.writeInt(rBytes.length);
-	            dataBufferOut.write(rBytes);
-                final byte[] sBytes = signatureEntry.getValue().getS().toByteArray();
-	            dataBufferOut.writeInt(sBytes.length);
-	            dataBufferOut.write(sBytes);
+            // signatures, r and s as BigInteger.toByteArray() would have them
+		    dataBufferOut.writeInt(signatureCount);
+            for (int i = 0; i < signatureCount; i++) {
+                writeEUID(signers[i], dataBufferOut);
+                CompactSignatures.writeComponent(signatures, i * CompactSignatures.LENGTH, dataBufferOut);
+                CompactSignatures.writeComponent(signatures, i * CompactSignatures.LENGTH + CompactSignatures.COMPONENT_LENGTH, dataBufferOut);
             }
 
             out.writeInt(bufferOut.size());
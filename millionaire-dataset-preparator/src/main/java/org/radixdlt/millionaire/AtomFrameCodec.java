@@ -0,0 +1,119 @@
+package org.radixdlt.millionaire;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Block codecs for compressed atom frames. Instances are not thread safe.
+abstract class AtomFrameCodec {
+	static final byte LZ4 = 1;
+	static final byte DEFLATE = 2;
+
+	abstract byte id();
+
+	abstract int maxCompressedLength(int length);
+
+	// Returns the compressed length
+	abstract int compress(byte[] src, int length, byte[] dst);
+
+	abstract void decompress(byte[] src, int offset, int length, byte[] dst, int dstLength) throws IOException;
+
+	static AtomFrameCodec forName(String name) {
+		switch (name) {
+			case "lz4":
+				return new Lz4();
+			case "deflate":
+				return new Deflate();
+			default:
+				throw new IllegalArgumentException("Unknown compression " + name + ", expected lz4 or deflate");
+		}
+	}
+
+	static AtomFrameCodec forId(byte id) throws IOException {
+		switch (id) {
+			case LZ4:
+				return new Lz4();
+			case DEFLATE:
+				return new Deflate();
+			default:
+				throw new IOException("Unknown atom frame codec " + id);
+		}
+	}
+
+	static final class Lz4 extends AtomFrameCodec {
+		private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+		private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+		@Override
+		byte id() {
+			return LZ4;
+		}
+
+		@Override
+		int maxCompressedLength(int length) {
+			return compressor.maxCompressedLength(length);
+		}
+
+		@Override
+		int compress(byte[] src, int length, byte[] dst) {
+			return compressor.compress(src, 0, length, dst, 0, dst.length);
+		}
+
+		@Override
+		void decompress(byte[] src, int offset, int length, byte[] dst, int dstLength) throws IOException {
+			if (decompressor.decompress(src, offset, dst, 0, dstLength) != length)
+				throw new IOException("Corrupt lz4 frame");
+		}
+	}
+
+	// Slower than lz4 but in the JDK, at its fastest level
+	static final class Deflate extends AtomFrameCodec {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		private final Inflater inflater = new Inflater(true);
+
+		@Override
+		byte id() {
+			return DEFLATE;
+		}
+
+		@Override
+		int maxCompressedLength(int length) {
+			return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+		}
+
+		@Override
+		int compress(byte[] src, int length, byte[] dst) {
+			deflater.reset();
+			deflater.setInput(src, 0, length);
+			deflater.finish();
+			int compressed = 0;
+			while (!deflater.finished())
+				compressed += deflater.deflate(dst, compressed, dst.length - compressed);
+			return compressed;
+		}
+
+		@Override
+		void decompress(byte[] src, int offset, int length, byte[] dst, int dstLength) throws IOException {
+			inflater.reset();
+			inflater.setInput(src, offset, length);
+			try {
+				int inflated = 0;
+				while (inflated < dstLength && !inflater.finished()) {
+					int n = inflater.inflate(dst, inflated, dstLength - inflated);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					inflated += n;
+				}
+				if (inflated != dstLength)
+					throw new IOException("Corrupt deflate frame");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt deflate frame", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.radixdlt.millionaire;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+// Compressed atoms file layout, shared by CompressedAtomOutput and CompressedAtomReader.
+//
+// <atoms>.frames:
+//   header  [int MAGIC][short VERSION][byte codec][byte reserved][int frame size]
+//   frames  [int compressed length][int length][int records][long first block][int crc32]
+//           [compressed plain atoms file records]
+//
+// Every frame is compressed on its own, so readers can start at any frame. The crc covers the
+// uncompressed records.
+final class AtomFrames {
+	static final int MAGIC = 0x52445843; // RDXC
+	static final short VERSION = 1;
+
+	static final int HEADER_LENGTH = 12;
+	static final int FRAME_HEADER_LENGTH = 24;
+
+	private AtomFrames() {
+	}
+
+	static File framesFile(File atomsFile) {
+		return new File(atomsFile.getPath() + ".frames");
+	}
+
+	// Length of the plain atoms file record at offset: txId, time, shards, then the length
+	// prefixed particles and signatures
+	static int recordLength(ByteBuffer records, int offset) {
+		int txIdLength = records.getInt(offset);
+		int shards = records.getInt(offset + 4 + txIdLength + 8);
+		int bodyOffset = offset + 4 + txIdLength + 8 + 4 + shards * 8;
+		return bodyOffset + 4 + records.getInt(bodyOffset) - offset;
+	}
+}
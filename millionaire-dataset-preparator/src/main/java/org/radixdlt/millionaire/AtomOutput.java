@@ -0,0 +1,58 @@
+package org.radixdlt.millionaire;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+// Destination of encoded atom records, only ever used from the atom file writer thread.
+// Records arrive in sequence order, block is the parser's block number of the record's transaction.
+interface AtomOutput extends Closeable {
+    void write(byte[] record, Set<Long> shards, long block) throws IOException;
+
+    // Bytes written since the last flush
+    long unflushed();
+
+    void flush() throws IOException;
+
+    // Writes everything so far to disk, including anything held back in memory, and returns the
+    // position just past the last record. The parser commits it with its progress and hands it
+    // back on restart, when the output drops whatever was written after it. JE commits without
+    // syncing, so the atoms must be on disk before the position is committed, otherwise an OS
+    // crash could leave a file shorter than its committed length.
+    byte[] checkpoint() throws IOException;
+
+    void close() throws IOException;
+
+    // A checkpoint is [byte format][format specific position]
+    static ByteBuffer checkpoint(byte format, int length) {
+        return ByteBuffer.allocate(1 + length).put(format);
+    }
+
+    // The position in a committed checkpoint, null if there is none
+    static ByteBuffer position(byte[] checkpoint, byte format, File file) throws IOException {
+        if (checkpoint == null)
+            return null;
+
+        ByteBuffer position = ByteBuffer.wrap(checkpoint);
+        if (position.get() != format)
+            throw new IOException("Atoms in " + file + " were committed in a different format, use --reset-atoms");
+        return position;
+    }
+
+    // Cuts a file back to its committed length
+    static void truncate(File file, long committedLength) throws IOException {
+        long length = file.exists() ? file.length() : 0;
+        if (length < committedLength)
+            throw new IOException("Atoms file " + file + " is shorter than its committed length " + committedLength);
+
+        if (length > committedLength) {
+            System.out.println("Truncating " + (length - committedLength) + " bytes of uncommitted atoms from " + file.getName());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(committedLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Random access over segmented atoms files, see AtomSegments. Segments are memory-mapped, lookups
+// binary search the footer indexes. Segments that were not closed cleanly are indexed in memory
+// when opened.
+public class AtomSegmentReader {
+	// A record boundary, or the end of a segment
+	public static final class Position implements Comparable<Position> {
+		public final int segment;
+		public final int offset;
+
+		Position(int segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		public int compareTo(Position other) {
+			return segment != other.segment ? Integer.compare(segment, other.segment) : Integer.compare(offset, other.offset);
+		}
+
+		@Override
+		public String toString() {
+			return segment + ":" + offset;
+		}
+	}
+
+	// Records in [from, to), for handing to parallel readers
+	public static final class Range {
+		public final Position from, to;
+
+		Range(Position from, Position to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + from + ", " + to + ")";
+		}
+	}
+
+	public interface RecordVisitor {
+		void visit(long block, ByteBuffer record) throws IOException;
+	}
+
+	static final class Segment {
+		final File file;
+		final ByteBuffer data;
+		// End of the records
+		final int end;
+		// [long key][int offset] entries sorted by key
+		final ByteBuffer txIndex, blockIndex;
+		final int txCount, blockCount;
+
+		Segment(File file, ByteBuffer data, int end, ByteBuffer txIndex, int txCount, ByteBuffer blockIndex, int blockCount) {
+			this.file = file;
+			this.data = data;
+			this.end = end;
+			this.txIndex = txIndex;
+			this.txCount = txCount;
+			this.blockIndex = blockIndex;
+			this.blockCount = blockCount;
+		}
+
+		long key(ByteBuffer index, int entry) {
+			return index.getLong(entry * AtomSegments.INDEX_ENTRY_LENGTH);
+		}
+
+		int offset(ByteBuffer index, int entry) {
+			return index.getInt(entry * AtomSegments.INDEX_ENTRY_LENGTH + 8);
+		}
+
+		// First entry with a key >= the given one
+		int lowerBound(ByteBuffer index, int count, long key) {
+			int low = 0, high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (key(index, mid) < key)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+	}
+
+	final List<Segment> segments;
+
+	private AtomSegmentReader(List<Segment> segments) {
+		this.segments = segments;
+	}
+
+	public static AtomSegmentReader open(File base) throws IOException {
+		List<Segment> segments = new ArrayList<>();
+		for (File file : AtomSegments.segmentFiles(base)) {
+			segments.add(openSegment(file));
+		}
+		return new AtomSegmentReader(Collections.unmodifiableList(segments));
+	}
+
+	private static Segment openSegment(File file) throws IOException {
+		ByteBuffer data;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+
+		if (data.limit() < AtomSegments.HEADER_LENGTH || data.getInt(0) != AtomSegments.MAGIC)
+			throw new IOException(file + " is not an atoms segment");
+		if (data.getShort(4) != AtomSegments.VERSION)
+			throw new IOException(file + " has unsupported version " + data.getShort(4));
+
+		int trailer = AtomSegments.trailer(data);
+		if (trailer >= 0) {
+			int txIndex = (int) data.getLong(trailer);
+			int txCount = data.getInt(trailer + 8);
+			int blockIndex = (int) data.getLong(trailer + 12);
+			int blockCount = data.getInt(trailer + 20);
+			return new Segment(file, data, txIndex, slice(data, txIndex, txCount), txCount, slice(data, blockIndex, blockCount), blockCount);
+		}
+
+		// Unfinished, build the indexes from the records
+		List<long[]> txEntries = new ArrayList<>();
+		List<long[]> blockEntries = new ArrayList<>();
+		int end = AtomSegments.scanRecords(data, data.limit(), (offset, block, payload) -> {
+			txEntries.add(new long[] { AtomSegments.txIdPrefix(payload), offset });
+			if (blockEntries.isEmpty() || blockEntries.get(blockEntries.size() - 1)[0] != block)
+				blockEntries.add(new long[] { block, offset });
+		});
+		txEntries.sort((a, b) -> Long.compare(a[0], b[0]));
+		return new Segment(file, data, end, index(txEntries), txEntries.size(), index(blockEntries), blockEntries.size());
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int offset, int count) {
+		ByteBuffer index = data.duplicate();
+		index.limit(offset + count * AtomSegments.INDEX_ENTRY_LENGTH);
+		index.position(offset);
+		return index.slice();
+	}
+
+	private static ByteBuffer index(List<long[]> entries) {
+		ByteBuffer index = ByteBuffer.allocate(entries.size() * AtomSegments.INDEX_ENTRY_LENGTH);
+		for (long[] entry : entries)
+			index.putLong(entry[0]).putInt((int) entry[1]);
+		index.flip();
+		return index;
+	}
+
+	public int segmentCount() {
+		return segments.size();
+	}
+
+	public long records() {
+		long records = 0;
+		for (Segment segment : segments)
+			records += segment.txCount;
+		return records;
+	}
+
+	public Position start() {
+		return new Position(0, AtomSegments.HEADER_LENGTH);
+	}
+
+	public Position end() {
+		return segments.isEmpty() ? start() : new Position(segments.size() - 1, segments.get(segments.size() - 1).end);
+	}
+
+	private ByteBuffer record(Segment segment, int offset) {
+		return AtomSegments.payload(segment.data, offset, segment.data.getInt(offset));
+	}
+
+	// The record of a bitcoin transaction, or null
+	public ByteBuffer find(Sha256Hash txId) {
+		byte[] id = txId.getBytes();
+		long prefix = ByteBuffer.wrap(id).getLong();
+
+		for (Segment segment : segments) {
+			for (int entry = segment.lowerBound(segment.txIndex, segment.txCount, prefix); entry < segment.txCount && segment.key(segment.txIndex, entry) == prefix; entry++) {
+				ByteBuffer record = record(segment, segment.offset(segment.txIndex, entry));
+				ByteBuffer recordId = record.duplicate();
+				recordId.position(4).limit(4 + 32);
+				if (recordId.equals(ByteBuffer.wrap(id)))
+					return record;
+			}
+		}
+		return null;
+	}
+
+	// Position of the first record of the first block >= the given one, end() if there is none
+	public Position seekBlock(long block) {
+		for (int s = 0; s < segments.size(); s++) {
+			Segment segment = segments.get(s);
+			if (segment.blockCount == 0 || segment.key(segment.blockIndex, segment.blockCount - 1) < block)
+				continue;
+
+			int entry = segment.lowerBound(segment.blockIndex, segment.blockCount, block);
+			return new Position(s, segment.offset(segment.blockIndex, entry));
+		}
+		return end();
+	}
+
+	// Splits all records into at most the given number of ranges of similar size, cut at block boundaries
+	public List<Range> split(int parts) {
+		long[] before = new long[segments.size() + 1];
+		for (int s = 0; s < segments.size(); s++)
+			before[s + 1] = before[s] + segments.get(s).end - AtomSegments.HEADER_LENGTH;
+		long total = before[segments.size()];
+
+		List<Position> cuts = new ArrayList<>();
+		cuts.add(start());
+
+		int s = 0;
+		for (int part = 1; part < parts; part++) {
+			long target = total * part / parts;
+			while (s < segments.size() && before[s + 1] <= target)
+				s++;
+			if (s == segments.size())
+				break;
+
+			// First block starting at or after the target, else the start of the next segment
+			Segment segment = segments.get(s);
+			int low = 0, high = segment.blockCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (before[s] + segment.offset(segment.blockIndex, mid) - AtomSegments.HEADER_LENGTH < target)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			Position cut;
+			if (low < segment.blockCount)
+				cut = new Position(s, segment.offset(segment.blockIndex, low));
+			else if (s + 1 < segments.size())
+				cut = new Position(s + 1, AtomSegments.HEADER_LENGTH);
+			else
+				break;
+
+			if (cut.compareTo(cuts.get(cuts.size() - 1)) > 0)
+				cuts.add(cut);
+		}
+
+		List<Range> ranges = new ArrayList<>();
+		for (int i = 0; i < cuts.size(); i++)
+			ranges.add(new Range(cuts.get(i), i + 1 < cuts.size() ? cuts.get(i + 1) : end()));
+		return ranges;
+	}
+
+	// Visits the records in [from, to), verifying their CRCs
+	public void read(Position from, Position to, RecordVisitor visitor) throws IOException {
+		Position position = from;
+		while (position.compareTo(to) < 0 && position.segment < segments.size()) {
+			Segment segment = segments.get(position.segment);
+			if (position.offset >= segment.end) {
+				position = new Position(position.segment + 1, AtomSegments.HEADER_LENGTH);
+				continue;
+			}
+
+			int length = segment.data.getInt(position.offset);
+			long block = segment.data.getLong(position.offset + 8);
+			ByteBuffer record = AtomSegments.payload(segment.data, position.offset, length);
+			if (AtomSegments.crc(block, record) != segment.data.getInt(position.offset + 4))
+				throw new IOException("Corrupt atom record in " + segment.file + " at " + position.offset);
+
+			visitor.visit(block, record);
+			position = new Position(position.segment, position.offset + AtomSegments.RECORD_HEADER_LENGTH + length);
+		}
+	}
+
+	public void read(Range range, RecordVisitor visitor) throws IOException {
+		read(range.from, range.to, visitor);
+	}
+}
@@ -0,0 +1,116 @@
+package org.radixdlt.millionaire;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// Segmented atoms file layout, shared by SegmentedAtomOutput and AtomSegmentReader.
+//
+// <atoms>.NNNNNN.seg segments, each:
+//   header   [int MAGIC][short VERSION][short flags][int segment number][int reserved]
+//   records  [int length][int crc32][long block][payload], payload is a plain atoms file record
+//            and the crc covers block and payload
+//   footer   tx index, one [long txId prefix][int record offset] per record sorted by prefix
+//            block index, one [long block][int record offset] per block at its first record
+//   trailer  [long tx index offset][int tx count][long block index offset][int block count]
+//            [int crc32 of both indexes][int TRAILER_MAGIC]
+//
+// A segment without a trailer was not closed cleanly, its records are still readable up to the
+// first one failing its CRC. Segments only roll over between blocks, so every block is in one segment.
+final class AtomSegments {
+	static final int MAGIC = 0x52445841; // RDXA
+	static final short VERSION = 1;
+	static final int TRAILER_MAGIC = 0x52445846; // RDXF
+
+	static final int HEADER_LENGTH = 16;
+	static final int RECORD_HEADER_LENGTH = 16;
+	static final int INDEX_ENTRY_LENGTH = 12;
+	static final int TRAILER_LENGTH = 32;
+
+	// Offsets are ints
+	static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private AtomSegments() {
+	}
+
+	static File segmentFile(File base, int segment) {
+		return new File(base.getPath() + String.format(Locale.US, ".%06d.seg", segment));
+	}
+
+	static List<File> segmentFiles(File base) {
+		List<File> files = new ArrayList<>();
+		for (int segment = 0; segmentFile(base, segment).exists(); segment++) {
+			files.add(segmentFile(base, segment));
+		}
+		return files;
+	}
+
+	// Plain records start with the txId length (always 32) followed by the txId
+	static long txIdPrefix(byte[] record) {
+		return ByteBuffer.wrap(record, 4, 8).getLong();
+	}
+
+	static long txIdPrefix(ByteBuffer record) {
+		return record.getLong(record.position() + 4);
+	}
+
+	static int crc(long block, ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(0, block));
+		crc.update(payload.duplicate());
+		return (int) crc.getValue();
+	}
+
+	interface RecordVisitor {
+		void visit(int offset, long block, ByteBuffer payload) throws IOException;
+	}
+
+	// Visits the records between the header and limit that pass their CRC, stopping at the first
+	// one that doesn't. Returns the offset just past the last good record.
+	static int scanRecords(ByteBuffer segment, int limit, RecordVisitor visitor) throws IOException {
+		int offset = HEADER_LENGTH;
+		while (limit - offset >= RECORD_HEADER_LENGTH) {
+			int length = segment.getInt(offset);
+			if (length < 12 || length > limit - offset - RECORD_HEADER_LENGTH)
+				break;
+
+			long block = segment.getLong(offset + 8);
+			ByteBuffer payload = payload(segment, offset, length);
+			if (crc(block, payload) != segment.getInt(offset + 4))
+				break;
+
+			visitor.visit(offset, block, payload);
+			offset += RECORD_HEADER_LENGTH + length;
+		}
+		return offset;
+	}
+
+	static ByteBuffer payload(ByteBuffer segment, int offset, int length) {
+		ByteBuffer payload = segment.duplicate();
+		payload.limit(offset + RECORD_HEADER_LENGTH + length);
+		payload.position(offset + RECORD_HEADER_LENGTH);
+		return payload.slice();
+	}
+
+	// Offset of the trailer, or -1 if the segment was not closed cleanly
+	static int trailer(ByteBuffer segment) {
+		int trailer = segment.limit() - TRAILER_LENGTH;
+		if (trailer < HEADER_LENGTH || segment.getInt(trailer + 28) != TRAILER_MAGIC)
+			return -1;
+
+		long txIndex = segment.getLong(trailer);
+		if (txIndex < HEADER_LENGTH || txIndex > trailer)
+			return -1;
+
+		CRC32 crc = new CRC32();
+		ByteBuffer footer = segment.duplicate();
+		footer.limit(trailer);
+		footer.position((int) txIndex);
+		crc.update(footer);
+		return (int) crc.getValue() == segment.getInt(trailer + 24) ? trailer : -1;
+	}
+}
@@ -0,0 +1,119 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Read-only memory mappings of bitcoind's blk%05d.dat files. Blocks are located by
+// (fileNo, offset, length) as recorded in the block_index database, and handed out as slices of
+// the mapping so block bytes are never copied into the JE environment.
+class BlockFiles {
+	// block_index value: fileNo, offset and length of the serialized block, then the previous block hash
+	static final int LOCATION_LENGTH = 4 + 4 + 4 + 32;
+
+	static final int HEADER_LENGTH = 80;
+
+	interface BlockVisitor {
+		void visit(Sha256Hash hash, Sha256Hash prevHash, int offset, int length, long transactions) throws IOException;
+	}
+
+	private final File blocksDir;
+	private final int magic;
+	private final ConcurrentHashMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+
+	BlockFiles(File blocksDir, long packetMagic) {
+		this.blocksDir = blocksDir;
+		// The magic is stored in network byte order, records are read little endian
+		this.magic = Integer.reverseBytes((int) packetMagic);
+	}
+
+	File file(int fileNo) {
+		return new File(blocksDir, String.format(Locale.US, "blk%05d.dat", fileNo));
+	}
+
+	private MappedByteBuffer map(int fileNo) throws IOException {
+		MappedByteBuffer mapping = mappings.get(fileNo);
+		if (mapping == null) {
+			try (RandomAccessFile file = new RandomAccessFile(file(fileNo), "r")) {
+				mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			}
+			MappedByteBuffer existing = mappings.putIfAbsent(fileNo, mapping);
+			if (existing != null) {
+				mapping = existing;
+			}
+		}
+		return mapping;
+	}
+
+	// Zero copy view of a stored block
+	ByteBuffer slice(int fileNo, int offset, int length) throws IOException {
+		ByteBuffer block = map(fileNo).duplicate();
+		block.limit(offset + length);
+		block.position(offset);
+		return block.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	ByteBuffer slice(byte[] location) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(location);
+		return slice(in.getInt(), in.getInt(), in.getInt());
+	}
+
+	static byte[] location(int fileNo, int offset, int length, Sha256Hash prevHash) {
+		return ByteBuffer.allocate(LOCATION_LENGTH).putInt(fileNo).putInt(offset).putInt(length).put(prevHash.getBytes()).array();
+	}
+
+	// Walks the [magic][length][block] records of a file starting at the given offset. Like
+	// bitcoinj's BlockFileLoader anything between records that is not the network magic, such as
+	// the zero padding bitcoind preallocates, is skipped, and a truncated record at the end of the
+	// file is left for the next run. Returns the offset a later scan should resume from.
+	int scan(int fileNo, int from, BlockVisitor visitor) throws IOException {
+		ByteBuffer in = map(fileNo).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		in.position(Math.min(from, in.limit()));
+		byte[] header = new byte[HEADER_LENGTH];
+
+		while (in.remaining() >= 8 + HEADER_LENGTH) {
+			if (in.getInt(in.position()) != magic) {
+				in.position(in.position() + 1);
+				continue;
+			}
+
+			int length = in.getInt(in.position() + 4);
+			int offset = in.position() + 8;
+			if (length < HEADER_LENGTH || length > in.limit() - offset) {
+				break;
+			}
+
+			in.position(offset);
+			in.get(header);
+
+			Sha256Hash hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header, 0, HEADER_LENGTH));
+			byte[] prevHash = new byte[32];
+			System.arraycopy(header, 4, prevHash, 0, 32);
+
+			visitor.visit(hash, Sha256Hash.wrapReversed(prevHash), offset, length, readVarInt(in));
+
+			in.position(offset + length);
+		}
+
+		return in.position();
+	}
+
+	private static long readVarInt(ByteBuffer in) {
+		int first = in.get() & 0xFF;
+		if (first < 0xFD)
+			return first;
+		if (first == 0xFD)
+			return in.getShort() & 0xFFFFL;
+		if (first == 0xFE)
+			return in.getInt() & 0xFFFFFFFFL;
+		return in.getLong();
+	}
+}
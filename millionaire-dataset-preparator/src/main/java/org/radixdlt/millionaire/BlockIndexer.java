@@ -0,0 +1,251 @@
+package org.radixdlt.millionaire;
+
+import com.google.common.primitives.Longs;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Sha256Hash;
+
+// Builds block_index from the blk*.dat files. Files are scanned in parallel by
+// worker threads that hash the block headers, a single writer on the calling thread puts the
+// results in large transactions. Each file's scan offset, block and transaction counts are
+// committed in the same transaction as its index entries, so a restart resumes every file
+// exactly where it stopped.
+class BlockIndexer {
+	private static final int BATCH_BLOCKS = 2048;
+	private static final int COMMIT_BLOCKS = 50_000;
+
+	private static class IndexedBlock {
+		final Sha256Hash hash, prevHash;
+		final int offset, length;
+		final long transactions;
+
+		IndexedBlock(Sha256Hash hash, Sha256Hash prevHash, int offset, int length, long transactions) {
+			this.hash = hash;
+			this.prevHash = prevHash;
+			this.offset = offset;
+			this.length = length;
+			this.transactions = transactions;
+		}
+	}
+
+	// Consecutive blocks of one file and the offset to resume that file from once they are stored
+	private static class Batch {
+		final int fileNo;
+		final List<IndexedBlock> blocks;
+		final int resumeOffset;
+
+		Batch(int fileNo, List<IndexedBlock> blocks, int resumeOffset) {
+			this.fileNo = fileNo;
+			this.blocks = blocks;
+			this.resumeOffset = resumeOffset;
+		}
+	}
+
+	// Per file progress: resume offset, blocks stored from the file, transactions in those blocks
+	private static class FileProgress {
+		long offset, blocks, transactions;
+	}
+
+	private final Environment environment;
+	private final Database blockIndexDatabase, blocksProgressDatabase;
+	private final BlockFiles blockFiles;
+	private final int threads;
+
+	long storedBlockCount, totalTransactions;
+
+	BlockIndexer(Environment environment, Database blockIndexDatabase, Database blocksProgressDatabase, BlockFiles blockFiles, int threads) {
+		this.environment = environment;
+		this.blockIndexDatabase = blockIndexDatabase;
+		this.blocksProgressDatabase = blocksProgressDatabase;
+		this.blockFiles = blockFiles;
+		this.threads = Math.max(1, threads);
+	}
+
+	private static DatabaseEntry fileProgressKey(int fileNo) {
+		return new DatabaseEntry(String.format(Locale.US, "blockFile.%05d", fileNo).getBytes());
+	}
+
+	private FileProgress loadFileProgress(int fileNo) {
+		FileProgress progress = new FileProgress();
+		DatabaseEntry value = new DatabaseEntry();
+		if (OperationStatus.SUCCESS == blocksProgressDatabase.get(null, fileProgressKey(fileNo), value, LockMode.DEFAULT)) {
+			ByteBuffer in = ByteBuffer.wrap(value.getData());
+			progress.offset = in.getLong();
+			progress.blocks = in.getLong();
+			progress.transactions = in.getLong();
+		}
+		return progress;
+	}
+
+	private void storeFileProgress(Transaction dbtx, int fileNo, FileProgress progress) {
+		ByteBuffer out = ByteBuffer.allocate(24).putLong(progress.offset).putLong(progress.blocks).putLong(progress.transactions);
+		blocksProgressDatabase.put(dbtx, fileProgressKey(fileNo), new DatabaseEntry(out.array()));
+	}
+
+	private long loadProgressValue(String key, long defaultValue) {
+		DatabaseEntry value = new DatabaseEntry();
+		if (OperationStatus.NOTFOUND == blocksProgressDatabase.get(null, new DatabaseEntry(key.getBytes()), value, LockMode.DEFAULT)) {
+			return defaultValue;
+		}
+		return Longs.fromByteArray(value.getData());
+	}
+
+	private void storeProgressValue(Transaction dbtx, String key, long value) {
+		blocksProgressDatabase.put(dbtx, new DatabaseEntry(key.getBytes()), new DatabaseEntry(Longs.toByteArray(value)));
+	}
+
+	void run() throws IOException, InterruptedException {
+		// Files before this one were complete on a previous run and are never rescanned
+		int firstBlockFile = (int) loadProgressValue("lastCompleteBlockFile", 0);
+		storedBlockCount = loadProgressValue("storedBlockCount", 0);
+		totalTransactions = loadProgressValue("totalTransactions", 0);
+
+		List<Integer> files = new ArrayList<>();
+		List<FileProgress> progress = new ArrayList<>();
+		int fileNo = firstBlockFile;
+		for (; blockFiles.file(fileNo).exists(); fileNo++) {
+			FileProgress fileProgress = loadFileProgress(fileNo);
+			if (fileProgress.offset < blockFiles.file(fileNo).length()) {
+				files.add(fileNo);
+			}
+			progress.add(fileProgress);
+		}
+		int lastCompleteBlockFile = Math.max(fileNo - 2, firstBlockFile);
+
+		System.out.println(String.format(Locale.US, "Indexing %d block files from blk%05d.dat with %d threads", files.size(), firstBlockFile, threads));
+
+		BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(threads * 4);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<?>> scans = new ArrayList<>();
+
+		for (int file : files) {
+			int from = (int) progress.get(file - firstBlockFile).offset;
+			scans.add(workers.submit(() -> {
+				scanFile(file, from, batches);
+				return null;
+			}));
+		}
+		workers.shutdown();
+
+		Transaction dbtx = null;
+		try {
+			int uncommitted = 0;
+			long lastReported = storedBlockCount;
+
+			while (true) {
+				Batch batch = batches.poll(100, TimeUnit.MILLISECONDS);
+				if (batch == null) {
+					if (workers.isTerminated() && batches.isEmpty()) {
+						break;
+					}
+					continue;
+				}
+
+				if (dbtx == null) {
+					dbtx = environment.beginTransaction(null, null);
+				}
+
+				FileProgress fileProgress = progress.get(batch.fileNo - firstBlockFile);
+				for (IndexedBlock block : batch.blocks) {
+					DatabaseEntry currBlockHash = new DatabaseEntry(block.hash.getBytes());
+					DatabaseEntry location = new DatabaseEntry(BlockFiles.location(batch.fileNo, block.offset, block.length, block.prevHash));
+
+					// Blocks can appear in more than one file, the first one stored wins
+					if (OperationStatus.SUCCESS == blockIndexDatabase.putNoOverwrite(dbtx, currBlockHash, location)) {
+						fileProgress.blocks++;
+						fileProgress.transactions += block.transactions;
+						storedBlockCount++;
+						totalTransactions += block.transactions;
+					}
+				}
+				fileProgress.offset = batch.resumeOffset;
+				storeFileProgress(dbtx, batch.fileNo, fileProgress);
+				uncommitted += batch.blocks.size() + 1;
+
+				if (uncommitted >= COMMIT_BLOCKS) {
+					commit(dbtx);
+					dbtx = null;
+					uncommitted = 0;
+				}
+
+				if (storedBlockCount - lastReported >= 10_000) {
+					System.out.println("Loaded block " + storedBlockCount);
+					lastReported = storedBlockCount;
+				}
+			}
+
+			// Surface worker failures before committing the rest
+			for (Future<?> scan : scans) {
+				scan.get();
+			}
+
+			if (dbtx != null) {
+				commit(dbtx);
+				dbtx = null;
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Indexing block files failed", e.getCause());
+		} finally {
+			// Still open when the writer or a worker failed
+			if (dbtx != null) {
+				dbtx.abort();
+			}
+			workers.shutdownNow();
+		}
+
+		dbtx = environment.beginTransaction(null, null);
+		storeProgressValue(dbtx, "lastCompleteBlockFile", lastCompleteBlockFile);
+		dbtx.commit();
+
+		System.out.println("Blocks indexed, total blocks loaded: " + storedBlockCount);
+	}
+
+	private void commit(Transaction dbtx) {
+		storeProgressValue(dbtx, "storedBlockCount", storedBlockCount);
+		storeProgressValue(dbtx, "totalTransactions", totalTransactions);
+		dbtx.commit();
+	}
+
+	// Worker side, hashes headers and hands the blocks to the writer in file order
+	private void scanFile(int fileNo, int from, BlockingQueue<Batch> batches) throws IOException, InterruptedException {
+		class Collector implements BlockFiles.BlockVisitor {
+			List<IndexedBlock> blocks = new ArrayList<>(BATCH_BLOCKS);
+
+			@Override
+			public void visit(Sha256Hash hash, Sha256Hash prevHash, int offset, int length, long transactions) throws IOException {
+				blocks.add(new IndexedBlock(hash, prevHash, offset, length, transactions));
+				if (blocks.size() == BATCH_BLOCKS) {
+					try {
+						batches.put(new Batch(fileNo, blocks, offset + length));
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Indexing blk" + fileNo + " interrupted");
+					}
+					blocks = new ArrayList<>(BATCH_BLOCKS);
+				}
+			}
+		}
+
+		Collector collector = new Collector();
+		int resumeOffset = blockFiles.scan(fileNo, from, collector);
+		batches.put(new Batch(fileNo, collector.blocks, resumeOffset));
+	}
+}
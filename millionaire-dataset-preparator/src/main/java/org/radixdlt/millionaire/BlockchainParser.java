@@ -1,10 +1,6 @@
 package org.radixdlt.millionaire;
 
-import com.google.common.collect.ImmutableMap;
-import com.radixdlt.client.application.translate.tokens.TokenUnitConversions;
 import com.radixdlt.client.atommodel.accounts.RadixAddress;
-import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
-import com.radixdlt.client.atommodel.tokens.TokenPermission;
 import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
 import com.radixdlt.client.core.Bootstrap;
 import com.radixdlt.client.core.RadixUniverse;
@@ -15,6 +11,8 @@ import com.radixdlt.client.core.crypto.ECKeyPairGenerator;
 import com.radixdlt.client.core.crypto.RadixECKeyPairs;
 import com.sleepycat.je.CacheMode;
 import com.sleepycat.je.CheckpointConfig;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -27,18 +25,11 @@ import com.sleepycat.je.OperationStatus;
 
 import org.bitcoin.NativeSecp256k1Util;
 import org.bitcoin.Secp256k1Context;
-import org.bitcoinj.core.Address;
-import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
-import org.bitcoinj.core.Transaction;
-import org.bitcoinj.core.TransactionInput;
-import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.params.MainNetParams;
-import org.bitcoinj.script.Script;
 import org.bitcoinj.store.BlockStoreException;
-import org.bitcoinj.utils.BlockFileLoader;
 import org.radix.crypto.Hash;
 import org.radix.utils.UInt256;
 import org.radix.utils.primitives.Longs;
@@ -47,28 +38,33 @@ import org.radixdlt.millionaire.AtomFileWriter.AtomFileItem;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.security.SecureRandom;
+import java.nio.file.StandardCopyOption;
 import java.util.AbstractMap;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Deque;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 public class BlockchainParser {
 
@@ -80,7 +76,7 @@ public class BlockchainParser {
 
     NetworkParameters np;
     Context context;
-    BlockFileLoader blockFileLoader;
+    BlockFiles blockFiles;
 
     RadixUniverse universe;
     RRI tokenReference;
@@ -88,8 +84,17 @@ public class BlockchainParser {
     Sha256Hash genesisBlockHash = Sha256Hash.wrap("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f");
 
     Environment environment;
-    Database blocksDatabase, nextBlockHashDatabase, appProgressDatabase, processedOutputsDatabase;
-    Database bannedOutputsDatabase, ignoredOutputsDatabase, uniqueAddressesDatabase, blocksProgressDatabase;
+    Database blockIndexDatabase, appProgressDatabase;
+    ChainIndex chainIndex;
+    Database bannedOutputsDatabase, ignoredOutputsDatabase, blocksProgressDatabase;
+    UtxoStore utxoStore;
+    AddressTable addressTable;
+
+    // Filters in front of banned/ignored outputs, snapshots are written by the checkpointer
+    File filtersDir;
+    OutpointFilter bannedOutputsFilter, ignoredOutputsFilter;
+    volatile boolean filterSnapshotRequested = false;
+    volatile byte[][] filterSnapshots = null;
 
 //    ConcurrentMap blocks;
 //    ConcurrentMap nextBlockHash;
@@ -102,8 +107,28 @@ public class BlockchainParser {
     // Control
     File stopFile;
 
+    // Progress in app_progress, committed every commitBlocks blocks or commitInterval ms
+    private static final byte[] LAST_BLOCK_HASH_KEY = "lastBlockHash".getBytes();
+    private static final byte[] BLOCK_NUM_KEY = "blockNum".getBytes();
+    private static final byte[] VALID_TRANSACTIONS_KEY = "validTransactions".getBytes();
+    private static final byte[] BANNED_TRANSACTIONS_KEY = "bannedTransactions".getBytes();
+    private static final byte[] TOTAL_OUTPUTS_KEY = "totalOutputs".getBytes();
+    private static final byte[] TOTAL_INPUTS_KEY = "totalInputs".getBytes();
+    private static final byte[] ATOMS_CHECKPOINT_KEY = "atomsCheckpoint".getBytes();
+    private static final byte[] OUTPUT_LIFETIME_TRANSACTIONS_KEY = "outputLifetimeTransactions".getBytes();
+    private static final byte[] OUTPUT_LIFETIME_BLOCKS_KEY = "outputLifetimeBlocks".getBytes();
+    private static final byte[] SHARD_HISTOGRAM_KEY = "shardHistogram".getBytes();
+
     // Atoms
     AtomFileWriter atomFileWriter;
+    // First atom build failure, the run stops at the next commit
+    private volatile Throwable atomsFailure = null;
+    // Sequence number of the next atom, the writer emits atoms in this order
+    long nextAtomSequence = 0;
+    // Atoms and particles written by shard, see ShardHistogram
+    ShardHistogram shardHistogram = new ShardHistogram();
+    File shardHistogramFile;
+    File shardPlanFile;
 
     // Stats
     long startTime;
@@ -115,8 +140,22 @@ public class BlockchainParser {
     AtomicLong bannedTransactions=new AtomicLong(0);
     AtomicLong totalInputs=new AtomicLong(0);
     AtomicLong totalOutputs = new AtomicLong(0);
-//    AtomicLong totalOutputLifetime = new AtomicLong(0);
+    // Transactions and blocks from the creation of an output to its spending, outputs created
+    // before they were recorded are left out
+    LogHistogram outputLifetimeTransactions = new LogHistogram();
+    LogHistogram outputLifetimeBlocks = new LogHistogram();
     AtomicLong generatedAddresses = new AtomicLong(0);
+    long lastKeyCacheHits = 0;
+    long lastKeyCacheMisses = 0;
+
+    // Time spent in each stage, summed over the threads running it
+    AtomicLong indexNanos = new AtomicLong(0);
+    AtomicLong readNanos = new AtomicLong(0);
+    AtomicLong deriveKeysNanos = new AtomicLong(0);
+    AtomicLong resolveWaitNanos = new AtomicLong(0);
+    AtomicLong resolveNanos = new AtomicLong(0);
+    AtomicLong buildAtomsNanos = new AtomicLong(0);
+    AtomicLong commitNanos = new AtomicLong(0);
 
     PrintWriter bannedStatsFile;
     AtomicLong bannedBadInput = new AtomicLong(0);
@@ -129,10 +168,31 @@ public class BlockchainParser {
     private ECKeyPairGenerator keyPairGenerator;
     private RadixECKeyPairs radixECKeyPairs;
     private Random random = new Random();
+    // Nonces, plancks and the keys of outputs without an address differ from run to run. Tests
+    // comparing runs fix them, such a key only depends on the salt and the output's outpoint
+    LongSupplier nonces = System::nanoTime;
+    LongSupplier clock = System::currentTimeMillis;
+    byte[] keySalt = new byte[32];
+    private KeyCache<AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>> keyCache;
     private String blocksDir;
     private boolean skipBlocks;
     private boolean resetAtoms;
     private boolean rebuildBlocks;
+    private int ingestThreads;
+    private int atomQueueCapacity;
+    private String partitions;
+    private String shardPlan;
+    private String atomFormat;
+    private long segmentSize;
+    private String compression;
+    private int frameSize;
+    private int pipelineDepth;
+    private int resolveThreads;
+    private int commitBlocks;
+    private long commitInterval;
+
+    // Below this many transactions a block is resolved on the main thread
+    private static final int PARALLEL_RESOLVE_MIN_TRANSACTIONS = 32;
 
     private KeyHandler keyHandler;
 
@@ -160,8 +220,10 @@ public class BlockchainParser {
 
 					if (stop == false || stopFile.exists() == false)
 					{
+						BlockchainParser.this.writeFilterSnapshots();
 						BlockchainParser.this.environment.checkpoint(checkpointConfig);
 						BlockchainParser.this.environment.evictMemory();
+						BlockchainParser.this.filterSnapshotRequested = true;
 
 						if (System.currentTimeMillis() - start < TimeUnit.MINUTES.toMillis(1))
 							Thread.sleep(TimeUnit.MINUTES.toMillis(1) - (System.currentTimeMillis() - start));
@@ -178,16 +240,136 @@ public class BlockchainParser {
 	private transient Thread 					checkpointThread = null;
 	private transient CheckpointerTask			checkpointer = null;
 
-    public BlockchainParser(RadixUniverse universe, String blocksDir, String workDir, String atomsFile, boolean skipBlocks, boolean resetAtoms, boolean rebuildBlocks) throws BlockStoreException, IOException {
-        this.blocksDir = blocksDir;
-        this.skipBlocks = skipBlocks;
-        this.resetAtoms = resetAtoms;
-        this.rebuildBlocks = rebuildBlocks;
+    // A block on its way through the pipeline: decoded by the reader, keys derived by the
+    // executors, then resolved against the processed outputs on the main thread
+    private static class PendingBlock
+    {
+        final Sha256Hash hash;
+        final RawBlock block;
+        // Keys of the block's outputs, by output number, null where there is no address
+        final AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>[] outputKeys;
+        final CountDownLatch keysLatch;
+
+        @SuppressWarnings("unchecked")
+        PendingBlock(Sha256Hash hash, RawBlock block)
+        {
+            this.hash = hash;
+            this.block = block;
+            this.outputKeys = new AbstractMap.SimpleEntry[block.outputs()];
+            this.keysLatch = new CountDownLatch(block.transactions());
+        }
+    }
+
+    private class BlockReaderTask implements Runnable
+    {
+        private final BlockingQueue<PendingBlock> readQueue = new ArrayBlockingQueue<PendingBlock>(pipelineDepth);
+        private final ExecutorService executors;
+        private final int firstHeight;
+        private volatile boolean stop = false;
+        private volatile boolean done = false;
+        private volatile Throwable failure = null;
+
+        BlockReaderTask(int firstHeight, ExecutorService executors)
+        {
+            this.firstHeight = firstHeight;
+            this.executors = executors;
+        }
+
+        @Override
+        public void run()
+        {
+            // The best chain in height order, one cursor step per block
+            try (Cursor cursor = BlockchainParser.this.chainIndex.openCursor())
+            {
+                DatabaseEntry heightKey = ChainIndex.key(firstHeight);
+                DatabaseEntry chainEntry = new DatabaseEntry();
+                OperationStatus status = cursor.getSearchKeyRange(heightKey, chainEntry, LockMode.READ_COMMITTED);
+
+                while (status == OperationStatus.SUCCESS && stop == false)
+                {
+                    long readStart = System.nanoTime();
+
+                    // Read in place from the blk file mapping, the block bytes are never copied
+                    byte[] entry = chainEntry.getData();
+                    ByteBuffer blockBytes = BlockchainParser.this.blockFiles.slice(ChainIndex.location(entry));
+                    PendingBlock pendingBlock = new PendingBlock(ChainIndex.hash(entry), RawBlock.of(blockBytes));
+
+                    status = cursor.getNext(heightKey, chainEntry, LockMode.READ_COMMITTED);
+                    readNanos.addAndGet(System.nanoTime() - readStart);
+
+                    deriveKeys(pendingBlock, executors);
+
+                    // Don't interrupt, JE doesn't tolerate interrupts during IO
+                    while (stop == false && readQueue.offer(pendingBlock, 100, TimeUnit.MILLISECONDS) == false);
+                }
+            }
+            catch (Throwable t)
+            {
+                failure = t;
+            }
+            finally
+            {
+                done = true;
+            }
+        }
+
+        PendingBlock take() throws InterruptedException
+        {
+            while (true)
+            {
+                boolean finished = done;
+                PendingBlock pendingBlock = readQueue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (pendingBlock != null)
+                    return pendingBlock;
+
+                if (finished)
+                {
+                    if (failure != null)
+                        throw new IllegalStateException("Reading blocks failed", failure);
+
+                    return null;
+                }
+            }
+        }
+
+        int queued()
+        {
+            return readQueue.size();
+        }
+
+        void stop()
+        {
+            stop = true;
+        }
+    }
+
+    public BlockchainParser(RadixUniverse universe, ParserOptions options) throws BlockStoreException, IOException {
+        String workDir = options.workDir;
+        String atomsFile = options.atomsFile;
+        this.blocksDir = options.blocksDir;
+        this.skipBlocks = options.skipBlocks;
+        this.resetAtoms = options.resetAtoms;
+        this.rebuildBlocks = options.rebuildBlocks;
+        this.ingestThreads = options.ingestThreads;
+        this.atomQueueCapacity = options.atomQueueCapacity;
+        this.partitions = options.partitions;
+        this.shardPlan = options.shardPlan;
+        this.atomFormat = options.atomFormat;
+        this.segmentSize = options.segmentSize;
+        this.compression = options.compression;
+        this.frameSize = options.frameSize;
+        this.pipelineDepth = Math.max(1, options.pipelineDepth);
+        this.resolveThreads = options.resolveThreads;
+        this.commitBlocks = Math.max(1, options.commitBlocks);
+        this.commitInterval = options.commitInterval;
+        this.keyCache = new KeyCache<>(options.keyCacheSize);
 
         // Set up BitcoinJ
         this.np = new MainNetParams();
         this.context = new Context(np);
         this.random.setSeed(System.nanoTime());
+        this.random.nextBytes(this.keySalt);
 
         if(Secp256k1Context.isEnabled()) {
             try {
@@ -197,7 +379,7 @@ public class BlockchainParser {
                e.printStackTrace();
             }
         } else {
-        	this.keyHandler = new BouncyCastleKeyHandler(new SecureRandom());
+        	this.keyHandler = new BouncyCastleKeyHandler();
             System.out.println("Falling back to bouncy castle");
         }
 
@@ -218,7 +400,11 @@ public class BlockchainParser {
         createToken();
 
         // Serialization
-        ProcessedOutputSerializer.initStatic(tokenReference);
+        ProcessedOutputSerializer.initStatic(universe.getConfig(), tokenReference);
+        if (AtomDson.selfCheck(universe.getConfig(), tokenReference))
+            System.out.println("Hashing atoms directly");
+        else
+            System.out.println("Direct atom hashing does not match the library's DSON, falling back to building atoms");
 
 		System.setProperty("je.disable.java.adler32", "true");
 
@@ -245,30 +431,42 @@ public class BlockchainParser {
         this.environment = new Environment(dbDir, environmentConfig);
 
 
-        if (rebuildBlocks)
+        // Full blocks used to be copied into JE, they are now read from the blk*.dat files through
+        // block_index. Nothing reads the old database, and --skip-blocks would parse an empty index
+        boolean legacyBlocks = this.environment.getDatabaseNames().contains("blocks");
+        if (legacyBlocks && skipBlocks)
+            throw new IllegalStateException("Legacy blocks database found, --skip-blocks can't be used until the block index has been built from the blk files");
+        if (legacyBlocks)
+        {
+            System.out.println("Removing legacy blocks database, block index will be rebuilt...");
+            this.environment.removeDatabase(null, "blocks");
+        }
+
+        if (rebuildBlocks || legacyBlocks)
         {
             System.out.println("Clearing block databases...");
-            try {
-                this.environment.truncateDatabase(null, "blocks", false);
-                this.environment.truncateDatabase(null, "next_block_hash", false);
-                this.environment.truncateDatabase(null, "blocks_progress", false);
-            } catch (DatabaseNotFoundException e) {
-                // All good
+            for (String name : new String[] { "block_index", "chain_index", "blocks_progress" }) {
+                try {
+                    this.environment.truncateDatabase(null, name, false);
+                } catch (DatabaseNotFoundException e) {
+                    // All good
+                }
             }
             System.out.println("Done");
         }
 
 		
-        System.out.println("Opening block database");
-		DatabaseConfig blocksDatabaseConfig = new DatabaseConfig();
-		blocksDatabaseConfig.setAllowCreate(true);
-		blocksDatabaseConfig.setTransactional(true);
-		this.blocksDatabase = this.environment.openDatabase(null, "blocks", blocksDatabaseConfig);
+        System.out.println("Opening block index");
+		DatabaseConfig blockIndexDatabaseConfig = new DatabaseConfig();
+		blockIndexDatabaseConfig.setAllowCreate(true);
+		blockIndexDatabaseConfig.setTransactional(true);
+		this.blockIndexDatabase = this.environment.openDatabase(null, "block_index", blockIndexDatabaseConfig);
 
-		DatabaseConfig nextBlockHashDatabaseConfig = new DatabaseConfig();
-		nextBlockHashDatabaseConfig.setAllowCreate(true);
-		nextBlockHashDatabaseConfig.setTransactional(true);
-		this.nextBlockHashDatabase = this.environment.openDatabase(null, "next_block_hash", nextBlockHashDatabaseConfig);
+		this.blockFiles = new BlockFiles(new File(blocksDir), np.getPacketMagic());
+
+		// Blocks used to be chained by next_block_hash, where the last of two blocks with the same parent won
+		if (this.environment.getDatabaseNames().contains("next_block_hash"))
+			this.environment.removeDatabase(null, "next_block_hash");
 
 
         DatabaseConfig blocksProgressDatabaseConfig = new DatabaseConfig();
@@ -276,6 +474,8 @@ public class BlockchainParser {
         blocksProgressDatabaseConfig.setTransactional(true);
         this.blocksProgressDatabase  = this.environment.openDatabase(null, "blocks_progress", blocksProgressDatabaseConfig);
 
+        this.chainIndex = ChainIndex.open(this.environment, this.blocksProgressDatabase);
+
 
 /*		// Blockchain
         blocks = blockDb.hashMap("blocks")
@@ -295,30 +495,39 @@ public class BlockchainParser {
         if (resetAtoms)
 		{
             System.out.println("Clearing work databases...");
-		    try {
-                this.environment.truncateDatabase(null, "processed_outputs", false);
-                this.environment.truncateDatabase(null, "app_progress", false);
-                this.environment.truncateDatabase(null, "banned_outputs", false);
-                this.environment.truncateDatabase(null, "ignored_outputs", false);
-                this.environment.truncateDatabase(null, "unique_addresses", false);
-            } catch (DatabaseNotFoundException e) {
-		        // All good
+            // processed_outputs is gone once the UTXO log has taken over, clearing app_progress resets the log
+            for (String name : new String[] { "processed_outputs", "app_progress", "banned_outputs", "ignored_outputs", "unique_addresses", "address_keys" }) {
+                try {
+                    this.environment.truncateDatabase(null, name, false);
+                } catch (DatabaseNotFoundException e) {
+                    // All good
+                }
             }
+            // A snapshot could still match the new entry count and miss outputs banned from now on
+            File[] filterSnapshots = new File(workDir + "/filters").listFiles((dir, name) -> name.endsWith(".bloom"));
+            if (filterSnapshots != null)
+                for (File snapshot : filterSnapshots)
+                    snapshot.delete();
             System.out.println("Done");
 		}
 
         System.out.println("Opening work databases");
 
-        DatabaseConfig processedOutputsDatabase = new DatabaseConfig();
-		processedOutputsDatabase.setAllowCreate(true);
-		processedOutputsDatabase.setTransactional(true);
-		this.processedOutputsDatabase = this.environment.openDatabase(null, "processed_outputs", processedOutputsDatabase);
-
 		DatabaseConfig appProgressDatabaseConfig = new DatabaseConfig();
 		appProgressDatabaseConfig.setAllowCreate(true);
 		appProgressDatabaseConfig.setTransactional(true);
 		this.appProgressDatabase  = this.environment.openDatabase(null, "app_progress", appProgressDatabaseConfig);
 
+		if ("je".equals(options.utxoStore))
+		{
+			DatabaseConfig processedOutputsDatabaseConfig = new DatabaseConfig();
+			processedOutputsDatabaseConfig.setAllowCreate(true);
+			processedOutputsDatabaseConfig.setTransactional(true);
+			this.utxoStore = new JeUtxoStore(this.environment.openDatabase(null, "processed_outputs", processedOutputsDatabaseConfig));
+		}
+		else
+			this.utxoStore = LogUtxoStore.open(new File(workDir + "/utxo"), this.environment, this.appProgressDatabase);
+
 		DatabaseConfig bannedOutputsDatabaseConfig = new DatabaseConfig();
 		bannedOutputsDatabaseConfig.setAllowCreate(true);
 		bannedOutputsDatabaseConfig.setTransactional(true);
@@ -329,27 +538,55 @@ public class BlockchainParser {
 		ignoredOutputsDatabaseConfig.setTransactional(true);
 		this.ignoredOutputsDatabase = this.environment.openDatabase(null, "ignored_outputs", ignoredOutputsDatabaseConfig);
         
-		DatabaseConfig uniqueAddressesDatabaseConfig = new DatabaseConfig();
-		uniqueAddressesDatabaseConfig.setAllowCreate(true);
-		uniqueAddressesDatabaseConfig.setTransactional(true);
-		this.uniqueAddressesDatabase  = this.environment.openDatabase(null, "unique_addresses", uniqueAddressesDatabaseConfig);
+		this.addressTable = AddressTable.open(this.environment, this.appProgressDatabase, options.addressCacheSize);
+
+		this.filtersDir = new File(workDir + "/filters");
+		if (!this.filtersDir.exists())
+			this.filtersDir.mkdir();
+
+		this.bannedOutputsFilter = loadFilter(this.bannedOutputsDatabase);
+		this.ignoredOutputsFilter = loadFilter(this.ignoredOutputsDatabase);
+
+		ShardPartitioning partitioning = partitions == null ? null : ShardPartitioning.parse(partitions);
 
 		if (resetAtoms)
 		{
-			new File(atomsFile).delete();
+			deleteAtomFiles(new File(atomsFile));
+			for (int p = 0; deleteAtomFiles(PartitionedAtomOutput.partitionFile(new File(atomsFile), p)); p++);
+			PartitionedAtomOutput.manifestFile(new File(atomsFile)).delete();
 			new File(workDir + "/stats.csv").delete();
 			new File(workDir + "/banned_stats.csv").delete();
 		}
 			
-		atomFileWriter = new AtomFileWriter(new File(atomsFile));
+		// Atoms written after the last commit belong to blocks that are parsed again
+		DatabaseEntry atomsCheckpointData = new DatabaseEntry();
+		byte[] atomsCheckpoint = OperationStatus.SUCCESS == this.appProgressDatabase.get(null, new DatabaseEntry(ATOMS_CHECKPOINT_KEY), atomsCheckpointData, LockMode.DEFAULT) ? atomsCheckpointData.getData() : null;
+
+		AtomOutput atomOutput;
+		if (partitioning == null)
+			atomOutput = openAtomOutput(new File(atomsFile), 10*1024*1024, atomsCheckpoint);
+		else
+		{
+			System.out.println("Writing atoms to "+partitioning.size()+" shard partitions");
+			// Smaller buffers per partition, there can be hundreds of them
+			atomOutput = new PartitionedAtomOutput(new File(atomsFile), partitioning, (file, checkpoint) -> openAtomOutput(file, 256*1024, checkpoint), atomsCheckpoint);
+		}
+		// Progress from before the shard histogram leaves it covering the atoms written from here on
+		DatabaseEntry shardHistogramData = new DatabaseEntry();
+		if (atomsCheckpoint != null && OperationStatus.SUCCESS == this.appProgressDatabase.get(null, new DatabaseEntry(SHARD_HISTOGRAM_KEY), shardHistogramData, LockMode.DEFAULT))
+			shardHistogram = ShardHistogram.fromByteArray(shardHistogramData.getData());
+		atomFileWriter = new AtomFileWriter(atomOutput, atomQueueCapacity, shardHistogram);
 
         statsFile = new PrintWriter(workDir + "/stats.csv");
-        statsFile.println("block,validTx,bannedTx,totalInputs,totalOutputs,unusedOutputs,uniqueAddresses,generatedAddresses");
+        statsFile.println("block,validTx,bannedTx,totalInputs,totalOutputs,unusedOutputs,uniqueAddresses,generatedAddresses,keyCacheHitRate,keyCacheEntries,"
+                + "lifetimeTxMean,lifetimeTxP50,lifetimeTxP90,lifetimeTxP99,lifetimeBlocksMean,lifetimeBlocksP50,lifetimeBlocksP90,lifetimeBlocksP99");
 
         bannedStatsFile = new PrintWriter(workDir + "/banned_stats.csv");
         bannedStatsFile.println("block,badInput,zeroValue,badPk,p2sh,p2wsh,p2wpkh,other");
 
         stopFile = new File(workDir + "/STOP");
+        shardHistogramFile = new File(workDir + "/shard_histogram.csv");
+        shardPlanFile = new File(workDir + "/shard_plan.txt");
         
 		this.checkpointThread = new Thread (this.checkpointer = new CheckpointerTask());
 		this.checkpointThread.setDaemon(false);
@@ -357,6 +594,23 @@ public class BlockchainParser {
 		this.checkpointThread.start();
     }
 
+    private AtomOutput openAtomOutput(File file, int bufferSize, byte[] checkpoint) throws IOException {
+        if ("segmented".equals(atomFormat))
+            return new SegmentedAtomOutput(file, segmentSize, bufferSize, checkpoint);
+        if ("compressed".equals(atomFormat))
+            return new CompressedAtomOutput(AtomFrames.framesFile(file), AtomFrameCodec.forName(compression), frameSize, bufferSize, checkpoint);
+        return new PlainAtomOutput(file, bufferSize, checkpoint);
+    }
+
+    // Deletes the atoms file in any of the formats, returns whether there was one
+    private static boolean deleteAtomFiles(File file) {
+        boolean deleted = file.delete();
+        deleted |= AtomFrames.framesFile(file).delete();
+        for (File segment : AtomSegments.segmentFiles(file))
+            deleted |= segment.delete();
+        return deleted;
+    }
+
     private void createToken() {
         tokenReference = universe.getNativeToken();
     }
@@ -370,74 +624,16 @@ public class BlockchainParser {
         return Longs.fromByteArray(dbValue.getData());
     }
 
-    private void storeProgressValue(String key, long value) {
-        DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
-        this.blocksProgressDatabase.put(null, dbKey, new DatabaseEntry(Longs.toByteArray(value)));
-    }
-
-
-    private List<File> getBlockFileList() {
-        // Load last incomplete block file from db
-        long lastCompleteBlockFile = loadProgressValue("lastCompleteBlockFile", 0);
-        System.out.println(String.format(Locale.US, "Loading blocks starting from blk%05d.dat", lastCompleteBlockFile));
-
-        List<File> list = new LinkedList<>();
-        for (long i = lastCompleteBlockFile; true; i++) {
-            File file = new File(blocksDir, String.format(Locale.US, "blk%05d.dat", i));
-            if (!file.exists()) {
-                // Store last complete block file in db
-                storeProgressValue("lastCompleteBlockFile", Math.max(i - 2, 0));
-                break;
-            }
-            list.add(file);
-        }
-
-        return list;
-    }
-
 
-    private void computeBlockChain() throws IOException {
+    private void computeBlockChain() throws IOException, InterruptedException {
         System.out.println("Reading blocks from blk*.dat");
 
-        blockFileLoader = new BlockFileLoader(np, getBlockFileList());
-
-        long blockCount = loadProgressValue("storedBlockCount", 0);
-        totalTransactions = loadProgressValue("totalTransactions", 0);
-
-        // Iterate over the blocks in the dataset.
-        for (Block block : blockFileLoader) {
-            DatabaseEntry currBlockHash = new DatabaseEntry(block.getHash().getBytes());
-            DatabaseEntry prevBlockHash = new DatabaseEntry(block.getPrevBlockHash().getBytes());
-            
-            com.sleepycat.je.Transaction dbtx = this.environment.beginTransaction(null, null);
-            
-            try
-            {
-                if (OperationStatus.NOTFOUND == this.blocksDatabase.get(dbtx, currBlockHash, new DatabaseEntry(), LockMode.DEFAULT)) {
-                    if(blockCount % 100 == 0)
-                        System.out.println("Loaded block "+blockCount);
-
-                    blockCount++;
-
-                    DatabaseEntry blockData = new DatabaseEntry(block.bitcoinSerialize());
-
-                    this.blocksDatabase.put(dbtx, currBlockHash, blockData);
-                    this.nextBlockHashDatabase.put(dbtx, prevBlockHash, currBlockHash);
-
-                    totalTransactions += block.getTransactions().size();
-                }
-            }
-            finally
-            {
-            	dbtx.commit();
-            }
-        }
-
-        storeProgressValue("totalTransactions", totalTransactions);
-        storeProgressValue("storedBlockCount", blockCount);
+        long indexStart = System.nanoTime();
+        BlockIndexer indexer = new BlockIndexer(this.environment, this.blockIndexDatabase, this.blocksProgressDatabase, this.blockFiles, this.ingestThreads);
+        indexer.run();
+        indexNanos.addAndGet(System.nanoTime() - indexStart);
 
-
-        System.out.println("Chain built, total blocks loaded: "+blockCount);
+        totalTransactions = indexer.totalTransactions;
     }
 
 
@@ -450,274 +646,156 @@ public class BlockchainParser {
         else
         	totalTransactions = loadProgressValue("totalTransactions", 408_000_000);
 
+        long indexedBlocks = this.blockIndexDatabase.count();
+        if (!this.chainIndex.isCurrent(indexedBlocks))
+        {
+            long chainStart = System.nanoTime();
+            this.chainIndex.build(this.blockIndexDatabase, this.blockFiles, genesisBlockHash);
+            indexNanos.addAndGet(System.nanoTime() - chainStart);
+        }
+
         System.out.println("Starting to parse blocks");
         System.out.println("Create \'STOP\' file in data directory to safely stop");
 
-        long totalBlocks = this.blocksDatabase.count();
+        long totalBlocks = this.chainIndex.size();
 
         System.out.println("Total blocks: "+totalBlocks);
 
         long lastBlockTime = 0;
         long lastTransactions = 0;
-        Sha256Hash currentBlockHash;
+        int currentHeight;
 
-        DatabaseEntry blockNumKey = new DatabaseEntry("blockNum".getBytes());
-        DatabaseEntry validTransactionsKey = new DatabaseEntry("validTransactions".getBytes());
-        DatabaseEntry bannedTransactionsKey = new DatabaseEntry("bannedTransactions".getBytes());
-        DatabaseEntry totalOutputsKey = new DatabaseEntry("totalOutputs".getBytes());
-        DatabaseEntry totalInputsKey = new DatabaseEntry("totalInputs".getBytes());
-
-    	DatabaseEntry lastBlockHashKey = new DatabaseEntry("lastBlockHash".getBytes());
     	DatabaseEntry lastBlockHashData = new DatabaseEntry();
         DatabaseEntry currBlockHashKey = new DatabaseEntry();
-    	DatabaseEntry currBlockHashData = new DatabaseEntry();
     	
-        if (OperationStatus.SUCCESS != this.appProgressDatabase.get(null, lastBlockHashKey, lastBlockHashData, LockMode.DEFAULT))
-            currentBlockHash = genesisBlockHash;
+        if (OperationStatus.SUCCESS != this.appProgressDatabase.get(null, new DatabaseEntry(LAST_BLOCK_HASH_KEY), lastBlockHashData, LockMode.DEFAULT))
+            currentHeight = 0;
         else
         {
-            if (OperationStatus.SUCCESS != this.nextBlockHashDatabase.get(null, lastBlockHashData, currBlockHashData, LockMode.DEFAULT)) {
-                System.out.println("Already up to date");
-                return;
-            }
-
-            currentBlockHash = Sha256Hash.wrap(currBlockHashData.getData());
-
             DatabaseEntry blockNumData = new DatabaseEntry();
             DatabaseEntry validTransactionsData = new DatabaseEntry();
             DatabaseEntry bannedTransactionsData = new DatabaseEntry();
             DatabaseEntry totalOutputsData = new DatabaseEntry();
             DatabaseEntry totalInputsData = new DatabaseEntry();
             
-            this.appProgressDatabase.get(null, blockNumKey, blockNumData, LockMode.DEFAULT);
-            this.appProgressDatabase.get(null, validTransactionsKey, validTransactionsData, LockMode.DEFAULT);
-            this.appProgressDatabase.get(null, bannedTransactionsKey, bannedTransactionsData, LockMode.DEFAULT);
-            this.appProgressDatabase.get(null, totalOutputsKey, totalOutputsData, LockMode.DEFAULT);
-            this.appProgressDatabase.get(null, totalInputsKey, totalInputsData, LockMode.DEFAULT);
+            this.appProgressDatabase.get(null, new DatabaseEntry(BLOCK_NUM_KEY), blockNumData, LockMode.DEFAULT);
+            this.appProgressDatabase.get(null, new DatabaseEntry(VALID_TRANSACTIONS_KEY), validTransactionsData, LockMode.DEFAULT);
+            this.appProgressDatabase.get(null, new DatabaseEntry(BANNED_TRANSACTIONS_KEY), bannedTransactionsData, LockMode.DEFAULT);
+            this.appProgressDatabase.get(null, new DatabaseEntry(TOTAL_OUTPUTS_KEY), totalOutputsData, LockMode.DEFAULT);
+            this.appProgressDatabase.get(null, new DatabaseEntry(TOTAL_INPUTS_KEY), totalInputsData, LockMode.DEFAULT);
             
             blockNum.set(Longs.fromByteArray(blockNumData.getData()));
             validTransactions.set(Longs.fromByteArray(validTransactionsData.getData()));
             bannedTransactions.set(Longs.fromByteArray(bannedTransactionsData.getData()));
             totalOutputs.set(Longs.fromByteArray(totalOutputsData.getData()));
             totalInputs.set(Longs.fromByteArray(totalInputsData.getData()));
+
+            DatabaseEntry lifetimesData = new DatabaseEntry();
+            if (OperationStatus.SUCCESS == this.appProgressDatabase.get(null, new DatabaseEntry(OUTPUT_LIFETIME_TRANSACTIONS_KEY), lifetimesData, LockMode.DEFAULT))
+                outputLifetimeTransactions = LogHistogram.fromByteArray(lifetimesData.getData());
+            if (OperationStatus.SUCCESS == this.appProgressDatabase.get(null, new DatabaseEntry(OUTPUT_LIFETIME_BLOCKS_KEY), lifetimesData, LockMode.DEFAULT))
+                outputLifetimeBlocks = LogHistogram.fromByteArray(lifetimesData.getData());
+
+            // Blocks are parsed from the genesis block, the last one parsed is at height blockNum - 1
+            currentHeight = (int) blockNum.get();
+            Sha256Hash lastBlockHash = Sha256Hash.wrap(lastBlockHashData.getData());
+            if (!lastBlockHash.equals(this.chainIndex.hash(currentHeight - 1)))
+                throw new IllegalStateException("Block "+lastBlockHash+" parsed last is not at height "+(currentHeight - 1)+" of the best chain, use --reset-atoms");
+
+            if (currentHeight >= totalBlocks) {
+                System.out.println("Already up to date");
+                atomFileWriter.close();
+                writeShardStats();
+                return;
+            }
         }
 
         startTime = System.currentTimeMillis();
         
         ExecutorService executors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService resolvers = resolveThreads > 1 ? Executors.newFixedThreadPool(resolveThreads) : null;
+        Semaphore blocksInFlight = new Semaphore(pipelineDepth);
+
+        BlockReaderTask blockReader = new BlockReaderTask(currentHeight, executors);
+        Thread blockReaderThread = new Thread(blockReader);
+        blockReaderThread.setDaemon(true);
+        blockReaderThread.setName("BlockReader");
+        blockReaderThread.start();
+
+        // Blocks are committed in groups, the transaction of the current group and when it started
+        com.sleepycat.je.Transaction dbtx = null;
+        int groupBlocks = 0;
+        long groupStart = 0;
 
         // Iterate over the blocks in the dataset.
-        while(currentBlockHash != null) {
-            com.sleepycat.je.Transaction dbtx = this.environment.beginTransaction(null, null);
-            
+        while(true) {
+            long waitStart = System.nanoTime();
+            PendingBlock pendingBlock = blockReader.take();
+            if (pendingBlock == null)
+                break;
+
+            // Keys were derived by the executors while the previous blocks were being resolved
+            pendingBlock.keysLatch.await();
+            long resolveStart = System.nanoTime();
+            resolveWaitNanos.addAndGet(resolveStart - waitStart);
+
+            if (dbtx == null)
+            {
+                dbtx = this.environment.beginTransaction(null, null);
+                groupStart = System.currentTimeMillis();
+            }
+
+            boolean stop;
             try
             {
-	            // Store progress
-                currBlockHashKey = new DatabaseEntry(currentBlockHash.getBytes());
-	            this.appProgressDatabase.put(dbtx, lastBlockHashKey, currBlockHashKey);
-	
-	            // Get block
-	            DatabaseEntry blockData = new DatabaseEntry();
-	            DatabaseEntry nextBlockHashData = new DatabaseEntry();
-	            if (OperationStatus.NOTFOUND == this.blocksDatabase.get(dbtx, currBlockHashKey, blockData, LockMode.DEFAULT))
-	                throw new Error("Block "+currentBlockHash+" not found");
-	            
-	            Block block = new Block(this.np, blockData.getData());
-	            
-	            if (OperationStatus.NOTFOUND == this.nextBlockHashDatabase.get(dbtx, currBlockHashKey, nextBlockHashData, LockMode.DEFAULT)) {
-                    System.out.println("Next block not found");
-                    currentBlockHash = null;
-                } else
-	                currentBlockHash = Sha256Hash.wrap(nextBlockHashData.getData());
-	            
+                currBlockHashKey = new DatabaseEntry(pendingBlock.hash.getBytes());
 	            blockNum.incrementAndGet();
 
-	            List<Transaction> transactions = block.getTransactions();
-	            final long blockTime = block.getTime().getTime();
-	            final Deque<Transaction> transactionsDeque = new ArrayDeque<Transaction>(transactions);
-	            final Deque<AtomFileItem> atomsDeque = new ArrayDeque<AtomFileItem>(transactions.size());
-	            final Map<Script, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>> outputKeys = new ConcurrentHashMap<Script, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>>();
-	            final CountDownLatch txLatch = new CountDownLatch(transactions.size());
-
-	            Runnable keyGeneratorRunnable = new Runnable()
-           		{
-					@Override
-					public void run()
-					{
-						while(txLatch.getCount() > 0)
-						{
-							Transaction transaction;
-							
-							synchronized(transactionsDeque)
-							{
-								transaction = transactionsDeque.pop();
-							}
-							
-							if (transaction == null)
-								break;
-							
-							try
-							{
-				                if(!isTransactionValid(dbtx, transaction))
-				                	continue;
-				                
-				                List<TransactionOutput> outputs = transaction.getOutputs();
-				                for(TransactionOutput output : outputs) 
-				                {
-					                // Address
-					                ECKeyPair key;
-					                RadixAddress address;
-					                try {
-					                    Script script = output.getScriptPubKey();
-					                    
-					                    if (outputKeys.containsKey(script) == false)
-					                    {
-					                    	key = addressToKeyPair(script.getToAddress(np, true));
-					                        address = new RadixAddress(universe.getConfig(), key.getPublicKey());
-					                    	outputKeys.put(script, new AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>(key, address));
-					                    }
-					                } catch(Exception e) {}
-				                }
-							}
-							finally
-							{
-								txLatch.countDown();
-							}
-						}							
-					}
-           		};
-           		
-                for (int e = 0 ; e < Runtime.getRuntime().availableProcessors() ; e++)
-                    executors.submit(keyGeneratorRunnable);
-           		
-           		txLatch.await();
-	            
-	            for(Transaction tx : transactions) 
+	            RawBlock block = pendingBlock.block;
+	            final long blockTime = block.time() * 1000L;
+	            final List<AtomFileItem> atomFileItems = new ArrayList<AtomFileItem>(block.transactions());
+
+	            // Transactions are numbered in block order, banned ones included
+	            final int height = (int) blockNum.get() - 1;
+	            final long firstTxNumber = validTransactions.get() + bannedTransactions.get();
+	            final ResolvedTransaction[] resolved = resolveTransactions(resolvers, dbtx, block, height, firstTxNumber, pendingBlock.outputKeys);
+	            for (int t = 0; t < block.transactions(); t++)
 	            {
-	            	
-	                // if the transaction is valid
-	                if(!isTransactionValid(dbtx, tx)) {
-	                    banAllOutputs(dbtx, tx);
-	                    bannedTransactions.incrementAndGet();
-	                    continue;
-	                }
-	
-	                validTransactions.incrementAndGet();
-	
-	                Set<ECKeyPair> signers = new HashSet<>();
-	                List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>();
-	
-	                // Could be threaded
-	                boolean requireOutputSignature = false;
-	                List<TransactionInput> inputs = tx.getInputs();
-	                for(TransactionInput input : inputs) {
-	                    if(input.isCoinBase()) {
-	                        // Don't need to add any particles in the current model
-	                        requireOutputSignature = true;
-	                    } else if (!isIgnored(dbtx, input)) {
-	                        totalInputs.incrementAndGet();
-	
-	                        ProcessedOutput po = getInput(dbtx, input);
-	                        particles.add(SpunParticle.down(po.particle));
-	
-	//                        totalOutputLifetime += validTransactions - po.addedTxNumber;
-	
-	                        // Add owner to signer
-	                        signers.add(po.owner);
-	                    }
-	                }
-	
-	
-	                // Build atom
-	                // Could be threaded
-	                List<TransactionOutput> outputs = tx.getOutputs();
-	                for(TransactionOutput output : outputs) {
-	                    if (output.getValue().isZero()) {
-	                        ignoreOutput(dbtx, output);
-	                        bannedZeroValue.incrementAndGet();
-	                    } else {
-	                        ProcessedOutput po = getOutputParticle(dbtx, output, validTransactions.get(), outputKeys);
-	                        totalOutputs.incrementAndGet();
-	                        particles.add(SpunParticle.up(po.particle));
-	
-	                        if(requireOutputSignature) {
-	                            signers.add(po.owner);
-	                            requireOutputSignature = false;
-	                        }
-	                    }
-	                }
-	
-	                if(requireOutputSignature) {
-	                    System.out.println("WARN: couldn\'t get output signature "+tx.getTxId().toString());
-	                }
-	
-	                if(signers.size() == 0) {
-	                    System.out.println("WARN: transaction with no signatures "+tx.getTxId().toString());
-	                }
-	
-	                synchronized(atomsDeque)
-	                {
-	                	atomsDeque.push(new AtomFileWriter.AtomFileItem(particles, signers, tx, universe, keyHandler, blockTime));
-	                }
+	                if (resolved[t] != null)
+	                    atomFileItems.add(new AtomFileWriter.AtomFileItem(nextAtomSequence++, blockNum.get(), resolved[t].particles, resolved[t].signers, block.txId(t), universe, keyHandler, blockTime));
 	            }
 	            
-	            CountDownLatch atomsLatch = new CountDownLatch(atomsDeque.size());
-	            Runnable atomsBuilderRunnable = new Runnable()
-           		{
-					@Override
-					public void run()
-					{
-						while(atomsLatch.getCount() > 0)
-						{
-							AtomFileItem atomFileItem;
-							
-							synchronized(atomsDeque)
-							{
-								atomFileItem = atomsDeque.pop();
-							}
-							
-							if (atomFileItem == null)
-								break;
-							
-							try
-							{
-								atomFileItem.buildAtomRecord();
-
-				                synchronized(atomFileWriter)
-				                {
-				                	atomFileWriter.push(atomFileItem);
-				                }
-							}
-							finally
-							{
-								atomsLatch.countDown();
-							}
-						}							
-					}
-           		};
-
-                for (int e = 0 ; e < Runtime.getRuntime().availableProcessors() ; e++)
-                    executors.submit(atomsBuilderRunnable);
-
-                atomsLatch.await();
-	
-	            this.appProgressDatabase.put(dbtx, blockNumKey, new DatabaseEntry(Longs.toByteArray(blockNum.get())));
-	            this.appProgressDatabase.put(dbtx, validTransactionsKey, new DatabaseEntry(Longs.toByteArray(validTransactions.get())));
-	            this.appProgressDatabase.put(dbtx, bannedTransactionsKey, new DatabaseEntry(Longs.toByteArray(bannedTransactions.get())));
-	            this.appProgressDatabase.put(dbtx, totalOutputsKey, new DatabaseEntry(Longs.toByteArray(totalOutputs.get())));
-	            this.appProgressDatabase.put(dbtx, totalInputsKey, new DatabaseEntry(Longs.toByteArray(totalInputs.get())));
+	            // Atoms are built and signed while the following blocks are resolved
+	            buildAtoms(executors, blocksInFlight, atomFileItems);
 	
 	            if(blockNum.get() % 1000 == 0) {
 	
-	                statsFile.printf("%d,%d,%d,%d,%d,%d,%d,%d%n",
+	                // Key cache hit rate over the last 1000 blocks
+	                long keyCacheHits = keyCache.hits(), keyCacheMisses = keyCache.misses();
+	                long keyCacheLookups = keyCacheHits - lastKeyCacheHits + keyCacheMisses - lastKeyCacheMisses;
+	                double keyCacheHitRate = keyCacheLookups == 0 ? 0 : (keyCacheHits - lastKeyCacheHits) / (double) keyCacheLookups;
+	                lastKeyCacheHits = keyCacheHits;
+	                lastKeyCacheMisses = keyCacheMisses;
+
+	                statsFile.printf(Locale.US, "%d,%d,%d,%d,%d,%d,%d,%d,%.4f,%d,%.1f,%d,%d,%d,%.1f,%d,%d,%d%n",
 	                        blockNum.get(),
 	                        validTransactions.get(),
 	                        bannedTransactions.get(),
 	                        totalInputs.get(),
 	                        totalOutputs.get(),
-	                        0, //processedOutputs.size(),
-	                        0, //uniqueAddresses.size(),
-	                        generatedAddresses.get());
+	                        totalOutputs.get() - totalInputs.get(),
+	                        addressTable.size(),
+	                        generatedAddresses.get(),
+	                        keyCacheHitRate,
+	                        keyCache.size(),
+	                        outputLifetimeTransactions.mean(),
+	                        outputLifetimeTransactions.quantile(0.5),
+	                        outputLifetimeTransactions.quantile(0.9),
+	                        outputLifetimeTransactions.quantile(0.99),
+	                        outputLifetimeBlocks.mean(),
+	                        outputLifetimeBlocks.quantile(0.5),
+	                        outputLifetimeBlocks.quantile(0.9),
+	                        outputLifetimeBlocks.quantile(0.99));
 	                statsFile.flush();
 	
 	                bannedStatsFile.printf("%d,%d,%d,%d,%d,%d,%d,%d%n",
@@ -744,101 +822,410 @@ public class BlockchainParser {
 	                System.out.printf("%.2f tps%n", tps);
 	                System.out.printf("%.2f%%, ", transactionsProcessed*100.0/totalTransactions);
 	                System.out.printf("%d:%02d:%02d left%n", hoursLeft, minutesLeft%60, secondsLeft%60);
-                    System.out.printf("Atom write queue length: %d%n", atomFileWriter.writeQueue.size());
+                    System.out.println(atomFileWriter.stats());
+                    System.out.printf("Blocks read ahead: %d%n", blockReader.queued());
+                    System.out.printf("Banned filter: %d hits, %d misses, %d false positives%n", bannedOutputsFilter.hits.get(), bannedOutputsFilter.misses.get(), bannedOutputsFilter.falsePositives.get());
+                    System.out.printf("Ignored filter: %d hits, %d misses, %d false positives%n", ignoredOutputsFilter.hits.get(), ignoredOutputsFilter.misses.get(), ignoredOutputsFilter.falsePositives.get());
 
                     lastBlockTime = System.currentTimeMillis();
 	                lastTransactions = transactionsProcessed;
 	            }
 
-	            dbtx.commit();
+	            resolveNanos.addAndGet(System.nanoTime() - resolveStart);
+
+	            // STOP
+	            stop = stopFile.exists();
+	            if (++groupBlocks >= commitBlocks || System.currentTimeMillis() - groupStart >= commitInterval || stop)
+	            {
+	                commitProgress(dbtx, currBlockHashKey);
+	                dbtx = null;
+	                groupBlocks = 0;
+
+	                if (this.filterSnapshotRequested)
+	                    snapshotFilters();
+	            }
             }
             catch (Throwable t)
             {
-            	dbtx.abort();
+            	if (dbtx != null)
+            	    dbtx.abort();
             	throw t;
             }
 
-            // STOP
-            if (stopFile.exists()) {
+            if (stop) {
                 break;
             }
         }
 
+        // The last blocks before the end of the chain
+        if (dbtx != null)
+        {
+            try
+            {
+                commitProgress(dbtx, currBlockHashKey);
+            }
+            catch (Throwable t)
+            {
+                dbtx.abort();
+                throw t;
+            }
+        }
+
+        blockReader.stop();
+        blockReaderThread.join();
+
+        // Wait for the atoms of all committed blocks to reach the writer
+        blocksInFlight.acquire(pipelineDepth);
+        executors.shutdown();
+        if (resolvers != null)
+            resolvers.shutdown();
+
         System.out.println("Last block: "+Sha256Hash.wrap(currBlockHashKey.getData()));
         System.out.println("Total time: "+(System.currentTimeMillis() - startTime)+"ms");
+        for (Map.Entry<String, Long> stage : stageMillis().entrySet())
+            System.out.println("  "+stage.getKey()+": "+stage.getValue()+"ms");
         System.out.println("Closing all files...");
 
         this.checkpointer.stop = true;
+        snapshotFilters();
+        writeFilterSnapshots();
         this.appProgressDatabase.close();
         this.bannedOutputsDatabase.close();
-        this.blocksDatabase.close();
+        this.blockIndexDatabase.close();
         this.blocksProgressDatabase.close();
-        this.nextBlockHashDatabase.close();
-        this.processedOutputsDatabase.close();
-        this.uniqueAddressesDatabase.close();
+        this.chainIndex.close();
+        this.utxoStore.close();
+        this.addressTable.close();
         this.ignoredOutputsDatabase.close();
         this.environment.close();
 
         statsFile.close();
         bannedStatsFile.close();
 
-        atomFileWriter.completed();
-        atomFileWriter.waitToFinish(1000L);
+        atomFileWriter.close();
+        writeShardStats();
 
         System.out.println("DONE");
     }
 
-    private boolean isIgnored(com.sleepycat.je.Transaction dbtx, TransactionInput input) {
-        return this.ignoredOutputsDatabase.get(dbtx, new DatabaseEntry(getOutputUniqueId(input).getBytes()), null, LockMode.DEFAULT) == OperationStatus.SUCCESS ? true : false;
+    // Stores the progress of the group of blocks resolved in dbtx and commits it. Waits for the
+    // atoms of the group to be written first, so the atoms file position committed with the group
+    // covers exactly the committed blocks. On restart the atoms written after it are dropped.
+    private void commitProgress(com.sleepycat.je.Transaction dbtx, DatabaseEntry lastBlockHash) throws IOException, InterruptedException
+    {
+        long commitStart = System.nanoTime();
+
+        // The atoms file would be committed without the atom that failed
+        if (atomsFailure != null)
+            throw new IOException("Building atoms failed", atomsFailure);
+
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(LAST_BLOCK_HASH_KEY), lastBlockHash);
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(BLOCK_NUM_KEY), new DatabaseEntry(Longs.toByteArray(blockNum.get())));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(VALID_TRANSACTIONS_KEY), new DatabaseEntry(Longs.toByteArray(validTransactions.get())));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(BANNED_TRANSACTIONS_KEY), new DatabaseEntry(Longs.toByteArray(bannedTransactions.get())));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(TOTAL_OUTPUTS_KEY), new DatabaseEntry(Longs.toByteArray(totalOutputs.get())));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(TOTAL_INPUTS_KEY), new DatabaseEntry(Longs.toByteArray(totalInputs.get())));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(OUTPUT_LIFETIME_TRANSACTIONS_KEY), new DatabaseEntry(outputLifetimeTransactions.toByteArray()));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(OUTPUT_LIFETIME_BLOCKS_KEY), new DatabaseEntry(outputLifetimeBlocks.toByteArray()));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(ATOMS_CHECKPOINT_KEY), new DatabaseEntry(atomFileWriter.checkpoint(nextAtomSequence)));
+        this.appProgressDatabase.put(dbtx, new DatabaseEntry(SHARD_HISTOGRAM_KEY), new DatabaseEntry(atomFileWriter.shardHistogramCheckpoint()));
+
+        this.utxoStore.commit(dbtx);
+        this.addressTable.commit(dbtx);
+        dbtx.commit();
+
+        commitNanos.addAndGet(System.nanoTime() - commitStart);
     }
 
-    private void ignoreOutput(com.sleepycat.je.Transaction dbtx, TransactionOutput output) {
-        this.ignoredOutputsDatabase.put(dbtx, new DatabaseEntry(getOutputUniqueId(output).getBytes()), new DatabaseEntry(getOutputUniqueId(output).getBytes()));
+    // shard_histogram.csv, and with --shard-plan <nodes>[:<overlap>] shard_plan.txt, the ranges of
+    // that many nodes expecting the same number of atoms
+    private void writeShardStats() throws IOException {
+        shardHistogram.writeCsv(shardHistogramFile);
+
+        if (shardPlan != null) {
+            String[] parts = shardPlan.split(":");
+            int nodes = Integer.parseInt(parts[0]);
+            double overlap = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.1;
+            shardHistogram.writePlan(shardPlanFile, nodes, overlap);
+            System.out.println("Shard plan for " + nodes + " nodes written to " + shardPlanFile);
+        }
     }
 
-    private ProcessedOutput getInput(com.sleepycat.je.Transaction dbtx, TransactionInput input) throws IOException {
-        String btcOutputId = getOutputUniqueId(input);
-        DatabaseEntry btcOutputIdKey = new DatabaseEntry(btcOutputId.getBytes());
-        DatabaseEntry processedOutputData = new DatabaseEntry();
+    // A block's atoms in the making: particles and signers of a valid transaction
+    private static class ResolvedTransaction
+    {
+        final List<SpunParticle<TransferrableTokensParticle>> particles;
+        final Set<ECKeyPair> signers;
 
-        if (OperationStatus.SUCCESS != this.processedOutputsDatabase.get(dbtx, btcOutputIdKey, processedOutputData, LockMode.DEFAULT))
-            throw new Error("Couldn't find output for input");
+        ResolvedTransaction(List<SpunParticle<TransferrableTokensParticle>> particles, Set<ECKeyPair> signers)
+        {
+            this.particles = particles;
+            this.signers = signers;
+        }
+    }
 
+    // Resolves the transactions of a block, null for banned ones. Transactions only wait for the
+    // earlier ones in the block whose outputs they spend, see TransactionDag, so the counters and
+    // atoms come out as when resolving in block order. Small blocks are resolved on this thread.
+    private ResolvedTransaction[] resolveTransactions(ExecutorService resolvers, com.sleepycat.je.Transaction dbtx, RawBlock block, int height, long firstTxNumber, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>[] outputKeys) throws IOException, InterruptedException {
+        final ResolvedTransaction[] resolved = new ResolvedTransaction[block.transactions()];
 
-        ProcessedOutput po = ProcessedOutputSerializer.fromByteArray(processedOutputData.getData());
-        this.processedOutputsDatabase.delete(dbtx, btcOutputIdKey);
+        if (resolvers == null || block.transactions() < PARALLEL_RESOLVE_MIN_TRANSACTIONS) {
+            for (int t = 0; t < block.transactions(); t++)
+                resolved[t] = resolveTransaction(dbtx, block, t, height, firstTxNumber + t, outputKeys);
+            return resolved;
+        }
 
-        return po;
+        try {
+            TransactionDag.of(block).run(resolvers, t -> resolved[t] = resolveTransaction(dbtx, block, t, height, firstTxNumber + t, outputKeys));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Resolving transactions failed", e);
+        }
+        return resolved;
     }
 
-    private ProcessedOutput getOutputParticle(com.sleepycat.je.Transaction dbtx, TransactionOutput output, long txNumber, Map<Script, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>> keys) throws IOException {
+    // Thread safe, the JE transaction is shared by all transactions of the block
+    private ResolvedTransaction resolveTransaction(com.sleepycat.je.Transaction dbtx, RawBlock block, int tx, int height, long txNumber, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>[] outputKeys) throws IOException {
+        // if the transaction is valid
+        if(!isTransactionValid(dbtx, block, tx)) {
+            banAllOutputs(dbtx, block, tx);
+            bannedTransactions.incrementAndGet();
+            return null;
+        }
+
+        validTransactions.incrementAndGet();
+
+        Set<ECKeyPair> signers = new HashSet<>();
+        List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>();
+
+        // Could be threaded
+        boolean requireOutputSignature = false;
+        for(int input = block.firstInput(tx), end = input + block.inputs(tx); input < end; input++) {
+            if(block.isCoinBase(input)) {
+                // Don't need to add any particles in the current model
+                requireOutputSignature = true;
+            } else {
+                byte[] spent = block.spentOutpoint(input);
+                if (isIgnored(dbtx, spent))
+                    continue;
+
+                totalInputs.incrementAndGet();
+
+                ProcessedOutput po = getInput(dbtx, spent);
+                particles.add(SpunParticle.down(po.particle));
+
+                if (po.addedBlock >= 0) {
+                    outputLifetimeTransactions.record(txNumber - po.addedTxNumber);
+                    outputLifetimeBlocks.record(height - po.addedBlock);
+                }
+
+                // Add owner to signer
+                signers.add(po.owner);
+            }
+        }
+
+
+        // Build atom
+        // Could be threaded
+        for(int output = block.firstOutput(tx), end = output + block.outputs(tx); output < end; output++) {
+            if (block.value(output) == 0) {
+                ignoreOutput(dbtx, block.outpoint(output));
+                bannedZeroValue.incrementAndGet();
+            } else {
+                ProcessedOutput po = getOutputParticle(dbtx, block, output, height, txNumber, outputKeys);
+                totalOutputs.incrementAndGet();
+                particles.add(SpunParticle.up(po.particle));
+
+                if(requireOutputSignature) {
+                    signers.add(po.owner);
+                    requireOutputSignature = false;
+                }
+            }
+        }
+
+        if(requireOutputSignature) {
+            System.out.println("WARN: couldn\'t get output signature "+block.txId(tx).toString());
+        }
+
+        if(signers.size() == 0) {
+            System.out.println("WARN: transaction with no signatures "+block.txId(tx).toString());
+        }
+
+        return new ResolvedTransaction(particles, signers);
+    }
+
+    // Milliseconds spent per stage, over all threads of the stage. Reading, key derivation and atom
+    // building overlap with resolving, resolve wait is the time the main thread had nothing to resolve
+    Map<String, Long> stageMillis() {
+        Map<String, Long> stages = new LinkedHashMap<String, Long>();
+        stages.put("index", TimeUnit.NANOSECONDS.toMillis(indexNanos.get()));
+        stages.put("read", TimeUnit.NANOSECONDS.toMillis(readNanos.get()));
+        stages.put("deriveKeys", TimeUnit.NANOSECONDS.toMillis(deriveKeysNanos.get()));
+        stages.put("resolveWait", TimeUnit.NANOSECONDS.toMillis(resolveWaitNanos.get()));
+        stages.put("resolve", TimeUnit.NANOSECONDS.toMillis(resolveNanos.get()));
+        stages.put("buildAtoms", TimeUnit.NANOSECONDS.toMillis(buildAtomsNanos.get()));
+        stages.put("commit", TimeUnit.NANOSECONDS.toMillis(commitNanos.get()));
+        return stages;
+    }
+
+    private void deriveKeys(PendingBlock pendingBlock, ExecutorService executors) {
+        final RawBlock block = pendingBlock.block;
+        final AtomicInteger nextTransaction = new AtomicInteger();
+
+        // Validity depends on blocks that may not be committed yet, so keys are derived for every
+        // transaction, the few belonging to banned transactions are simply not used
+        Runnable keyGeneratorRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while(true)
+                {
+                    int transaction = nextTransaction.getAndIncrement();
+                    if (transaction >= block.transactions())
+                        break;
+
+                    long deriveStart = System.nanoTime();
+                    try
+                    {
+                        // Hashed here rather than on the main thread, the txid is cached in the block
+                        block.txId(transaction);
+
+                        for(int output = block.firstOutput(transaction), end = output + block.outputs(transaction); output < end; output++)
+                        {
+                            if (block.value(output) == 0)
+                                continue;
+
+                            // Address
+                            byte[] addressHash = block.addressHash(output);
+                            if (addressHash != null)
+                                pendingBlock.outputKeys[output] = addressToKeyEntry(addressHash);
+                        }
+                    }
+                    finally
+                    {
+                        deriveKeysNanos.addAndGet(System.nanoTime() - deriveStart);
+                        pendingBlock.keysLatch.countDown();
+                    }
+                }
+            }
+        };
+
+        int workers = Math.min(block.transactions(), Runtime.getRuntime().availableProcessors());
+        for (int e = 0 ; e < workers ; e++)
+            executors.submit(keyGeneratorRunnable);
+    }
+
+    private void buildAtoms(ExecutorService executors, Semaphore blocksInFlight, List<AtomFileItem> atomFileItems) throws InterruptedException {
+        // Bounds the number of committed blocks still signing behind the main thread
+        blocksInFlight.acquire();
+
+        if (atomFileItems.isEmpty()) {
+            blocksInFlight.release();
+            return;
+        }
+
+        final Deque<AtomFileItem> atomsDeque = new ArrayDeque<AtomFileItem>(atomFileItems);
+        final AtomicInteger atomsRemaining = new AtomicInteger(atomFileItems.size());
+
+        Runnable atomsBuilderRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while(true)
+                {
+                    AtomFileItem atomFileItem;
+
+                    synchronized(atomsDeque)
+                    {
+                        atomFileItem = atomsDeque.poll();
+                    }
+
+                    if (atomFileItem == null)
+                        break;
+
+                    try
+                    {
+                        long buildStart = System.nanoTime();
+                        atomFileItem.buildAtomRecord();
+                        buildAtomsNanos.addAndGet(System.nanoTime() - buildStart);
+                        atomFileWriter.push(atomFileItem);
+                    }
+                    catch (Throwable t)
+                    {
+                        // Nobody reads the future, the parser and the writer check for it instead. The
+                        // rest are still built so the block is released
+                        if (t instanceof InterruptedException)
+                            Thread.currentThread().interrupt();
+                        if (atomsFailure == null)
+                            atomsFailure = new IllegalStateException("Building atom "+atomFileItem.sequence+" failed", t);
+                        atomFileWriter.fail(atomFileItem.sequence, t);
+                    }
+                    finally
+                    {
+                        if (atomsRemaining.decrementAndGet() == 0)
+                            blocksInFlight.release();
+                    }
+                }
+            }
+        };
+
+        int workers = Math.min(atomFileItems.size(), Runtime.getRuntime().availableProcessors());
+        for (int e = 0 ; e < workers ; e++)
+            executors.submit(atomsBuilderRunnable);
+    }
+
+    private boolean isIgnored(com.sleepycat.je.Transaction dbtx, byte[] outpoint) {
+        if (!this.ignoredOutputsFilter.mightContain(outpoint))
+            return false;
+
+        if (this.ignoredOutputsDatabase.get(dbtx, new DatabaseEntry(Outpoint.legacyId(outpoint).getBytes()), null, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            return true;
+
+        this.ignoredOutputsFilter.falsePositive();
+        return false;
+    }
+
+    private void ignoreOutput(com.sleepycat.je.Transaction dbtx, byte[] outpoint) {
+        byte[] outputUniqueId = Outpoint.legacyId(outpoint).getBytes();
+        // Counted by the filter only when new, a duplicate txid can ban or ignore an outpoint twice
+        if (this.ignoredOutputsDatabase.putNoOverwrite(dbtx, new DatabaseEntry(outputUniqueId), new DatabaseEntry(outputUniqueId)) == OperationStatus.SUCCESS)
+            this.ignoredOutputsFilter.add(outpoint);
+    }
+
+    private ProcessedOutput getInput(com.sleepycat.je.Transaction dbtx, byte[] outpoint) throws IOException {
+        byte[] processedOutputData = this.utxoStore.take(dbtx, outpoint);
+
+        if (processedOutputData == null)
+            throw new Error("Couldn't find output for input");
+
+        return ProcessedOutputSerializer.fromByteArray(processedOutputData, ownerId -> this.addressTable.keys(dbtx, ownerId));
+    }
+
+    private ProcessedOutput getOutputParticle(com.sleepycat.je.Transaction dbtx, RawBlock block, int output, int height, long txNumber, AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>[] keys) throws IOException {
         // Compute amount
-        UInt256 rawAmount = TokenUnitConversions.unitsToSubunits(new BigDecimal(output.getValue().toPlainString()));
+        UInt256 rawAmount = ProcessedOutputSerializer.amount(block.value(output));
         //granularity
         UInt256 granularity = UInt256.ONE;
 
 
         // Address
-        AbstractMap.SimpleEntry<ECKeyPair, RadixAddress> keyEntry;
+        AbstractMap.SimpleEntry<ECKeyPair, RadixAddress> keyEntry = keys[output];
         ECKeyPair key;
         RadixAddress address;
-        
-        try {
-            Script script = output.getScriptPubKey();
-            
-            keyEntry = keys.get(script);
-            if (keyEntry == null)
-            {
-            	key = addressToKeyPair(script.getToAddress(np, true));
-                address = new RadixAddress(universe.getConfig(), key.getPublicKey());
-            }
-            else
-            {
-            	key = keyEntry.getKey();
-            	address = keyEntry.getValue();
-            }
-        } catch(Exception e) {
-            key = randomKeyPair();
+
+        byte[] addressHash;
+        if (keyEntry == null && (addressHash = block.addressHash(output)) != null)
+            keyEntry = addressToKeyEntry(addressHash);
+
+        if (keyEntry != null) {
+            key = keyEntry.getKey();
+            address = keyEntry.getValue();
+        } else {
+            key = randomKeyPair(block.outpoint(output));
             address = new RadixAddress(universe.getConfig(), key.getPublicKey());
             generatedAddresses.incrementAndGet();
         }
@@ -846,8 +1233,8 @@ public class BlockchainParser {
         // uniqueAddresses.add(keyPair.getPrivateKey());
 
         // TODO: use btc time?
-        long nonce = System.nanoTime();
-        long planck = System.currentTimeMillis() / 60000L + 60000L;
+        long nonce = nonces.getAsLong();
+        long planck = clock.getAsLong() / 60000L + 60000L;
 
         TransferrableTokensParticle particle = new TransferrableTokensParticle(
             rawAmount,
@@ -856,24 +1243,29 @@ public class BlockchainParser {
             nonce,
             tokenReference,
             planck,
-            ImmutableMap.of(
-                    TokenDefinitionParticle.TokenTransition.MINT, TokenPermission.ALL,
-                    TokenDefinitionParticle.TokenTransition.BURN, TokenPermission.ALL
-            )
+            ProcessedOutput.TOKEN_PERMISSIONS
         );
 
-        String btcOutputId = getOutputUniqueId(output);
-
-        ProcessedOutput processedOutput = new ProcessedOutput(key, particle);
-//        this.processedOutputs.put(btcOutputId, processedOutput);
-        this.processedOutputsDatabase.put(dbtx, new DatabaseEntry(btcOutputId.getBytes()), new DatabaseEntry(ProcessedOutputSerializer.toByteArray(processedOutput)));
+        ProcessedOutput processedOutput = new ProcessedOutput(key, this.addressTable.id(dbtx, key), particle, height, txNumber);
+        this.utxoStore.put(dbtx, block.outpoint(output), ProcessedOutputSerializer.toByteArray(processedOutput));
 
         return processedOutput;
     }
 
 
-    private ECKeyPair addressToKeyPair(Address address){
-        byte[] pk = Hash.sha256(address.getHash());
+    // Derived keys are cached across blocks, hot addresses show up in thousands of them
+    private AbstractMap.SimpleEntry<ECKeyPair, RadixAddress> addressToKeyEntry(byte[] hash) {
+        AbstractMap.SimpleEntry<ECKeyPair, RadixAddress> entry = keyCache.get(hash);
+        if (entry == null) {
+            ECKeyPair key = addressToKeyPair(hash);
+            entry = new AbstractMap.SimpleEntry<ECKeyPair, RadixAddress>(key, new RadixAddress(universe.getConfig(), key.getPublicKey()));
+            keyCache.put(hash, entry);
+        }
+        return entry;
+    }
+
+    private ECKeyPair addressToKeyPair(byte[] addressHash){
+        byte[] pk = Hash.sha256(addressHash);
 //        byte[] pk = address.getHash();
         return pkToKeyPair(pk);
 //        return radixECKeyPairs.generateKeyPairFromSeed(address.getHash());
@@ -894,34 +1286,43 @@ public class BlockchainParser {
     }
 
 
-    private ECKeyPair randomKeyPair(){
-        byte[] pk = new byte[32];
-        random.nextBytes(pk);
-        return pkToKeyPair(pk);
+    // Not drawn from random, resolving in parallel would hand out the keys in another order
+    private ECKeyPair randomKeyPair(byte[] outpoint){
+        byte[] seed = Arrays.copyOf(keySalt, keySalt.length + outpoint.length);
+        System.arraycopy(outpoint, 0, seed, keySalt.length, outpoint.length);
+        return pkToKeyPair(Hash.sha256(seed));
     }
 
 
-    private void banAllOutputs(com.sleepycat.je.Transaction dbtx, Transaction tx) {
-        for(TransactionOutput output: tx.getOutputs()) {
+    private void banAllOutputs(com.sleepycat.je.Transaction dbtx, RawBlock block, int tx) {
+        for(int output = block.firstOutput(tx), end = output + block.outputs(tx); output < end; output++) {
             bannedBadInput.incrementAndGet();
-            banOutput(dbtx, output);
+            banOutput(dbtx, block.outpoint(output));
         }
     }
 
-    private void banOutput(com.sleepycat.je.Transaction dbtx, TransactionOutput output) {
-        this.bannedOutputsDatabase.put(dbtx, new DatabaseEntry(getOutputUniqueId(output).getBytes()), new DatabaseEntry(getOutputUniqueId(output).getBytes()));
+    private void banOutput(com.sleepycat.je.Transaction dbtx, byte[] outpoint) {
+        byte[] outputUniqueId = Outpoint.legacyId(outpoint).getBytes();
+        // Counted by the filter only when new, a duplicate txid can ban or ignore an outpoint twice
+        if (this.bannedOutputsDatabase.putNoOverwrite(dbtx, new DatabaseEntry(outputUniqueId), new DatabaseEntry(outputUniqueId)) == OperationStatus.SUCCESS)
+            this.bannedOutputsFilter.add(outpoint);
     }
 
-    private boolean isTransactionValid(com.sleepycat.je.Transaction dbtx, Transaction tx) {
+    private boolean isTransactionValid(com.sleepycat.je.Transaction dbtx, RawBlock block, int tx) {
         // Exclude transactions depending on invalid transactons
-        for(TransactionInput input : tx.getInputs()) {
+        for(int input = block.firstInput(tx), end = input + block.inputs(tx); input < end; input++) {
+            if (block.isCoinBase(input))
+                continue;
 
-            if (!input.isCoinBase()) {
-                String outputUniqueId = getOutputUniqueId(input);
+            byte[] spent = block.spentOutpoint(input);
+            if (this.bannedOutputsFilter.mightContain(spent)) {
+                String outputUniqueId = Outpoint.legacyId(spent);
 
                 if(this.bannedOutputsDatabase.get(dbtx, new DatabaseEntry(outputUniqueId.getBytes()), null, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
                     return false;
                 }
+
+                this.bannedOutputsFilter.falsePositive();
             }
         }
 
@@ -929,12 +1330,55 @@ public class BlockchainParser {
     }
 
 
-    private String getOutputUniqueId(TransactionOutput output) {
-        return output.getParentTransaction().getTxId().toString()+output.getIndex();
+    private OutpointFilter loadFilter(Database database) throws IOException {
+        String name = database.getDatabaseName();
+        File file = new File(filtersDir, name + ".bloom");
+        long count = database.count();
+
+        if (file.exists()) {
+            try {
+                OutpointFilter filter = OutpointFilter.restore(Files.readAllBytes(file.toPath()));
+                if (filter.matches(count)) {
+                    System.out.println("Loaded " + name + " filter, " + count + " entries");
+                    return filter;
+                }
+            } catch (IOException e) {
+                System.out.println("Unreadable " + name + " filter: " + e.getMessage());
+            }
+        }
+
+        System.out.println("Rebuilding " + name + " filter from " + count + " entries");
+        OutpointFilter filter = new OutpointFilter();
+        try (Cursor cursor = database.openCursor(null, CursorConfig.READ_COMMITTED)) {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry value = new DatabaseEntry();
+            while (cursor.getNext(key, value, LockMode.READ_COMMITTED) == OperationStatus.SUCCESS) {
+                filter.add(Outpoint.fromLegacyId(new String(key.getData())));
+            }
+        }
+        return filter;
+    }
+
+    // Taken on the main thread between blocks, when the filters hold exactly the committed entries
+    private void snapshotFilters() throws IOException {
+        this.filterSnapshots = new byte[][] { this.bannedOutputsFilter.snapshot(), this.ignoredOutputsFilter.snapshot() };
+        this.filterSnapshotRequested = false;
+    }
+
+    private void writeFilterSnapshots() throws IOException {
+        byte[][] snapshots = this.filterSnapshots;
+        if (snapshots == null)
+            return;
+
+        this.filterSnapshots = null;
+        writeAtomically(new File(filtersDir, this.bannedOutputsDatabase.getDatabaseName() + ".bloom"), snapshots[0]);
+        writeAtomically(new File(filtersDir, this.ignoredOutputsDatabase.getDatabaseName() + ".bloom"), snapshots[1]);
     }
 
-    private String getOutputUniqueId(TransactionInput input) {
-        return input.getOutpoint().getHash().toString()+input.getOutpoint().getIndex();
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), data);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
 }
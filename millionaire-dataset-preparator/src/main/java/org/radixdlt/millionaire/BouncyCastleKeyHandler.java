@@ -6,46 +6,62 @@ import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
-import org.bouncycastle.crypto.params.ParametersWithRandom;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.signers.ECDSASigner;
-import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
 import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECMultiplier;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
 
 import java.math.BigInteger;
-import java.security.KeyFactory;
-import java.security.SecureRandom;
-import java.util.Objects;
 
+// Pure Java fallback for when libsecp256k1 can't be loaded. Public keys are a fixed-base comb
+// multiplication of G against tables precomputed once per curve, nonces are deterministic
+// (RFC 6979) so signing needs no SecureRandom, and each thread reuses its own signer.
 class BouncyCastleKeyHandler implements KeyHandler {
 	private final BigInteger halfCurveOrder;
 	private final X9ECParameters curve;
 	private final ECDomainParameters domain;
 	private final ECParameterSpec spec;
-	private final SecureRandom secureRandom;
+	private final ECMultiplier baseMultiplier = new FixedPointCombMultiplier();
 
-	BouncyCastleKeyHandler(SecureRandom secureRandom) {
+	private final ThreadLocal<ECDSASigner> signers = ThreadLocal.withInitial(() -> new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())));
+
+	BouncyCastleKeyHandler() {
 		curve = CustomNamedCurves.getByName("secp256k1");
 
-		this.secureRandom = Objects.requireNonNull(secureRandom);
 	    this.halfCurveOrder = curve.getN().shiftRight(1);
 	    this.domain = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
 	    this.spec = new ECParameterSpec(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+
+	    // Build the comb tables for G up front rather than in the first signing threads
+	    FixedPointUtil.precompute(curve.getG());
 	}
 
-	@Override
-	public ECSignature sign(byte[] hash, byte[] privateKey) throws CryptoException {
-		ECDSASigner signer = new ECDSASigner();
-		signer.init(true, new ParametersWithRandom(
-				new ECPrivateKeyParameters(new BigInteger(1, privateKey), domain), secureRandom));
+	private BigInteger[] generateSignature(byte[] hash, byte[] privateKey) {
+		ECDSASigner signer = signers.get();
+		signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, privateKey), domain));
 		BigInteger[] components = signer.generateSignature(hash);
 
 		// Canonicalise the signature //
-		final ECSignature signature = (components[1].compareTo(halfCurveOrder) > 0)
-				? new ECSignature(components[0], curve.getN().subtract(components[1]))
-				: new ECSignature(components[0], components[1]);
+		if (components[1].compareTo(halfCurveOrder) > 0)
+			components[1] = curve.getN().subtract(components[1]);
+		return components;
+	}
 
-		return signature;
+	@Override
+	public ECSignature sign(byte[] hash, byte[] privateKey) throws CryptoException {
+		BigInteger[] components = generateSignature(hash, privateKey);
+		return new ECSignature(components[0], components[1]);
+	}
+
+	@Override
+	public void signAll(byte[][] hashes, byte[][] privateKeys, int count, byte[] signatures) throws CryptoException {
+		for (int i = 0; i < count; i++) {
+			BigInteger[] components = generateSignature(hashes[i], privateKeys[i]);
+			CompactSignatures.put(components[0], components[1], signatures, i);
+		}
 	}
 
 	@Override
@@ -61,9 +77,8 @@ class BouncyCastleKeyHandler implements KeyHandler {
 		validatePrivate(D);
 
 		try {
-			ECPublicKeySpec publicKeySpec = new ECPublicKeySpec(spec.getG().multiply(D), spec);
-			return ((ECPublicKey) KeyFactory.getInstance("EC", "BC").generatePublic(publicKeySpec)).getQ().getEncoded(true);
-		} catch (Exception e) {
+			return baseMultiplier.multiply(curve.getG(), D).getEncoded(true);
+		} catch (RuntimeException e) {
 			throw new CryptoException(e);
 		}
 	}
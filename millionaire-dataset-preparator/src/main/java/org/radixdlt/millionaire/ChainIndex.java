@@ -0,0 +1,247 @@
+package org.radixdlt.millionaire;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+// The best chain of block_index by height. build() connects every indexed block to its parent,
+// sums the proof of work from the genesis block and walks back from the block with the most work,
+// bitcoind's rule, earliest stored block on a tie. chain_index then maps the 4 byte big-endian
+// height to [32 block hash][block_index location], so the parser reads the chain in key order
+// instead of following next block hashes. Blocks off the best chain, and blocks whose ancestors
+// are missing, are never parsed.
+//
+// The number of indexed blocks the chain was built from is stored in blocks_progress, the chain is
+// rebuilt when block_index has grown since.
+class ChainIndex {
+	private static final byte[] INDEXED_BLOCKS_KEY = "chainIndexedBlocks".getBytes();
+	private static final int COMMIT_BLOCKS = 50_000;
+	private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+	private static final int BITS_OFFSET = 72;
+
+	static final int ENTRY_LENGTH = 32 + BlockFiles.LOCATION_LENGTH;
+
+	private final Environment environment;
+	private final Database blocksProgressDatabase;
+	private Database chainDatabase;
+
+	private ChainIndex(Environment environment, Database blocksProgressDatabase, Database chainDatabase) {
+		this.environment = environment;
+		this.blocksProgressDatabase = blocksProgressDatabase;
+		this.chainDatabase = chainDatabase;
+	}
+
+	static ChainIndex open(Environment environment, Database blocksProgressDatabase) {
+		return new ChainIndex(environment, blocksProgressDatabase, openDatabase(environment));
+	}
+
+	private static Database openDatabase(Environment environment) {
+		DatabaseConfig databaseConfig = new DatabaseConfig();
+		databaseConfig.setAllowCreate(true);
+		databaseConfig.setTransactional(true);
+		return environment.openDatabase(null, "chain_index", databaseConfig);
+	}
+
+	// Whether the chain was built from this many indexed blocks
+	boolean isCurrent(long indexedBlocks) {
+		DatabaseEntry value = new DatabaseEntry();
+		return OperationStatus.SUCCESS == blocksProgressDatabase.get(null, new DatabaseEntry(INDEXED_BLOCKS_KEY), value, LockMode.DEFAULT)
+			&& Longs.fromByteArray(value.getData()) == indexedBlocks;
+	}
+
+	void build(Database blockIndexDatabase, BlockFiles blockFiles, Sha256Hash genesisBlockHash) throws IOException {
+		long indexedBlocks = blockIndexDatabase.count();
+		System.out.println("Resolving the best chain of " + indexedBlocks + " blocks");
+
+		// Stale until the new chain is complete
+		Transaction dbtx = environment.beginTransaction(null, null);
+		blocksProgressDatabase.delete(dbtx, new DatabaseEntry(INDEXED_BLOCKS_KEY));
+		dbtx.commit();
+		chainDatabase.close();
+		environment.truncateDatabase(null, "chain_index", false);
+		chainDatabase = openDatabase(environment);
+
+		// Every indexed block by number, in block_index order
+		int size = (int) indexedBlocks;
+		Map<Sha256Hash, Integer> numbers = new HashMap<>(size * 2);
+		List<Sha256Hash> hashes = new ArrayList<>(size);
+		List<byte[]> locations = new ArrayList<>(size);
+
+		try (Cursor cursor = blockIndexDatabase.openCursor(null, CursorConfig.READ_COMMITTED)) {
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			while (cursor.getNext(key, value, LockMode.READ_COMMITTED) == OperationStatus.SUCCESS) {
+				Sha256Hash hash = Sha256Hash.wrap(key.getData());
+				numbers.put(hash, hashes.size());
+				hashes.add(hash);
+				locations.add(value.getData());
+			}
+		}
+		size = hashes.size();
+
+		// Proof of work of every block, headers read in file order
+		Integer[] fileOrder = new Integer[size];
+		for (int b = 0; b < size; b++)
+			fileOrder[b] = b;
+		Arrays.sort(fileOrder, (a, b) -> compareLocations(locations.get(a), locations.get(b)));
+		BigInteger[] works = new BigInteger[size];
+		int[] ranks = new int[size];
+		for (int r = 0; r < size; r++) {
+			int b = fileOrder[r];
+			long bits = blockFiles.slice(locations.get(b)).getInt(BITS_OFFSET) & 0xFFFFFFFFL;
+			works[b] = LARGEST_HASH.divide(Utils.decodeCompactBits(bits).add(BigInteger.ONE));
+			ranks[b] = r;
+		}
+
+		Integer genesis = numbers.get(genesisBlockHash);
+		if (genesis == null)
+			throw new IOException("Genesis block " + genesisBlockHash + " is not in the block files");
+
+		int[] parents = new int[size];
+		for (int b = 0; b < size; b++) {
+			Integer parent = numbers.get(Sha256Hash.wrap(Arrays.copyOfRange(locations.get(b), 12, BlockFiles.LOCATION_LENGTH)));
+			parents[b] = parent == null ? -1 : parent;
+		}
+		numbers = null;
+
+		int[] chain = bestChain(parents, works, ranks, genesis);
+
+		dbtx = environment.beginTransaction(null, null);
+		try {
+			for (int height = 0; height < chain.length; height++) {
+				int b = chain[height];
+				chainDatabase.put(dbtx, key(height), new DatabaseEntry(entry(hashes.get(b), locations.get(b))));
+				if ((height + 1) % COMMIT_BLOCKS == 0) {
+					dbtx.commit();
+					dbtx = null;
+					dbtx = environment.beginTransaction(null, null);
+				}
+			}
+			blocksProgressDatabase.put(dbtx, new DatabaseEntry(INDEXED_BLOCKS_KEY), new DatabaseEntry(Longs.toByteArray(indexedBlocks)));
+			dbtx.commit();
+		} catch (Throwable t) {
+			// The chain index is rebuilt from scratch as long as INDEXED_BLOCKS_KEY isn't committed
+			if (dbtx != null)
+				dbtx.abort();
+			throw t;
+		}
+
+		System.out.println("Best chain: " + chain.length + " blocks up to " + hashes.get(chain[chain.length - 1]) + ", skipping " + (size - chain.length) + " blocks not on it");
+	}
+
+	// Block numbers of the best chain from the genesis block up: the chain ending in the block with
+	// the most work, of the blocks descending from genesis. Ties go to the lowest rank. parents holds
+	// -1 for blocks whose parent is unknown.
+	static int[] bestChain(int[] parents, BigInteger[] works, int[] ranks, int genesis) {
+		int size = parents.length;
+		BigInteger[] chainWorks = new BigInteger[size];
+		int[] heights = new int[size];
+		boolean[] disconnected = new boolean[size];
+		int[] path = new int[size];
+
+		chainWorks[genesis] = works[genesis];
+		heights[genesis] = 0;
+		int best = genesis;
+
+		for (int b = 0; b < size; b++) {
+			// Up to the first ancestor already seen, then back down adding up the work
+			int depth = 0;
+			int ancestor = b;
+			while (ancestor >= 0 && chainWorks[ancestor] == null && !disconnected[ancestor]) {
+				path[depth++] = ancestor;
+				ancestor = parents[ancestor];
+			}
+
+			if (ancestor < 0 || disconnected[ancestor]) {
+				for (int p = 0; p < depth; p++)
+					disconnected[path[p]] = true;
+				continue;
+			}
+
+			BigInteger chainWork = chainWorks[ancestor];
+			int height = heights[ancestor];
+			for (int p = depth - 1; p >= 0; p--) {
+				int block = path[p];
+				chainWork = chainWork.add(works[block]);
+				chainWorks[block] = chainWork;
+				heights[block] = ++height;
+
+				int compare = chainWork.compareTo(chainWorks[best]);
+				if (compare > 0 || (compare == 0 && ranks[block] < ranks[best]))
+					best = block;
+			}
+		}
+
+		int[] chain = new int[heights[best] + 1];
+		for (int b = best; b != genesis; b = parents[b])
+			chain[heights[b]] = b;
+		chain[0] = genesis;
+		return chain;
+	}
+
+	// Blocks first stored in an earlier file, or earlier in the same file, were received first
+	private static int compareLocations(byte[] a, byte[] b) {
+		ByteBuffer x = ByteBuffer.wrap(a), y = ByteBuffer.wrap(b);
+		int files = Integer.compare(x.getInt(0), y.getInt(0));
+		return files != 0 ? files : Integer.compare(x.getInt(4), y.getInt(4));
+	}
+
+	private static byte[] entry(Sha256Hash hash, byte[] location) {
+		return ByteBuffer.allocate(ENTRY_LENGTH).put(hash.getBytes()).put(location).array();
+	}
+
+	// Blocks in the chain
+	long size() {
+		return chainDatabase.count();
+	}
+
+	// Hash of the block at a height, null above the tip
+	Sha256Hash hash(int height) {
+		DatabaseEntry value = new DatabaseEntry();
+		if (OperationStatus.SUCCESS != chainDatabase.get(null, key(height), value, LockMode.DEFAULT))
+			return null;
+		return hash(value.getData());
+	}
+
+	// The chain from a height on, in order. Blocks are not written while parsing, so reads
+	// need no transaction
+	Cursor openCursor() {
+		return chainDatabase.openCursor(null, CursorConfig.READ_COMMITTED);
+	}
+
+	static DatabaseEntry key(int height) {
+		return new DatabaseEntry(Ints.toByteArray(height));
+	}
+
+	static Sha256Hash hash(byte[] entry) {
+		return Sha256Hash.wrap(Arrays.copyOf(entry, 32));
+	}
+
+	static byte[] location(byte[] entry) {
+		return Arrays.copyOfRange(entry, 32, ENTRY_LENGTH);
+	}
+
+	void close() {
+		chainDatabase.close();
+	}
+}
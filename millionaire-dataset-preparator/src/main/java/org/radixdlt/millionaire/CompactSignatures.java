@@ -0,0 +1,64 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.core.crypto.ECSignature;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+
+// Compact signatures as filled in by KeyHandler.signAll: r and s as 32 byte unsigned big endian
+// integers, back to back
+final class CompactSignatures {
+	static final int LENGTH = 64;
+	static final int COMPONENT_LENGTH = 32;
+
+	private CompactSignatures() {
+	}
+
+	static void put(ECSignature signature, byte[] signatures, int index) {
+		put(signature.getR(), signature.getS(), signatures, index);
+	}
+
+	static void put(BigInteger r, BigInteger s, byte[] signatures, int index) {
+		putComponent(r, signatures, index * LENGTH);
+		putComponent(s, signatures, index * LENGTH + COMPONENT_LENGTH);
+	}
+
+	private static void putComponent(BigInteger value, byte[] dst, int offset) {
+		byte[] bytes = value.toByteArray();
+		// Drop the sign byte, left pad the rest
+		int skip = bytes.length > COMPONENT_LENGTH ? bytes.length - COMPONENT_LENGTH : 0;
+		int pad = COMPONENT_LENGTH - (bytes.length - skip);
+		for (int i = 0; i < pad; i++)
+			dst[offset + i] = 0;
+		System.arraycopy(bytes, skip, dst, offset + pad, bytes.length - skip);
+	}
+
+	static ECSignature get(byte[] signatures, int index) {
+		int offset = index * LENGTH;
+		return new ECSignature(component(signatures, offset), component(signatures, offset + COMPONENT_LENGTH));
+	}
+
+	private static BigInteger component(byte[] signatures, int offset) {
+		byte[] bytes = new byte[COMPONENT_LENGTH];
+		System.arraycopy(signatures, offset, bytes, 0, COMPONENT_LENGTH);
+		return new BigInteger(1, bytes);
+	}
+
+	// Writes a component as [int length][BigInteger.toByteArray()] without the BigInteger: minimal
+	// two's complement, so leading zeros are dropped and a 0 byte is kept when the top bit is set
+	static void writeComponent(byte[] signatures, int offset, DataOutputStream out) throws IOException {
+		int first = offset;
+		int end = offset + COMPONENT_LENGTH;
+		while (first < end - 1 && signatures[first] == 0 && signatures[first + 1] >= 0)
+			first++;
+
+		if (signatures[first] < 0) {
+			out.writeInt(end - first + 1);
+			out.writeByte(0);
+		} else {
+			out.writeInt(end - first);
+		}
+		out.write(signatures, first, end - first);
+	}
+}
@@ -0,0 +1,196 @@
+package org.radixdlt.millionaire;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Packs atom records into independently compressed frames, see AtomFrames. Only complete frames
+// reach the file, a partly filled frame is written when it fills up, on checkpoint or on close.
+class CompressedAtomOutput implements AtomOutput {
+	private static final byte CHECKPOINT_FORMAT = 3;
+
+	private final AtomFrameCodec codec;
+	private final int frameSize;
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+
+	private byte[] frame;
+	private int frameLength = 0;
+	private int frameRecords = 0;
+	private long frameFirstBlock = 0;
+	private byte[] compressed = new byte[0];
+	private long position;
+	private long syncedPosition = -1;
+	private long unflushed = 0;
+
+	// Stats for the progress output
+	long uncompressedBytes = 0, compressedBytes = 0;
+
+	CompressedAtomOutput(File file, AtomFrameCodec codec, int frameSize, int bufferSize) throws IOException {
+		this(file, codec, frameSize, bufferSize, null);
+	}
+
+	// A checkpoint's position is the file length, always at a frame boundary
+	CompressedAtomOutput(File file, AtomFrameCodec codec, int frameSize, int bufferSize, byte[] checkpoint) throws IOException {
+		this.codec = codec;
+		this.frameSize = frameSize;
+		this.frame = new byte[frameSize];
+
+		ByteBuffer committed = AtomOutput.position(checkpoint, CHECKPOINT_FORMAT, file);
+		if (committed != null)
+			AtomOutput.truncate(file, committed.getLong());
+
+		boolean append = file.exists() && file.length() > 0 && recover(file);
+		this.file = new FileOutputStream(file, append);
+		this.out = new DataOutputStream(new BufferedOutputStream(this.file, bufferSize));
+		if (!append) {
+			out.writeInt(AtomFrames.MAGIC);
+			out.writeShort(AtomFrames.VERSION);
+			out.writeByte(codec.id());
+			out.writeByte(0);
+			out.writeInt(frameSize);
+		}
+		this.position = append ? file.length() : AtomFrames.HEADER_LENGTH;
+	}
+
+	// Checks the frames of an existing file and drops a torn last frame. Returns false if the
+	// file holds nothing worth keeping.
+	private boolean recover(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < AtomFrames.HEADER_LENGTH) {
+				raf.setLength(0);
+				return false;
+			}
+
+			raf.seek(0);
+			if (raf.readInt() != AtomFrames.MAGIC || raf.readShort() != AtomFrames.VERSION)
+				throw new IOException(file + " is not a compressed atoms file");
+			if (raf.readByte() != codec.id())
+				throw new IOException(file + " was written with a different compression, use --reset-atoms");
+
+			long offset = AtomFrames.HEADER_LENGTH, last = -1;
+			while (raf.length() - offset >= AtomFrames.FRAME_HEADER_LENGTH) {
+				raf.seek(offset);
+				int compressedLength = raf.readInt();
+				if (compressedLength < 0 || compressedLength > raf.length() - offset - AtomFrames.FRAME_HEADER_LENGTH)
+					break;
+				last = offset;
+				offset += AtomFrames.FRAME_HEADER_LENGTH + compressedLength;
+			}
+
+			// Only the last frame can have been torn by a crash
+			if (last >= 0 && !verify(raf, last))
+				offset = last;
+
+			if (offset != raf.length()) {
+				System.out.println("Truncating " + (raf.length() - offset) + " bytes of unfinished frames from " + file.getName());
+				raf.setLength(offset);
+			}
+			return true;
+		}
+	}
+
+	private boolean verify(RandomAccessFile raf, long offset) throws IOException {
+		raf.seek(offset);
+		int compressedLength = raf.readInt();
+		int length = raf.readInt();
+		raf.readInt();
+		raf.readLong();
+		int crc = raf.readInt();
+		if (length < 0 || length > (1 << 30))
+			return false;
+
+		byte[] src = new byte[compressedLength];
+		raf.readFully(src);
+		byte[] dst = new byte[length];
+		try {
+			codec.decompress(src, 0, compressedLength, dst, length);
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+
+		CRC32 check = new CRC32();
+		check.update(dst);
+		return (int) check.getValue() == crc;
+	}
+
+	@Override
+	public void write(byte[] record, Set<Long> shards, long block) throws IOException {
+		if (frameRecords > 0 && frameLength + record.length > frameSize)
+			writeFrame();
+
+		if (frameRecords == 0)
+			frameFirstBlock = block;
+		// A single record larger than a frame gets a frame of its own
+		if (frameLength + record.length > frame.length)
+			frame = Arrays.copyOf(frame, frameLength + record.length);
+
+		System.arraycopy(record, 0, frame, frameLength, record.length);
+		frameLength += record.length;
+		frameRecords++;
+	}
+
+	private void writeFrame() throws IOException {
+		if (compressed.length < codec.maxCompressedLength(frameLength))
+			compressed = new byte[codec.maxCompressedLength(frameLength)];
+
+		int compressedLength = codec.compress(frame, frameLength, compressed);
+		CRC32 crc = new CRC32();
+		crc.update(frame, 0, frameLength);
+
+		out.writeInt(compressedLength);
+		out.writeInt(frameLength);
+		out.writeInt(frameRecords);
+		out.writeLong(frameFirstBlock);
+		out.writeInt((int) crc.getValue());
+		out.write(compressed, 0, compressedLength);
+
+		uncompressedBytes += frameLength;
+		compressedBytes += compressedLength;
+		position += AtomFrames.FRAME_HEADER_LENGTH + compressedLength;
+		unflushed += AtomFrames.FRAME_HEADER_LENGTH + compressedLength;
+
+		if (frame.length > frameSize)
+			frame = new byte[frameSize];
+		frameLength = 0;
+		frameRecords = 0;
+	}
+
+	@Override
+	public long unflushed() {
+		return unflushed;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		unflushed = 0;
+	}
+
+	// Writes the partly filled frame, frequent checkpoints mean smaller frames
+	@Override
+	public byte[] checkpoint() throws IOException {
+		if (frameRecords > 0)
+			writeFrame();
+		flush();
+		if (position != syncedPosition) {
+			file.getChannel().force(false);
+			syncedPosition = position;
+		}
+		return AtomOutput.checkpoint(CHECKPOINT_FORMAT, 8).putLong(position).array();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (frameRecords > 0)
+			writeFrame();
+		out.close();
+	}
+}
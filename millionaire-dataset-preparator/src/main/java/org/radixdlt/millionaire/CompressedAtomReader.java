@@ -0,0 +1,149 @@
+package org.radixdlt.millionaire;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Reads compressed atoms files, see AtomFrames. Frame offsets are collected once on open by
+// hopping over the frame headers, any frame can then be decoded on its own, so split() ranges
+// can be read in parallel with one reader per thread sharing the frame list.
+public class CompressedAtomReader implements Closeable {
+	public interface RecordVisitor {
+		void visit(ByteBuffer record) throws IOException;
+	}
+
+	private final FileChannel channel;
+	private final AtomFrameCodec codec;
+	private final long[] frames;
+	private final long[] firstBlocks;
+	private final long end;
+
+	private ByteBuffer header = ByteBuffer.allocate(AtomFrames.FRAME_HEADER_LENGTH);
+	private byte[] compressed = new byte[0];
+	private byte[] records = new byte[0];
+
+	private CompressedAtomReader(FileChannel channel, AtomFrameCodec codec, long[] frames, long[] firstBlocks, long end) {
+		this.channel = channel;
+		this.codec = codec;
+		this.frames = frames;
+		this.firstBlocks = firstBlocks;
+		this.end = end;
+	}
+
+	public static CompressedAtomReader open(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(AtomFrames.FRAME_HEADER_LENGTH);
+
+		header.limit(AtomFrames.HEADER_LENGTH);
+		channel.read(header, 0);
+		if (header.position() < AtomFrames.HEADER_LENGTH || header.getInt(0) != AtomFrames.MAGIC || header.getShort(4) != AtomFrames.VERSION)
+			throw new IOException(file + " is not a compressed atoms file");
+		AtomFrameCodec codec = AtomFrameCodec.forId(header.get(6));
+
+		List<long[]> frames = new ArrayList<>();
+		long offset = AtomFrames.HEADER_LENGTH;
+		while (channel.size() - offset >= AtomFrames.FRAME_HEADER_LENGTH) {
+			header.clear();
+			channel.read(header, offset);
+			int compressedLength = header.getInt(0);
+			if (compressedLength < 0 || compressedLength > channel.size() - offset - AtomFrames.FRAME_HEADER_LENGTH)
+				break;
+			frames.add(new long[] { offset, header.getLong(12) });
+			offset += AtomFrames.FRAME_HEADER_LENGTH + compressedLength;
+		}
+
+		long[] offsets = new long[frames.size()], firstBlocks = new long[frames.size()];
+		for (int i = 0; i < frames.size(); i++) {
+			offsets[i] = frames.get(i)[0];
+			firstBlocks[i] = frames.get(i)[1];
+		}
+		return new CompressedAtomReader(channel, codec, offsets, firstBlocks, offset);
+	}
+
+	// Another reader over the same file and frames, for a parallel reader thread
+	public CompressedAtomReader duplicate() throws IOException {
+		return new CompressedAtomReader(channel, AtomFrameCodec.forId(codec.id()), frames, firstBlocks, end);
+	}
+
+	public int frameCount() {
+		return frames.length;
+	}
+
+	public long frameOffset(int frame) {
+		return frames[frame];
+	}
+
+	public long firstBlock(int frame) {
+		return firstBlocks[frame];
+	}
+
+	// Frame index ranges [from, to) of similar compressed size
+	public List<int[]> split(int parts) {
+		List<int[]> ranges = new ArrayList<>();
+		int from = 0;
+		for (int part = 1; part <= parts && from < frames.length; part++) {
+			long target = AtomFrames.HEADER_LENGTH + (end - AtomFrames.HEADER_LENGTH) * part / parts;
+			int to = from + 1;
+			while (to < frames.length && frames[to] < target)
+				to++;
+			if (part == parts)
+				to = frames.length;
+			ranges.add(new int[] { from, to });
+			from = to;
+		}
+		return ranges;
+	}
+
+	// Decodes one frame and visits its records
+	public void read(int frame, RecordVisitor visitor) throws IOException {
+		header.clear();
+		channel.read(header, frames[frame]);
+		int compressedLength = header.getInt(0);
+		int length = header.getInt(4);
+		int count = header.getInt(8);
+		int crc = header.getInt(20);
+
+		if (compressed.length < compressedLength)
+			compressed = new byte[compressedLength];
+		if (records.length < length)
+			records = new byte[length];
+
+		ByteBuffer src = ByteBuffer.wrap(compressed, 0, compressedLength);
+		while (src.hasRemaining()) {
+			if (channel.read(src, frames[frame] + AtomFrames.FRAME_HEADER_LENGTH + src.position()) < 0)
+				throw new IOException("Unexpected end of compressed atoms file");
+		}
+		codec.decompress(compressed, 0, compressedLength, records, length);
+
+		CRC32 check = new CRC32();
+		check.update(records, 0, length);
+		if ((int) check.getValue() != crc)
+			throw new IOException("Corrupt atoms frame at " + frames[frame]);
+
+		ByteBuffer buffer = ByteBuffer.wrap(records, 0, length);
+		int offset = 0;
+		for (int r = 0; r < count; r++) {
+			int recordLength = AtomFrames.recordLength(buffer, offset);
+			ByteBuffer record = buffer.duplicate();
+			record.limit(offset + recordLength);
+			record.position(offset);
+			visitor.visit(record.slice());
+			offset += recordLength;
+		}
+	}
+
+	public void read(int from, int to, RecordVisitor visitor) throws IOException {
+		for (int frame = from; frame < to; frame++)
+			read(frame, visitor);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
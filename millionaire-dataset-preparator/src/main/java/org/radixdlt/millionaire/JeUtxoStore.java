@@ -0,0 +1,49 @@
+package org.radixdlt.millionaire;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+// The original processed_outputs database, keys stay in the legacy textual form so existing
+// environments keep working
+class JeUtxoStore implements UtxoStore {
+	private final Database processedOutputsDatabase;
+
+	JeUtxoStore(Database processedOutputsDatabase) {
+		this.processedOutputsDatabase = processedOutputsDatabase;
+	}
+
+	@Override
+	public byte[] take(Transaction dbtx, byte[] outpoint) {
+		DatabaseEntry btcOutputIdKey = new DatabaseEntry(Outpoint.legacyId(outpoint).getBytes());
+		DatabaseEntry processedOutputData = new DatabaseEntry();
+
+		if (OperationStatus.SUCCESS != this.processedOutputsDatabase.get(dbtx, btcOutputIdKey, processedOutputData, LockMode.DEFAULT))
+			return null;
+
+		this.processedOutputsDatabase.delete(dbtx, btcOutputIdKey);
+		return processedOutputData.getData();
+	}
+
+	@Override
+	public void put(Transaction dbtx, byte[] outpoint, byte[] value) {
+		this.processedOutputsDatabase.put(dbtx, new DatabaseEntry(Outpoint.legacyId(outpoint).getBytes()), new DatabaseEntry(value));
+	}
+
+	@Override
+	public void commit(Transaction dbtx) {
+		// Already part of the transaction
+	}
+
+	@Override
+	public long size() {
+		return this.processedOutputsDatabase.count();
+	}
+
+	@Override
+	public void close() {
+		this.processedOutputsDatabase.close();
+	}
+}
@@ -0,0 +1,266 @@
+package org.radixdlt.millionaire;
+
+import java.util.Arrays;
+
+// Bounded cache of values derived from address hashes, shared by all blocks so that hot
+// addresses derive their keys once. Striped into segments, each a segmented LRU (a probation list
+// for new entries, a protected list for entries hit again) over an open addressing table keyed by
+// the first 8 bytes of the hash. Full hashes are compared on lookup. Thread safe.
+class KeyCache<V> {
+	// Rough heap cost of an entry: the hash, an ECKeyPair with its public key, a RadixAddress and
+	// the cache's own arrays
+	static final int ENTRY_BYTES = 640;
+
+	private static final int SEGMENTS = 64;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private final Segment<V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	KeyCache(long maxBytes) {
+		int capacity = (int) Math.max(16, Math.min(Integer.MAX_VALUE / 4, maxBytes / ENTRY_BYTES / SEGMENTS));
+		this.segments = new Segment[SEGMENTS];
+		for (int s = 0; s < SEGMENTS; s++)
+			segments[s] = new Segment<>(capacity);
+	}
+
+	private static long key(byte[] hash) {
+		long key = 0;
+		for (int i = 0; i < Math.min(8, hash.length); i++)
+			key = (key << 8) | (hash[i] & 0xFF);
+		return key ^ hash.length;
+	}
+
+	private static int mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private Segment<V> segment(long key) {
+		return segments[(mix(key) >>> 26) & (SEGMENTS - 1)];
+	}
+
+	V get(byte[] hash) {
+		long key = key(hash);
+		Segment<V> segment = segment(key);
+		synchronized (segment) {
+			return segment.get(key, hash);
+		}
+	}
+
+	void put(byte[] hash, V value) {
+		long key = key(hash);
+		Segment<V> segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, hash, value);
+		}
+	}
+
+	long hits() {
+		long hits = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				hits += segment.hits;
+			}
+		}
+		return hits;
+	}
+
+	long misses() {
+		long misses = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				misses += segment.misses;
+			}
+		}
+		return misses;
+	}
+
+	long evictions() {
+		long evictions = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	long size() {
+		long size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	long bytes() {
+		return size() * ENTRY_BYTES;
+	}
+
+	private static final class Segment<V> {
+		private static final int NONE = -1;
+
+		private final int capacity;
+		private final int protectedCapacity;
+
+		// Table slots hold entry + 1, 0 is empty
+		private final long[] slotKeys;
+		private final int[] slotEntries;
+		private final int mask;
+
+		private final byte[][] hashes;
+		private final Object[] values;
+		private final long[] keys;
+		private final int[] prev, next;
+		private final boolean[] isProtected;
+
+		// Heads are the most recently used
+		private int probationHead = NONE, probationTail = NONE;
+		private int protectedHead = NONE, protectedTail = NONE;
+		private int size = 0, protectedSize = 0;
+
+		long hits = 0, misses = 0, evictions = 0;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = (int) (capacity * PROTECTED_SHARE);
+
+			int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			this.slotKeys = new long[slots];
+			this.slotEntries = new int[slots];
+			this.mask = slots - 1;
+
+			this.hashes = new byte[capacity][];
+			this.values = new Object[capacity];
+			this.keys = new long[capacity];
+			this.prev = new int[capacity];
+			this.next = new int[capacity];
+			this.isProtected = new boolean[capacity];
+		}
+
+		private int find(long key, byte[] hash) {
+			for (int slot = mix(key) & mask; slotEntries[slot] != 0; slot = (slot + 1) & mask) {
+				int entry = slotEntries[slot] - 1;
+				if (slotKeys[slot] == key && Arrays.equals(hashes[entry], hash))
+					return entry;
+			}
+			return NONE;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(long key, byte[] hash) {
+			int entry = find(key, hash);
+			if (entry == NONE) {
+				misses++;
+				return null;
+			}
+
+			hits++;
+			unlink(entry);
+			if (!isProtected[entry]) {
+				isProtected[entry] = true;
+				protectedSize++;
+			}
+			pushProtected(entry);
+
+			// Demote the least recently used protected entry back to probation
+			if (protectedSize > protectedCapacity) {
+				int demoted = protectedTail;
+				unlink(demoted);
+				isProtected[demoted] = false;
+				protectedSize--;
+				pushProbation(demoted);
+			}
+			return (V) values[entry];
+		}
+
+		void put(long key, byte[] hash, V value) {
+			if (find(key, hash) != NONE)
+				return;
+
+			int entry;
+			if (size < capacity) {
+				entry = size++;
+			} else {
+				entry = probationTail != NONE ? probationTail : protectedTail;
+				unlink(entry);
+				removeSlot(entry);
+				if (isProtected[entry])
+					protectedSize--;
+				evictions++;
+			}
+
+			hashes[entry] = hash;
+			values[entry] = value;
+			keys[entry] = key;
+			isProtected[entry] = false;
+			pushProbation(entry);
+
+			int slot = mix(key) & mask;
+			while (slotEntries[slot] != 0)
+				slot = (slot + 1) & mask;
+			slotKeys[slot] = key;
+			slotEntries[slot] = entry + 1;
+		}
+
+		// Removes the entry's slot, shifting back the slots after it that would otherwise become unreachable
+		private void removeSlot(int entry) {
+			int slot = mix(keys[entry]) & mask;
+			while (slotEntries[slot] != entry + 1)
+				slot = (slot + 1) & mask;
+
+			int hole = slot;
+			for (int i = (hole + 1) & mask; slotEntries[i] != 0; i = (i + 1) & mask) {
+				int home = mix(slotKeys[i]) & mask;
+				// Stays unless its home is cyclically outside (hole, i]
+				boolean reachable = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+				if (!reachable) {
+					slotKeys[hole] = slotKeys[i];
+					slotEntries[hole] = slotEntries[i];
+					hole = i;
+				}
+			}
+			slotEntries[hole] = 0;
+		}
+
+		private void unlink(int entry) {
+			int p = prev[entry], n = next[entry];
+			if (p != NONE)
+				next[p] = n;
+			else if (isProtected[entry])
+				protectedHead = n;
+			else
+				probationHead = n;
+
+			if (n != NONE)
+				prev[n] = p;
+			else if (isProtected[entry])
+				protectedTail = p;
+			else
+				probationTail = p;
+		}
+
+		private void pushProbation(int entry) {
+			prev[entry] = NONE;
+			next[entry] = probationHead;
+			if (probationHead != NONE)
+				prev[probationHead] = entry;
+			probationHead = entry;
+			if (probationTail == NONE)
+				probationTail = entry;
+		}
+
+		private void pushProtected(int entry) {
+			prev[entry] = NONE;
+			next[entry] = protectedHead;
+			if (protectedHead != NONE)
+				prev[protectedHead] = entry;
+			protectedHead = entry;
+			if (protectedTail == NONE)
+				protectedTail = entry;
+		}
+	}
+}
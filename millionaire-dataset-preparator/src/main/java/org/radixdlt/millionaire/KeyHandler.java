@@ -5,6 +5,14 @@ import com.radixdlt.client.core.crypto.ECSignature;
 // All methods must be thread safe
 interface KeyHandler {
 	ECSignature sign(byte[] hash, byte[] privateKey) throws CryptoException;
+
+	// Signs hashes[i] with privateKeys[i] for i < count, writing compact signatures to
+	// signatures[i * CompactSignatures.LENGTH], see CompactSignatures
+	default void signAll(byte[][] hashes, byte[][] privateKeys, int count, byte[] signatures) throws CryptoException {
+		for (int i = 0; i < count; i++)
+			CompactSignatures.put(sign(hashes[i], privateKeys[i]), signatures, i);
+	}
+
 	boolean verify(byte[] hash, ECSignature signature, byte[] publicKey) throws CryptoException;
 	byte[] computePublicKey(byte[] privateKey) throws CryptoException;
 }
@@ -0,0 +1,130 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Public key and signing throughput of the key handlers, libsecp256k1 when it loads and the
+// BouncyCastle fallback, on the same keys and threads. Also checks that each handler's keys and
+// signatures agree with the others'.
+//
+// gradle keyHandlerBenchmark [-Pthreads=N] [-Pseconds=S]
+public class KeyHandlerBenchmark {
+	private static final int KEYS = 4096;
+	private static final int BATCH = 4;
+
+	private interface Operation {
+		void run(KeyHandler handler, int index) throws CryptoException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+
+		Map<String, KeyHandler> handlers = new LinkedHashMap<>();
+		if (Secp256k1Context.isEnabled())
+			handlers.put("libsecp256k1", new Libsecp256k1KeyHandler(new Random()));
+		else
+			System.out.println("libsecp256k1 is not available, only measuring BouncyCastle");
+		handlers.put("bouncycastle", new BouncyCastleKeyHandler());
+
+		// Private keys derived the way addressToKeyPair does, from hashes
+		Random random = new Random(42);
+		byte[][] privateKeys = new byte[KEYS][];
+		byte[][] hashes = new byte[KEYS][];
+		for (int i = 0; i < KEYS; i++) {
+			byte[] seed = new byte[20];
+			random.nextBytes(seed);
+			privateKeys[i] = Sha256Hash.hash(seed);
+			hashes[i] = Sha256Hash.hash(privateKeys[i]);
+		}
+
+		crossCheck(handlers, privateKeys, hashes);
+
+		System.out.println(String.format(Locale.US, "%d threads, %.0fs per measurement", threads, seconds));
+		System.out.println(String.format(Locale.US, "%-14s %14s %14s %14s", "handler", "pubkeys/s", "sign/s", "signAll/s"));
+		for (Map.Entry<String, KeyHandler> handler : handlers.entrySet()) {
+			double pubkeys = measure(handler.getValue(), threads, seconds, (h, i) -> h.computePublicKey(privateKeys[i % KEYS]));
+			double signs = measure(handler.getValue(), threads, seconds, (h, i) -> h.sign(hashes[i % KEYS], privateKeys[i % KEYS]));
+
+			// hashes, private keys and signatures of a batch, per thread
+			ThreadLocal<Object[]> batch = ThreadLocal.withInitial(() -> new Object[] { new byte[BATCH][], new byte[BATCH][], new byte[BATCH * CompactSignatures.LENGTH] });
+			double batches = measure(handler.getValue(), threads, seconds, (h, i) -> {
+				Object[] scratch = batch.get();
+				int from = (i * BATCH) % (KEYS - BATCH);
+				System.arraycopy(hashes, from, scratch[0], 0, BATCH);
+				System.arraycopy(privateKeys, from, scratch[1], 0, BATCH);
+				h.signAll((byte[][]) scratch[0], (byte[][]) scratch[1], BATCH, (byte[]) scratch[2]);
+			});
+			System.out.println(String.format(Locale.US, "%-14s %14.0f %14.0f %14.0f", handler.getKey(), pubkeys, signs, batches * BATCH));
+		}
+	}
+
+	// Operations per second over all threads, after a warm up of a fifth of the time
+	private static double measure(KeyHandler handler, int threads, double seconds, Operation operation) throws InterruptedException {
+		AtomicLong operations = new AtomicLong();
+		long warmUpNanos = (long) (seconds * 2e8);
+		long endNanos = (long) (seconds * 1e9);
+		long start = System.nanoTime();
+
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int offset = t * 997;
+			Thread worker = new Thread(() -> {
+				try {
+					long count = 0;
+					int index = offset;
+					while (System.nanoTime() - start < warmUpNanos)
+						operation.run(handler, index++);
+					while (System.nanoTime() - start < warmUpNanos + endNanos) {
+						operation.run(handler, index++);
+						count++;
+					}
+					operations.addAndGet(count);
+				} catch (CryptoException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		return operations.get() / seconds;
+	}
+
+	private static void crossCheck(Map<String, KeyHandler> handlers, byte[][] privateKeys, byte[][] hashes) throws CryptoException {
+		for (int i = 0; i < 64; i++) {
+			byte[] expectedPublicKey = null;
+			for (KeyHandler handler : handlers.values()) {
+				byte[] publicKey = handler.computePublicKey(privateKeys[i]);
+				if (expectedPublicKey != null && !Arrays.equals(expectedPublicKey, publicKey))
+					throw new IllegalStateException("Key handlers derive different public keys");
+				expectedPublicKey = publicKey;
+			}
+
+			for (Map.Entry<String, KeyHandler> signer : handlers.entrySet()) {
+				byte[] compact = new byte[CompactSignatures.LENGTH];
+				signer.getValue().signAll(new byte[][] { hashes[i] }, new byte[][] { privateKeys[i] }, 1, compact);
+				ECSignature[] signatures = { signer.getValue().sign(hashes[i], privateKeys[i]), CompactSignatures.get(compact, 0) };
+
+				for (Map.Entry<String, KeyHandler> verifier : handlers.entrySet()) {
+					for (ECSignature signature : signatures) {
+						if (!verifier.getValue().verify(hashes[i], signature, expectedPublicKey))
+							throw new IllegalStateException(verifier.getKey() + " rejects a signature by " + signer.getKey());
+					}
+				}
+			}
+		}
+	}
+}
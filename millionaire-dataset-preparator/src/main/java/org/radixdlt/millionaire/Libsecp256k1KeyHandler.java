@@ -16,6 +16,9 @@ class Libsecp256k1KeyHandler implements KeyHandler {
 	private static final byte PUBKEY_COMPRESSED_Y_EVEN = 0x02;
 	private static final byte PUBKEY_COMPRESSED_Y_ODD  = 0x03;
 
+	// Padded private keys for signAll. The library keeps its own context and per thread JNI buffer.
+	private static final ThreadLocal<byte[]> paddedKeys = ThreadLocal.withInitial(() -> new byte[32]);
+
 	Libsecp256k1KeyHandler(Random secureRandom) throws AssertFailException {
 		byte[] seed = new byte[32];
 		secureRandom.nextBytes(seed);
@@ -32,6 +35,24 @@ class Libsecp256k1KeyHandler implements KeyHandler {
 		}
 	}
 
+	@Override
+	public void signAll(byte[][] hashes, byte[][] privateKeys, int count, byte[] signatures) throws CryptoException {
+		byte[] padded = paddedKeys.get();
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] privateKey = privateKeys[i];
+				if (privateKey.length < 32) {
+					Arrays.fill(padded, 0, 32 - privateKey.length, (byte) 0);
+					System.arraycopy(privateKey, 0, padded, 32 - privateKey.length, privateKey.length);
+					privateKey = padded;
+				}
+				derToCompact(NativeSecp256k1.sign(hashes[i], privateKey), signatures, i * CompactSignatures.LENGTH);
+			}
+		} catch (AssertFailException e) {
+			throw new CryptoException(e);
+		}
+	}
+
 	@Override
 	public boolean verify(byte[] hash, ECSignature signature, byte[] publicKey) throws CryptoException {
 		try {
@@ -69,6 +90,31 @@ class Libsecp256k1KeyHandler implements KeyHandler {
 		return new ECSignature(r, s);
 	}
 
+	// Copies r and s out of a DER signature as 32 byte big endian integers
+	private static void derToCompact(byte[] dersig, byte[] signatures, int offset) {
+		checkEquals(0x30, dersig[0] & 0xFF);
+		checkEquals(dersig.length - 2, dersig[1] & 0xFF);
+		checkEquals(0x02, dersig[2] & 0xFF);
+
+		int rlen = dersig[3] & 0xFF;
+		derIntegerToCompact(dersig, 4, rlen, signatures, offset);
+
+		checkEquals(0x02, dersig[rlen + 4]);
+		int slen = dersig[rlen + 5] & 0xFF;
+		derIntegerToCompact(dersig, rlen + 6, slen, signatures, offset + CompactSignatures.COMPONENT_LENGTH);
+	}
+
+	private static void derIntegerToCompact(byte[] dersig, int from, int length, byte[] dst, int offset) {
+		// DER integers carry a sign byte when the top bit is set and drop leading zeros
+		while (length > CompactSignatures.COMPONENT_LENGTH) {
+			from++;
+			length--;
+		}
+		int pad = CompactSignatures.COMPONENT_LENGTH - length;
+		Arrays.fill(dst, offset, offset + pad, (byte) 0);
+		System.arraycopy(dersig, from, dst, offset + pad, length);
+	}
+
 	private static byte[] ecSignatureToDer(ECSignature ecsig) {
 		final byte[] r = ecsig.getR().toByteArray();
 		final int rlen = r.length;
@@ -0,0 +1,111 @@
+package org.radixdlt.millionaire;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of non-negative values in log-linear buckets, as an HdrHistogram with 2 significant
+// digits: values below 128 are counted exactly, larger ones in 64 buckets per power of two, so a
+// quantile is off by less than 1/64 of its value. The size is fixed whatever is recorded, and
+// histograms merge by adding up counts. record() is thread safe.
+//
+// Serialized as [long count][long sum][int buckets]([short bucket][long count])* with only the
+// buckets counted so far.
+final class LogHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int EXACT = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = EXACT + (Long.SIZE - 2 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	// Negative values are counted as 0
+	void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+	}
+
+	void merge(LogHistogram other) {
+		for (int b = 0; b < BUCKETS; b++) {
+			long c = other.counts.get(b);
+			if (c != 0)
+				counts.addAndGet(b, c);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	double mean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / (double) n;
+	}
+
+	// Value at a quantile between 0 and 1, the middle of its bucket, 0 when nothing was recorded
+	long quantile(double quantile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts.get(b);
+			if (seen >= rank)
+				return lowest(b) + (width(b) - 1) / 2;
+		}
+		return lowest(BUCKETS - 1);
+	}
+
+	static int bucket(long value) {
+		if (value < EXACT)
+			return (int) value;
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long lowest(int bucket) {
+		if (bucket < EXACT)
+			return bucket;
+		int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+		return (long) ((bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	private static long width(int bucket) {
+		return bucket < EXACT ? 1 : 1L << ((bucket - EXACT) / SUB_BUCKETS + 1);
+	}
+
+	// Not consistent while values are recorded
+	byte[] toByteArray() {
+		int used = 0;
+		for (int b = 0; b < BUCKETS; b++)
+			if (counts.get(b) != 0)
+				used++;
+
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + used * (2 + 8));
+		buffer.putLong(count.get()).putLong(sum.get()).putInt(used);
+		for (int b = 0; b < BUCKETS; b++) {
+			long c = counts.get(b);
+			if (c != 0)
+				buffer.putShort((short) b).putLong(c);
+		}
+		return buffer.array();
+	}
+
+	static LogHistogram fromByteArray(byte[] data) {
+		LogHistogram histogram = new LogHistogram();
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		histogram.count.set(buffer.getLong());
+		histogram.sum.set(buffer.getLong());
+		for (int used = buffer.getInt(); used > 0; used--)
+			histogram.counts.set(buffer.getShort(), buffer.getLong());
+		return histogram;
+	}
+}
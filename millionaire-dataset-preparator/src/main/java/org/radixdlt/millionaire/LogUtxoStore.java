@@ -0,0 +1,433 @@
+package org.radixdlt.millionaire;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// UTXO engine made of an append-only value log and an off-heap index over it.
+//
+// Log records are [op][36 byte outpoint] followed by [int length][value] for puts. The log
+// generation and its committed length are stored in app_progress by commit(), inside the same
+// JE transaction as the block progress. On open, anything past the committed length belongs to
+// an uncommitted block and is truncated, then the index is rebuilt by replaying the log.
+//
+// JE commits without syncing, so the log is forced to disk before its length can be committed,
+// and a compacted generation only replaces the old one once JE's log holding it is synced.
+class LogUtxoStore implements UtxoStore {
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final int HEADER_SIZE = 1 + Outpoint.LENGTH;
+	private static final int PUT_HEADER_SIZE = HEADER_SIZE + 4;
+
+	private static final long COMPACTION_MIN_LOG_SIZE = 256L * 1024 * 1024;
+	private static final byte[] STATE_KEY = "utxoLog".getBytes();
+
+	private final File dir;
+	private final Environment environment;
+	private final Database appProgressDatabase;
+	private final long compactionMinLogSize;
+	private final OutpointIndex index = new OutpointIndex(1 << 20);
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(4 * 1024 * 1024);
+	private final byte[] keyBuffer = new byte[Outpoint.LENGTH];
+
+	private long generation;
+	private FileChannel channel;
+	private long channelPosition;
+	private long garbageBytes;
+	private long obsoleteGeneration = -1;
+
+	private LogUtxoStore(File dir, Environment environment, Database appProgressDatabase, long compactionMinLogSize) {
+		this.dir = dir;
+		this.environment = environment;
+		this.appProgressDatabase = appProgressDatabase;
+		this.compactionMinLogSize = compactionMinLogSize;
+	}
+
+	static LogUtxoStore open(File dir, Environment environment, Database appProgressDatabase) throws IOException {
+		return open(dir, environment, appProgressDatabase, COMPACTION_MIN_LOG_SIZE);
+	}
+
+	static LogUtxoStore open(File dir, Environment environment, Database appProgressDatabase, long compactionMinLogSize) throws IOException {
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+
+		LogUtxoStore store = new LogUtxoStore(dir, environment, appProgressDatabase, compactionMinLogSize);
+
+		DatabaseEntry state = new DatabaseEntry();
+		if (OperationStatus.SUCCESS == appProgressDatabase.get(null, new DatabaseEntry(STATE_KEY), state, LockMode.DEFAULT)) {
+			ByteBuffer buffer = ByteBuffer.wrap(state.getData());
+			store.recover(buffer.getLong(), buffer.getLong());
+
+			// Left behind by a migration that was interrupted right after committing
+			if (environment.getDatabaseNames().contains("processed_outputs")) {
+				environment.removeDatabase(null, "processed_outputs");
+			}
+		} else {
+			store.recover(0, 0);
+
+			if (environment.getDatabaseNames().contains("processed_outputs")) {
+				store.migrate(environment);
+			}
+		}
+
+		return store;
+	}
+
+	private File logFile(long generation) {
+		return new File(dir, String.format(Locale.US, "values.%06d.log", generation));
+	}
+
+	private void recover(long generation, long committedLength) throws IOException {
+		this.generation = generation;
+
+		// Other generations are either compacted away or were never committed
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith("values.") && !file.equals(logFile(generation))) {
+					file.delete();
+				}
+			}
+		}
+
+		this.channel = new RandomAccessFile(logFile(generation), "rw").getChannel();
+		if (this.channel.size() < committedLength) {
+			throw new IOException("UTXO log " + logFile(generation) + " is shorter than its committed length " + committedLength);
+		}
+		this.channel.truncate(committedLength);
+		this.channelPosition = committedLength;
+
+		System.out.println("Rebuilding UTXO index from " + committedLength + " bytes of log");
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile(generation)), 1024 * 1024))) {
+			long offset = 0;
+			while (offset < committedLength) {
+				byte op = input.readByte();
+				input.readFully(keyBuffer);
+				long fingerprint = Outpoint.fingerprint(keyBuffer);
+
+				if (op == OP_PUT) {
+					int length = input.readInt();
+					skipFully(input, length);
+
+					long slot = findSlot(keyBuffer, fingerprint);
+					if (slot >= 0) {
+						garbageBytes += recordSize(index.offset(slot));
+						index.setOffset(slot, offset);
+					} else {
+						index.insert(-slot - 1, fingerprint, offset);
+					}
+					offset += PUT_HEADER_SIZE + length;
+				} else {
+					long slot = findSlot(keyBuffer, fingerprint);
+					if (slot >= 0) {
+						garbageBytes += recordSize(index.offset(slot));
+						index.remove(slot);
+					}
+					garbageBytes += HEADER_SIZE;
+					offset += HEADER_SIZE;
+				}
+			}
+		}
+
+		System.out.println("UTXO index rebuilt, " + index.size() + " unspent outputs");
+	}
+
+	private void migrate(Environment environment) throws IOException {
+		System.out.println("Migrating processed_outputs to the UTXO log");
+
+		DatabaseConfig processedOutputsDatabaseConfig = new DatabaseConfig();
+		processedOutputsDatabaseConfig.setTransactional(true);
+		Database processedOutputsDatabase = environment.openDatabase(null, "processed_outputs", processedOutputsDatabaseConfig);
+		long migrated = 0;
+
+		try (Cursor cursor = processedOutputsDatabase.openCursor(null, CursorConfig.READ_COMMITTED)) {
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+
+			while (cursor.getNext(key, value, LockMode.READ_COMMITTED) == OperationStatus.SUCCESS) {
+				put(null, Outpoint.fromLegacyId(new String(key.getData())), value.getData());
+
+				if (++migrated % 1000000 == 0) {
+					System.out.println("Migrated " + migrated + " outputs");
+				}
+			}
+		} finally {
+			processedOutputsDatabase.close();
+		}
+
+		Transaction dbtx = environment.beginTransaction(null, null);
+		try {
+			commit(dbtx);
+			dbtx.commit();
+		} catch (Throwable t) {
+			dbtx.abort();
+			throw t;
+		}
+
+		environment.removeDatabase(null, "processed_outputs");
+		System.out.println("Migrated " + migrated + " outputs");
+	}
+
+	@Override
+	public synchronized byte[] take(Transaction dbtx, byte[] outpoint) throws IOException {
+		long slot = findSlot(outpoint, Outpoint.fingerprint(outpoint));
+		if (slot < 0) {
+			return null;
+		}
+
+		long offset = index.offset(slot);
+		byte[] value = readValue(offset);
+
+		index.remove(slot);
+		append(OP_REMOVE, outpoint, null);
+		garbageBytes += PUT_HEADER_SIZE + value.length + HEADER_SIZE;
+
+		return value;
+	}
+
+	@Override
+	public synchronized void put(Transaction dbtx, byte[] outpoint, byte[] value) throws IOException {
+		long fingerprint = Outpoint.fingerprint(outpoint);
+		long slot = findSlot(outpoint, fingerprint);
+		long offset = append(OP_PUT, outpoint, value);
+
+		if (slot >= 0) {
+			garbageBytes += recordSize(index.offset(slot));
+			index.setOffset(slot, offset);
+		} else {
+			index.insert(-slot - 1, fingerprint, offset);
+		}
+	}
+
+	@Override
+	public synchronized void commit(Transaction dbtx) throws IOException {
+		flush();
+		// On disk before app_progress can say it is this long
+		channel.force(false);
+
+		// The previous commit moved to the current generation, the old one can go once that commit
+		// can't be lost anymore
+		if (obsoleteGeneration >= 0) {
+			environment.flushLog(true);
+			logFile(obsoleteGeneration).delete();
+			obsoleteGeneration = -1;
+		}
+
+		if (channelPosition > compactionMinLogSize && garbageBytes * 2 > channelPosition) {
+			compact();
+		}
+
+		ByteBuffer state = ByteBuffer.allocate(16);
+		state.putLong(generation);
+		state.putLong(channelPosition);
+		appProgressDatabase.put(dbtx, new DatabaseEntry(STATE_KEY), new DatabaseEntry(state.array()));
+	}
+
+	@Override
+	public synchronized long size() {
+		return index.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	// Copies live records into the next generation. The old log is scanned sequentially and a
+	// put record is live if the index still points at it.
+	private void compact() throws IOException {
+		long oldLength = channelPosition;
+		File newFile = logFile(generation + 1);
+
+		System.out.println("Compacting UTXO log, " + garbageBytes + " of " + oldLength + " bytes are garbage");
+
+		long newOffset = 0;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile(generation)), 1024 * 1024));
+		     DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), 1024 * 1024))) {
+			long offset = 0;
+			byte[] value = new byte[256];
+
+			while (offset < oldLength) {
+				byte op = input.readByte();
+				input.readFully(keyBuffer);
+
+				if (op != OP_PUT) {
+					offset += HEADER_SIZE;
+					continue;
+				}
+
+				int length = input.readInt();
+				if (value.length < length) {
+					value = new byte[length];
+				}
+				input.readFully(value, 0, length);
+
+				long slot = findSlotByOffset(Outpoint.fingerprint(keyBuffer), offset);
+				if (slot >= 0) {
+					output.writeByte(OP_PUT);
+					output.write(keyBuffer);
+					output.writeInt(length);
+					output.write(value, 0, length);
+					index.setOffset(slot, newOffset);
+					newOffset += PUT_HEADER_SIZE + length;
+				}
+				offset += PUT_HEADER_SIZE + length;
+			}
+		}
+
+		// On disk before the commit recording the new generation
+		FileChannel newChannel = new RandomAccessFile(newFile, "rw").getChannel();
+		newChannel.force(true);
+
+		channel.close();
+		obsoleteGeneration = generation;
+		generation++;
+		channel = newChannel;
+		channelPosition = newOffset;
+		garbageBytes = 0;
+
+		System.out.println("UTXO log compacted to " + newOffset + " bytes");
+	}
+
+	// Slot holding the key, or -(insertion slot) - 1 if absent
+	private long findSlot(byte[] key, long fingerprint) throws IOException {
+		long slot = index.home(fingerprint);
+		while (true) {
+			long slotFingerprint = index.fingerprint(slot);
+			if (slotFingerprint == 0) {
+				return -slot - 1;
+			}
+			if (slotFingerprint == fingerprint && keyMatches(index.offset(slot), key)) {
+				return slot;
+			}
+			slot = index.next(slot);
+		}
+	}
+
+	private long findSlotByOffset(long fingerprint, long offset) {
+		long slot = index.home(fingerprint);
+		while (true) {
+			long slotFingerprint = index.fingerprint(slot);
+			if (slotFingerprint == 0) {
+				return -1;
+			}
+			if (slotFingerprint == fingerprint && index.offset(slot) == offset) {
+				return slot;
+			}
+			slot = index.next(slot);
+		}
+	}
+
+	private boolean keyMatches(long offset, byte[] key) throws IOException {
+		ByteBuffer header = read(offset, HEADER_SIZE);
+		for (int i = 0; i < Outpoint.LENGTH; i++) {
+			if (header.get(1 + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int recordSize(long offset) throws IOException {
+		return PUT_HEADER_SIZE + read(offset + HEADER_SIZE, 4).getInt(0);
+	}
+
+	private byte[] readValue(long offset) throws IOException {
+		int length = read(offset + HEADER_SIZE, 4).getInt(0);
+		return read(offset + PUT_HEADER_SIZE, length).array();
+	}
+
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		// Records are never split between the channel and the write buffer
+		if (offset >= channelPosition) {
+			int position = (int) (offset - channelPosition);
+			buffer.put(writeBuffer.array(), position, length);
+			buffer.flip();
+			return buffer;
+		}
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of UTXO log at " + offset);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private long append(byte op, byte[] key, byte[] value) throws IOException {
+		int size = value == null ? HEADER_SIZE : PUT_HEADER_SIZE + value.length;
+		if (writeBuffer.remaining() < size) {
+			flush();
+		}
+
+		long offset = channelPosition + writeBuffer.position();
+		if (writeBuffer.remaining() < size) {
+			// Larger than the whole buffer, goes straight to the channel
+			ByteBuffer record = ByteBuffer.allocate(size);
+			writeRecord(record, op, key, value);
+			record.flip();
+			writeFully(record);
+		} else {
+			writeRecord(writeBuffer, op, key, value);
+		}
+		return offset;
+	}
+
+	private static void writeRecord(ByteBuffer buffer, byte op, byte[] key, byte[] value) {
+		buffer.put(op);
+		buffer.put(key);
+		if (value != null) {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		writeFully(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channelPosition += channel.write(buffer, channelPosition);
+		}
+	}
+
+	private static void skipFully(DataInputStream input, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			int skipped = input.skipBytes(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.radixdlt.millionaire;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
 import com.google.common.collect.ImmutableSet;
 import com.radixdlt.client.core.Bootstrap;
@@ -21,36 +22,95 @@ public class Main {
                     "second pointing to working directory");
         }
 
+        ParserOptions options = parseOptions(args);
+        BlockchainParser parser = new BlockchainParser(createUniverse(options.universeFile), options);
+        parser.parse();
+    }
 
-        String universeFile = null;
-        String blocksDir = args[0];
-        String workDir = System.getProperty("user.dir");
-        String atomsFile = System.getProperty("user.dir") + "/atoms";
-        boolean skipBlocks = false;
-        boolean resetAtoms = false;
-        boolean rebuildBlocks = false;
+    static ParserOptions parseOptions(String[] args) {
+        ParserOptions options = new ParserOptions(args[0]);
 
         if (args.length > 1) {
-            workDir = args[1];
+            options.workDir = args[1];
 
             for(int i=2; i<args.length; i++) {
                 switch(args[i]) {
             		case "--atoms":
             			i++;
-            			atomsFile = args[i];
+            			options.atomsFile = args[i];
             			break;
             		case "--universe":
                 		i++;
-                		universeFile = args[i];
+                		options.universeFile = args[i];
                 		break;
                     case "--skip-blocks":
-                        skipBlocks = true;
+                        options.skipBlocks = true;
                         break;
                     case "--reset-atoms":
-                        resetAtoms = true;
+                        options.resetAtoms = true;
                         break;
                     case "--rebuild-blocks":
-                        rebuildBlocks = true;
+                        options.rebuildBlocks = true;
+                        break;
+                    case "--ingest-threads":
+                        i++;
+                        options.ingestThreads = Integer.parseInt(args[i]);
+                        break;
+                    case "--pipeline-depth":
+                        i++;
+                        options.pipelineDepth = Integer.parseInt(args[i]);
+                        break;
+                    case "--resolve-threads":
+                        i++;
+                        options.resolveThreads = Integer.parseInt(args[i]);
+                        break;
+                    case "--commit-blocks":
+                        i++;
+                        options.commitBlocks = Integer.parseInt(args[i]);
+                        break;
+                    case "--commit-interval":
+                        i++;
+                        options.commitInterval = Long.parseLong(args[i]);
+                        break;
+                    case "--key-cache":
+                        i++;
+                        options.keyCacheSize = Long.parseLong(args[i]) * 1024 * 1024;
+                        break;
+                    case "--address-cache":
+                        i++;
+                        options.addressCacheSize = Long.parseLong(args[i]) * 1024 * 1024;
+                        break;
+                    case "--atom-queue":
+                        i++;
+                        options.atomQueueCapacity = Integer.parseInt(args[i]);
+                        break;
+                    case "--partitions":
+                        i++;
+                        options.partitions = args[i];
+                        break;
+                    case "--shard-plan":
+                        i++;
+                        options.shardPlan = args[i];
+                        break;
+                    case "--atom-format":
+                        i++;
+                        options.atomFormat = args[i];
+                        break;
+                    case "--segment-size":
+                        i++;
+                        options.segmentSize = Long.parseLong(args[i]) * 1024 * 1024;
+                        break;
+                    case "--compression":
+                        i++;
+                        options.compression = args[i];
+                        break;
+                    case "--frame-size":
+                        i++;
+                        options.frameSize = Integer.parseInt(args[i]) * 1024;
+                        break;
+                    case "--utxo-store":
+                        i++;
+                        options.utxoStore = args[i];
                         break;
                     default:
                         // code block
@@ -58,8 +118,12 @@ public class Main {
             }
         }
 
+        return options;
+    }
+
+    static RadixUniverse createUniverse(String universeFile) throws IOException {
         RadixUniverse universe;
-        
+
         if (universeFile != null)
         {
         	try (FileInputStream fis = new FileInputStream(new File(universeFile)))
@@ -70,8 +134,7 @@ public class Main {
         }
         else
         	universe = RadixUniverse.create(Bootstrap.LOCALHOST);
-        
-        BlockchainParser parser = new BlockchainParser(universe, blocksDir, workDir, atomsFile, skipBlocks, resetAtoms, rebuildBlocks);
-        parser.parse();
+
+        return universe;
     }
 }
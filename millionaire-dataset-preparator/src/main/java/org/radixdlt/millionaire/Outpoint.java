@@ -0,0 +1,60 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.Arrays;
+
+// Fixed width binary outpoint keys: 32 byte txid followed by the 4 byte big-endian output index
+final class Outpoint {
+    static final int LENGTH = 36;
+
+    private Outpoint() {
+    }
+
+    static byte[] key(Sha256Hash txId, long index) {
+        byte[] key = new byte[LENGTH];
+        System.arraycopy(txId.getBytes(), 0, key, 0, 32);
+        key[32] = (byte) (index >>> 24);
+        key[33] = (byte) (index >>> 16);
+        key[34] = (byte) (index >>> 8);
+        key[35] = (byte) index;
+        return key;
+    }
+
+    static byte[] key(TransactionOutput output) {
+        return key(output.getParentTransaction().getTxId(), output.getIndex());
+    }
+
+    static byte[] key(TransactionInput input) {
+        return key(input.getOutpoint().getHash(), input.getOutpoint().getIndex());
+    }
+
+    static long index(byte[] key) {
+        return ((key[32] & 0xFFL) << 24) | ((key[33] & 0xFFL) << 16) | ((key[34] & 0xFFL) << 8) | (key[35] & 0xFFL);
+    }
+
+    // 64 bit hash of a key, never zero. Txids are already uniformly distributed so mixing a
+    // few of their bytes with the index is enough.
+    static long fingerprint(byte[] key) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (key[i] & 0xFF);
+        }
+        h ^= index(key) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    // Legacy textual ids as stored by the JE databases: hex txid followed by the decimal index
+    static String legacyId(byte[] key) {
+        return Sha256Hash.wrap(Arrays.copyOf(key, 32)).toString() + index(key);
+    }
+
+    static byte[] fromLegacyId(String id) {
+        return key(Sha256Hash.wrap(id.substring(0, 64)), Long.parseLong(id.substring(64)));
+    }
+}
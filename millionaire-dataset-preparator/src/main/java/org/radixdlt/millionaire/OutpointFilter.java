@@ -0,0 +1,206 @@
+package org.radixdlt.millionaire;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Scalable Bloom filter over binary outpoints, kept in front of the banned/ignored databases so
+// that the common "not there" answer never touches the B-tree. When the last segment is full a
+// new one with twice the capacity and a tighter error rate is added, which keeps the overall
+// false positive rate bounded however large the set grows.
+class OutpointFilter {
+	private static final int MAGIC = 0x4F464C54; // OFLT
+	private static final int VERSION = 1;
+	private static final long INITIAL_CAPACITY = 1 << 20;
+	private static final double INITIAL_FPP = 0.01;
+	private static final double FPP_TIGHTENING = 0.8;
+
+	private static class Segment {
+		final long capacity;
+		final double fpp;
+		final int hashes;
+		final long bitCount;
+		final AtomicLongArray words;
+		final AtomicLong count;
+
+		Segment(long capacity, double fpp) {
+			this(capacity, fpp, 0, null);
+		}
+
+		Segment(long capacity, double fpp, long count, long[] words) {
+			this.capacity = capacity;
+			this.fpp = fpp;
+			this.hashes = Math.max(1, (int) Math.ceil(-Math.log(fpp) / Math.log(2)));
+			long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+			int wordCount = (int) ((bits + 63) / 64);
+			this.bitCount = wordCount * 64L;
+			this.words = words == null ? new AtomicLongArray(wordCount) : new AtomicLongArray(words);
+			this.count = new AtomicLong(count);
+		}
+
+		boolean mightContain(long h1, long h2) {
+			for (int i = 0; i < hashes; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void add(long h1, long h2) {
+			for (int i = 0; i < hashes; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long current;
+				while (((current = words.get(word)) & mask) == 0 && !words.compareAndSet(word, current, current | mask));
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	private volatile Segment[] segments;
+
+	// Outpoints added. Callers add an outpoint once the database took it as a new entry, so this
+	// counts the database's entries even for keys that were false positives, see matches()
+	private final AtomicLong entries;
+
+	final AtomicLong hits = new AtomicLong(0);
+	final AtomicLong misses = new AtomicLong(0);
+	final AtomicLong falsePositives = new AtomicLong(0);
+
+	OutpointFilter() {
+		this(new Segment[] { new Segment(INITIAL_CAPACITY, INITIAL_FPP) }, 0);
+	}
+
+	private OutpointFilter(Segment[] segments, long entries) {
+		this.segments = segments;
+		this.entries = new AtomicLong(entries);
+	}
+
+	private static long hash2(long h1) {
+		return Long.rotateLeft(h1 * 0x9E3779B97F4A7C15L, 31) | 1;
+	}
+
+	boolean mightContain(byte[] outpoint) {
+		long h1 = Outpoint.fingerprint(outpoint);
+		long h2 = hash2(h1);
+
+		for (Segment segment : segments) {
+			if (segment.mightContain(h1, h2)) {
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+	// A positive answer the database did not confirm
+	void falsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	// Only for outpoints new to the database
+	void add(byte[] outpoint) {
+		long h1 = Outpoint.fingerprint(outpoint);
+		long h2 = hash2(h1);
+		entries.incrementAndGet();
+
+		// Already answers yes, no need to set its bits again
+		Segment[] current = segments;
+		for (Segment segment : current) {
+			if (segment.mightContain(h1, h2)) {
+				return;
+			}
+		}
+
+		Segment last = current[current.length - 1];
+		if (last.count.get() >= last.capacity) {
+			last = grow(last);
+		}
+		last.add(h1, h2);
+	}
+
+	private synchronized Segment grow(Segment full) {
+		Segment[] current = segments;
+		Segment last = current[current.length - 1];
+		if (last != full) {
+			return last;
+		}
+
+		Segment[] grown = new Segment[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = new Segment(full.capacity * 2, full.fpp * FPP_TIGHTENING);
+		segments = grown;
+		return grown[current.length];
+	}
+
+	long entries() {
+		return entries.get();
+	}
+
+	// Entries are never removed from the backing databases and every one added is counted, so
+	// equal counts mean the filter covers every stored outpoint
+	boolean matches(long databaseCount) {
+		return entries.get() == databaseCount;
+	}
+
+	// Must be called while no outpoints are being added
+	byte[] snapshot() throws IOException {
+		Segment[] current = segments;
+		long bytes = 0;
+		for (Segment segment : current) {
+			bytes += segment.words.length() * 8L + 32;
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, bytes + 32));
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(entries.get());
+		out.writeInt(current.length);
+		for (Segment segment : current) {
+			out.writeLong(segment.capacity);
+			out.writeDouble(segment.fpp);
+			out.writeLong(segment.count.get());
+			out.writeInt(segment.words.length());
+			for (int i = 0; i < segment.words.length(); i++) {
+				out.writeLong(segment.words.get(i));
+			}
+		}
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	static OutpointFilter restore(byte[] snapshot) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not an outpoint filter snapshot");
+		}
+
+		long entries = in.readLong();
+		Segment[] segments = new Segment[in.readInt()];
+		for (int s = 0; s < segments.length; s++) {
+			long capacity = in.readLong();
+			double fpp = in.readDouble();
+			long count = in.readLong();
+			long[] words = new long[in.readInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = in.readLong();
+			}
+			segments[s] = new Segment(capacity, fpp, count, words);
+			if (segments[s].bitCount != words.length * 64L) {
+				throw new IOException("Outpoint filter segment " + s + " has an unexpected size");
+			}
+		}
+
+		return new OutpointFilter(segments, entries);
+	}
+}
@@ -0,0 +1,124 @@
+package org.radixdlt.millionaire;
+
+import java.nio.ByteBuffer;
+
+// Off-heap open addressing table of (fingerprint, offset) slots with linear probing.
+// Keys themselves are not stored, callers verify a candidate slot against the record at its
+// offset. A fingerprint of 0 marks an empty slot.
+class OutpointIndex {
+	private static final int SLOT_SIZE = 16;
+	private static final int CHUNK_SLOTS_SHIFT = 22; // 64MB chunks
+	private static final int CHUNK_SLOTS = 1 << CHUNK_SLOTS_SHIFT;
+
+	private ByteBuffer[] chunks;
+	private long capacity;
+	private long mask;
+	private long size;
+
+	OutpointIndex(long initialCapacity) {
+		allocate(Long.highestOneBit(Math.max(initialCapacity, 1024L) - 1) << 1);
+	}
+
+	private void allocate(long capacity) {
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.size = 0;
+
+		int chunkCount = (int) Math.max(1, capacity >>> CHUNK_SLOTS_SHIFT);
+		int chunkSlots = (int) Math.min(capacity, CHUNK_SLOTS);
+		this.chunks = new ByteBuffer[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			this.chunks[i] = ByteBuffer.allocateDirect(chunkSlots * SLOT_SIZE);
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	long home(long fingerprint) {
+		return (fingerprint ^ (fingerprint >>> 29)) & mask;
+	}
+
+	long next(long slot) {
+		return (slot + 1) & mask;
+	}
+
+	long fingerprint(long slot) {
+		return chunks[(int) (slot >>> CHUNK_SLOTS_SHIFT)].getLong((int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE);
+	}
+
+	long offset(long slot) {
+		return chunks[(int) (slot >>> CHUNK_SLOTS_SHIFT)].getLong((int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE + 8);
+	}
+
+	void setOffset(long slot, long offset) {
+		chunks[(int) (slot >>> CHUNK_SLOTS_SHIFT)].putLong((int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE + 8, offset);
+	}
+
+	private void write(long slot, long fingerprint, long offset) {
+		ByteBuffer chunk = chunks[(int) (slot >>> CHUNK_SLOTS_SHIFT)];
+		int position = (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+		chunk.putLong(position, fingerprint);
+		chunk.putLong(position + 8, offset);
+	}
+
+	// Slot must be empty, as found by probing from home(fingerprint)
+	void insert(long slot, long fingerprint, long offset) {
+		write(slot, fingerprint, offset);
+		size++;
+
+		if (size * 4 > capacity * 3) {
+			grow();
+		}
+	}
+
+	// Backward shift deletion, keeps probe sequences intact without tombstones
+	void remove(long slot) {
+		long hole = slot;
+		long current = slot;
+
+		while (true) {
+			current = next(current);
+			long fingerprint = fingerprint(current);
+			if (fingerprint == 0) {
+				break;
+			}
+
+			long home = home(fingerprint);
+			boolean reachable = hole <= current ? (hole < home && home <= current) : (hole < home || home <= current);
+			if (reachable) {
+				continue;
+			}
+
+			write(hole, fingerprint, offset(current));
+			hole = current;
+		}
+
+		write(hole, 0, 0);
+		size--;
+	}
+
+	private void grow() {
+		ByteBuffer[] oldChunks = this.chunks;
+		long oldCapacity = this.capacity;
+
+		allocate(oldCapacity << 1);
+
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			ByteBuffer chunk = oldChunks[(int) (slot >>> CHUNK_SLOTS_SHIFT)];
+			int position = (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+			long fingerprint = chunk.getLong(position);
+			if (fingerprint == 0) {
+				continue;
+			}
+
+			long target = home(fingerprint);
+			while (fingerprint(target) != 0) {
+				target = next(target);
+			}
+			write(target, fingerprint, chunk.getLong(position + 8));
+			size++;
+		}
+	}
+}
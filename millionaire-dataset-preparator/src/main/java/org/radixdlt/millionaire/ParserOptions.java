@@ -0,0 +1,61 @@
+package org.radixdlt.millionaire;
+
+public class ParserOptions {
+    public String blocksDir;
+    public String workDir = System.getProperty("user.dir");
+    public String atomsFile = System.getProperty("user.dir") + "/atoms";
+    public boolean skipBlocks = false;
+    public boolean resetAtoms = false;
+    public boolean rebuildBlocks = false;
+
+    // Universe config file, the localhost bootstrap universe when null
+    public String universeFile = null;
+
+    // Threads scanning blk*.dat files in parallel while building the block index
+    public int ingestThreads = Runtime.getRuntime().availableProcessors();
+
+    // Pipeline
+    // How many blocks may be decoded ahead of the block being resolved, and how many
+    // already resolved blocks may still be building/signing their atoms behind it
+    public int pipelineDepth = 8;
+
+    // Threads resolving the independent transactions of a block in parallel, 1 resolves in block order
+    public int resolveThreads = Runtime.getRuntime().availableProcessors();
+
+    // Blocks are committed in groups of this many blocks, or sooner once a group has been open this
+    // many ms. A commit waits for the group's atoms to be written, as the atoms file position is
+    // committed with it
+    public int commitBlocks = 100;
+    public long commitInterval = 1000;
+
+    // Heap for derived keys kept across blocks, by address hash
+    public long keyCacheSize = 256L * 1024 * 1024;
+
+    // Heap for the address table's cached ids and keys
+    public long addressCacheSize = 128L * 1024 * 1024;
+
+    // Atoms built but not yet written, producers block once the writer falls this far behind
+    public int atomQueueCapacity = 65536;
+
+    // Split the atoms file by shard: a partition count, "layout:<shardCount>[:<overlap>]" for the
+    // shard allocator's node ranges, or a file of "low high" ranges. Null writes the single atoms file
+    public String partitions = null;
+
+    // "<nodes>[:<overlap>]" writes shard_plan.txt, ranges for that many nodes expecting the same
+    // number of atoms from the shard histogram, for --partitions or the shard allocator's SHARD_PLAN
+    public String shardPlan = null;
+
+    // "plain" length prefixed records as read by the existing loaders, "segmented" rolling
+    // segments with CRCs and a footer index, see AtomSegments, or "compressed" frames, see AtomFrames
+    public String atomFormat = "plain";
+    public long segmentSize = 256L * 1024 * 1024;
+    public String compression = "lz4";
+    public int frameSize = 1024 * 1024;
+
+    // UTXO set engine, "log" or the original "je" processed_outputs database
+    public String utxoStore = "log";
+
+    ParserOptions(String blocksDir) {
+        this.blocksDir = blocksDir;
+    }
+}
@@ -0,0 +1,156 @@
+package org.radixdlt.millionaire;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+
+// One atoms file per shard partition. A record is appended to every partition its shards fall
+// in, so a loader only has to stream its own partition. Record counts per partition are kept in
+// <atoms>.manifest, rewritten at most once a second on flush and on close, and carried over when
+// appending to existing files. A checkpoint holds the counts and the checkpoint of every partition.
+class PartitionedAtomOutput implements AtomOutput {
+    private static final byte CHECKPOINT_FORMAT = 4;
+
+    private final File manifest;
+    private final ShardPartitioning partitioning;
+    private final File[] files;
+    private final AtomOutput[] outs;
+    private final long[] records;
+    private long unflushed = 0;
+    private long unpartitioned = 0;
+    private long manifestWritten = 0;
+
+    interface PartitionOutputFactory {
+        AtomOutput open(File partitionFile, byte[] checkpoint) throws IOException;
+    }
+
+    PartitionedAtomOutput(File atomsFile, ShardPartitioning partitioning, PartitionOutputFactory factory, byte[] checkpoint) throws IOException {
+        this.manifest = manifestFile(atomsFile);
+        this.partitioning = partitioning;
+        this.files = new File[partitioning.size()];
+        this.outs = new AtomOutput[partitioning.size()];
+        this.records = new long[partitioning.size()];
+
+        readManifest();
+
+        // The manifest may have been written after the checkpoint
+        byte[][] committed = new byte[files.length][];
+        ByteBuffer position = AtomOutput.position(checkpoint, CHECKPOINT_FORMAT, atomsFile);
+        if (position != null) {
+            if (position.getInt() != files.length)
+                throw new IOException("Atoms in " + atomsFile + " were committed with a different number of partitions, use --reset-atoms");
+            unpartitioned = position.getLong();
+            for (int p = 0; p < files.length; p++) {
+                records[p] = position.getLong();
+                committed[p] = new byte[position.getInt()];
+                position.get(committed[p]);
+            }
+        }
+
+        for (int p = 0; p < files.length; p++) {
+            files[p] = partitionFile(atomsFile, p);
+            outs[p] = factory.open(files[p], committed[p]);
+        }
+    }
+
+    static File partitionFile(File atomsFile, int partition) {
+        return new File(atomsFile.getPath() + String.format(Locale.US, ".part-%04d", partition));
+    }
+
+    static File manifestFile(File atomsFile) {
+        return new File(atomsFile.getPath() + ".manifest");
+    }
+
+    // Continue the counts of a previous run, refusing to mix different partitionings in one set of files
+    private void readManifest() throws IOException {
+        if (!manifest.exists())
+            return;
+
+        for (String line : Files.readAllLines(manifest.toPath())) {
+            if (line.startsWith("#") || line.trim().isEmpty())
+                continue;
+
+            String[] parts = line.trim().split("\\s+");
+            if (parts[0].equals("unpartitioned")) {
+                unpartitioned = Long.parseLong(parts[1]);
+                continue;
+            }
+
+            int p = Integer.parseInt(parts[0]);
+            if (p >= records.length || partitioning.lows[p] != Long.parseLong(parts[1]) || partitioning.highs[p] != Long.parseLong(parts[2]))
+                throw new IOException("Partition " + p + " in " + manifest + " does not match the configured partitions, use --reset-atoms");
+            records[p] = Long.parseLong(parts[3]);
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(tmp)) {
+            out.println("# partition low high records file");
+            for (int p = 0; p < files.length; p++) {
+                out.printf(Locale.US, "%d %d %d %d %s%n", p, partitioning.lows[p], partitioning.highs[p], records[p], files[p].getName());
+            }
+            out.printf(Locale.US, "unpartitioned %d%n", unpartitioned);
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void write(byte[] record, Set<Long> shards, long block) throws IOException {
+        int[] partitions = partitioning.partitionsOf(shards);
+        // Only possible with ranges that don't cover the whole chunk
+        if (partitions.length == 0)
+            unpartitioned++;
+
+        for (int p : partitions) {
+            outs[p].write(record, shards, block);
+            records[p]++;
+            unflushed += record.length;
+        }
+    }
+
+    @Override
+    public long unflushed() {
+        return unflushed;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (AtomOutput out : outs)
+            out.flush();
+        unflushed = 0;
+
+        if (System.currentTimeMillis() - manifestWritten >= 1000) {
+            writeManifest();
+            manifestWritten = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public byte[] checkpoint() throws IOException {
+        byte[][] checkpoints = new byte[outs.length][];
+        int length = 4 + 8;
+        for (int p = 0; p < outs.length; p++) {
+            checkpoints[p] = outs[p].checkpoint();
+            length += 8 + 4 + checkpoints[p].length;
+        }
+        unflushed = 0;
+
+        ByteBuffer checkpoint = AtomOutput.checkpoint(CHECKPOINT_FORMAT, length).putInt(outs.length).putLong(unpartitioned);
+        for (int p = 0; p < outs.length; p++)
+            checkpoint.putLong(records[p]).putInt(checkpoints[p].length).put(checkpoints[p]);
+        return checkpoint.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (AtomOutput out : outs)
+            out.close();
+        writeManifest();
+    }
+}
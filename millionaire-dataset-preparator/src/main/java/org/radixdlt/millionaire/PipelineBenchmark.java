@@ -0,0 +1,87 @@
+package org.radixdlt.millionaire;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Runs the whole preparator, block indexing through atom writing, on a blocks directory such as
+// one written by SyntheticChain, in a fresh work directory. Reports transactions per second,
+// time per stage and peak memory. Preparator options after the work directory are passed on.
+//
+// gradle pipelineBenchmark [-Pblocks=<blocks dir>] [-PworkDir=<dir>] [-PpreparatorArgs="--utxo-store je ..."]
+public class PipelineBenchmark {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: PipelineBenchmark <blocks dir> <work dir> [preparator options]");
+			return;
+		}
+
+		File workDir = new File(args[1], String.format(Locale.US, "run-%d", System.currentTimeMillis()));
+		if (!workDir.mkdirs())
+			throw new IOException("Cannot create " + workDir);
+
+		List<String> parserArgs = new ArrayList<>(Arrays.asList(args[0], workDir.getPath(), "--atoms", new File(workDir, "atoms").getPath()));
+		parserArgs.addAll(Arrays.asList(args).subList(2, args.length));
+		ParserOptions options = Main.parseOptions(parserArgs.toArray(new String[0]));
+
+		long start = System.nanoTime();
+		BlockchainParser parser = new BlockchainParser(Main.createUniverse(options.universeFile), options);
+		long setupNanos = System.nanoTime() - start;
+		parser.parse();
+		long totalNanos = System.nanoTime() - start;
+
+		long transactions = parser.validTransactions.get() + parser.bannedTransactions.get();
+		long parseNanos = totalNanos - setupNanos - parser.indexNanos.get();
+
+		System.out.println();
+		System.out.println(String.format(Locale.US, "Blocks: %d, transactions: %d valid, %d banned, inputs: %d, outputs: %d",
+				parser.blockNum.get(), parser.validTransactions.get(), parser.bannedTransactions.get(), parser.totalInputs.get(), parser.totalOutputs.get()));
+		System.out.println(String.format(Locale.US, "Total: %.1fs, %.0f tx/s", totalNanos / 1e9, transactions / (totalNanos / 1e9)));
+		System.out.println(String.format(Locale.US, "Parse: %.1fs, %.0f tx/s", parseNanos / 1e9, transactions / (parseNanos / 1e9)));
+		System.out.println(String.format(Locale.US, "  %-12s %10dms", "setup", setupNanos / 1_000_000));
+		for (Map.Entry<String, Long> stage : parser.stageMillis().entrySet())
+			System.out.println(String.format(Locale.US, "  %-12s %10dms", stage.getKey(), stage.getValue()));
+		System.out.println(String.format(Locale.US, "Atoms file: %.1f MB", atomsBytes(workDir) / 1e6));
+		System.out.println(String.format(Locale.US, "Peak heap: %.0f MB, peak RSS: %s", peakHeap() / 1e6, peakRss()));
+	}
+
+	private static long atomsBytes(File workDir) {
+		long bytes = 0;
+		// The atoms file, or its frames, segments or partitions next to it
+		File[] files = workDir.listFiles((dir, name) -> name.startsWith("atoms"));
+		if (files != null)
+			for (File file : files)
+				if (file.isFile())
+					bytes += file.length();
+		return bytes;
+	}
+
+	// Sum of the heap pools' peaks, they don't necessarily peak together
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	// High water mark of the resident set, only known on Linux
+	private static String peakRss() {
+		try {
+			for (String line : Files.readAllLines(new File("/proc/self/status").toPath()))
+				if (line.startsWith("VmHWM:"))
+					return line.substring("VmHWM:".length()).trim();
+		} catch (IOException e) {
+			// Not Linux
+		}
+		return "n/a";
+	}
+}
@@ -0,0 +1,69 @@
+package org.radixdlt.millionaire;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+// The original single atoms file, records appended back to back
+class PlainAtomOutput implements AtomOutput {
+    private static final byte CHECKPOINT_FORMAT = 1;
+
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private long position;
+    private long syncedPosition;
+    private long unflushed = 0;
+
+    PlainAtomOutput(File file) throws IOException {
+        this(file, 10*1024*1024, null);
+    }
+
+    // A checkpoint's position is the file length
+    PlainAtomOutput(File file, int bufferSize, byte[] checkpoint) throws IOException {
+        ByteBuffer committed = AtomOutput.position(checkpoint, CHECKPOINT_FORMAT, file);
+        if (committed != null)
+            AtomOutput.truncate(file, committed.getLong());
+
+        this.position = file.length();
+        this.syncedPosition = position;
+        this.file = new FileOutputStream(file, true);
+        this.out = new BufferedOutputStream(this.file, bufferSize);
+    }
+
+    @Override
+    public void write(byte[] record, Set<Long> shards, long block) throws IOException {
+        out.write(record);
+        position += record.length;
+        unflushed += record.length;
+    }
+
+    @Override
+    public long unflushed() {
+        return unflushed;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        unflushed = 0;
+    }
+
+    @Override
+    public byte[] checkpoint() throws IOException {
+        flush();
+        if (position != syncedPosition) {
+            file.getChannel().force(false);
+            syncedPosition = position;
+        }
+        return AtomOutput.checkpoint(CHECKPOINT_FORMAT, 8).putLong(position).array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
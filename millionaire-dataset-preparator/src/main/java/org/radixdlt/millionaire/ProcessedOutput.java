@@ -1,5 +1,8 @@
 package org.radixdlt.millionaire;
 
+import com.google.common.collect.ImmutableMap;
+import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
+import com.radixdlt.client.atommodel.tokens.TokenPermission;
 import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
 import com.radixdlt.client.core.atoms.particles.Particle;
 import com.radixdlt.client.core.crypto.ECKeyPair;
@@ -16,13 +19,35 @@ import java.io.IOException;
 import java.io.Serializable;
 
 public class ProcessedOutput {
+    // Permissions of every output particle, shared instead of built per particle
+    static final ImmutableMap<TokenDefinitionParticle.TokenTransition, TokenPermission> TOKEN_PERMISSIONS = ImmutableMap.of(
+            TokenDefinitionParticle.TokenTransition.MINT, TokenPermission.ALL,
+            TokenDefinitionParticle.TokenTransition.BURN, TokenPermission.ALL
+    );
+
     public ECKeyPair owner;
+    // Owner's id in the address table, -1 when it has none
+    public int ownerId;
     public TransferrableTokensParticle particle;
+    // Height of the block and number of the transaction that created it, -1 when unknown
+    public int addedBlock = -1;
+    public long addedTxNumber = -1;
 
     ProcessedOutput(ECKeyPair owner, TransferrableTokensParticle particle) {
+        this(owner, -1, particle);
+    }
+
+    ProcessedOutput(ECKeyPair owner, int ownerId, TransferrableTokensParticle particle) {
         this.owner = owner;
+        this.ownerId = ownerId;
         this.particle = particle;
     }
+
+    ProcessedOutput(ECKeyPair owner, int ownerId, TransferrableTokensParticle particle, int addedBlock, long addedTxNumber) {
+        this(owner, ownerId, particle);
+        this.addedBlock = addedBlock;
+        this.addedTxNumber = addedTxNumber;
+    }
 }
 
 
@@ -1,10 +1,8 @@
 package org.radixdlt.millionaire;
 
-import com.google.common.collect.ImmutableMap;
 import com.radixdlt.client.atommodel.accounts.RadixAddress;
-import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
-import com.radixdlt.client.atommodel.tokens.TokenPermission;
 import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.address.RadixUniverseConfig;
 import com.radixdlt.client.core.atoms.particles.Particle;
 import com.radixdlt.client.core.atoms.particles.RRI;
 import com.radixdlt.client.core.crypto.ECKeyPair;
@@ -18,22 +16,103 @@ import org.radix.utils.UInt256;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.Arrays;
 
+// Version 1 values are length prefixed: private key, public key, nonce, planck, amount and the
+// base58 address. Version 2 values are fixed width and start with VERSION_2, which a version 1
+// value never does as it starts with the high byte of the private key length:
+// [VERSION_2][32 private key][33 public key][8 nonce][8 planck][8 satoshis]
+// Version 3 refers to the owner's keys in the AddressTable instead of holding them:
+// [VERSION_3][int owner id][8 nonce][8 planck][8 satoshis]
+// Version 4 adds where the output was created, for output lifetimes:
+// [VERSION_4][int owner id][8 nonce][8 planck][8 satoshis][int block height][8 transaction number]
+// The address is the owner's, rebuilt from the public key. Outputs that don't fit, an address
+// other than the owner's or an amount that isn't whole satoshis, are still written as version 1.
 public class ProcessedOutputSerializer implements Serializer<ProcessedOutput>, Serializable {
+    // Resolves version 3 owner ids
+    interface OwnerKeys {
+        ECKeyPair get(int ownerId) throws IOException;
+    }
+
+    static final int VERSION_2 = 2;
+    static final int VERSION_3 = 3;
+    static final int VERSION_4 = 4;
+    static final int PRIVATE_KEY_LENGTH = 32;
+    static final int PUBLIC_KEY_LENGTH = 33;
+    static final int V2_LENGTH = 1 + PRIVATE_KEY_LENGTH + PUBLIC_KEY_LENGTH + 8 + 8 + 8;
+    static final int V3_LENGTH = 1 + 4 + 8 + 8 + 8;
+    static final int V4_LENGTH = V3_LENGTH + 4 + 8;
+
+    // Token subunits per satoshi, amounts are BTC values scaled to 18 decimals
+    private static final long SUBUNITS_PER_SATOSHI = 10_000_000_000L;
+    private static final BigInteger SUBUNITS_PER_SATOSHI_BIG = BigInteger.valueOf(SUBUNITS_PER_SATOSHI);
+    private static final UInt256 SUBUNITS_PER_SATOSHI_UINT = UInt256.from(SUBUNITS_PER_SATOSHI);
+
     private static ProcessedOutputSerializer serializer;
+    private RadixUniverseConfig universe;
     private RRI tokenReference;
 
-    ProcessedOutputSerializer(RRI tokenReference) {
+    ProcessedOutputSerializer(RadixUniverseConfig universe, RRI tokenReference) {
+        this.universe = universe;
         this.tokenReference = tokenReference;
     }
 
-    public static void initStatic(RRI tokenReference) {
-        serializer = new ProcessedOutputSerializer(tokenReference);
+    public static void initStatic(RadixUniverseConfig universe, RRI tokenReference) {
+        serializer = new ProcessedOutputSerializer(universe, tokenReference);
     }
 
 
     @Override
     public void serialize(@NotNull DataOutput2 out, @NotNull ProcessedOutput value) throws IOException {
+        byte[] pk = value.owner.getPrivateKey();
+        byte[] publicKey = value.owner.getPublicKey().getPublicKey();
+        long satoshis = satoshis(value.particle.getAmount());
+
+        if (pk.length == PRIVATE_KEY_LENGTH && publicKey.length == PUBLIC_KEY_LENGTH && satoshis >= 0
+                && Arrays.equals(publicKey, value.particle.getAddress().getPublicKey().getPublicKey())) {
+            if (value.ownerId >= 0) {
+                boolean added = value.addedBlock >= 0;
+                out.writeByte(added ? VERSION_4 : VERSION_3);
+                out.writeInt(value.ownerId);
+                out.writeLong(value.particle.getNonce());
+                out.writeLong(value.particle.getPlanck());
+                out.writeLong(satoshis);
+                if (added) {
+                    out.writeInt(value.addedBlock);
+                    out.writeLong(value.addedTxNumber);
+                }
+                return;
+            }
+
+            out.writeByte(VERSION_2);
+            out.write(pk);
+            out.write(publicKey);
+            out.writeLong(value.particle.getNonce());
+            out.writeLong(value.particle.getPlanck());
+            out.writeLong(satoshis);
+            return;
+        }
+
+        serializeV1(out, value);
+    }
+
+    // Token amount of an output value, as TokenUnitConversions.unitsToSubunits makes of it in BTC
+    static UInt256 amount(long satoshis) {
+        if (satoshis < 0)
+            throw new IllegalArgumentException("Negative value " + satoshis);
+        return UInt256.from(satoshis).multiply(SUBUNITS_PER_SATOSHI_UINT);
+    }
+
+    // Whole satoshis of an amount, -1 when it has none
+    private static long satoshis(UInt256 amount) {
+        BigInteger[] satoshis = new BigInteger(1, amount.toByteArray()).divideAndRemainder(SUBUNITS_PER_SATOSHI_BIG);
+        if (satoshis[1].signum() != 0 || satoshis[0].bitLength() > 63)
+            return -1;
+        return satoshis[0].longValue();
+    }
+
+    void serializeV1(DataOutput2 out, ProcessedOutput value) throws IOException {
         // Owner
         byte[] pk = value.owner.getPrivateKey();
         out.writeInt(pk.length);
@@ -63,8 +142,24 @@ public class ProcessedOutputSerializer implements Serializer<ProcessedOutput>, S
 
     @Override
     public ProcessedOutput deserialize(@NotNull DataInput2 input, int available) throws IOException {
-        // Owner
-        int pkLen = input.readInt();
+        return deserialize(input, null);
+    }
+
+    ProcessedOutput deserialize(DataInput2 input, OwnerKeys ownerKeys) throws IOException {
+        int first = input.readUnsignedByte();
+        if (first == VERSION_4) {
+            ProcessedOutput output = deserializeV3(input, ownerKeys);
+            output.addedBlock = input.readInt();
+            output.addedTxNumber = input.readLong();
+            return output;
+        }
+        if (first == VERSION_3)
+            return deserializeV3(input, ownerKeys);
+        if (first == VERSION_2)
+            return deserializeV2(input);
+
+        // Owner, the first byte read was the top of the private key length
+        int pkLen = (first << 24) | (input.readUnsignedByte() << 16) | input.readUnsignedShort();
         byte[] pk = new byte[pkLen];
         input.readFully(pk, 0, pkLen);
 
@@ -100,15 +195,50 @@ public class ProcessedOutputSerializer implements Serializer<ProcessedOutput>, S
             nonce,
             tokenReference,
             planck,
-            ImmutableMap.of(
-                    TokenDefinitionParticle.TokenTransition.MINT, TokenPermission.ALL,
-                    TokenDefinitionParticle.TokenTransition.BURN, TokenPermission.ALL
-            )
+            ProcessedOutput.TOKEN_PERMISSIONS
         );
 
         return new ProcessedOutput(owner, particle);
     }
 
+    private ProcessedOutput deserializeV3(DataInput2 input, OwnerKeys ownerKeys) throws IOException {
+        if (ownerKeys == null)
+            throw new IOException("Version 3 or 4 processed output without an address table");
+
+        int ownerId = input.readInt();
+        long nonce = input.readLong();
+        long planck = input.readLong();
+        long satoshis = input.readLong();
+
+        ECKeyPair owner = ownerKeys.get(ownerId);
+        return new ProcessedOutput(owner, ownerId, particle(owner, nonce, planck, satoshis));
+    }
+
+    private ProcessedOutput deserializeV2(DataInput2 input) throws IOException {
+        byte[] pk = new byte[PRIVATE_KEY_LENGTH];
+        input.readFully(pk, 0, PRIVATE_KEY_LENGTH);
+        byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+        input.readFully(publicKey, 0, PUBLIC_KEY_LENGTH);
+        long nonce = input.readLong();
+        long planck = input.readLong();
+        long satoshis = input.readLong();
+
+        ECKeyPair owner = new ECKeyPair(publicKey, pk);
+        return new ProcessedOutput(owner, particle(owner, nonce, planck, satoshis));
+    }
+
+    private TransferrableTokensParticle particle(ECKeyPair owner, long nonce, long planck, long satoshis) {
+        return new TransferrableTokensParticle(
+            amount(satoshis),
+            UInt256.ONE,
+            new RadixAddress(universe, owner.getPublicKey()),
+            nonce,
+            tokenReference,
+            planck,
+            ProcessedOutput.TOKEN_PERMISSIONS
+        );
+    }
+
 
     public static byte[] toByteArray(ProcessedOutput value) throws IOException {
         DataOutput2 out = new DataOutput2();
@@ -117,7 +247,11 @@ public class ProcessedOutputSerializer implements Serializer<ProcessedOutput>, S
     }
 
     public static ProcessedOutput fromByteArray(byte[] data) throws IOException {
+        return fromByteArray(data, null);
+    }
+
+    static ProcessedOutput fromByteArray(byte[] data, OwnerKeys ownerKeys) throws IOException {
         DataInput2 input = new DataInput2.ByteArray(data);
-        return serializer.deserialize(input, 0);
+        return serializer.deserialize(input, ownerKeys);
     }
 }
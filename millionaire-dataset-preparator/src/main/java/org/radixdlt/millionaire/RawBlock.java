@@ -0,0 +1,403 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Flyweight view of a serialized block, read in place instead of being decoded into bitcoinj
+// Transactions, TransactionInputs, TransactionOutputs and Scripts. One pass over the block records
+// where each transaction, outpoint, value and scriptPubKey is, the fields themselves are read from
+// the block bytes when asked for. A txid is hashed once, from the serialization without witnesses.
+//
+// Inputs and outputs are numbered across the whole block, a transaction's are firstInput(t) to
+// firstInput(t) + inputs(t) and likewise for outputs. Thread safe once constructed.
+final class RawBlock {
+	// Script templates getToAddress(params, true) turns into an address
+	enum ScriptType { P2PKH, P2SH, P2PK, P2WPKH, P2WSH, OTHER }
+
+	private static final int HEADER_LENGTH = 80;
+	private static final int TIME_OFFSET = 68;
+	private static final int OUTPOINT_LENGTH = 36;
+
+	private static final int OP_0 = 0x00;
+	private static final int OP_PUSHDATA1 = 0x4c;
+	private static final int OP_PUSHDATA2 = 0x4d;
+	private static final int OP_PUSHDATA4 = 0x4e;
+	private static final int OP_DUP = 0x76;
+	private static final int OP_EQUAL = 0x87;
+	private static final int OP_EQUALVERIFY = 0x88;
+	private static final int OP_HASH160 = 0xa9;
+	private static final int OP_CHECKSIG = 0xac;
+
+	// Chunks of the longest template, P2PKH
+	private static final int MAX_CHUNKS = 5;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Sha256Hash::newDigest);
+
+	private final ByteBuffer data;
+	private final int transactions;
+
+	// Per transaction: offset of the version, of the input count, of the end of the outputs and of
+	// the lock time. Without witnesses those are adjacent.
+	private final int[] txStart;
+	private final int[] txBodyStart;
+	private final int[] txBodyEnd;
+	private final int[] txLockTime;
+	private final int[] firstInput;
+	private final int[] firstOutput;
+	private final Sha256Hash[] txIds;
+
+	// Per input the offset of its outpoint, per output of its value and scriptPubKey
+	private int[] inputOutpoint;
+	private int[] outputValue;
+	private int[] outputScript;
+	private int[] outputScriptLength;
+	private int[] outputTransaction;
+
+	private int position;
+
+	private RawBlock(ByteBuffer data) {
+		this.data = data;
+
+		position = HEADER_LENGTH;
+		this.transactions = count(10);
+		this.txStart = new int[transactions];
+		this.txBodyStart = new int[transactions];
+		this.txBodyEnd = new int[transactions];
+		this.txLockTime = new int[transactions];
+		this.firstInput = new int[transactions + 1];
+		this.firstOutput = new int[transactions + 1];
+		this.txIds = new Sha256Hash[transactions];
+
+		int capacity = Math.max(16, transactions * 2);
+		inputOutpoint = new int[capacity];
+		outputValue = new int[capacity];
+		outputScript = new int[capacity];
+		outputScriptLength = new int[capacity];
+		outputTransaction = new int[capacity];
+
+		int inputs = 0, outputs = 0;
+		for (int t = 0; t < transactions; t++) {
+			txStart[t] = position;
+			skip(4);
+
+			// A zero input count is the segwit marker, followed by the flag
+			boolean witness = false;
+			if (u8(position) == 0) {
+				skip(2);
+				witness = true;
+			}
+			txBodyStart[t] = position;
+
+			int inputCount = count(OUTPOINT_LENGTH + 5);
+			firstInput[t] = inputs;
+			for (int i = 0; i < inputCount; i++, inputs++) {
+				if (inputs == inputOutpoint.length)
+					inputOutpoint = Arrays.copyOf(inputOutpoint, inputs * 2);
+				inputOutpoint[inputs] = position;
+				skip(OUTPOINT_LENGTH);
+				skip(count(1));
+				skip(4);
+			}
+
+			int outputCount = count(9);
+			firstOutput[t] = outputs;
+			for (int o = 0; o < outputCount; o++, outputs++) {
+				if (outputs == outputValue.length)
+					growOutputs(outputs * 2);
+				outputValue[outputs] = position;
+				skip(8);
+				int scriptLength = count(1);
+				outputScript[outputs] = position;
+				outputScriptLength[outputs] = scriptLength;
+				outputTransaction[outputs] = t;
+				skip(scriptLength);
+			}
+			txBodyEnd[t] = position;
+
+			if (witness) {
+				for (int i = 0; i < inputCount; i++) {
+					int items = count(1);
+					for (int w = 0; w < items; w++)
+						skip(count(1));
+				}
+			}
+
+			txLockTime[t] = position;
+			skip(4);
+		}
+		firstInput[transactions] = inputs;
+		firstOutput[transactions] = outputs;
+	}
+
+	// The block bytes are not copied, they must not change while the view is in use
+	static RawBlock of(ByteBuffer block) {
+		return new RawBlock(block.slice().order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	static RawBlock of(byte[] block) {
+		return new RawBlock(ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	// Header time in seconds
+	long time() {
+		return data.getInt(TIME_OFFSET) & 0xFFFFFFFFL;
+	}
+
+	int transactions() {
+		return transactions;
+	}
+
+	Sha256Hash txId(int t) {
+		// Racing threads compute the same hash
+		Sha256Hash txId = txIds[t];
+		if (txId == null) {
+			MessageDigest digest = DIGEST.get();
+			if (txBodyStart[t] == txStart[t] + 4 && txBodyEnd[t] == txLockTime[t]) {
+				update(digest, txStart[t], txLockTime[t] + 4 - txStart[t]);
+			} else {
+				update(digest, txStart[t], 4);
+				update(digest, txBodyStart[t], txBodyEnd[t] - txBodyStart[t]);
+				update(digest, txLockTime[t], 4);
+			}
+			txId = Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+			txIds[t] = txId;
+		}
+		return txId;
+	}
+
+	int firstInput(int t) {
+		return firstInput[t];
+	}
+
+	int inputs(int t) {
+		return firstInput[t + 1] - firstInput[t];
+	}
+
+	int firstOutput(int t) {
+		return firstOutput[t];
+	}
+
+	int outputs(int t) {
+		return firstOutput[t + 1] - firstOutput[t];
+	}
+
+	// Outputs of the whole block
+	int outputs() {
+		return firstOutput[transactions];
+	}
+
+	// Spends no output: the zero hash and index 0xFFFFFFFF, as bitcoinj's isCoinBase()
+	boolean isCoinBase(int input) {
+		int offset = inputOutpoint[input];
+		for (int i = 0; i < 32; i += 8) {
+			if (data.getLong(offset + i) != 0)
+				return false;
+		}
+		return data.getInt(offset + 32) == -1;
+	}
+
+	// Outpoint key of the output an input spends
+	byte[] spentOutpoint(int input) {
+		int offset = inputOutpoint[input];
+		byte[] key = new byte[Outpoint.LENGTH];
+		// Hashes are serialized in reverse of their usual byte order
+		for (int i = 0; i < 32; i++)
+			key[i] = data.get(offset + 31 - i);
+		int index = data.getInt(offset + 32);
+		key[32] = (byte) (index >>> 24);
+		key[33] = (byte) (index >>> 16);
+		key[34] = (byte) (index >>> 8);
+		key[35] = (byte) index;
+		return key;
+	}
+
+	Sha256Hash spentTxId(int input) {
+		return Sha256Hash.wrap(Arrays.copyOf(spentOutpoint(input), 32));
+	}
+
+	// Outpoint key of an output
+	byte[] outpoint(int output) {
+		int t = outputTransaction[output];
+		return Outpoint.key(txId(t), output - firstOutput[t]);
+	}
+
+	// Satoshis
+	long value(int output) {
+		return data.getLong(outputValue[output]);
+	}
+
+	ByteBuffer scriptPubKey(int output) {
+		ByteBuffer script = data.duplicate();
+		script.limit(outputScript[output] + outputScriptLength[output]);
+		script.position(outputScript[output]);
+		return script.slice();
+	}
+
+	ScriptType scriptType(int output) {
+		int[] chunks = new int[MAX_CHUNKS * 3];
+		return type(chunks(output, chunks), chunks);
+	}
+
+	// The hash of the address getToAddress(params, true) makes of the scriptPubKey, which keys
+	// are derived from, or null when it has none
+	byte[] addressHash(int output) {
+		int[] chunks = new int[MAX_CHUNKS * 3];
+		switch (type(chunks(output, chunks), chunks)) {
+			case P2PKH:
+				return bytes(chunks[2 * 3 + 1], chunks[2 * 3 + 2]);
+			case P2SH:
+				return bytes(chunks[1 * 3 + 1], chunks[1 * 3 + 2]);
+			case P2WPKH:
+			case P2WSH:
+				return bytes(chunks[1 * 3 + 1], chunks[1 * 3 + 2]);
+			case P2PK:
+				// Hashed as bitcoinj hashes the key, which rejects keys that are not on the curve
+				try {
+					return ECKey.fromPublicOnly(bytes(chunks[1], chunks[2])).getPubKeyHash();
+				} catch (RuntimeException e) {
+					return null;
+				}
+			default:
+				return null;
+		}
+	}
+
+	// Splits a scriptPubKey into [opcode, data offset, data length] chunks the way bitcoinj's Script
+	// does, data offset -1 for opcodes that push nothing. Returns the number of chunks, or -1 for
+	// scripts bitcoinj fails to parse or with more chunks than any template.
+	private int chunks(int output, int[] chunks) {
+		int offset = outputScript[output];
+		int end = offset + outputScriptLength[output];
+		int count = 0;
+		while (offset < end) {
+			if (count == MAX_CHUNKS)
+				return -1;
+
+			int opcode = u8(offset++);
+			long length;
+			if (opcode < OP_PUSHDATA1) {
+				length = opcode;
+			} else if (opcode == OP_PUSHDATA1) {
+				if (end - offset < 1)
+					return -1;
+				length = u8(offset);
+				offset += 1;
+			} else if (opcode == OP_PUSHDATA2) {
+				if (end - offset < 2)
+					return -1;
+				length = data.getShort(offset) & 0xFFFF;
+				offset += 2;
+			} else if (opcode == OP_PUSHDATA4) {
+				if (end - offset < 4)
+					return -1;
+				length = data.getInt(offset) & 0xFFFFFFFFL;
+				offset += 4;
+			} else {
+				length = -1;
+			}
+
+			chunks[count * 3] = opcode;
+			chunks[count * 3 + 1] = length < 0 ? -1 : offset;
+			chunks[count * 3 + 2] = (int) Math.max(length, 0);
+			if (length > end - offset)
+				return -1;
+			if (length > 0)
+				offset += (int) length;
+			count++;
+		}
+		return count;
+	}
+
+	// ScriptPattern's checks, in the order getToAddress applies them
+	private static ScriptType type(int count, int[] chunks) {
+		if (count == 5
+				&& chunks[0] == OP_DUP
+				&& chunks[3] == OP_HASH160
+				&& chunks[7] >= 0 && chunks[8] == 20
+				&& chunks[9] == OP_EQUALVERIFY
+				&& chunks[12] == OP_CHECKSIG)
+			return ScriptType.P2PKH;
+
+		// P2SH is an exact byte template, the hash must be pushed by opcode 0x14 itself
+		if (count == 3
+				&& chunks[0] == OP_HASH160
+				&& chunks[3] == 0x14
+				&& chunks[6] == OP_EQUAL)
+			return ScriptType.P2SH;
+
+		if (count == 2
+				&& chunks[1] >= 0 && chunks[2] > 1
+				&& chunks[3] == OP_CHECKSIG)
+			return ScriptType.P2PK;
+
+		if (count == 2
+				&& chunks[0] == OP_0
+				&& chunks[4] >= 0) {
+			if (chunks[5] == 20)
+				return ScriptType.P2WPKH;
+			if (chunks[5] == 32)
+				return ScriptType.P2WSH;
+		}
+
+		return ScriptType.OTHER;
+	}
+
+	private byte[] bytes(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = data.get(offset + i);
+		return bytes;
+	}
+
+	private void update(MessageDigest digest, int offset, int length) {
+		ByteBuffer range = data.duplicate();
+		range.limit(offset + length);
+		range.position(offset);
+		digest.update(range);
+	}
+
+	private void growOutputs(int capacity) {
+		outputValue = Arrays.copyOf(outputValue, capacity);
+		outputScript = Arrays.copyOf(outputScript, capacity);
+		outputScriptLength = Arrays.copyOf(outputScriptLength, capacity);
+		outputTransaction = Arrays.copyOf(outputTransaction, capacity);
+	}
+
+	private int u8(int offset) {
+		return data.get(offset) & 0xFF;
+	}
+
+	// A varint count of items at least minLength bytes long each, checked against the bytes left
+	private int count(int minLength) {
+		int first = u8(position);
+		long count;
+		if (first < 0xFD) {
+			count = first;
+			position += 1;
+		} else if (first == 0xFD) {
+			count = data.getShort(position + 1) & 0xFFFF;
+			position += 3;
+		} else if (first == 0xFE) {
+			count = data.getInt(position + 1) & 0xFFFFFFFFL;
+			position += 5;
+		} else {
+			count = data.getLong(position + 1);
+			position += 9;
+		}
+
+		if (count < 0 || count > (data.limit() - position) / minLength)
+			throw new IllegalArgumentException("Truncated block, " + count + " items at " + position);
+		return (int) count;
+	}
+
+	private void skip(int length) {
+		if (length > data.limit() - position)
+			throw new IllegalArgumentException("Truncated block at " + position);
+		position += length;
+	}
+}
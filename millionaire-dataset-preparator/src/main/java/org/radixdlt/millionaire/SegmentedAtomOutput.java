@@ -0,0 +1,238 @@
+package org.radixdlt.millionaire;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Writes atoms as rolling segments with per record CRCs and a footer index, see AtomSegments
+class SegmentedAtomOutput implements AtomOutput {
+	private static final byte CHECKPOINT_FORMAT = 2;
+
+	private final File base;
+	private final long segmentSize;
+	private final int bufferSize;
+
+	private int segment;
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private long position;
+	// Position the open segment is on disk up to
+	private long syncedPosition;
+	private long unflushed = 0;
+
+	// Index entries of the open segment
+	private long[] txPrefixes = new long[1024];
+	private int[] txOffsets = new int[1024];
+	private int txCount = 0;
+	private long[] blocks = new long[256];
+	private int[] blockOffsets = new int[256];
+	private int blockCount = 0;
+
+	SegmentedAtomOutput(File base, long segmentSize, int bufferSize) throws IOException {
+		this(base, segmentSize, bufferSize, null);
+	}
+
+	// A checkpoint's position is [int segment][long offset in the segment]
+	SegmentedAtomOutput(File base, long segmentSize, int bufferSize, byte[] checkpoint) throws IOException {
+		if (segmentSize > AtomSegments.MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Segments are limited to " + AtomSegments.MAX_SEGMENT_SIZE + " bytes");
+
+		this.base = base;
+		this.segmentSize = segmentSize;
+		this.bufferSize = bufferSize;
+
+		ByteBuffer committed = AtomOutput.position(checkpoint, CHECKPOINT_FORMAT, base);
+		if (committed != null)
+			truncate(committed.getInt(), committed.getLong());
+
+		List<File> existing = AtomSegments.segmentFiles(base);
+		if (!existing.isEmpty() && reopen(existing.size() - 1))
+			return;
+
+		open(existing.size());
+	}
+
+	// Drops the segments after the committed one and the records after the committed offset. A
+	// segment closed right at the checkpoint keeps its trailer.
+	private void truncate(int segment, long offset) throws IOException {
+		for (int later = segment + 1; AtomSegments.segmentFile(base, later).exists(); later++)
+			AtomSegments.segmentFile(base, later).delete();
+
+		File file = AtomSegments.segmentFile(base, segment);
+		if (!file.exists()) {
+			// Closed without records
+			if (offset > AtomSegments.HEADER_LENGTH)
+				throw new IOException("Atoms segment " + file + " committed up to " + offset + " is missing");
+			return;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			MappedByteBuffer mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			int trailer = AtomSegments.trailer(mapping);
+			if (trailer >= 0 && mapping.getLong(trailer) == offset)
+				return;
+		}
+		AtomOutput.truncate(file, offset);
+	}
+
+	// Continues a segment left without a trailer, dropping anything after its last good record
+	private boolean reopen(int segment) throws IOException {
+		File file = AtomSegments.segmentFile(base, segment);
+		int end;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < AtomSegments.HEADER_LENGTH) {
+				raf.setLength(0);
+				end = -1;
+			} else {
+				MappedByteBuffer mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (AtomSegments.trailer(mapping) >= 0)
+					return false;
+
+				end = AtomSegments.scanRecords(mapping, mapping.limit(), (offset, block, payload) -> index(offset, block, AtomSegments.txIdPrefix(payload)));
+				System.out.println("Recovered " + txCount + " atoms from unfinished " + file.getName() + ", truncating " + (raf.length() - end) + " bytes");
+				raf.setLength(end);
+			}
+		}
+
+		if (end < 0) {
+			open(segment);
+			return true;
+		}
+
+		this.segment = segment;
+		this.position = end;
+		this.syncedPosition = end;
+		this.file = new FileOutputStream(file, true);
+		this.out = new DataOutputStream(new BufferedOutputStream(this.file, bufferSize));
+		return true;
+	}
+
+	private void open(int segment) throws IOException {
+		this.segment = segment;
+		this.file = new FileOutputStream(AtomSegments.segmentFile(base, segment));
+		this.out = new DataOutputStream(new BufferedOutputStream(this.file, bufferSize));
+		out.writeInt(AtomSegments.MAGIC);
+		out.writeShort(AtomSegments.VERSION);
+		out.writeShort(0);
+		out.writeInt(segment);
+		out.writeInt(0);
+		this.position = AtomSegments.HEADER_LENGTH;
+		this.syncedPosition = 0;
+		this.txCount = 0;
+		this.blockCount = 0;
+	}
+
+	private void index(int offset, long block, long txPrefix) {
+		if (txCount == txPrefixes.length) {
+			txPrefixes = Arrays.copyOf(txPrefixes, txCount * 2);
+			txOffsets = Arrays.copyOf(txOffsets, txCount * 2);
+		}
+		txPrefixes[txCount] = txPrefix;
+		txOffsets[txCount++] = offset;
+
+		if (blockCount == 0 || blocks[blockCount - 1] != block) {
+			if (blockCount == blocks.length) {
+				blocks = Arrays.copyOf(blocks, blockCount * 2);
+				blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+			}
+			blocks[blockCount] = block;
+			blockOffsets[blockCount++] = offset;
+		}
+	}
+
+	@Override
+	public void write(byte[] record, Set<Long> shards, long block) throws IOException {
+		// Roll over between blocks only
+		boolean newBlock = blockCount == 0 || blocks[blockCount - 1] != block;
+		if (newBlock && txCount > 0 && position + AtomSegments.RECORD_HEADER_LENGTH + record.length > segmentSize) {
+			finish();
+			open(segment + 1);
+		}
+
+		if (position + AtomSegments.RECORD_HEADER_LENGTH + record.length > AtomSegments.MAX_SEGMENT_SIZE)
+			throw new IOException("Block " + block + " does not fit in a segment");
+
+		index((int) position, block, AtomSegments.txIdPrefix(record));
+
+		out.writeInt(record.length);
+		out.writeInt(AtomSegments.crc(block, ByteBuffer.wrap(record)));
+		out.writeLong(block);
+		out.write(record);
+
+		position += AtomSegments.RECORD_HEADER_LENGTH + record.length;
+		unflushed += AtomSegments.RECORD_HEADER_LENGTH + record.length;
+	}
+
+	// Writes the footer and trailer of the open segment, and syncs it as a later checkpoint may
+	// point past it
+	private void finish() throws IOException {
+		Integer[] order = new Integer[txCount];
+		for (int i = 0; i < txCount; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(txPrefixes[a], txPrefixes[b]));
+
+		ByteBuffer footer = ByteBuffer.allocate((txCount + blockCount) * AtomSegments.INDEX_ENTRY_LENGTH);
+		for (int i : order)
+			footer.putLong(txPrefixes[i]).putInt(txOffsets[i]);
+		for (int i = 0; i < blockCount; i++)
+			footer.putLong(blocks[i]).putInt(blockOffsets[i]);
+
+		CRC32 crc = new CRC32();
+		crc.update(footer.array());
+
+		out.write(footer.array());
+		out.writeLong(position);
+		out.writeInt(txCount);
+		out.writeLong(position + (long) txCount * AtomSegments.INDEX_ENTRY_LENGTH);
+		out.writeInt(blockCount);
+		out.writeInt((int) crc.getValue());
+		out.writeInt(AtomSegments.TRAILER_MAGIC);
+		out.flush();
+		file.getChannel().force(false);
+		out.close();
+		unflushed = 0;
+	}
+
+	@Override
+	public long unflushed() {
+		return unflushed;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		unflushed = 0;
+	}
+
+	@Override
+	public byte[] checkpoint() throws IOException {
+		flush();
+		if (position != syncedPosition) {
+			file.getChannel().force(false);
+			syncedPosition = position;
+		}
+		return AtomOutput.checkpoint(CHECKPOINT_FORMAT, 12).putInt(segment).putLong(position).array();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (txCount == 0) {
+			// Don't leave an empty segment behind
+			out.close();
+			AtomSegments.segmentFile(base, segment).delete();
+			return;
+		}
+		finish();
+	}
+}
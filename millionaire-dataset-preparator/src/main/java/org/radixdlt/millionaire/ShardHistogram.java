@@ -0,0 +1,190 @@
+package org.radixdlt.millionaire;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Atoms and particles by where their shards fall in a shard chunk. As in the explorer's NodeInfo
+// the shard space is split into 1 << 20 chunks and a node serves the positions shard % 2^43 within
+// [low, high], see ShardPartitioning. The chunk is counted in BINS equal bins of 2^30 positions.
+// An atom counts once in every bin holding any of its shards, as every node serving one of them
+// stores it, a particle counts in the bin of its address's shard.
+//
+// Serialized as [long atoms][int bins] then the atom and the particle count of every bin as
+// unsigned varints.
+final class ShardHistogram {
+	static final int BIN_BITS = 14;
+	static final int BINS = 1 << BIN_BITS;
+	private static final int BIN_SHIFT = 44 - BIN_BITS;
+	private static final long LOWEST = -ShardPartitioning.HALF_CHUNK_RANGE + 1;
+	private static final long HIGHEST = ShardPartitioning.HALF_CHUNK_RANGE - 1;
+
+	private final AtomicLongArray atoms = new AtomicLongArray(BINS);
+	private final AtomicLongArray particles = new AtomicLongArray(BINS);
+	private final AtomicLong totalAtoms = new AtomicLong();
+
+	static int bin(long shard) {
+		return (int) ((ShardPartitioning.position(shard) + ShardPartitioning.HALF_CHUNK_RANGE) >>> BIN_SHIFT);
+	}
+
+	// Lowest position of a bin
+	static long low(int bin) {
+		return Math.max(((long) bin << BIN_SHIFT) - ShardPartitioning.HALF_CHUNK_RANGE, LOWEST);
+	}
+
+	void record(Set<Long> shards, long[] particleShards) {
+		int[] bins = new int[shards.size()];
+		int count = 0;
+		for (long shard : shards) {
+			int bin = bin(shard);
+			boolean seen = false;
+			for (int b = 0; b < count && !seen; b++)
+				seen = bins[b] == bin;
+			if (!seen) {
+				bins[count++] = bin;
+				atoms.incrementAndGet(bin);
+			}
+		}
+		for (long shard : particleShards)
+			particles.incrementAndGet(bin(shard));
+		totalAtoms.incrementAndGet();
+	}
+
+	long atoms() {
+		return totalAtoms.get();
+	}
+
+	long[] atomsByBin() {
+		return toArray(atoms);
+	}
+
+	private static long[] toArray(AtomicLongArray counts) {
+		long[] values = new long[counts.length()];
+		for (int b = 0; b < values.length; b++)
+			values[b] = counts.get(b);
+		return values;
+	}
+
+	// Boundaries of nodes contiguous bin ranges holding about the same atoms each: node i gets bins
+	// [cuts[i], cuts[i + 1]). Every node gets at least one bin, equal widths when nothing was counted
+	static int[] cuts(long[] counts, int nodes) {
+		if (nodes < 1 || nodes > counts.length)
+			throw new IllegalArgumentException("Can't split " + counts.length + " bins between " + nodes + " nodes");
+
+		long total = 0;
+		for (long count : counts)
+			total += count;
+
+		int[] cuts = new int[nodes + 1];
+		cuts[nodes] = counts.length;
+		long before = 0;
+		int bin = 0;
+		for (int k = 1; k < nodes; k++) {
+			int cut;
+			if (total == 0) {
+				cut = (int) ((long) counts.length * k / nodes);
+			} else {
+				// The boundary with just under or just over the target before it, whichever is closer
+				double target = (double) total * k / nodes;
+				while (bin < counts.length && before + counts[bin] < target)
+					before += counts[bin++];
+				cut = bin < counts.length && before + counts[bin] - target < target - before ? bin + 1 : bin;
+			}
+			cuts[k] = Math.min(Math.max(cut, cuts[k - 1] + 1), counts.length - (nodes - k));
+		}
+		return cuts;
+	}
+
+	// Ranges for nodes nodes with the same expected atoms, each widened by overlap of its width,
+	// half on either side, as the shard allocator does with SHARD_OVERLAP
+	ShardPartitioning plan(int nodes, double overlap) {
+		return plan(cuts(atomsByBin(), nodes), overlap);
+	}
+
+	private static ShardPartitioning plan(int[] cuts, double overlap) {
+		int nodes = cuts.length - 1;
+		long[] lows = new long[nodes], highs = new long[nodes];
+		for (int i = 0; i < nodes; i++) {
+			long low = low(cuts[i]);
+			long high = cuts[i + 1] == BINS ? HIGHEST : low(cuts[i + 1]) - 1;
+			long extension = (long) ((high - low + 1) * overlap / 2);
+			lows[i] = Math.max(low - extension, LOWEST);
+			highs[i] = Math.min(high + extension, HIGHEST);
+		}
+		return new ShardPartitioning(lows, highs);
+	}
+
+	// "low high" per node, readable by ShardPartitioning.fromFile and the shard allocator's SHARD_PLAN
+	void writePlan(File file, int nodes, double overlap) throws IOException {
+		long[] counts = atomsByBin();
+		int[] cuts = cuts(counts, nodes);
+		ShardPartitioning plan = plan(cuts, overlap);
+		try (PrintWriter out = new PrintWriter(file)) {
+			out.printf(Locale.US, "# %d nodes, %.2f overlap, %d atoms%n", nodes, overlap, totalAtoms.get());
+			out.println("# low high  # expected atoms before overlap");
+			for (int i = 0; i < nodes; i++) {
+				long expected = 0;
+				for (int b = cuts[i]; b < cuts[i + 1]; b++)
+					expected += counts[b];
+				out.printf("%d %d  # %d%n", plan.lows[i], plan.highs[i], expected);
+			}
+		}
+	}
+
+	void writeCsv(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(file)) {
+			out.println("bin,low,high,atoms,particles");
+			for (int b = 0; b < BINS; b++)
+				out.printf("%d,%d,%d,%d,%d%n", b, low(b), b == BINS - 1 ? HIGHEST : low(b + 1) - 1, atoms.get(b), particles.get(b));
+		}
+	}
+
+	// Not consistent while atoms are recorded
+	byte[] toByteArray() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8 + 4 + 2 * BINS);
+		ByteBuffer header = ByteBuffer.allocate(8 + 4).putLong(totalAtoms.get()).putInt(BINS);
+		out.write(header.array(), 0, header.capacity());
+		for (int b = 0; b < BINS; b++) {
+			writeVarint(out, atoms.get(b));
+			writeVarint(out, particles.get(b));
+		}
+		return out.toByteArray();
+	}
+
+	static ShardHistogram fromByteArray(byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		ShardHistogram histogram = new ShardHistogram();
+		histogram.totalAtoms.set(buffer.getLong());
+		if (buffer.getInt() != BINS)
+			throw new IOException("Shard histogram has a different number of bins");
+		for (int b = 0; b < BINS; b++) {
+			histogram.atoms.set(b, readVarint(buffer));
+			histogram.particles.set(b, readVarint(buffer));
+		}
+		return histogram;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.radixdlt.millionaire;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// Splits the shard space into partitions, each an inclusive [low, high] range of positions within
+// a shard chunk. A shard's position is shard % 2^43, the same mapping the explorer uses to test
+// whether a node serves a shard. Ranges may overlap, an atom belongs to every partition holding
+// any of its shards.
+class ShardPartitioning {
+	static final long HALF_CHUNK_RANGE = 1L << 43;
+	private static final long CHUNK_RANGE = 1L << 44;
+
+	final long[] lows, highs;
+
+	ShardPartitioning(long[] lows, long[] highs) {
+		if (lows.length != highs.length || lows.length == 0)
+			throw new IllegalArgumentException("Need at least one partition");
+
+		for (int i = 0; i < lows.length; i++) {
+			if (lows[i] > highs[i] || lows[i] <= -HALF_CHUNK_RANGE || highs[i] >= HALF_CHUNK_RANGE)
+				throw new IllegalArgumentException("Invalid partition range " + lows[i] + " " + highs[i]);
+		}
+
+		this.lows = lows;
+		this.highs = highs;
+	}
+
+	int size() {
+		return lows.length;
+	}
+
+	static long position(long shard) {
+		return shard % HALF_CHUNK_RANGE;
+	}
+
+	// Partitions touched by any of the shards, in ascending order
+	int[] partitionsOf(Set<Long> shards) {
+		int[] partitions = new int[lows.length];
+		int count = 0;
+		for (int p = 0; p < lows.length; p++) {
+			for (long shard : shards) {
+				long position = position(shard);
+				if (position >= lows[p] && position <= highs[p]) {
+					partitions[count++] = p;
+					break;
+				}
+			}
+		}
+
+		int[] result = new int[count];
+		System.arraycopy(partitions, 0, result, 0, count);
+		return result;
+	}
+
+	// N disjoint ranges of equal width covering the whole chunk
+	static ShardPartitioning equal(int partitions) {
+		long[] lows = new long[partitions], highs = new long[partitions];
+		long width = (CHUNK_RANGE - 1) / partitions;
+		for (int p = 0; p < partitions; p++) {
+			lows[p] = -HALF_CHUNK_RANGE + 1 + width * p;
+			highs[p] = p == partitions - 1 ? HALF_CHUNK_RANGE - 1 : lows[p] + width - 1;
+		}
+		return new ShardPartitioning(lows, highs);
+	}
+
+	// One partition per node of the shard allocator's layout (SHARD_COUNT, SHARD_OVERLAP), each
+	// covering the extended range around the node's target anchor so a node's loader gets every
+	// atom the node serves, including the overlap with its neighbours
+	static ShardPartitioning allocatorLayout(int shardCount, double overlap) {
+		long target = (long) (CHUNK_RANGE / (shardCount + overlap));
+		long overlapShards = (long) (target * overlap);
+		long extended = target + overlapShards;
+		double offset = overlapShards / 2.0;
+
+		long[] lows = new long[shardCount], highs = new long[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			long anchor = (long) (offset + target * (i + 0.5) - CHUNK_RANGE / 2);
+			lows[i] = Math.max(anchor - extended / 2, -HALF_CHUNK_RANGE + 1);
+			highs[i] = Math.min(anchor + extended / 2, HALF_CHUNK_RANGE - 1);
+		}
+		return new ShardPartitioning(lows, highs);
+	}
+
+	// "low high" per line, # starts a comment
+	static ShardPartitioning fromFile(File file) throws IOException {
+		List<long[]> ranges = new ArrayList<>();
+		for (String line : Files.readAllLines(file.toPath())) {
+			line = line.replaceAll("#.*", "").trim();
+			if (line.isEmpty())
+				continue;
+
+			String[] parts = line.split("\\s+");
+			if (parts.length != 2)
+				throw new IOException("Expected \"low high\" in " + file + ": " + line);
+			ranges.add(new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) });
+		}
+
+		long[] lows = new long[ranges.size()], highs = new long[ranges.size()];
+		for (int p = 0; p < ranges.size(); p++) {
+			lows[p] = ranges.get(p)[0];
+			highs[p] = ranges.get(p)[1];
+		}
+		return new ShardPartitioning(lows, highs);
+	}
+
+	// --partitions argument: a partition count, "layout:<shardCount>[:<overlap>]" or a ranges file
+	static ShardPartitioning parse(String spec) throws IOException {
+		if (spec.startsWith("layout:")) {
+			String[] parts = spec.split(":");
+			return allocatorLayout(Integer.parseInt(parts[1]), parts.length > 2 ? Double.parseDouble(parts[2]) : 0.1);
+		}
+		if (spec.matches("\\d+"))
+			return equal(Integer.parseInt(spec));
+		return fromFile(new File(spec));
+	}
+}
@@ -0,0 +1,483 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// Writes a synthetic chain as bitcoind blk%05d.dat files the preparator can be run on end to end:
+// the mainnet genesis block followed by mined blocks (at the regtest target, so the proof of work
+// is real but cheap) of coinbase and spending transactions. Fan in, fan out and output script
+// types are drawn from weighted "value:weight,..." lists, outputs are spent after an exponentially
+// distributed number of blocks, 0 spending them later in the same block. Output addresses are
+// drawn from a pool, skewed towards its start so that some addresses are hot.
+//
+// gradle syntheticChain [-Pblocks=<blocks dir>] [-PchainArgs="--blocks 2000 --txs 500 ..."]
+public class SyntheticChain {
+	static final int BLOCK_VERSION = 4;
+	static final long BLOCK_INTERVAL_SECONDS = 600;
+	static final long REGTEST_BITS = 0x207fffffL;
+
+	static final long COIN = 100_000_000L;
+	static final long HALVING_INTERVAL = 210_000;
+
+	static final int SCRIPT_P2PKH = 0, SCRIPT_P2PK = 1, SCRIPT_P2SH = 2, SCRIPT_P2WPKH = 3, SCRIPT_ZERO = 4;
+	static final String[] SCRIPT_NAMES = { "p2pkh", "p2pk", "p2sh", "p2wpkh", "zero" };
+
+	static class Options {
+		int blocks = 1000;
+		int transactionsPerBlock = 200;
+		String inputs = "1:60,2:25,3:10,5:4,20:1";
+		String outputs = "1:20,2:65,3:10,10:4,50:1";
+		String scripts = "p2pkh:70,p2pk:5,p2sh:10,p2wpkh:13,zero:2";
+		double lifetime = 20;
+		double unspent = 0.1;
+		int addresses = 100_000;
+		double addressSkew = 2.0;
+		long fileSize = 128L * 1024 * 1024;
+		long seed = 1;
+	}
+
+	// Value drawn with probability proportional to its weight
+	static class Weighted {
+		private final int[] values;
+		private final double[] cumulative;
+
+		Weighted(int[] values, double[] weights) {
+			this.values = values;
+			this.cumulative = new double[weights.length];
+			double total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				if (weights[i] < 0)
+					throw new IllegalArgumentException("Negative weight " + weights[i]);
+				total += weights[i];
+				cumulative[i] = total;
+			}
+			if (total <= 0)
+				throw new IllegalArgumentException("No positive weight");
+			for (int i = 0; i < cumulative.length; i++)
+				cumulative[i] /= total;
+		}
+
+		// "value:weight,...", values named through names when given
+		static Weighted parse(String spec, String[] names) {
+			String[] entries = spec.split(",");
+			int[] values = new int[entries.length];
+			double[] weights = new double[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				String[] entry = entries[i].trim().split(":");
+				if (entry.length != 2)
+					throw new IllegalArgumentException("Expected value:weight, got " + entries[i]);
+				values[i] = names == null ? Integer.parseInt(entry[0]) : index(names, entry[0]);
+				weights[i] = Double.parseDouble(entry[1]);
+			}
+			return new Weighted(values, weights);
+		}
+
+		private static int index(String[] names, String name) {
+			for (int i = 0; i < names.length; i++)
+				if (names[i].equalsIgnoreCase(name))
+					return i;
+			throw new IllegalArgumentException("Unknown value " + name);
+		}
+
+		int next(Random random) {
+			double u = random.nextDouble();
+			for (int i = 0; i < cumulative.length - 1; i++)
+				if (u < cumulative[i])
+					return values[i];
+			return values[values.length - 1];
+		}
+	}
+
+	private static class Spendable {
+		final byte[] txId;
+		final int index;
+		final long value;
+
+		Spendable(byte[] txId, int index, long value) {
+			this.txId = txId;
+			this.index = index;
+			this.value = value;
+		}
+	}
+
+	private final Options options;
+	private final NetworkParameters np;
+	private final Random random;
+	private final Weighted inputs, outputs, scripts;
+	private final KeyHandler keyHandler = new BouncyCastleKeyHandler();
+
+	// Address hashes, and public keys for the P2PK outputs made lazily from them
+	private final byte[][] addressHashes;
+	private final byte[][] publicKeys;
+
+	// Outputs that may be spent now, and the ones maturing at later heights
+	private final List<Spendable> ready = new ArrayList<>();
+	private final Map<Long, List<Spendable>> maturing = new HashMap<>();
+
+	private File blocksDir;
+	private int fileNo = 0;
+	private long fileLength = 0;
+	private OutputStream file;
+
+	long transactions, spent, created, unspendable;
+	final long[] scriptCounts = new long[SCRIPT_NAMES.length];
+
+	SyntheticChain(Options options) {
+		this.options = options;
+		this.np = MainNetParams.get();
+		this.random = new Random(options.seed);
+		this.inputs = Weighted.parse(options.inputs, null);
+		this.outputs = Weighted.parse(options.outputs, null);
+		this.scripts = Weighted.parse(options.scripts, SCRIPT_NAMES);
+
+		this.addressHashes = new byte[options.addresses][];
+		this.publicKeys = new byte[options.addresses][];
+		for (int i = 0; i < options.addresses; i++) {
+			addressHashes[i] = new byte[20];
+			random.nextBytes(addressHashes[i]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: SyntheticChain <blocks dir> [--blocks N] [--txs N] [--inputs value:weight,...] " +
+					"[--outputs value:weight,...] [--scripts p2pkh:w,p2pk:w,p2sh:w,p2wpkh:w,zero:w] [--lifetime blocks] " +
+					"[--unspent fraction] [--addresses N] [--address-skew S] [--file-size MB] [--seed S]");
+			return;
+		}
+
+		Options options = new Options();
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "--blocks":
+					options.blocks = Integer.parseInt(args[++i]);
+					break;
+				case "--txs":
+					options.transactionsPerBlock = Integer.parseInt(args[++i]);
+					break;
+				case "--inputs":
+					options.inputs = args[++i];
+					break;
+				case "--outputs":
+					options.outputs = args[++i];
+					break;
+				case "--scripts":
+					options.scripts = args[++i];
+					break;
+				case "--lifetime":
+					options.lifetime = Double.parseDouble(args[++i]);
+					break;
+				case "--unspent":
+					options.unspent = Double.parseDouble(args[++i]);
+					break;
+				case "--addresses":
+					options.addresses = Integer.parseInt(args[++i]);
+					break;
+				case "--address-skew":
+					options.addressSkew = Double.parseDouble(args[++i]);
+					break;
+				case "--file-size":
+					options.fileSize = Long.parseLong(args[++i]) * 1024 * 1024;
+					break;
+				case "--seed":
+					options.seed = Long.parseLong(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		SyntheticChain chain = new SyntheticChain(options);
+		chain.write(new File(args[0]));
+
+		System.out.println(String.format(Locale.US, "Wrote %d blocks, %d transactions, %d inputs, %d outputs to %d files in %dms",
+				options.blocks + 1, chain.transactions, chain.spent, chain.created, chain.fileNo + 1, System.currentTimeMillis() - start));
+		StringBuilder scriptCounts = new StringBuilder("Outputs:");
+		for (int s = 0; s < SCRIPT_NAMES.length; s++)
+			scriptCounts.append(' ').append(SCRIPT_NAMES[s]).append(' ').append(chain.scriptCounts[s]);
+		System.out.println(scriptCounts);
+	}
+
+	void write(File blocksDir) throws IOException, CryptoException {
+		if (!blocksDir.exists() && !blocksDir.mkdirs())
+			throw new IOException("Cannot create " + blocksDir);
+		this.blocksDir = blocksDir;
+
+		try {
+			// The parser starts from the mainnet genesis block
+			byte[] genesis = np.getGenesisBlock().bitcoinSerialize();
+			writeBlock(genesis);
+
+			Sha256Hash prevHash = np.getGenesisBlock().getHash();
+			long time = np.getGenesisBlock().getTimeSeconds();
+			for (long height = 1; height <= options.blocks; height++) {
+				time += BLOCK_INTERVAL_SECONDS;
+				byte[] block = block(height, prevHash, time);
+				writeBlock(block);
+				prevHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(block, 0, BlockFiles.HEADER_LENGTH));
+
+				if (height % 1000 == 0)
+					System.out.println(String.format(Locale.US, "Block %d/%d, %d transactions, %d spendable outputs", height, options.blocks, transactions, ready.size()));
+			}
+		} finally {
+			if (file != null)
+				file.close();
+		}
+	}
+
+	// [magic][length][block] records, rolling over to the next file like bitcoind does
+	private void writeBlock(byte[] block) throws IOException {
+		if (file != null && fileLength + 8 + block.length > options.fileSize) {
+			file.close();
+			file = null;
+			fileNo++;
+		}
+		if (file == null) {
+			file = new BufferedOutputStream(new FileOutputStream(new File(blocksDir, String.format(Locale.US, "blk%05d.dat", fileNo))), 1 << 20);
+			fileLength = 0;
+		}
+
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt((int) np.getPacketMagic());
+		out.writeInt(Integer.reverseBytes(block.length));
+		out.write(block);
+		fileLength += 8 + block.length;
+	}
+
+	private byte[] block(long height, Sha256Hash prevHash, long time) throws IOException, CryptoException {
+		List<Spendable> due = maturing.remove(height);
+		if (due != null)
+			ready.addAll(due);
+
+		List<byte[]> txs = new ArrayList<>();
+		List<byte[]> txIds = new ArrayList<>();
+		long fees = 0;
+
+		// Spending transactions first so the coinbase can claim their fees, it goes in front
+		int count = options.transactionsPerBlock / 2 + random.nextInt(options.transactionsPerBlock + 1);
+		for (int t = 0; t < count && !ready.isEmpty(); t++) {
+			List<Spendable> spends = new ArrayList<>();
+			long value = 0;
+			for (int i = Math.min(Math.max(1, inputs.next(random)), ready.size()); i > 0; i--) {
+				Spendable spendable = take(random.nextInt(ready.size()));
+				spends.add(spendable);
+				value += spendable.value;
+			}
+			long fee = Math.min(value, random.nextInt(10_000));
+			fees += fee;
+
+			byte[] tx = transaction(height, spends, Math.max(1, outputs.next(random)), value - fee);
+			txs.add(tx);
+			txIds.add(Sha256Hash.hashTwice(tx));
+		}
+
+		long reward = (50 * COIN >> Math.min(63, height / HALVING_INTERVAL)) + fees;
+		byte[] coinbase = transaction(height, null, 1, reward);
+		txs.add(0, coinbase);
+		txIds.add(0, Sha256Hash.hashTwice(coinbase));
+		transactions += txs.size();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] header = header(prevHash, merkleRoot(txIds), time);
+		bytes.write(header);
+		writeVarInt(bytes, txs.size());
+		for (byte[] tx : txs)
+			bytes.write(tx);
+		return bytes.toByteArray();
+	}
+
+	private Spendable take(int index) {
+		Spendable spendable = ready.get(index);
+		ready.set(index, ready.get(ready.size() - 1));
+		ready.remove(ready.size() - 1);
+		return spendable;
+	}
+
+	// A version 1 transaction without witnesses, the coinbase when spends is null
+	private byte[] transaction(long height, List<Spendable> spends, int outputCount, long value) throws IOException, CryptoException {
+		ByteArrayOutputStream tx = new ByteArrayOutputStream();
+		writeInt(tx, 1);
+
+		if (spends == null) {
+			writeVarInt(tx, 1);
+			tx.write(new byte[32]);
+			writeInt(tx, 0xFFFFFFFF);
+			// BIP34 height, which also keeps coinbase ids unique
+			byte[] script = { 4, (byte) height, (byte) (height >> 8), (byte) (height >> 16), (byte) (height >> 24) };
+			writeVarInt(tx, script.length);
+			tx.write(script);
+			writeInt(tx, 0xFFFFFFFF);
+		} else {
+			writeVarInt(tx, spends.size());
+			for (Spendable spend : spends) {
+				tx.write(spend.txId);
+				writeInt(tx, spend.index);
+				// A signature and compressed public key push, as spending P2PKH looks
+				byte[] script = new byte[2 + 72 + 33];
+				random.nextBytes(script);
+				script[0] = 72;
+				script[1 + 72] = 33;
+				writeVarInt(tx, script.length);
+				tx.write(script);
+				writeInt(tx, 0xFFFFFFFF);
+			}
+			spent += spends.size();
+		}
+
+		int[] types = new int[outputCount];
+		int paid = 0;
+		for (int o = 0; o < outputCount; o++) {
+			types[o] = scripts.next(random);
+			if (types[o] != SCRIPT_ZERO)
+				paid++;
+		}
+
+		// Random split of the value over the outputs that are paid
+		long[] values = new long[outputCount];
+		long remaining = value;
+		for (int o = 0; o < outputCount; o++) {
+			if (types[o] == SCRIPT_ZERO)
+				continue;
+			values[o] = --paid == 0 ? remaining : (long) (remaining * random.nextDouble() / 2);
+			remaining -= values[o];
+		}
+
+		writeVarInt(tx, outputCount);
+		for (int o = 0; o < outputCount; o++) {
+			writeLong(tx, values[o]);
+			byte[] script = script(types[o]);
+			writeVarInt(tx, script.length);
+			tx.write(script);
+			scriptCounts[types[o]]++;
+		}
+		writeInt(tx, 0);
+
+		byte[] bytes = tx.toByteArray();
+		byte[] txId = Sha256Hash.hashTwice(bytes);
+		for (int o = 0; o < outputCount; o++)
+			schedule(height, new Spendable(txId, o, values[o]), types[o]);
+		created += outputCount;
+		return bytes;
+	}
+
+	private void schedule(long height, Spendable output, int type) {
+		if (type == SCRIPT_ZERO || random.nextDouble() < options.unspent) {
+			unspendable++;
+			return;
+		}
+
+		long age = (long) (-options.lifetime * Math.log(1 - random.nextDouble()));
+		if (age == 0)
+			ready.add(output);
+		else
+			maturing.computeIfAbsent(height + age, h -> new ArrayList<>()).add(output);
+	}
+
+	private byte[] script(int type) throws CryptoException {
+		int address = (int) (options.addresses * Math.pow(random.nextDouble(), options.addressSkew));
+		byte[] hash = addressHashes[address];
+		switch (type) {
+			case SCRIPT_P2PK:
+				if (publicKeys[address] == null)
+					publicKeys[address] = keyHandler.computePublicKey(Sha256Hash.hash(hash));
+				byte[] publicKey = publicKeys[address];
+				return concat(new byte[] { (byte) publicKey.length }, publicKey, new byte[] { (byte) 0xac });
+			case SCRIPT_P2SH:
+				return concat(new byte[] { (byte) 0xa9, 20 }, hash, new byte[] { (byte) 0x87 });
+			case SCRIPT_P2WPKH:
+				return concat(new byte[] { 0, 20 }, hash);
+			default:
+				// P2PKH, also for zero value outputs
+				return concat(new byte[] { 0x76, (byte) 0xa9, 20 }, hash, new byte[] { (byte) 0x88, (byte) 0xac });
+		}
+	}
+
+	// Mines the header against the regtest target, about two attempts
+	private static byte[] header(Sha256Hash prevHash, byte[] merkleRoot, long time) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(BlockFiles.HEADER_LENGTH);
+		writeInt(header, BLOCK_VERSION);
+		header.write(prevHash.getReversedBytes());
+		header.write(merkleRoot);
+		writeInt(header, (int) time);
+		writeInt(header, (int) REGTEST_BITS);
+		writeInt(header, 0);
+		byte[] bytes = header.toByteArray();
+
+		BigInteger target = BigInteger.valueOf(REGTEST_BITS & 0xFFFFFFL).shiftLeft(8 * ((int) (REGTEST_BITS >>> 24) - 3));
+		for (int nonce = 0; ; nonce++) {
+			bytes[76] = (byte) nonce;
+			bytes[77] = (byte) (nonce >> 8);
+			bytes[78] = (byte) (nonce >> 16);
+			bytes[79] = (byte) (nonce >> 24);
+			if (Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes)).toBigInteger().compareTo(target) <= 0)
+				return bytes;
+		}
+	}
+
+	// Over transaction hashes in internal byte order, the last one paired with itself on odd levels
+	static byte[] merkleRoot(List<byte[]> txIds) {
+		List<byte[]> level = txIds;
+		while (level.size() > 1) {
+			List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2)
+				next.add(Sha256Hash.hashTwice(concat(level.get(i), level.get(Math.min(i + 1, level.size() - 1)))));
+			level = next;
+		}
+		return level.get(0);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts)
+			length += part.length;
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, bytes, offset, part.length);
+			offset += part.length;
+		}
+		return bytes;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >> 8);
+		out.write(value >> 16);
+		out.write(value >> 24);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long value) {
+		writeInt(out, (int) value);
+		writeInt(out, (int) (value >>> 32));
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, long value) {
+		if (value < 0xFD) {
+			out.write((int) value);
+		} else if (value <= 0xFFFF) {
+			out.write(0xFD);
+			out.write((int) value);
+			out.write((int) (value >> 8));
+		} else {
+			out.write(0xFE);
+			writeInt(out, (int) value);
+		}
+	}
+}
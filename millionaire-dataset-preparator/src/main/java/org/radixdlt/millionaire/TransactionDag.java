@@ -0,0 +1,129 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Dependencies between the transactions of a block: a transaction depends on the earlier ones in
+// the block whose outputs it spends. run() processes every transaction after all of its
+// dependencies, independent ones in parallel. A worker finishing a transaction carries on with
+// the first dependent it made ready, so chains of spends stay on one thread.
+final class TransactionDag {
+	interface Task {
+		void run(int transaction) throws Exception;
+	}
+
+	private final int size;
+	private final int[] dependencies;
+	private final int[][] dependents;
+
+	private TransactionDag(int size, int[] dependencies, int[][] dependents) {
+		this.size = size;
+		this.dependencies = dependencies;
+		this.dependents = dependents;
+	}
+
+	static TransactionDag of(RawBlock block) {
+		int size = block.transactions();
+		Map<Sha256Hash, Integer> indexes = new HashMap<>(size * 2);
+		int[] dependencies = new int[size];
+		int[] dependentCounts = new int[size];
+		int[][] parents = new int[size][];
+
+		for (int t = 0; t < size; t++) {
+			int[] transactionParents = new int[block.inputs(t)];
+			int count = 0;
+			for (int input = block.firstInput(t), end = input + block.inputs(t); input < end; input++) {
+				if (block.isCoinBase(input))
+					continue;
+				Integer parent = indexes.get(block.spentTxId(input));
+				if (parent == null)
+					continue;
+
+				// Several inputs can spend the same parent, it counts once
+				boolean seen = false;
+				for (int p = 0; p < count && !seen; p++)
+					seen = transactionParents[p] == parent;
+				if (!seen)
+					transactionParents[count++] = parent;
+			}
+			parents[t] = count == transactionParents.length ? transactionParents : Arrays.copyOf(transactionParents, count);
+			dependencies[t] = count;
+			for (int p = 0; p < count; p++)
+				dependentCounts[parents[t][p]]++;
+
+			indexes.put(block.txId(t), t);
+		}
+
+		int[][] dependents = new int[size][];
+		for (int t = 0; t < size; t++) {
+			dependents[t] = new int[dependentCounts[t]];
+			dependentCounts[t] = 0;
+		}
+		for (int t = 0; t < size; t++)
+			for (int parent : parents[t])
+				dependents[parent][dependentCounts[parent]++] = t;
+
+		return new TransactionDag(size, dependencies, dependents);
+	}
+
+	// Runs task for every transaction on the executor and waits for all of them. After a failure
+	// the remaining transactions are skipped and the first failure is thrown.
+	void run(ExecutorService executor, Task task) throws Exception {
+		if (size == 0)
+			return;
+
+		AtomicIntegerArray remaining = new AtomicIntegerArray(dependencies);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(size);
+
+		class Worker implements Runnable {
+			private int transaction;
+
+			Worker(int transaction) {
+				this.transaction = transaction;
+			}
+
+			@Override
+			public void run() {
+				while (transaction >= 0) {
+					if (failure.get() == null) {
+						try {
+							task.run(transaction);
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						} catch (Throwable t) {
+							failure.compareAndSet(null, new IllegalStateException("Processing transaction " + transaction + " failed", t));
+						}
+					}
+
+					int next = -1;
+					for (int dependent : dependents[transaction]) {
+						if (remaining.decrementAndGet(dependent) == 0) {
+							if (next < 0)
+								next = dependent;
+							else
+								executor.execute(new Worker(dependent));
+						}
+					}
+					done.countDown();
+					transaction = next;
+				}
+			}
+		}
+
+		for (int t = 0; t < size; t++)
+			if (dependencies[t] == 0)
+				executor.execute(new Worker(t));
+
+		done.await();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+}
@@ -0,0 +1,16 @@
+package org.radixdlt.millionaire;
+
+import com.sleepycat.je.Transaction;
+
+import java.io.IOException;
+
+// Unspent processed outputs, keyed by 36 byte binary outpoints (see Outpoint).
+// Every call receives the JE transaction of the block being processed; commit() is called with
+// that transaction right before it is committed so the store can make its own state part of it.
+interface UtxoStore {
+	byte[] take(Transaction dbtx, byte[] outpoint) throws IOException;
+	void put(Transaction dbtx, byte[] outpoint, byte[] value) throws IOException;
+	void commit(Transaction dbtx) throws IOException;
+	long size();
+	void close() throws IOException;
+}
@@ -0,0 +1,81 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.Bootstrap;
+import com.radixdlt.client.core.RadixUniverse;
+import com.radixdlt.client.core.atoms.Atom;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECKeyPairGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.radix.serialization2.DsonOutput;
+import org.radix.serialization2.client.Serialize;
+import org.radix.utils.UInt256;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AtomDsonTest {
+	// Around every boundary of the CBOR int encodings, and Jackson's switch to 8 byte longs
+	private static final long[] LONGS = {
+		0, 1, 23, 24, 255, 256, 65535, 65536, Integer.MAX_VALUE, Integer.MAX_VALUE + 1L, 0xffffffffL, 0x100000000L, Long.MAX_VALUE,
+		-1, -24, -25, -256, -257, -65536, -65537, Integer.MIN_VALUE, Integer.MIN_VALUE - 1L, Long.MIN_VALUE
+	};
+
+	private static RadixUniverse universe;
+	private static List<RadixAddress> addresses;
+
+	@BeforeClass
+	public static void createAddresses() {
+		universe = RadixUniverse.create(Bootstrap.LOCALHOST);
+		ECKeyPairGenerator generator = ECKeyPairGenerator.newInstance();
+		addresses = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			addresses.add(new RadixAddress(universe.getConfig(), generator.generateKeyPair().getPublicKey()));
+	}
+
+	private static List<SpunParticle<TransferrableTokensParticle>> particles(Random random, int count) {
+		List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			byte[] amount = new byte[32];
+			random.nextBytes(amount);
+			// Real amounts are satoshis times 10^10, leading zero bytes
+			for (int b = 0; b < random.nextInt(32); b++)
+				amount[b] = 0;
+
+			TransferrableTokensParticle particle = new TransferrableTokensParticle(UInt256.from(amount), UInt256.ONE,
+				addresses.get(random.nextInt(addresses.size())), LONGS[random.nextInt(LONGS.length)], universe.getNativeToken(),
+				LONGS[random.nextInt(LONGS.length)], ProcessedOutput.TOKEN_PERMISSIONS);
+			particles.add(random.nextBoolean() ? SpunParticle.up(particle) : SpunParticle.down(particle));
+		}
+		return particles;
+	}
+
+	@Test
+	public void encodesTheLibrarysHashDson() {
+		Random random = new Random(42);
+		// Up to 24 particles to cover both array length encodings
+		for (int count = 1; count <= 24; count++) {
+			for (int round = 0; round < 10; round++) {
+				List<SpunParticle<TransferrableTokensParticle>> particles = particles(random, count);
+				String btcTxId = String.format("%064x", random.nextLong());
+				long timestamp = 1231006505000L + random.nextInt(Integer.MAX_VALUE);
+
+				Atom atom = AtomDson.atom(particles, btcTxId, timestamp);
+				assertArrayEquals(Serialize.getInstance().toDson(atom, DsonOutput.Output.HASH), AtomDson.encode(particles, btcTxId, timestamp));
+				assertArrayEquals(atom.getHash().toByteArray(), AtomDson.hash(particles, btcTxId, timestamp));
+			}
+		}
+	}
+
+	@Test
+	public void selfCheckEnablesDirectHashing() {
+		assertTrue(AtomDson.selfCheck(universe.getConfig(), universe.getNativeToken()));
+		assertTrue(AtomDson.enabled);
+	}
+}
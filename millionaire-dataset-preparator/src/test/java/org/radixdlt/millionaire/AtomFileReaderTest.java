@@ -0,0 +1,184 @@
+package org.radixdlt.millionaire;
+
+import com.google.common.collect.ImmutableMap;
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TokenDefinitionParticle;
+import com.radixdlt.client.atommodel.tokens.TokenPermission;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.Bootstrap;
+import com.radixdlt.client.core.RadixUniverse;
+import com.radixdlt.client.core.atoms.particles.SpunParticle;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import com.radixdlt.client.core.crypto.ECKeyPairGenerator;
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.radix.common.ID.EUID;
+import org.radix.utils.UInt256;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomFileReaderTest {
+	private static final int RECORDS = 500;
+
+	private static RadixUniverse universe;
+	private static List<AtomFileWriter.AtomFileRecord> records;
+	private static List<byte[]> encoded;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void createRecords() throws Exception {
+		universe = RadixUniverse.create(Bootstrap.LOCALHOST);
+		KeyHandler keyHandler = new BouncyCastleKeyHandler();
+		ECKeyPairGenerator generator = ECKeyPairGenerator.newInstance();
+		Random random = new Random(42);
+
+		List<ECKeyPair> keys = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			keys.add(generator.generateKeyPair());
+
+		records = new ArrayList<>();
+		encoded = new ArrayList<>();
+		for (int i = 0; i < RECORDS; i++) {
+			byte[] txId = new byte[32];
+			random.nextBytes(txId);
+
+			Set<Long> shards = new HashSet<>();
+			List<SpunParticle<TransferrableTokensParticle>> particles = new ArrayList<>();
+			Map<EUID, ECSignature> signatures = new HashMap<>();
+			for (int p = 0; p < 1 + random.nextInt(4); p++) {
+				ECKeyPair owner = keys.get(random.nextInt(keys.size()));
+				RadixAddress address = new RadixAddress(universe.getConfig(), owner.getPublicKey());
+				TransferrableTokensParticle transfer = new TransferrableTokensParticle(
+					UInt256.from(random.nextLong() & Long.MAX_VALUE).multiply(UInt256.from(1L << 40)),
+					UInt256.ONE,
+					address,
+					random.nextLong(),
+					universe.getNativeToken(),
+					random.nextLong(),
+					ImmutableMap.of(
+						TokenDefinitionParticle.TokenTransition.MINT, TokenPermission.ALL,
+						TokenDefinitionParticle.TokenTransition.BURN, TokenPermission.ALL
+					)
+				);
+				particles.add(p % 2 == 0 ? SpunParticle.down(transfer) : SpunParticle.up(transfer));
+				shards.add(address.getUID().getShard());
+
+				byte[] hash = new byte[32];
+				random.nextBytes(hash);
+				signatures.put(owner.getUID(), keyHandler.sign(hash, owner.getPrivateKey()));
+			}
+
+			AtomFileWriter.AtomFileRecord record = new AtomFileWriter.AtomFileRecord(Sha256Hash.wrap(txId), shards, particles, signatures, 1_500_000_000_000L + i);
+			records.add(record);
+			encoded.add(record.toByteArray());
+		}
+	}
+
+	private File writeAtomsFile() throws IOException {
+		File file = folder.newFile("atoms");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			for (AtomFileWriter.AtomFileRecord record : records)
+				record.serializeToStream(out);
+		}
+		return file;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void cursorRoundTripsWriterRecords() throws IOException {
+		try (AtomFileReader reader = AtomFileReader.open(writeAtomsFile())) {
+			assertEquals(RECORDS, reader.records());
+
+			AtomFileReader.Cursor cursor = reader.cursor();
+			for (int i = 0; i < RECORDS; i++) {
+				assertTrue(cursor.next());
+				byte[] expected = encoded.get(i);
+				assertArrayEquals(expected, bytes(cursor.record()));
+				assertEquals(ByteBuffer.wrap(expected, 4, 8).getLong(), cursor.txIdPrefix());
+				assertEquals(1_500_000_000_000L + i, cursor.time());
+
+				AtomFileWriter.AtomFileRecord decoded = cursor.toAtomFileRecord(universe.getConfig(), universe.getNativeToken());
+				assertArrayEquals(expected, decoded.toByteArray());
+			}
+			assertFalse(cursor.next());
+		}
+	}
+
+	@Test
+	public void parallelStreamSplitsOnRecordBoundaries() throws IOException {
+		// Small windows and checkpoints so records straddle windows and there is plenty to split
+		try (AtomFileReader reader = AtomFileReader.open(writeAtomsFile(), 16 * 1024, 8)) {
+			Spliterator<ByteBuffer> spliterator = reader.spliterator();
+			int splits = 0;
+			while (spliterator.trySplit() != null)
+				splits++;
+			assertTrue(splits > 4);
+
+			List<byte[]> read = reader.stream(true).map(AtomFileReaderTest::bytes).collect(Collectors.toList());
+			assertEquals(RECORDS, read.size());
+			for (int i = 0; i < RECORDS; i++)
+				assertArrayEquals(encoded.get(i), read.get(i));
+
+			long signatures = reader.stream(true).mapToLong(record -> {
+				AtomFileReader.Cursor cursor = AtomFileReader.Cursor.of(record);
+				assertTrue(cursor.next());
+				return cursor.signatureCount();
+			}).sum();
+			assertEquals(records.stream().mapToLong(record -> cursor(record).signatureCount()).sum(), signatures);
+		}
+	}
+
+	private static AtomFileReader.Cursor cursor(AtomFileWriter.AtomFileRecord record) {
+		try {
+			AtomFileReader.Cursor cursor = AtomFileReader.Cursor.of(ByteBuffer.wrap(record.toByteArray()));
+			assertTrue(cursor.next());
+			return cursor;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void tornLastRecordIsIgnored() throws IOException {
+		File file = writeAtomsFile();
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			byte[] last = encoded.get(RECORDS - 1);
+			out.write(last, 0, last.length / 2);
+		}
+
+		try (AtomFileReader reader = AtomFileReader.open(file)) {
+			assertEquals(RECORDS, reader.records());
+			assertEquals(RECORDS, reader.stream(false).count());
+		}
+	}
+}
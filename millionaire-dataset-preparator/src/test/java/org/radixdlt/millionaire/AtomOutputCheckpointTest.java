@@ -0,0 +1,153 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtomOutputCheckpointTest {
+	private static final int RECORD_LENGTH = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	// Plain records: txId, time, one shard and a random body, as the compressed reader splits them
+	private byte[] record() {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+		byte[] txId = new byte[32];
+		random.nextBytes(txId);
+		record.putInt(32).put(txId).putLong(random.nextLong()).putInt(1).putLong(random.nextLong());
+		byte[] body = new byte[RECORD_LENGTH - record.position() - 4];
+		random.nextBytes(body);
+		return record.putInt(body.length).put(body).array();
+	}
+
+	private void write(AtomOutput output, int records, long block) throws IOException {
+		for (int i = 0; i < records; i++)
+			output.write(record(), Collections.singleton(1L), block);
+	}
+
+	@Test
+	public void plainOutputIsCutBackToTheCommittedCheckpoint() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+
+		byte[] checkpoint;
+		try (AtomOutput output = new PlainAtomOutput(file, 1024, null)) {
+			write(output, 10, 1);
+			checkpoint = output.checkpoint();
+			// Written after the last commit
+			write(output, 5, 2);
+		}
+		assertEquals(15 * RECORD_LENGTH, file.length());
+
+		try (AtomOutput output = new PlainAtomOutput(file, 1024, checkpoint)) {
+			assertEquals(10 * RECORD_LENGTH, file.length());
+			write(output, 1, 2);
+			// [format][long length]
+			assertEquals(11 * RECORD_LENGTH, ByteBuffer.wrap(output.checkpoint(), 1, 8).getLong());
+		}
+		assertEquals(11 * RECORD_LENGTH, file.length());
+	}
+
+	@Test
+	public void segmentedOutputDropsTheSegmentsAfterTheCheckpoint() throws IOException {
+		File base = new File(folder.getRoot(), "atoms");
+		// Two blocks of 10 records per segment, the checkpoint is in the middle of the second one
+		long segmentSize = 2000;
+
+		byte[] checkpoint;
+		try (AtomOutput output = new SegmentedAtomOutput(base, segmentSize, 1024, null)) {
+			for (long block = 0; block < 3; block++)
+				write(output, 10, block);
+			checkpoint = output.checkpoint();
+			for (long block = 3; block < 8; block++)
+				write(output, 10, block);
+		}
+		assertEquals(80, AtomSegmentReader.open(base).records());
+
+		try (AtomOutput output = new SegmentedAtomOutput(base, segmentSize, 1024, checkpoint)) {
+			write(output, 10, 3);
+		}
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		assertEquals(40, reader.records());
+		assertFalse(AtomSegments.segmentFile(base, reader.segmentCount()).exists());
+	}
+
+	@Test
+	public void segmentClosedAtTheCheckpointKeepsItsTrailer() throws IOException {
+		File base = new File(folder.getRoot(), "atoms");
+
+		byte[] checkpoint;
+		try (AtomOutput output = new SegmentedAtomOutput(base, 1L << 20, 1024, null)) {
+			write(output, 10, 0);
+			checkpoint = output.checkpoint();
+		}
+		long length = AtomSegments.segmentFile(base, 0).length();
+
+		new SegmentedAtomOutput(base, 1L << 20, 1024, checkpoint).close();
+		assertEquals(length, AtomSegments.segmentFile(base, 0).length());
+		assertEquals(10, AtomSegmentReader.open(base).records());
+	}
+
+	private static int compressedRecords(File file) throws IOException {
+		int[] records = { 0 };
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			reader.read(0, reader.frameCount(), record -> records[0]++);
+		}
+		return records[0];
+	}
+
+	@Test
+	public void compressedOutputIsCutBackToTheCommittedCheckpoint() throws IOException {
+		File file = new File(folder.getRoot(), "atoms.frames");
+
+		byte[] checkpoint;
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), 1024, 1024, null)) {
+			write(output, 10, 1);
+			checkpoint = output.checkpoint();
+			// Written after the last commit, the open frame is written on close
+			write(output, 5, 2);
+		}
+		assertEquals(15, compressedRecords(file));
+
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), 1024, 1024, checkpoint)) {
+			// [format][long length]
+			assertEquals(ByteBuffer.wrap(checkpoint, 1, 8).getLong(), file.length());
+			assertEquals(10, compressedRecords(file));
+			write(output, 1, 2);
+			long position = ByteBuffer.wrap(output.checkpoint(), 1, 8).getLong();
+			assertEquals(file.length(), position);
+		}
+		assertEquals(11, compressedRecords(file));
+	}
+
+	@Test
+	public void checkpointOfAnotherFormatIsRejected() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+
+		byte[] checkpoint;
+		try (AtomOutput output = new PlainAtomOutput(file, 1024, null)) {
+			write(output, 1, 0);
+			checkpoint = output.checkpoint();
+		}
+
+		try {
+			new SegmentedAtomOutput(file, 1L << 20, 1024, checkpoint).close();
+			fail("Opened a segmented output at a plain checkpoint");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("--reset-atoms"));
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AtomSegmentReaderTest {
+	private static final int RECORDS = 300;
+	private static final int RECORDS_PER_BLOCK = 5;
+	private static final long SEGMENT_SIZE = 8 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	private File base;
+	private final List<byte[]> written = new ArrayList<>();
+	private final List<Long> blocks = new ArrayList<>();
+
+	// Plain records: txId, time, one shard and a random body. Every seventh txId shares its first
+	// 8 bytes, the tx index key, with the one before.
+	private byte[] record(int i) {
+		ByteBuffer record = ByteBuffer.allocate(4 + 32 + 8 + 4 + 8 + 4 + 50 + random.nextInt(200));
+		byte[] txId = new byte[32];
+		random.nextBytes(txId);
+		if (i % 7 == 6)
+			System.arraycopy(written.get(i - 1), 4, txId, 0, 8);
+		record.putInt(32).put(txId).putLong(random.nextLong()).putInt(1).putLong(random.nextLong());
+		byte[] body = new byte[record.remaining() - 4];
+		random.nextBytes(body);
+		return record.putInt(body.length).put(body).array();
+	}
+
+	// Even block numbers only, so there are blocks to seek to that don't exist
+	@Before
+	public void write() throws IOException {
+		base = new File(folder.getRoot(), "atoms");
+		try (AtomOutput output = new SegmentedAtomOutput(base, SEGMENT_SIZE, 1024)) {
+			for (int i = 0; i < RECORDS; i++) {
+				byte[] record = record(i);
+				long block = 2 * (i / RECORDS_PER_BLOCK);
+				output.write(record, Collections.singleton(1L), block);
+				written.add(record);
+				blocks.add(block);
+			}
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer record) {
+		byte[] bytes = new byte[record.remaining()];
+		record.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static Sha256Hash txId(byte[] record) {
+		return Sha256Hash.wrap(Arrays.copyOfRange(record, 4, 4 + 32));
+	}
+
+	private static List<byte[]> read(AtomSegmentReader reader, AtomSegmentReader.Position from, AtomSegmentReader.Position to, List<Long> blocks) throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		reader.read(from, to, (block, record) -> {
+			records.add(bytes(record));
+			blocks.add(block);
+		});
+		return records;
+	}
+
+	private static void assertRecords(List<byte[]> expected, List<byte[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals("Record " + i, expected.get(i), actual.get(i));
+	}
+
+	private static void assertPosition(AtomSegmentReader.Position expected, AtomSegmentReader.Position actual) {
+		assertEquals(expected + " != " + actual, 0, expected.compareTo(actual));
+	}
+
+	@Test
+	public void findsEveryWrittenTransaction() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		assertTrue(reader.segmentCount() > 3);
+		assertEquals(RECORDS, reader.records());
+
+		for (byte[] record : written) {
+			ByteBuffer found = reader.find(txId(record));
+			assertNotNull(txId(record).toString(), found);
+			assertArrayEquals(record, bytes(found));
+		}
+	}
+
+	@Test
+	public void doesntFindATransactionWhosePrefixCollides() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		for (int i = 0; i < RECORDS; i += 10) {
+			byte[] txId = txId(written.get(i)).getBytes();
+			txId[31]++;
+			assertNull(reader.find(Sha256Hash.wrap(txId)));
+		}
+	}
+
+	@Test
+	public void seeksToTheFirstRecordOfABlock() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		assertPosition(reader.start(), reader.seekBlock(0));
+		assertPosition(reader.start(), reader.seekBlock(-1));
+
+		for (int first = 0; first < RECORDS; first += RECORDS_PER_BLOCK) {
+			long block = blocks.get(first);
+			List<byte[]> expected = written.subList(first, RECORDS);
+			assertRecords(expected, read(reader, reader.seekBlock(block), reader.end(), new ArrayList<>()));
+			// A missing block in between seeks to the next one
+			if (first > 0)
+				assertPosition(reader.seekBlock(block), reader.seekBlock(block - 1));
+		}
+	}
+
+	@Test
+	public void seeksToTheNextSegmentForABlockBetweenSegments() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		for (int s = 1; s < reader.segmentCount(); s++) {
+			List<Long> previous = new ArrayList<>();
+			read(reader, new AtomSegmentReader.Position(s - 1, AtomSegments.HEADER_LENGTH), new AtomSegmentReader.Position(s, AtomSegments.HEADER_LENGTH), previous);
+			long lastBlock = previous.get(previous.size() - 1);
+
+			AtomSegmentReader.Position next = new AtomSegmentReader.Position(s, AtomSegments.HEADER_LENGTH);
+			assertPosition(next, reader.seekBlock(lastBlock + 1));
+			assertPosition(next, reader.seekBlock(lastBlock + 2));
+		}
+	}
+
+	@Test
+	public void seeksPastTheEnd() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		long lastBlock = blocks.get(RECORDS - 1);
+		assertPosition(reader.end(), reader.seekBlock(lastBlock + 1));
+		assertPosition(reader.end(), reader.seekBlock(Long.MAX_VALUE));
+		assertTrue(read(reader, reader.seekBlock(lastBlock + 1), reader.end(), new ArrayList<>()).isEmpty());
+	}
+
+	@Test
+	public void splitRangesHoldEveryRecordOnceCutAtBlocks() throws IOException {
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		for (int parts = 1; parts <= 40; parts++) {
+			List<AtomSegmentReader.Range> ranges = reader.split(parts);
+			assertTrue(ranges.size() <= parts);
+			assertPosition(reader.start(), ranges.get(0).from);
+			assertPosition(reader.end(), ranges.get(ranges.size() - 1).to);
+
+			List<byte[]> records = new ArrayList<>();
+			long previousBlock = -1;
+			for (int i = 0; i < ranges.size(); i++) {
+				AtomSegmentReader.Range range = ranges.get(i);
+				if (i > 0)
+					assertPosition(ranges.get(i - 1).to, range.from);
+
+				List<Long> rangeBlocks = new ArrayList<>();
+				records.addAll(read(reader, range.from, range.to, rangeBlocks));
+				assertTrue(range.toString(), !rangeBlocks.isEmpty());
+				// Starts at the first record of its block
+				assertTrue(range.toString(), rangeBlocks.get(0) > previousBlock);
+				assertPosition(reader.seekBlock(rangeBlocks.get(0)), range.from);
+				previousBlock = rangeBlocks.get(rangeBlocks.size() - 1);
+			}
+			assertRecords(written, records);
+		}
+	}
+
+	@Test
+	public void readsASegmentWithoutATrailer() throws IOException {
+		// Drop the footer and trailer of the last segment, then leave a torn record after it
+		int last = AtomSegmentReader.open(base).segmentCount() - 1;
+		File segment = AtomSegments.segmentFile(base, last);
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(raf.length() - AtomSegments.TRAILER_LENGTH);
+			long footer = raf.readLong();
+			raf.setLength(footer);
+			raf.seek(footer);
+			raf.writeInt(100);
+			raf.writeInt(0);
+			raf.writeLong(blocks.get(RECORDS - 1) + 2);
+			raf.write(new byte[100]);
+		}
+
+		AtomSegmentReader reader = AtomSegmentReader.open(base);
+		assertEquals(last + 1, reader.segmentCount());
+		assertEquals(RECORDS, reader.records());
+		for (byte[] record : written)
+			assertArrayEquals(record, bytes(reader.find(txId(record))));
+
+		List<Long> readBlocks = new ArrayList<>();
+		assertRecords(written, read(reader, reader.start(), reader.end(), readBlocks));
+		assertEquals(blocks, readBlocks);
+
+		long lastBlock = blocks.get(RECORDS - 1);
+		assertRecords(written.subList(RECORDS - RECORDS_PER_BLOCK, RECORDS), read(reader, reader.seekBlock(lastBlock), reader.end(), new ArrayList<>()));
+		assertPosition(reader.end(), reader.seekBlock(lastBlock + 1));
+
+		List<byte[]> records = new ArrayList<>();
+		for (AtomSegmentReader.Range range : reader.split(8))
+			records.addAll(read(reader, range.from, range.to, new ArrayList<>()));
+		assertRecords(written, records);
+	}
+}
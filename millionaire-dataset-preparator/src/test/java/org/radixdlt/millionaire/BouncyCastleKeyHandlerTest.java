@@ -0,0 +1,106 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoinj.core.Sha256Hash;
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BouncyCastleKeyHandlerTest {
+	// The generic SEC curve rather than the custom one the handler uses, multiplied without the comb tables
+	private static final X9ECParameters REFERENCE = ECNamedCurveTable.getByName("secp256k1");
+	private static final ECDomainParameters DOMAIN = new ECDomainParameters(REFERENCE.getCurve(), REFERENCE.getG(), REFERENCE.getN(), REFERENCE.getH());
+
+	private final KeyHandler keyHandler = new BouncyCastleKeyHandler();
+	private final Random random = new Random(42);
+
+	private byte[] privateKey() {
+		byte[] privateKey = new byte[32];
+		random.nextBytes(privateKey);
+		return privateKey;
+	}
+
+	private static ECPoint referencePublicKey(byte[] privateKey) {
+		return REFERENCE.getG().multiply(new BigInteger(1, privateKey)).normalize();
+	}
+
+	@Test
+	public void computesThePublicKeysOfTheReferenceCurve() throws CryptoException {
+		for (int i = 0; i < 1000; i++) {
+			byte[] privateKey = privateKey();
+			assertArrayEquals(referencePublicKey(privateKey).getEncoded(true), keyHandler.computePublicKey(privateKey));
+		}
+
+		// 2G and the largest key, n - 1, whose public key is -G
+		assertArrayEquals(hex("02c6047f9441ed7d6d3045406e95c07cd85c778e4b8cef3ca7abac09b95c709ee5"), keyHandler.computePublicKey(new byte[] { 2 }));
+		byte[] largest = REFERENCE.getN().subtract(BigInteger.ONE).toByteArray();
+		assertArrayEquals(REFERENCE.getG().negate().getEncoded(true), keyHandler.computePublicKey(largest));
+	}
+
+	@Test(expected = CryptoException.class)
+	public void rejectsAZeroKey() throws CryptoException {
+		keyHandler.computePublicKey(new byte[32]);
+	}
+
+	@Test
+	public void signaturesPassAStandardCheck() throws CryptoException {
+		ECDSASigner verifier = new ECDSASigner();
+		BigInteger halfOrder = REFERENCE.getN().shiftRight(1);
+
+		for (int i = 0; i < 200; i++) {
+			byte[] privateKey = privateKey();
+			byte[] hash = privateKey();
+			verifier.init(false, new ECPublicKeyParameters(referencePublicKey(privateKey), DOMAIN));
+
+			ECSignature signature = keyHandler.sign(hash, privateKey);
+			assertTrue(verifier.verifySignature(hash, signature.getR(), signature.getS()));
+			assertTrue(signature.getS().compareTo(halfOrder) <= 0);
+
+			byte[] signatures = new byte[2 * CompactSignatures.LENGTH];
+			keyHandler.signAll(new byte[][] { hash, hash }, new byte[][] { privateKey, privateKey }, 2, signatures);
+			for (int s = 0; s < 2; s++) {
+				ECSignature compact = CompactSignatures.get(signatures, s);
+				assertTrue(verifier.verifySignature(hash, compact.getR(), compact.getS()));
+			}
+		}
+	}
+
+	@Test
+	public void signaturesAreDeterministic() throws CryptoException {
+		byte[] privateKey = privateKey();
+		byte[] hash = privateKey();
+
+		ECSignature first = keyHandler.sign(hash, privateKey);
+		ECSignature second = new BouncyCastleKeyHandler().sign(hash, privateKey);
+		assertEquals(first.getR(), second.getR());
+		assertEquals(first.getS(), second.getS());
+
+		hash[0]++;
+		assertNotEquals(first.getR(), keyHandler.sign(hash, privateKey).getR());
+
+		// RFC 6979 nonces, the signature of sha256("Satoshi Nakamoto") with the key 1, low S
+		ECSignature known = keyHandler.sign(Sha256Hash.hash("Satoshi Nakamoto".getBytes(StandardCharsets.US_ASCII)), new byte[] { 1 });
+		assertEquals(new BigInteger("934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d8", 16), known.getR());
+		assertEquals(new BigInteger("2442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5", 16), known.getS());
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
@@ -0,0 +1,75 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ChainIndexTest {
+	private static BigInteger[] works(long... works) {
+		BigInteger[] values = new BigInteger[works.length];
+		for (int b = 0; b < works.length; b++)
+			values[b] = BigInteger.valueOf(works[b]);
+		return values;
+	}
+
+	private static int[] ranks(int size) {
+		int[] ranks = new int[size];
+		for (int b = 0; b < size; b++)
+			ranks[b] = b;
+		return ranks;
+	}
+
+	@Test
+	public void followsParentsInAnyOrder() {
+		// 3 <- 0 <- 4 <- 1 <- 2, genesis is block 3
+		int[] parents = { 3, 4, 1, -1, 0 };
+		int[] chain = ChainIndex.bestChain(parents, works(1, 1, 1, 1, 1), ranks(5), 3);
+		assertArrayEquals(new int[] { 3, 0, 4, 1, 2 }, chain);
+	}
+
+	@Test
+	public void picksTheForkWithTheMostWorkOverTheLongest() {
+		// Genesis 0, a long fork 1 <- 2 <- 3 and a short one 4 <- 5 with more work
+		int[] parents = { -1, 0, 1, 2, 0, 4 };
+		int[] chain = ChainIndex.bestChain(parents, works(1, 1, 1, 1, 2, 2), ranks(6), 0);
+		assertArrayEquals(new int[] { 0, 4, 5 }, chain);
+	}
+
+	@Test
+	public void breaksTiesByRank() {
+		// Two forks of equal work, block 2 was stored first
+		int[] parents = { -1, 0, 0 };
+		int[] ranks = { 0, 2, 1 };
+		assertArrayEquals(new int[] { 0, 2 }, ChainIndex.bestChain(parents, works(1, 1, 1), ranks, 0));
+
+		ranks = new int[] { 0, 1, 2 };
+		assertArrayEquals(new int[] { 0, 1 }, ChainIndex.bestChain(parents, works(1, 1, 1), ranks, 0));
+	}
+
+	@Test
+	public void skipsBlocksWithoutAncestors() {
+		// 3 <- 4 <- 5 hang off a parent that isn't indexed, however much work they have
+		int[] parents = { -1, 0, 1, -1, 3, 4 };
+		int[] chain = ChainIndex.bestChain(parents, works(1, 1, 1, 100, 100, 100), ranks(6), 0);
+		assertArrayEquals(new int[] { 0, 1, 2 }, chain);
+	}
+
+	@Test
+	public void isJustGenesisWithoutOtherBlocks() {
+		int[] chain = ChainIndex.bestChain(new int[] { -1 }, works(1), ranks(1), 0);
+		assertArrayEquals(new int[] { 0 }, chain);
+
+		// A long disconnected chain doesn't change that
+		int[] parents = new int[1000];
+		Arrays.fill(parents, -1);
+		for (int b = 2; b < parents.length; b++)
+			parents[b] = b - 1;
+		long[] work = new long[parents.length];
+		Arrays.fill(work, 1);
+		chain = ChainIndex.bestChain(parents, works(work), ranks(parents.length), 0);
+		assertArrayEquals(new int[] { 0 }, chain);
+	}
+}
@@ -0,0 +1,181 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import com.radixdlt.client.core.crypto.ECSignature;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+import org.radix.common.ID.EUID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CompactSignaturesTest {
+	private static final long BLOCK_TIME = 1231006505000L;
+
+	private final Random random = new Random(42);
+
+	// r and s as signatures have them, and the edges of BigInteger.toByteArray(): zero, the high
+	// bit set and leading zero bytes
+	private List<BigInteger> components() {
+		List<BigInteger> values = new ArrayList<>();
+		values.add(BigInteger.ZERO);
+		values.add(BigInteger.ONE);
+		values.add(BigInteger.valueOf(0x7F));
+		values.add(BigInteger.valueOf(0x80));
+		values.add(BigInteger.ONE.shiftLeft(255));
+		values.add(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE));
+		values.add(BigInteger.ONE.shiftLeft(248).subtract(BigInteger.ONE));
+		values.add(BigInteger.ONE.shiftLeft(247));
+		for (int bits = 1; bits <= 256; bits++)
+			values.add(new BigInteger(bits, random).setBit(bits - 1));
+		for (int i = 0; i < 1000; i++)
+			values.add(new BigInteger(256, random));
+		return values;
+	}
+
+	@Test
+	public void writesComponentsAsBigIntegerToByteArrayWithItsLength() throws IOException {
+		List<BigInteger> components = components();
+		for (BigInteger r : components) {
+			BigInteger s = components.get(random.nextInt(components.size()));
+
+			// Surrounded by other signatures
+			byte[] signatures = new byte[3 * CompactSignatures.LENGTH];
+			random.nextBytes(signatures);
+			CompactSignatures.put(r, s, signatures, 1);
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			DataOutputStream expectedOut = new DataOutputStream(expected);
+			for (BigInteger component : new BigInteger[] { r, s }) {
+				byte[] bytes = component.toByteArray();
+				expectedOut.writeInt(bytes.length);
+				expectedOut.write(bytes);
+			}
+
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			DataOutputStream actualOut = new DataOutputStream(actual);
+			CompactSignatures.writeComponent(signatures, CompactSignatures.LENGTH, actualOut);
+			CompactSignatures.writeComponent(signatures, CompactSignatures.LENGTH + CompactSignatures.COMPONENT_LENGTH, actualOut);
+
+			assertArrayEquals(r.toString(16) + " " + s.toString(16), expected.toByteArray(), actual.toByteArray());
+
+			ECSignature signature = CompactSignatures.get(signatures, 1);
+			assertEquals(r, signature.getR());
+			assertEquals(s, signature.getS());
+		}
+	}
+
+	// Signs with a digest of the key and the hash, and fails for the keys in failing
+	private static class DigestKeyHandler implements KeyHandler {
+		private final Set<BigInteger> failing;
+
+		DigestKeyHandler(Set<BigInteger> failing) {
+			this.failing = failing;
+		}
+
+		@Override
+		public ECSignature sign(byte[] hash, byte[] privateKey) throws CryptoException {
+			if (failing.contains(new BigInteger(1, privateKey)))
+				throw new CryptoException("Can't sign with this key");
+			byte[] r = Sha256Hash.hash(concat(privateKey, hash));
+			// The high bit set on every other signature
+			r[0] = (byte) (r[1] < 0 ? r[0] | 0x80 : 0);
+			return new ECSignature(new BigInteger(1, r), new BigInteger(1, Sha256Hash.hash(concat(hash, privateKey))));
+		}
+
+		@Override
+		public boolean verify(byte[] hash, ECSignature signature, byte[] publicKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public byte[] computePublicKey(byte[] privateKey) {
+			return Sha256Hash.hash(privateKey);
+		}
+	}
+
+	// As libsecp256k1 fails the whole batch when one key is bad
+	private static class BatchFailingKeyHandler extends DigestKeyHandler {
+		BatchFailingKeyHandler(Set<BigInteger> failing) {
+			super(failing);
+		}
+
+		@Override
+		public void signAll(byte[][] hashes, byte[][] privateKeys, int count, byte[] signatures) throws CryptoException {
+			if (count > 1)
+				throw new CryptoException("Batch failed");
+			super.signAll(hashes, privateKeys, count, signatures);
+		}
+	}
+
+	private Set<ECKeyPair> signers(int count) {
+		Set<ECKeyPair> signers = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			byte[] privateKey = new byte[32];
+			random.nextBytes(privateKey);
+			signers.add(new ECKeyPair(Sha256Hash.hash(privateKey), privateKey));
+		}
+		return signers;
+	}
+
+	private static byte[] record(KeyHandler keyHandler, Set<ECKeyPair> signers, Sha256Hash txId) throws IOException {
+		AtomFileWriter.AtomFileItem item = new AtomFileWriter.AtomFileItem(0, 0, new ArrayList<>(), signers, txId, null, keyHandler, BLOCK_TIME);
+		return item.getAtomFileRecord().toByteArray();
+	}
+
+	@Test
+	public void signingOneByOneWritesTheSameRecord() throws IOException {
+		Set<ECKeyPair> signers = signers(5);
+		Sha256Hash txId = Sha256Hash.wrap(Sha256Hash.hash(new byte[] { 1 }));
+
+		byte[] batched = record(new DigestKeyHandler(Collections.emptySet()), signers, txId);
+		assertArrayEquals(batched, record(new BatchFailingKeyHandler(Collections.emptySet()), signers, txId));
+
+		// The signatures as ECSignatures, as the records were written before the compact ones
+		DigestKeyHandler keyHandler = new DigestKeyHandler(Collections.emptySet());
+		byte[] atomHash = AtomDson.atom(new ArrayList<>(), txId.toString(), BLOCK_TIME).getHash().toByteArray();
+		Map<EUID, ECSignature> signatures = new HashMap<>();
+		for (ECKeyPair signer : signers) {
+			try {
+				signatures.put(signer.getUID(), keyHandler.sign(atomHash, signer.getPrivateKey()));
+			} catch (CryptoException e) {
+				throw new AssertionError(e);
+			}
+		}
+		AtomFileWriter.AtomFileRecord record = new AtomFileWriter.AtomFileRecord(txId, new HashSet<>(), new ArrayList<>(), signatures, BLOCK_TIME);
+		assertArrayEquals(batched, record.toByteArray());
+	}
+
+	@Test
+	public void signingOneByOneLeavesOutTheFailingSigners() throws IOException {
+		Set<ECKeyPair> signers = signers(5);
+		Sha256Hash txId = Sha256Hash.wrap(Sha256Hash.hash(new byte[] { 2 }));
+
+		ECKeyPair failing = signers.iterator().next();
+		Set<ECKeyPair> others = new HashSet<>(signers);
+		others.remove(failing);
+
+		assertArrayEquals(record(new DigestKeyHandler(Collections.emptySet()), others, txId),
+			record(new BatchFailingKeyHandler(Collections.singleton(new BigInteger(1, failing.getPrivateKey()))), signers, txId));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] concat = new byte[a.length + b.length];
+		System.arraycopy(a, 0, concat, 0, a.length);
+		System.arraycopy(b, 0, concat, a.length, b.length);
+		return concat;
+	}
+}
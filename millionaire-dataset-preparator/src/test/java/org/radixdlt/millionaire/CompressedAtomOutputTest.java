@@ -0,0 +1,200 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressedAtomOutputTest {
+	private static final int FRAME_SIZE = 16 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	// A plain atoms file record: txId, time, shards, then the particles and signatures as a
+	// length prefixed body, half random and half repeating so it compresses some
+	private byte[] record(int bodyLength) {
+		ByteBuffer record = ByteBuffer.allocate(4 + 32 + 8 + 4 + 8 + 4 + bodyLength);
+		byte[] txId = new byte[32];
+		random.nextBytes(txId);
+		record.putInt(32).put(txId).putLong(random.nextLong()).putInt(1).putLong(random.nextLong()).putInt(bodyLength);
+		byte[] body = new byte[bodyLength];
+		random.nextBytes(body);
+		for (int i = bodyLength / 2; i < bodyLength; i++)
+			body[i] = (byte) (i % 7);
+		return record.put(body).array();
+	}
+
+	// Records of blocks of 10, and one larger than a frame
+	private List<byte[]> write(AtomOutput output, int records, long firstBlock, List<Long> blocks) throws IOException {
+		List<byte[]> written = new ArrayList<>();
+		for (int i = 0; i < records; i++) {
+			byte[] record = record(i == records / 2 ? 5 * FRAME_SIZE : 50 + random.nextInt(3000));
+			long block = firstBlock + i / 10;
+			output.write(record, Collections.singleton(1L), block);
+			written.add(record);
+			blocks.add(block);
+		}
+		return written;
+	}
+
+	private static List<byte[]> read(File file) throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			reader.read(0, reader.frameCount(), record -> {
+				byte[] bytes = new byte[record.remaining()];
+				record.get(bytes);
+				records.add(bytes);
+			});
+		}
+		return records;
+	}
+
+	private static void assertRecords(List<byte[]> expected, List<byte[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals("Record " + i, expected.get(i), actual.get(i));
+	}
+
+	@Test
+	public void readsBackWhatWasWrittenWithEitherCodec() throws IOException {
+		for (String codec : new String[] { "lz4", "deflate" }) {
+			File file = new File(folder.getRoot(), "atoms." + codec);
+			List<Long> blocks = new ArrayList<>();
+			List<byte[]> written;
+			try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName(codec), FRAME_SIZE, 4096)) {
+				written = write(output, 500, 0, blocks);
+			}
+
+			assertRecords(written, read(file));
+
+			// Every frame starts with the block of its first record
+			try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+				assertTrue(reader.frameCount() > 10);
+				int record = 0;
+				for (int frame = 0; frame < reader.frameCount(); frame++) {
+					assertEquals((long) blocks.get(record), reader.firstBlock(frame));
+					int[] count = { 0 };
+					reader.read(frame, r -> count[0]++);
+					record += count[0];
+				}
+				assertEquals(written.size(), record);
+			}
+		}
+	}
+
+	@Test
+	public void splitCoversEveryFrameOnce() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096)) {
+			write(output, 500, 0, new ArrayList<>());
+		}
+
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			for (int parts = 1; parts <= reader.frameCount() + 3; parts++) {
+				List<int[]> ranges = reader.split(parts);
+				assertTrue(ranges.size() <= parts);
+				int next = 0;
+				for (int[] range : ranges) {
+					assertEquals(next, range[0]);
+					assertTrue(range[1] > range[0]);
+					next = range[1];
+				}
+				assertEquals(reader.frameCount(), next);
+			}
+		}
+	}
+
+	@Test
+	public void isCutBackToTheCommittedCheckpoint() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+		List<Long> blocks = new ArrayList<>();
+
+		byte[] checkpoint;
+		List<byte[]> committed;
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096)) {
+			committed = write(output, 100, 0, blocks);
+			checkpoint = output.checkpoint();
+			// Written after the last commit, partly left in the open frame until close
+			write(output, 100, 10, blocks);
+		}
+		assertEquals(200, read(file).size());
+
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096, checkpoint)) {
+			assertEquals(ByteBuffer.wrap(checkpoint, 1, 8).getLong(), file.length());
+			assertRecords(committed, read(file));
+			committed.addAll(write(output, 20, 10, blocks));
+		}
+		assertRecords(committed, read(file));
+	}
+
+	@Test
+	public void recoverDropsATornLastFrame() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+		List<byte[]> written;
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096)) {
+			written = write(output, 100, 0, new ArrayList<>());
+		}
+
+		long lastFrame;
+		int lastFrameRecords;
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			lastFrame = reader.frameOffset(reader.frameCount() - 1);
+			int[] count = { 0 };
+			reader.read(reader.frameCount() - 1, r -> count[0]++);
+			lastFrameRecords = count[0];
+		}
+		List<byte[]> complete = written.subList(0, written.size() - lastFrameRecords);
+
+		// The last frame's records overwritten, its header still whole
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(lastFrame + AtomFrames.FRAME_HEADER_LENGTH);
+			raf.write(new byte[(int) (raf.length() - raf.getFilePointer())]);
+		}
+		new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096).close();
+		assertEquals(lastFrame, file.length());
+		assertRecords(complete, read(file));
+
+		// Cut short in the middle of a frame
+		try (CompressedAtomReader reader = CompressedAtomReader.open(file)) {
+			lastFrame = reader.frameOffset(reader.frameCount() - 1);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 10);
+		}
+		new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096).close();
+		assertEquals(lastFrame, file.length());
+	}
+
+	@Test
+	public void recoverRejectsAnotherCodec() throws IOException {
+		File file = new File(folder.getRoot(), "atoms");
+		try (AtomOutput output = new CompressedAtomOutput(file, AtomFrameCodec.forName("deflate"), FRAME_SIZE, 4096)) {
+			write(output, 10, 0, new ArrayList<>());
+		}
+		long length = file.length();
+
+		try {
+			new CompressedAtomOutput(file, AtomFrameCodec.forName("lz4"), FRAME_SIZE, 4096).close();
+			fail("Appended lz4 frames to a deflate file");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("--reset-atoms"));
+		}
+		assertEquals(length, file.length());
+	}
+}
@@ -0,0 +1,133 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyCacheTest {
+	// The smallest cache, 16 entries in each of 64 segments
+	private static final int SEGMENT_CAPACITY = 16;
+	private static final int PROTECTED_CAPACITY = 12;
+
+	private final Random random = new Random(42);
+
+	// Hashes sharing a prefix share the table key, so they land in one segment and probe from the same slot
+	private byte[] hash(byte[] prefix) {
+		byte[] hash = new byte[32];
+		random.nextBytes(hash);
+		System.arraycopy(prefix, 0, hash, 0, 8);
+		return hash;
+	}
+
+	private byte[] prefix() {
+		byte[] prefix = new byte[8];
+		random.nextBytes(prefix);
+		return prefix;
+	}
+
+	@Test
+	public void hitEntriesOutliveAScan() {
+		KeyCache<Integer> cache = new KeyCache<>(0);
+		byte[] prefix = prefix();
+
+		byte[] hot = hash(prefix);
+		cache.put(hot, -1);
+		assertEquals(-1, (int) cache.get(hot));
+
+		List<byte[]> scan = new ArrayList<>();
+		for (int i = 0; i < 3 * SEGMENT_CAPACITY; i++) {
+			scan.add(hash(prefix));
+			cache.put(scan.get(i), i);
+		}
+		assertEquals(SEGMENT_CAPACITY, cache.size());
+		assertEquals(2 * SEGMENT_CAPACITY + 1, cache.evictions());
+
+		assertEquals(-1, (int) cache.get(hot));
+		for (int i = 0; i < scan.size(); i++) {
+			if (i < 2 * SEGMENT_CAPACITY + 1)
+				assertNull(cache.get(scan.get(i)));
+			else
+				assertEquals(i, (int) cache.get(scan.get(i)));
+		}
+	}
+
+	@Test
+	public void protectedOverflowIsDemotedAndEvictedFirst() {
+		KeyCache<Integer> cache = new KeyCache<>(0);
+		byte[] prefix = prefix();
+
+		List<byte[]> hashes = new ArrayList<>();
+		for (int i = 0; i < SEGMENT_CAPACITY; i++) {
+			hashes.add(hash(prefix));
+			cache.put(hashes.get(i), i);
+		}
+		// All hit once, the first ones pushed back out of the protected list
+		for (int i = 0; i < SEGMENT_CAPACITY; i++)
+			assertEquals(i, (int) cache.get(hashes.get(i)));
+
+		int demoted = SEGMENT_CAPACITY - PROTECTED_CAPACITY;
+		List<byte[]> added = new ArrayList<>();
+		for (int i = 0; i < demoted; i++) {
+			added.add(hash(prefix));
+			cache.put(added.get(i), SEGMENT_CAPACITY + i);
+		}
+		assertEquals(demoted, cache.evictions());
+
+		for (int i = 0; i < demoted; i++)
+			assertNull(cache.get(hashes.get(i)));
+		for (int i = demoted; i < SEGMENT_CAPACITY; i++)
+			assertEquals(i, (int) cache.get(hashes.get(i)));
+		for (int i = 0; i < demoted; i++)
+			assertEquals(SEGMENT_CAPACITY + i, (int) cache.get(added.get(i)));
+		assertEquals(2 * SEGMENT_CAPACITY, cache.hits());
+		assertEquals(demoted, cache.misses());
+	}
+
+	// Evicting removes table slots, which shifts back the probe runs behind them, wrapping around
+	// the end of the table. Every entry the cache holds must stay reachable.
+	@Test
+	public void everyCachedEntryIsFoundAfterManyEvictions() {
+		KeyCache<Integer> cache = new KeyCache<>(0);
+
+		// A few prefixes per segment, some hot
+		byte[][] prefixes = new byte[200][];
+		for (int p = 0; p < prefixes.length; p++)
+			prefixes[p] = prefix();
+
+		List<byte[]> inserted = new ArrayList<>();
+		for (int round = 0; round < 50; round++) {
+			for (int op = 0; op < 1000; op++) {
+				if (inserted.isEmpty() || random.nextInt(3) > 0) {
+					int p = random.nextInt(4) == 0 ? random.nextInt(10) : random.nextInt(prefixes.length);
+					byte[] hash = hash(prefixes[p]);
+					cache.put(hash, inserted.size());
+					inserted.add(hash);
+				} else {
+					int i = random.nextInt(inserted.size());
+					Integer value = cache.get(inserted.get(i));
+					assertTrue(value == null || value == i);
+				}
+			}
+
+			assertEquals(inserted.size(), cache.size() + cache.evictions());
+			assertTrue(cache.size() <= 64 * SEGMENT_CAPACITY);
+
+			int found = 0;
+			for (int i = 0; i < inserted.size(); i++) {
+				Integer value = cache.get(inserted.get(i));
+				if (value != null) {
+					assertEquals(i, (int) value);
+					found++;
+				}
+			}
+			assertEquals(cache.size(), found);
+		}
+		assertTrue(cache.evictions() > 10 * 64 * SEGMENT_CAPACITY);
+	}
+}
@@ -0,0 +1,80 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoin.Secp256k1Context;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class KeyHandlerTest {
+	private static final int COUNT = 50;
+
+	private final Random random = new Random(42);
+
+	private byte[][] hashes() {
+		byte[][] hashes = new byte[COUNT][32];
+		for (byte[] hash : hashes)
+			random.nextBytes(hash);
+		return hashes;
+	}
+
+	// Random keys, some with leading zero bytes and some shorter than 32 bytes
+	private byte[][] privateKeys() {
+		byte[][] keys = new byte[COUNT][];
+		for (int i = 0; i < COUNT; i++) {
+			keys[i] = new byte[i % 5 == 4 ? 31 : 32];
+			random.nextBytes(keys[i]);
+			keys[i][0] &= 0x7F;
+			if (i % 5 == 1)
+				keys[i][0] = 0;
+			if (i % 5 == 2)
+				keys[i][0] = keys[i][1] = 0;
+		}
+		return keys;
+	}
+
+	// Every signature verifies against the computed public key, by verifier too, and is the one
+	// sign() makes
+	private void assertSignAllVerifies(KeyHandler keyHandler, KeyHandler verifier) throws CryptoException {
+		byte[][] hashes = hashes();
+		byte[][] privateKeys = privateKeys();
+		// Room for more than count signatures, as the atom builder may leave out failing signers
+		byte[] signatures = new byte[(COUNT + 2) * CompactSignatures.LENGTH];
+		keyHandler.signAll(hashes, privateKeys, COUNT, signatures);
+
+		byte[] signature = new byte[CompactSignatures.LENGTH];
+		for (int i = 0; i < COUNT; i++) {
+			byte[] publicKey = keyHandler.computePublicKey(privateKeys[i]);
+			assertTrue("Signature " + i, keyHandler.verify(hashes[i], CompactSignatures.get(signatures, i), publicKey));
+			assertTrue("Signature " + i, verifier.verify(hashes[i], CompactSignatures.get(signatures, i), publicKey));
+
+			CompactSignatures.put(keyHandler.sign(hashes[i], privateKeys[i]), signature, 0);
+			assertArrayEquals(signature, Arrays.copyOfRange(signatures, i * CompactSignatures.LENGTH, (i + 1) * CompactSignatures.LENGTH));
+		}
+	}
+
+	@Test
+	public void bouncyCastleSignaturesVerify() throws CryptoException {
+		KeyHandler keyHandler = new BouncyCastleKeyHandler();
+		assertSignAllVerifies(keyHandler, keyHandler);
+	}
+
+	@Test
+	public void libsecp256k1SignaturesVerify() throws Exception {
+		assumeTrue(Secp256k1Context.isEnabled());
+		KeyHandler keyHandler = new Libsecp256k1KeyHandler(new SecureRandom());
+		KeyHandler bouncyCastle = new BouncyCastleKeyHandler();
+		assertSignAllVerifies(keyHandler, bouncyCastle);
+		// libsecp256k1 only takes low S signatures
+		assertSignAllVerifies(bouncyCastle, keyHandler);
+
+		byte[][] privateKeys = privateKeys();
+		for (byte[] privateKey : privateKeys)
+			assertArrayEquals(bouncyCastle.computePublicKey(privateKey), keyHandler.computePublicKey(privateKey));
+	}
+}
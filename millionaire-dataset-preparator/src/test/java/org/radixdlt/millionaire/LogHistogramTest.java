@@ -0,0 +1,81 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogHistogramTest {
+	@Test
+	public void smallValuesAreExact() {
+		LogHistogram histogram = new LogHistogram();
+		for (int v = 0; v < 100; v++)
+			histogram.record(v);
+
+		assertEquals(100, histogram.count());
+		assertEquals(49.5, histogram.mean(), 0);
+		assertEquals(0, histogram.quantile(0));
+		assertEquals(49, histogram.quantile(0.5));
+		assertEquals(98, histogram.quantile(0.99));
+		assertEquals(99, histogram.quantile(1));
+	}
+
+	@Test
+	public void bucketsCoverEveryValueInOrder() {
+		long[] values = { 0, 1, 127, 128, 129, 255, 256, 1000, 1L << 40, Long.MAX_VALUE };
+		for (int i = 0; i < values.length; i++) {
+			int bucket = LogHistogram.bucket(values[i]);
+			assertTrue(LogHistogram.lowest(bucket) <= values[i]);
+			if (i > 0)
+				assertTrue(bucket >= LogHistogram.bucket(values[i - 1]));
+		}
+		assertEquals(LogHistogram.bucket(Long.MAX_VALUE), LogHistogram.bucket(Long.MAX_VALUE - 1));
+		assertEquals(LogHistogram.bucket(128) + 1, LogHistogram.bucket(130));
+	}
+
+	@Test
+	public void quantilesAreWithinTheBucketWidth() {
+		Random random = new Random(42);
+		long[] values = new long[100_000];
+		LogHistogram histogram = new LogHistogram();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(random.nextDouble() * 30);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+
+		for (double quantile : new double[] { 0.01, 0.5, 0.9, 0.99, 0.999 }) {
+			long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+			assertEquals(exact, histogram.quantile(quantile), exact / 64.0 + 1);
+		}
+	}
+
+	@Test
+	public void mergesAndRestoresCounts() {
+		LogHistogram a = new LogHistogram(), b = new LogHistogram(), all = new LogHistogram();
+		Random random = new Random(7);
+		for (int i = 0; i < 10_000; i++) {
+			long value = random.nextInt(1_000_000);
+			(i % 3 == 0 ? a : b).record(value);
+			all.record(value);
+		}
+		a.merge(b);
+
+		LogHistogram restored = LogHistogram.fromByteArray(a.toByteArray());
+		assertEquals(all.count(), restored.count());
+		assertEquals(all.mean(), restored.mean(), 0);
+		for (double quantile : new double[] { 0, 0.25, 0.5, 0.75, 0.99, 1 })
+			assertEquals(all.quantile(quantile), restored.quantile(quantile));
+	}
+
+	@Test
+	public void isEmptyWithoutValues() {
+		LogHistogram histogram = LogHistogram.fromByteArray(new LogHistogram().toByteArray());
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.mean(), 0);
+		assertEquals(0, histogram.quantile(0.5));
+	}
+}
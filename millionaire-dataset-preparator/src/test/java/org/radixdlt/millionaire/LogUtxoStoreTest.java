@@ -0,0 +1,147 @@
+package org.radixdlt.millionaire;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogUtxoStoreTest {
+	private static final int OUTPUTS = 1000;
+	private static final long COMPACTION_MIN_LOG_SIZE = 1024;
+
+	private File dir;
+	private Environment environment;
+	private Database appProgress;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("utxo").toFile();
+		File envDir = new File(dir, "berkeley");
+		envDir.mkdir();
+
+		EnvironmentConfig environmentConfig = new EnvironmentConfig();
+		environmentConfig.setAllowCreate(true);
+		environmentConfig.setTransactional(true);
+		environmentConfig.setDurability(Durability.COMMIT_NO_SYNC);
+		environment = new Environment(envDir, environmentConfig);
+
+		DatabaseConfig databaseConfig = new DatabaseConfig();
+		databaseConfig.setAllowCreate(true);
+		databaseConfig.setTransactional(true);
+		appProgress = environment.openDatabase(null, "app_progress", databaseConfig);
+	}
+
+	@After
+	public void tearDown() {
+		appProgress.close();
+		environment.close();
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static byte[] outpoint(int n) {
+		byte[] outpoint = new byte[Outpoint.LENGTH];
+		outpoint[0] = (byte) n;
+		outpoint[1] = (byte) (n >>> 8);
+		outpoint[Outpoint.LENGTH - 1] = 1;
+		return outpoint;
+	}
+
+	private static byte[] value(int n) {
+		return ("value " + n).getBytes();
+	}
+
+	private LogUtxoStore open() throws IOException {
+		return LogUtxoStore.open(new File(dir, "utxo"), environment, appProgress, COMPACTION_MIN_LOG_SIZE);
+	}
+
+	private void commit(LogUtxoStore store) throws IOException {
+		Transaction dbtx = environment.beginTransaction(null, null);
+		store.commit(dbtx);
+		dbtx.commit();
+	}
+
+	private int logFiles() {
+		return new File(dir, "utxo").listFiles((d, name) -> name.startsWith("values.")).length;
+	}
+
+	@Test
+	public void reopensFromTheCommitBeforeACompaction() throws IOException {
+		LogUtxoStore store = open();
+		for (int n = 0; n < OUTPUTS; n++)
+			store.put(null, outpoint(n), value(n));
+		commit(store);
+
+		// Spending most outputs makes the next commit compact, which is then lost
+		for (int n = 0; n < OUTPUTS - 10; n++)
+			assertArrayEquals(value(n), store.take(null, outpoint(n)));
+		Transaction dbtx = environment.beginTransaction(null, null);
+		store.commit(dbtx);
+		assertEquals(2, logFiles());
+		dbtx.abort();
+		store.close();
+
+		store = open();
+		assertEquals(OUTPUTS, store.size());
+		assertEquals(1, logFiles());
+		for (int n = 0; n < OUTPUTS; n++)
+			assertArrayEquals(value(n), store.take(null, outpoint(n)));
+		store.close();
+	}
+
+	@Test
+	public void dropsTheOldGenerationOnceTheCompactionIsCommitted() throws IOException {
+		LogUtxoStore store = open();
+		for (int n = 0; n < OUTPUTS; n++)
+			store.put(null, outpoint(n), value(n));
+		commit(store);
+
+		for (int n = 0; n < OUTPUTS - 10; n++)
+			store.take(null, outpoint(n));
+		commit(store);
+		assertEquals(2, logFiles());
+
+		// The next commit deletes the old log, a later one is lost
+		store.put(null, outpoint(OUTPUTS), value(OUTPUTS));
+		commit(store);
+		assertEquals(1, logFiles());
+		assertFalse(new File(dir, "utxo/values.000000.log").exists());
+
+		store.put(null, outpoint(OUTPUTS + 1), value(OUTPUTS + 1));
+		Transaction dbtx = environment.beginTransaction(null, null);
+		store.commit(dbtx);
+		dbtx.abort();
+		store.close();
+
+		store = open();
+		assertEquals(11, store.size());
+		assertTrue(new File(dir, "utxo/values.000001.log").exists());
+		assertNull(store.take(null, outpoint(0)));
+		assertNull(store.take(null, outpoint(OUTPUTS + 1)));
+		for (int n = OUTPUTS - 10; n <= OUTPUTS; n++)
+			assertArrayEquals(value(n), store.take(null, outpoint(n)));
+		store.close();
+	}
+}
@@ -0,0 +1,40 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutpointFilterTest {
+	@Test
+	public void restoresAfterFalsePositivesOnAdd() throws IOException {
+		Random random = new Random(42);
+		OutpointFilter filter = new OutpointFilter();
+		int keys = 1_500_000;
+		int positiveAdds = 0;
+		byte[] outpoint = new byte[Outpoint.LENGTH];
+		for (int i = 0; i < keys; i++) {
+			random.nextBytes(outpoint);
+			if (filter.mightContain(outpoint))
+				positiveAdds++;
+			filter.add(outpoint);
+		}
+
+		// Distinct random keys, every positive was a false one
+		assertTrue(positiveAdds > 0);
+		assertEquals(keys, filter.entries());
+
+		OutpointFilter restored = OutpointFilter.restore(filter.snapshot());
+		assertTrue(restored.matches(keys));
+		assertEquals(keys, restored.entries());
+
+		random = new Random(42);
+		for (int i = 0; i < keys; i++) {
+			random.nextBytes(outpoint);
+			assertTrue(restored.mightContain(outpoint));
+		}
+	}
+}
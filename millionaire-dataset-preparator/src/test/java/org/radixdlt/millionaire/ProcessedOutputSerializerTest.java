@@ -0,0 +1,112 @@
+package org.radixdlt.millionaire;
+
+import com.radixdlt.client.atommodel.accounts.RadixAddress;
+import com.radixdlt.client.atommodel.tokens.TransferrableTokensParticle;
+import com.radixdlt.client.core.Bootstrap;
+import com.radixdlt.client.core.RadixUniverse;
+import com.radixdlt.client.core.crypto.ECKeyPair;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.DataOutput2;
+import org.radix.utils.UInt256;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ProcessedOutputSerializerTest {
+	private static RadixUniverse universe;
+	private static ECKeyPair owner;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		universe = RadixUniverse.create(Bootstrap.LOCALHOST);
+		ProcessedOutputSerializer.initStatic(universe.getConfig(), universe.getNativeToken());
+		byte[] pk = Sha256Hash.hash(new byte[] { 1, 2, 3 });
+		owner = new ECKeyPair(new BouncyCastleKeyHandler().computePublicKey(pk), pk);
+	}
+
+	private static ProcessedOutput output(UInt256 amount) {
+		return new ProcessedOutput(owner, new TransferrableTokensParticle(
+			amount,
+			UInt256.ONE,
+			new RadixAddress(universe.getConfig(), owner.getPublicKey()),
+			1234L,
+			universe.getNativeToken(),
+			5678L,
+			ProcessedOutput.TOKEN_PERMISSIONS
+		));
+	}
+
+	private static void assertSameOutput(ProcessedOutput expected, ProcessedOutput actual) {
+		assertArrayEquals(expected.owner.getPrivateKey(), actual.owner.getPrivateKey());
+		assertArrayEquals(expected.owner.getPublicKey().getPublicKey(), actual.owner.getPublicKey().getPublicKey());
+		assertEquals(expected.particle.getAmount(), actual.particle.getAmount());
+		assertEquals(expected.particle.getAddress().toString(), actual.particle.getAddress().toString());
+		assertEquals(expected.particle.getNonce(), actual.particle.getNonce());
+		assertEquals(expected.particle.getPlanck(), actual.particle.getPlanck());
+	}
+
+	@Test
+	public void wholeSatoshisAreWrittenAsVersion2() throws IOException {
+		ProcessedOutput output = output(UInt256.from(21_000_000L * 100_000_000L).multiply(UInt256.from(10_000_000_000L)));
+		byte[] bytes = ProcessedOutputSerializer.toByteArray(output);
+
+		assertEquals(ProcessedOutputSerializer.V2_LENGTH, bytes.length);
+		assertEquals(ProcessedOutputSerializer.VERSION_2, bytes[0]);
+		assertSameOutput(output, ProcessedOutputSerializer.fromByteArray(bytes));
+	}
+
+	@Test
+	public void ownersInTheAddressTableAreReferencedById() throws IOException {
+		ProcessedOutput output = output(UInt256.from(100_000_000L).multiply(UInt256.from(10_000_000_000L)));
+		output.ownerId = 7;
+		byte[] bytes = ProcessedOutputSerializer.toByteArray(output);
+
+		assertEquals(ProcessedOutputSerializer.V3_LENGTH, bytes.length);
+		assertEquals(ProcessedOutputSerializer.VERSION_3, bytes[0]);
+		ProcessedOutput read = ProcessedOutputSerializer.fromByteArray(bytes, ownerId -> {
+			assertEquals(7, ownerId);
+			return owner;
+		});
+		assertEquals(7, read.ownerId);
+		assertSameOutput(output, read);
+	}
+
+	@Test
+	public void whereOutputsWereAddedIsWrittenAsVersion4() throws IOException {
+		ProcessedOutput output = output(UInt256.from(100_000_000L).multiply(UInt256.from(10_000_000_000L)));
+		output.ownerId = 7;
+		output.addedBlock = 170;
+		output.addedTxNumber = 171L << 32;
+		byte[] bytes = ProcessedOutputSerializer.toByteArray(output);
+
+		assertEquals(ProcessedOutputSerializer.V4_LENGTH, bytes.length);
+		assertEquals(ProcessedOutputSerializer.VERSION_4, bytes[0]);
+		ProcessedOutput read = ProcessedOutputSerializer.fromByteArray(bytes, ownerId -> owner);
+		assertEquals(7, read.ownerId);
+		assertEquals(170, read.addedBlock);
+		assertEquals(171L << 32, read.addedTxNumber);
+		assertSameOutput(output, read);
+	}
+
+	@Test
+	public void otherAmountsAreWrittenAsVersion1() throws IOException {
+		ProcessedOutput output = output(UInt256.from(123L));
+		byte[] bytes = ProcessedOutputSerializer.toByteArray(output);
+
+		assertEquals(0, bytes[0]);
+		assertSameOutput(output, ProcessedOutputSerializer.fromByteArray(bytes));
+	}
+
+	@Test
+	public void version1ValuesStillRead() throws IOException {
+		ProcessedOutput output = output(UInt256.from(50L * 100_000_000L).multiply(UInt256.from(10_000_000_000L)));
+		DataOutput2 out = new DataOutput2();
+		new ProcessedOutputSerializer(universe.getConfig(), universe.getNativeToken()).serializeV1(out, output);
+
+		assertSameOutput(output, ProcessedOutputSerializer.fromByteArray(out.copyBytes()));
+	}
+}
@@ -0,0 +1,200 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RawBlockTest {
+	private static final NetworkParameters NETWORK = MainNetParams.get();
+
+	// Every template getToAddress knows, and near misses of them
+	private static List<byte[]> scripts(Random random) {
+		byte[] hash = bytes(random, 20);
+		byte[] program = bytes(random, 32);
+		byte[] compressedKey = hex("0279be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798");
+		byte[] offCurveKey = bytes(random, 33);
+		offCurveKey[0] = 0x02;
+
+		List<byte[]> scripts = new ArrayList<>();
+		scripts.add(concat(hex("76a914"), hash, hex("88ac")));
+		scripts.add(concat(hex("76a94c14"), hash, hex("88ac")));
+		scripts.add(concat(hex("a914"), hash, hex("87")));
+		scripts.add(concat(hex("a94c14"), hash, hex("87")));
+		scripts.add(concat(hex("21"), compressedKey, hex("ac")));
+		scripts.add(concat(hex("21"), offCurveKey, hex("ac")));
+		scripts.add(concat(hex("0014"), hash));
+		scripts.add(concat(hex("0020"), program));
+		scripts.add(concat(hex("0015"), bytes(random, 21)));
+		scripts.add(hex("6a0461626364"));
+		scripts.add(concat(hex("76a914"), hash));
+		scripts.add(hex("515253545556"));
+		scripts.add(new byte[0]);
+		return scripts;
+	}
+
+	@Test
+	public void readsWhatBitcoinjDecodes() {
+		Random random = new Random(42);
+		List<byte[]> scripts = scripts(random);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		write(block, bytes(random, 4 + 32 + 32));
+		write(block, hex("29ab5f49ffff001d1dac2b7c"));
+		varInt(block, 4);
+
+		// Coinbase
+		write(block, transaction(new byte[32], -1, scripts.subList(0, 1), null));
+
+		// Legacy, segwit and one with enough inputs and outputs for three byte counts
+		write(block, transaction(bytes(random, 32), 3, scripts, null));
+		write(block, transaction(bytes(random, 32), 0, scripts, bytes(random, 72)));
+		List<byte[]> many = new ArrayList<>();
+		for (int i = 0; i < 300; i++)
+			many.add(scripts.get(i % scripts.size()));
+		write(block, transaction(bytes(random, 32), 1, many, null));
+
+		byte[] data = block.toByteArray();
+		assertMatches(new Block(NETWORK, data), RawBlock.of(data));
+
+		// A slice at an offset of a larger buffer, as handed out by BlockFiles
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 7);
+		buffer.position(7);
+		buffer.put(data);
+		buffer.position(7);
+		assertMatches(new Block(NETWORK, data), RawBlock.of(buffer));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTruncatedBlocks() {
+		Random random = new Random(42);
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		write(block, new byte[80]);
+		varInt(block, 1);
+		byte[] transaction = transaction(bytes(random, 32), 0, scripts(random), null);
+		block.write(transaction, 0, transaction.length - 1);
+		RawBlock.of(block.toByteArray());
+	}
+
+	private static void assertMatches(Block expected, RawBlock block) {
+		List<Transaction> transactions = expected.getTransactions();
+		assertEquals(expected.getTimeSeconds(), block.time());
+		assertEquals(transactions.size(), block.transactions());
+
+		for (int t = 0; t < transactions.size(); t++) {
+			Transaction transaction = transactions.get(t);
+			assertEquals(transaction.getTxId(), block.txId(t));
+
+			List<TransactionInput> inputs = transaction.getInputs();
+			assertEquals(inputs.size(), block.inputs(t));
+			for (int i = 0; i < inputs.size(); i++) {
+				int input = block.firstInput(t) + i;
+				assertEquals(inputs.get(i).isCoinBase(), block.isCoinBase(input));
+				assertArrayEquals(Outpoint.key(inputs.get(i)), block.spentOutpoint(input));
+				assertEquals(inputs.get(i).getOutpoint().getHash(), block.spentTxId(input));
+			}
+
+			List<TransactionOutput> outputs = transaction.getOutputs();
+			assertEquals(outputs.size(), block.outputs(t));
+			for (int o = 0; o < outputs.size(); o++) {
+				int output = block.firstOutput(t) + o;
+				assertEquals(outputs.get(o).getValue().getValue(), block.value(output));
+				assertArrayEquals(Outpoint.key(outputs.get(o)), block.outpoint(output));
+
+				byte[] addressHash;
+				try {
+					addressHash = outputs.get(o).getScriptPubKey().getToAddress(NETWORK, true).getHash();
+				} catch (Exception e) {
+					addressHash = null;
+				}
+				assertArrayEquals(addressHash, block.addressHash(output));
+			}
+		}
+	}
+
+	// [version][marker flag][input]..[outputs][witness][lock time], every input spending prevTxId
+	private static byte[] transaction(byte[] prevTxId, int firstIndex, List<byte[]> scripts, byte[] witness) {
+		int inputs = scripts.size() > 100 ? 260 : 2;
+		ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+		write(transaction, hex("01000000"));
+		if (witness != null)
+			write(transaction, hex("0001"));
+
+		varInt(transaction, firstIndex == -1 ? 1 : inputs);
+		for (int i = 0; i < (firstIndex == -1 ? 1 : inputs); i++) {
+			write(transaction, prevTxId);
+			int index = firstIndex + i;
+			write(transaction, new byte[] { (byte) index, (byte) (index >>> 8), (byte) (index >>> 16), (byte) (index >>> 24) });
+			varInt(transaction, 5);
+			write(transaction, hex("04ffff001d"));
+			write(transaction, hex("ffffffff"));
+		}
+
+		varInt(transaction, scripts.size());
+		for (int o = 0; o < scripts.size(); o++) {
+			long value = o * 100_000_000L + o;
+			for (int b = 0; b < 8; b++)
+				transaction.write((int) (value >>> (8 * b)));
+			varInt(transaction, scripts.get(o).length);
+			write(transaction, scripts.get(o));
+		}
+
+		if (witness != null) {
+			for (int i = 0; i < inputs; i++) {
+				varInt(transaction, 2);
+				varInt(transaction, witness.length);
+				write(transaction, witness);
+				varInt(transaction, 0);
+			}
+		}
+
+		write(transaction, hex("00000000"));
+		return transaction.toByteArray();
+	}
+
+	private static void varInt(ByteArrayOutputStream out, int value) {
+		if (value < 0xFD) {
+			out.write(value);
+		} else {
+			out.write(0xFD);
+			out.write(value);
+			out.write(value >>> 8);
+		}
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			write(out, part);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
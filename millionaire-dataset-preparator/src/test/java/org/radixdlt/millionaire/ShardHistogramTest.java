@@ -0,0 +1,112 @@
+package org.radixdlt.millionaire;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardHistogramTest {
+	@Test
+	public void binsFollowThePositionInTheChunk() {
+		long half = ShardPartitioning.HALF_CHUNK_RANGE;
+		assertEquals(0, ShardHistogram.bin(-half + 1));
+		assertEquals(ShardHistogram.BINS / 2, ShardHistogram.bin(0));
+		assertEquals(ShardHistogram.BINS - 1, ShardHistogram.bin(half - 1));
+		// Every chunk maps the same way
+		assertEquals(ShardHistogram.bin(12345), ShardHistogram.bin(12345 + 7 * half));
+		assertEquals(ShardHistogram.bin(-12345), ShardHistogram.bin(-12345 - 7 * half));
+	}
+
+	@Test
+	public void atomsCountOncePerBin() {
+		ShardHistogram histogram = new ShardHistogram();
+		Set<Long> shards = new HashSet<>();
+		shards.add(1L);
+		shards.add(2L);
+		shards.add(ShardPartitioning.HALF_CHUNK_RANGE - 1);
+		histogram.record(shards, new long[] { 1, 2, ShardPartitioning.HALF_CHUNK_RANGE - 1 });
+
+		long[] atoms = histogram.atomsByBin();
+		assertEquals(1, histogram.atoms());
+		assertEquals(1, atoms[ShardHistogram.bin(1)]);
+		assertEquals(1, atoms[ShardHistogram.BINS - 1]);
+	}
+
+	@Test
+	public void cutsBalanceTheCounts() {
+		long[] counts = new long[16];
+		counts[0] = 50;
+		counts[15] = 50;
+		assertArrayEquals(new int[] { 0, 1, 16 }, ShardHistogram.cuts(counts, 2));
+
+		counts = new long[] { 10, 10, 10, 10, 10, 10, 10, 10 };
+		assertArrayEquals(new int[] { 0, 2, 4, 6, 8 }, ShardHistogram.cuts(counts, 4));
+
+		// More nodes than bins with atoms still gives every node a bin
+		counts = new long[8];
+		counts[3] = 100;
+		int[] cuts = ShardHistogram.cuts(counts, 4);
+		for (int i = 0; i < 4; i++)
+			assertTrue(cuts[i] < cuts[i + 1]);
+		assertEquals(8, cuts[4]);
+
+		assertArrayEquals(new int[] { 0, 2, 4, 6, 8 }, ShardHistogram.cuts(new long[8], 4));
+	}
+
+	@Test
+	public void planCoversTheChunkWithEvenAtoms() throws IOException {
+		ShardHistogram histogram = new ShardHistogram();
+		Random random = new Random(42);
+		for (int i = 0; i < 100_000; i++) {
+			// Skewed towards the top of the chunk
+			long shard = (long) (Math.sqrt(random.nextDouble()) * (2 * ShardPartitioning.HALF_CHUNK_RANGE - 2)) - ShardPartitioning.HALF_CHUNK_RANGE + 1;
+			histogram.record(Collections.singleton(shard), new long[] { shard });
+		}
+
+		ShardPartitioning plan = histogram.plan(10, 0);
+		assertEquals(-ShardPartitioning.HALF_CHUNK_RANGE + 1, plan.lows[0]);
+		assertEquals(ShardPartitioning.HALF_CHUNK_RANGE - 1, plan.highs[9]);
+		long[] atoms = histogram.atomsByBin();
+		for (int i = 0; i < 10; i++) {
+			if (i > 0)
+				assertEquals(plan.highs[i - 1] + 1, plan.lows[i]);
+			long expected = 0;
+			for (int b = ShardHistogram.bin(plan.lows[i]); b <= ShardHistogram.bin(plan.highs[i]); b++)
+				expected += atoms[b];
+			assertEquals(10_000, expected, 200);
+		}
+
+		// With overlap, and read back as --partitions would
+		File file = File.createTempFile("shard_plan", ".txt");
+		try {
+			histogram.writePlan(file, 10, 0.1);
+			ShardPartitioning read = ShardPartitioning.fromFile(file);
+			assertEquals(10, read.size());
+			assertTrue(read.lows[1] < plan.lows[1] && read.highs[1] > plan.highs[1]);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void restoresCounts() throws IOException {
+		ShardHistogram histogram = new ShardHistogram();
+		Random random = new Random(7);
+		for (int i = 0; i < 1000; i++) {
+			long shard = random.nextLong();
+			histogram.record(Collections.singleton(shard), new long[] { shard, shard });
+		}
+
+		ShardHistogram restored = ShardHistogram.fromByteArray(histogram.toByteArray());
+		assertEquals(1000, restored.atoms());
+		assertArrayEquals(histogram.atomsByBin(), restored.atomsByBin());
+	}
+}
@@ -0,0 +1,227 @@
+package org.radixdlt.millionaire;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TransactionDagTest {
+	private static final int INDEPENDENT = 40;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	// In-block parents of every transaction of block()
+	private final List<int[]> parents = new ArrayList<>();
+
+	// A coinbase, then t1 <- t2 <- t3 spending each other in a chain, a diamond of t1 <- t4 and
+	// t2, t4 <- t5, t6 spending two outputs of t5 and one of t1, then transactions spending only
+	// outputs of earlier blocks
+	private RawBlock block() {
+		List<byte[]> transactions = new ArrayList<>();
+		transactions.add(transaction(new byte[][] { new byte[32] }, new int[] { -1 }, 1));
+		parents.add(new int[0]);
+
+		spend(transactions, new int[] {}, new int[] {}, 3);
+		spend(transactions, new int[] { 1 }, new int[] { 0 }, 2);
+		spend(transactions, new int[] { 2 }, new int[] { 0 }, 1);
+		spend(transactions, new int[] { 1 }, new int[] { 1 }, 1);
+		spend(transactions, new int[] { 2, 4 }, new int[] { 1, 0 }, 2);
+		spend(transactions, new int[] { 5, 1, 5 }, new int[] { 0, 2, 1 }, 1);
+		for (int i = 0; i < INDEPENDENT; i++)
+			spend(transactions, new int[] {}, new int[] {}, 1);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		write(block, bytes(80));
+		block.write(0xFD);
+		block.write(transactions.size());
+		block.write(transactions.size() >>> 8);
+		for (byte[] transaction : transactions)
+			write(block, transaction);
+		return RawBlock.of(block.toByteArray());
+	}
+
+	// A transaction spending the given outputs of earlier transactions in the block, and an output
+	// of an earlier block
+	private void spend(List<byte[]> transactions, int[] spent, int[] indexes, int outputs) {
+		byte[][] prevTxIds = new byte[spent.length + 1][];
+		int[] prevIndexes = Arrays.copyOf(indexes, spent.length + 1);
+		for (int i = 0; i < spent.length; i++)
+			prevTxIds[i] = Sha256Hash.hashTwice(transactions.get(spent[i]));
+		prevTxIds[spent.length] = bytes(32);
+		transactions.add(transaction(prevTxIds, prevIndexes, outputs));
+		parents.add(Arrays.stream(spent).distinct().toArray());
+	}
+
+	// [version][inputs][outputs][lock time], outputs paying to P2PKH
+	private byte[] transaction(byte[][] prevTxIds, int[] prevIndexes, int outputs) {
+		ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+		write(transaction, new byte[] { 1, 0, 0, 0 });
+		transaction.write(prevTxIds.length);
+		for (int i = 0; i < prevTxIds.length; i++) {
+			write(transaction, prevTxIds[i]);
+			int index = prevIndexes[i];
+			write(transaction, new byte[] { (byte) index, (byte) (index >>> 8), (byte) (index >>> 16), (byte) (index >>> 24) });
+			transaction.write(0);
+			write(transaction, new byte[] { -1, -1, -1, -1 });
+		}
+		transaction.write(outputs);
+		for (int o = 0; o < outputs; o++) {
+			write(transaction, new byte[] { 0, (byte) 0xe1, (byte) 0xf5, 5, 0, 0, 0, 0 });
+			transaction.write(25);
+			write(transaction, new byte[] { 0x76, (byte) 0xa9, 0x14 });
+			write(transaction, bytes(20));
+			write(transaction, new byte[] { (byte) 0x88, (byte) 0xac });
+		}
+		write(transaction, new byte[4]);
+		return transaction.toByteArray();
+	}
+
+	@Test(timeout = 60_000)
+	public void runsEveryTransactionOnceAfterTheTransactionsItSpends() throws Exception {
+		RawBlock block = block();
+		TransactionDag dag = TransactionDag.of(block);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int round = 0; round < 200; round++) {
+				AtomicIntegerArray runs = new AtomicIntegerArray(block.transactions());
+				AtomicReference<String> violation = new AtomicReference<>();
+				Random delays = new Random(round);
+
+				dag.run(executor, t -> {
+					for (int parent : parents.get(t))
+						if (runs.get(parent) == 0)
+							violation.compareAndSet(null, t + " ran before " + parent);
+					// Let the schedules vary
+					if (delays.nextInt(8) == 0)
+						Thread.sleep(0, 100_000);
+					runs.incrementAndGet(t);
+				});
+
+				assertNull(violation.get());
+				for (int t = 0; t < block.transactions(); t++)
+					assertEquals(1, runs.get(t));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 60_000)
+	public void independentTransactionsDontWaitForAChain() throws Exception {
+		RawBlock block = block();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			AtomicIntegerArray runs = new AtomicIntegerArray(block.transactions());
+			// The chain's head holds its thread until every independent transaction is done
+			TransactionDag.of(block).run(executor, t -> {
+				if (t == 1)
+					for (int i = block.transactions() - INDEPENDENT; i < block.transactions(); i++)
+						while (runs.get(i) == 0)
+							Thread.sleep(1);
+				runs.incrementAndGet(t);
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 60_000)
+	public void failureInAChainIsThrownAndSkipsItsDependents() throws Exception {
+		RawBlock block = block();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Exception failure = new IllegalStateException("Spend failed");
+			AtomicIntegerArray runs = new AtomicIntegerArray(block.transactions());
+			try {
+				TransactionDag.of(block).run(executor, t -> {
+					if (t == 2)
+						throw failure;
+					runs.incrementAndGet(t);
+				});
+				fail("Failure wasn't thrown");
+			} catch (IllegalStateException e) {
+				assertSame(failure, e);
+			}
+			// Everything depending on t2
+			for (int t : new int[] { 3, 5, 6 })
+				assertEquals(0, runs.get(t));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void emptyBlockRunsNothing() throws Exception {
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		write(block, bytes(80));
+		block.write(0);
+		TransactionDag.of(RawBlock.of(block.toByteArray())).run(null, t -> fail("Ran " + t));
+	}
+
+	// The parser resolving in block order and resolving in parallel count the same and write the
+	// same atoms, with the run to run differences fixed
+	@Test
+	public void parallelResolvingMatchesBlockOrder() throws Exception {
+		SyntheticChain.Options options = new SyntheticChain.Options();
+		options.blocks = 30;
+		options.transactionsPerBlock = 100;
+		options.lifetime = 2;
+		options.addresses = 1000;
+		File blocks = folder.newFolder("blocks");
+		new SyntheticChain(options).write(blocks);
+
+		BlockchainParser sequential = parse(blocks, folder.newFolder("sequential"), 1);
+		BlockchainParser parallel = parse(blocks, folder.newFolder("parallel"), 4);
+
+		assertEquals(sequential.blockNum.get(), parallel.blockNum.get());
+		assertEquals(sequential.validTransactions.get(), parallel.validTransactions.get());
+		assertEquals(sequential.bannedTransactions.get(), parallel.bannedTransactions.get());
+		assertEquals(sequential.totalInputs.get(), parallel.totalInputs.get());
+		assertEquals(sequential.totalOutputs.get(), parallel.totalOutputs.get());
+		assertEquals(sequential.generatedAddresses.get(), parallel.generatedAddresses.get());
+		assertArrayEquals(Files.readAllBytes(new File(folder.getRoot(), "sequential/atoms").toPath()),
+			Files.readAllBytes(new File(folder.getRoot(), "parallel/atoms").toPath()));
+	}
+
+	private static BlockchainParser parse(File blocks, File workDir, int resolveThreads) throws Exception {
+		ParserOptions options = Main.parseOptions(new String[] { blocks.getPath(), workDir.getPath(),
+			"--atoms", new File(workDir, "atoms").getPath(), "--resolve-threads", String.valueOf(resolveThreads) });
+		BlockchainParser parser = new BlockchainParser(Main.createUniverse(null), options);
+		parser.nonces = () -> 1;
+		parser.clock = () -> 0;
+		parser.keySalt = new byte[32];
+		parser.parse();
+		return parser;
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		out.write(bytes, 0, bytes.length);
+	}
+}
@@ -7,6 +7,8 @@ const SEEDS_FILE = "seeds.db";
 
 const SHARD_COUNT = parseInt(process.env.SHARD_COUNT || 100);
 const SHARD_OVERLAP = parseFloat(process.env.SHARD_OVERLAP || 0.1);
+// optional "low high" ranges per node, as written by the dataset preparator's --shard-plan
+const SHARD_PLAN = process.env.SHARD_PLAN ? loadPlan(process.env.SHARD_PLAN) : null;
 const MAX_SHARDS_PER_CHUNK = 17592186044416; // 2^44
 
 // number of shards per chunk
@@ -32,6 +34,8 @@ function start() {
     console.log("TARGET_SHARDS_PER_CHUNK:     "+TARGET_SHARDS_PER_CHUNK)
     console.log("EXT_TARGET_SHARDS_PER_CHUNK: "+EXT_TARGET_SHARDS_PER_CHUNK)
     console.log("BF_TARGET_SHARDS_PER_CHUNK:  "+BF_TARGET_SHARDS_PER_CHUNK)
+    if (SHARD_PLAN)
+        console.log("SHARD_PLAN:      "+SHARD_PLAN.length+" nodes")
     http.createServer(function (req, res) {
         var path = url.parse(req.url).path;
 
@@ -66,7 +70,17 @@ function processShardRequest(req, res) {
     let offset = OVERLAP_SHARDS / 2;
     
     // add to seeds map
-    if (!(seed in seeds)) {
+    if (!(seed in seeds) && SHARD_PLAN) {
+        // The planned ranges already include the overlap
+        let range = SHARD_PLAN[index % SHARD_PLAN.length];
+        let extended = range.high - range.low;
+        let targetAnchor = Math.trunc((range.low + range.high) / 2);
+        let bruteForce = Math.trunc(extended / (1 + SHARD_OVERLAP) * (SHARD_OVERLAP/2));
+
+        console.log("targetAnchor: "+targetAnchor)
+        seeds[seed] = `${targetAnchor} ${bruteForce} ${extended}`;
+        persistSeeds(seeds);
+    } else if (!(seed in seeds)) {
         // The targetted anchor point should be in the middle of a chunk
         let i = index % SHARD_COUNT + 0.5;
         let targetAnchor = Math.trunc(offset + TARGET_SHARDS_PER_CHUNK*i - MAX_SHARDS_PER_CHUNK/2);
@@ -90,6 +104,18 @@ function persistSeeds(seeds) {
     }
 }
 
+function loadPlan(file) {
+    var plan = [];
+    fs.readFileSync(file, { encoding: 'utf-8' }).split("\n").forEach(line => {
+        line = line.replace(/#.*/, "").trim();
+        if (line === "")
+            return;
+        var parts = line.split(/\s+/);
+        plan.push({ low: parseInt(parts[0]), high: parseInt(parts[1]) });
+    });
+    return plan;
+}
+
 function loadSeeds() {
     if (fs.existsSync(SEEDS_FILE)) {
         try {